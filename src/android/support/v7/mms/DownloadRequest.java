@@ -28,7 +28,9 @@ import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -38,9 +40,9 @@ import java.util.concurrent.TimeUnit;
  */
 class DownloadRequest extends MmsRequest {
 
-    DownloadRequest(final String locationUrl, final Uri pduUri,
+    DownloadRequest(final int subId, final String locationUrl, final Uri pduUri,
             final PendingIntent sentIntent) {
-        super(locationUrl, pduUri, sentIntent);
+        super(subId, locationUrl, pduUri, sentIntent);
     }
 
     @Override
@@ -51,6 +53,10 @@ class DownloadRequest extends MmsRequest {
 
     @Override
     protected boolean transferResponse(Context context, Intent fillIn, byte[] response) {
+        if (response == null && mResponseStreamed) {
+            // Already written to the content uri
+            return true;
+        }
         return writePduToContentUri(context, mPduUri, response);
     }
 
@@ -58,6 +64,36 @@ class DownloadRequest extends MmsRequest {
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettingsLoader.Apn apn,
             Bundle mmsConfig, String userAgent, String uaProfUrl) throws MmsHttpException {
         final MmsHttpClient httpClient = netMgr.getHttpClient();
+        if (mUsePersistentConnection && mPduUri != null) {
+            // Stream the response straight to the content uri. Each attempt truncates the
+            // response of the previous one.
+            OutputStream responseOut = null;
+            try {
+                final ParcelFileDescriptor pduFd =
+                        context.getContentResolver().openFileDescriptor(mPduUri, "wt");
+                responseOut = new BufferedOutputStream(
+                        new ParcelFileDescriptor.AutoCloseOutputStream(pduFd));
+                httpClient.execute(getHttpRequestUrl(apn), null/*pduFile*/,
+                        MmsHttpClient.METHOD_GET, !TextUtils.isEmpty(apn.getMmsProxy()),
+                        apn.getMmsProxy(), apn.getMmsProxyPort(), mmsConfig, userAgent,
+                        uaProfUrl, responseOut);
+                responseOut.flush();
+            } catch (IOException e) {
+                Log.e(MmsService.TAG, "Writing response to downloader: IO exception", e);
+                throw new MmsHttpException(0/*statusCode*/, e);
+            } finally {
+                if (responseOut != null) {
+                    try {
+                        responseOut.close();
+                    } catch (IOException ex) {
+                        // Ignore
+                    }
+                }
+            }
+            mResponseStreamed = true;
+            // The response is already at its destination
+            return null;
+        }
         return httpClient.execute(getHttpRequestUrl(apn), null/*pdu*/, MmsHttpClient.METHOD_GET,
                 !TextUtils.isEmpty(apn.getMmsProxy()), apn.getMmsProxy(), apn.getMmsProxyPort(),
                 mmsConfig, userAgent, uaProfUrl);
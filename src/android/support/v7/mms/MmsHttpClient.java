@@ -28,7 +28,11 @@ import android.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -57,6 +61,7 @@ public class MmsHttpClient {
     private static final String HEADER_ACCEPT = "Accept";
     private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
     private static final String HEADER_USER_AGENT = "User-Agent";
+    private static final String HEADER_CONNECTION = "Connection";
 
     // The "Accept" header value
     private static final String HEADER_VALUE_ACCEPT =
@@ -66,6 +71,8 @@ public class MmsHttpClient {
             "application/vnd.wap.mms-message; charset=utf-8";
     private static final String HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET =
             "application/vnd.wap.mms-message";
+    // The "Connection" header value for persistent connections
+    private static final String HEADER_VALUE_KEEP_ALIVE = "Keep-Alive";
 
     /*
      * Macro names
@@ -112,11 +119,67 @@ public class MmsHttpClient {
     public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
             String proxyHost, int proxyPort, Bundle mmsConfig, String userAgent, String uaProfUrl)
             throws MmsHttpException {
+        final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        execute(urlString, pdu != null ? new ByteArrayInputStream(pdu) : null,
+                pdu != null ? pdu.length : 0, method, isProxySet, proxyHost, proxyPort,
+                mmsConfig, userAgent, uaProfUrl, byteOut, false/*keepAlive*/);
+        return byteOut.toByteArray();
+    }
+
+    /**
+     * Execute an MMS HTTP request over a persistent connection, streaming the request body from
+     * a file and the response body to a stream. The connection is kept open after a successful
+     * request, so that the next request to the same MMSC or proxy can reuse it.
+     *
+     * @param urlString The request URL, for sending it is usually the MMSC, and for downloading
+     *                  it is the message URL
+     * @param pduFile For POST (sending) only, the file holding the PDU to send
+     * @param method HTTP method, POST for sending and GET for downloading
+     * @param isProxySet Is there a proxy for the MMSC
+     * @param proxyHost The proxy host
+     * @param proxyPort The proxy port
+     * @param mmsConfig The MMS config to use
+     * @param userAgent The user agent header value
+     * @param uaProfUrl The UA Prof URL header value
+     * @param responseOut The stream the HTTP response body is written to
+     * @return The size of the HTTP response body
+     * @throws MmsHttpException For any failures
+     */
+    public long execute(String urlString, File pduFile, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, String userAgent, String uaProfUrl,
+            OutputStream responseOut) throws MmsHttpException {
+        InputStream pduIn = null;
+        try {
+            if (pduFile != null) {
+                pduIn = new FileInputStream(pduFile);
+            }
+            return execute(urlString, pduIn, pduFile != null ? pduFile.length() : 0, method,
+                    isProxySet, proxyHost, proxyPort, mmsConfig, userAgent, uaProfUrl,
+                    responseOut, true/*keepAlive*/);
+        } catch (FileNotFoundException e) {
+            Log.e(MmsService.TAG, "HTTP: PDU file not found", e);
+            throw new MmsHttpException(0/*statusCode*/, e);
+        } finally {
+            if (pduIn != null) {
+                try {
+                    pduIn.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    private long execute(String urlString, InputStream pduIn, long pduLength, String method,
+            boolean isProxySet, String proxyHost, int proxyPort, Bundle mmsConfig,
+            String userAgent, String uaProfUrl, OutputStream responseOut, boolean keepAlive)
+            throws MmsHttpException {
         Log.d(MmsService.TAG, "HTTP: " + method + " " + Utils.redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
-                + ", PDU size=" + (pdu != null ? pdu.length : 0));
+                + ", PDU size=" + pduLength + (keepAlive ? ", keep-alive" : ""));
         checkMethod(method);
         HttpURLConnection connection = null;
+        boolean succeeded = false;
         try {
             Proxy proxy = Proxy.NO_PROXY;
             if (isProxySet) {
@@ -146,11 +209,16 @@ public class MmsHttpClient {
                 Log.i(MmsService.TAG, "HTTP: UaProfUrl=" + uaProfUrl);
                 connection.setRequestProperty(uaProfUrlTagName, uaProfUrl);
             }
+            // Header: Connection. HTTP/1.1 connections persist by default, but WAP gateways
+            // speaking HTTP/1.0 need to be asked explicitly.
+            if (keepAlive) {
+                connection.setRequestProperty(HEADER_CONNECTION, HEADER_VALUE_KEEP_ALIVE);
+            }
             // Add extra headers specified by mms_config.xml's httpparams
             addExtraHeaders(connection, mmsConfig);
             // Different stuff for GET and POST
             if (METHOD_POST.equals(method)) {
-                if (pdu == null || pdu.length < 1) {
+                if (pduIn == null || pduLength < 1) {
                     Log.e(MmsService.TAG, "HTTP: empty pdu");
                     throw new MmsHttpException(0/*statusCode*/, "Sending empty PDU");
                 }
@@ -168,11 +236,11 @@ public class MmsHttpClient {
                 if (Log.isLoggable(MmsService.TAG, Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties());
                 }
-                connection.setFixedLengthStreamingMode(pdu.length);
+                connection.setFixedLengthStreamingMode(pduLength);
                 // Sending request body
                 final OutputStream out =
                         new BufferedOutputStream(connection.getOutputStream());
-                out.write(pdu);
+                copy(pduIn, out);
                 out.flush();
                 out.close();
             } else if (METHOD_GET.equals(method)) {
@@ -191,18 +259,14 @@ public class MmsHttpClient {
             if (responseCode / 100 != 2) {
                 throw new MmsHttpException(responseCode, responseMessage);
             }
+            // Reading the body to the end and closing it hands a kept alive connection back
+            // to the connection pool
             final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
-            }
+            final long responseSize = copy(in, responseOut);
             in.close();
-            final byte[] responseBody = byteOut.toByteArray();
-            Log.d(MmsService.TAG, "HTTP: response size="
-                    + (responseBody != null ? responseBody.length : 0));
-            return responseBody;
+            Log.d(MmsService.TAG, "HTTP: response size=" + responseSize);
+            succeeded = true;
+            return responseSize;
         } catch (MalformedURLException e) {
             final String redactedUrl = Utils.redactUrlForNonVerbose(urlString);
             Log.e(MmsService.TAG, "HTTP: invalid URL " + redactedUrl, e);
@@ -215,12 +279,24 @@ public class MmsHttpClient {
             Log.e(MmsService.TAG, "HTTP: IO failure", e);
             throw new MmsHttpException(0/*statusCode*/, e);
         } finally {
-            if (connection != null) {
+            // A failed connection is never reused
+            if (connection != null && (!keepAlive || !succeeded)) {
                 connection.disconnect();
             }
         }
     }
 
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buf = new byte[4096];
+        long total = 0;
+        int count = 0;
+        while ((count = in.read(buf)) > 0) {
+            out.write(buf, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
     private static void logHttpHeaders(Map<String, List<String>> headers) {
         final StringBuilder sb = new StringBuilder();
         if (headers != null) {
@@ -23,6 +23,8 @@ import android.os.Bundle;
 import android.telephony.SmsManager;
 import android.util.SparseArray;
 
+import java.io.PrintWriter;
+
 /**
  * The public interface of MMS library
  */
@@ -48,7 +50,8 @@ public class MmsManager {
     }
 
     /**
-     * Set the size of thread pool for request execution.
+     * Set the size of thread pool for request execution, i.e. the number of requests of
+     * each subscription run at a time.
      *
      * Default is 4
      *
@@ -73,6 +76,22 @@ public class MmsManager {
         MmsService.setUseWakeLock(useWakeLock);
     }
 
+    /**
+     * Set whether to keep HTTP connections to the MMSC or proxy open across requests, and
+     * stream request bodies from a file and downloaded PDUs straight to the content uri instead
+     * of buffering them in memory. Draining a queue of pending messages then only pays the
+     * connection setup and route request once.
+     *
+     * Default value is false
+     *
+     * Note: if system MMS API is used, this has no effect
+     *
+     * @param usePersistentConnections true to use persistent connections, false otherwise
+     */
+    public static void setUsePersistentConnections(final boolean usePersistentConnections) {
+        MmsService.setUsePersistentConnections(usePersistentConnections);
+    }
+
     /**
      * Set the optional carrier config values loader
      *
@@ -123,6 +142,17 @@ public class MmsManager {
         }
     }
 
+    /**
+     * Dump the throughput of MMS requests of each subscription
+     *
+     * Note: only requests sent or downloaded with legacy APIs are counted
+     *
+     * @param writer the writer to dump to
+     */
+    public static void dump(final PrintWriter writer) {
+        MmsService.dump(writer);
+    }
+
     /**
      * Send MMS via platform MMS API (if platform supports and not forced to
      * use legacy APIs) or legacy APIs
@@ -141,7 +171,8 @@ public class MmsManager {
             smsManager.sendMultimediaMessage(context, contentUri, locationUrl,
                     getConfigOverrides(subId), sentIntent);
         } else {
-            MmsService.startRequest(context, new SendRequest(locationUrl, contentUri, sentIntent));
+            MmsService.startRequest(context, new SendRequest(
+                    Utils.getEffectiveSubscriptionId(subId), locationUrl, contentUri, sentIntent));
         }
     }
 
@@ -163,8 +194,9 @@ public class MmsManager {
             smsManager.downloadMultimediaMessage(context, locationUrl, contentUri,
                     getConfigOverrides(subId), downloadedIntent);
         } else {
-            MmsService.startRequest(context,
-                    new DownloadRequest(locationUrl, contentUri, downloadedIntent));
+            MmsService.startRequest(context, new DownloadRequest(
+                    Utils.getEffectiveSubscriptionId(subId), locationUrl, contentUri,
+                    downloadedIntent));
         }
     }
 
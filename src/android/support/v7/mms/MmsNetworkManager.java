@@ -27,6 +27,8 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -84,6 +86,10 @@ class MmsNetworkManager {
 
     private final MmsHttpClient mHttpClient;
 
+    // Hosts a route has been requested to since the MMS network was acquired. Routes go away
+    // with the network, so this is cleared whenever the network is released or lost.
+    private final Set<String> mRoutedHosts = new HashSet<String>();
+
     private final IntentFilter mConnectivityIntentFilter;
     private final BroadcastReceiver mConnectivityChangeReceiver = new BroadcastReceiver() {
         @Override
@@ -118,6 +124,33 @@ class MmsNetworkManager {
         return mHttpClient;
     }
 
+    /**
+     * @param host the MMS proxy or MMSC host of an APN
+     * @return true if a route to the host was requested on the current MMS network
+     */
+    boolean isRouteRequested(final String host) {
+        synchronized (mRoutedHosts) {
+            return mRoutedHosts.contains(host);
+        }
+    }
+
+    /**
+     * Remember that a route to the host was requested on the current MMS network
+     *
+     * @param host the MMS proxy or MMSC host of an APN
+     */
+    void onRouteRequested(final String host) {
+        synchronized (mRoutedHosts) {
+            mRoutedHosts.add(host);
+        }
+    }
+
+    private void clearRequestedRoutes() {
+        synchronized (mRoutedHosts) {
+            mRoutedHosts.clear();
+        }
+    }
+
     /**
      * Synchronously acquire MMS network connectivity
      *
@@ -188,6 +221,7 @@ class MmsNetworkManager {
             if (mUseCount == 0) {
                 stopNetworkExtensionTimerLocked();
                 endMmsConnectivity();
+                clearRequestedRoutes();
             }
         }
     }
@@ -226,6 +260,9 @@ class MmsNetworkManager {
                 unblockWait();
             } else {
                 final NetworkInfo.State state = mmsNetworkInfo.getState();
+                if (state != NetworkInfo.State.CONNECTED) {
+                    clearRequestedRoutes();
+                }
                 if (state == NetworkInfo.State.CONNECTED ||
                         (state == NetworkInfo.State.DISCONNECTED && !isMobileDataEnabled())) {
                     // Unblock the waiting request when we either connected
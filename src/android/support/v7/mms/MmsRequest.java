@@ -33,6 +33,8 @@ import android.telephony.SmsManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -91,6 +93,10 @@ abstract class MmsRequest implements Parcelable {
     // Maximum time to spend waiting to read data from a content provider before failing with error.
     protected static final int TASK_TIMEOUT_MS = 30 * 1000;
 
+    private static final String BODY_FILE_PREFIX = "mmslib_body";
+
+    // The subscription the request is scheduled for
+    protected final int mSubId;
     protected final String mLocationUrl;
     protected final Uri mPduUri;
     protected final PendingIntent mPendingIntent;
@@ -100,8 +106,18 @@ abstract class MmsRequest implements Parcelable {
     // Whether this request should acquire wake lock
     private boolean mUseWakeLock;
 
-    protected MmsRequest(final String locationUrl, final Uri pduUri,
+    // Whether this execution streams its bodies over persistent connections, see
+    // MmsManager.setUsePersistentConnections
+    protected boolean mUsePersistentConnection;
+    // File the request body is streamed through, if any. It is deleted once the result has
+    // been returned.
+    protected File mRequestBodyFile;
+    // Whether the response body has already been streamed to its destination
+    protected boolean mResponseStreamed;
+
+    protected MmsRequest(final int subId, final String locationUrl, final Uri pduUri,
             final PendingIntent pendingIntent) {
+        mSubId = subId;
         mLocationUrl = locationUrl;
         mPduUri = pduUri;
         mPendingIntent = pendingIntent;
@@ -116,24 +132,31 @@ abstract class MmsRequest implements Parcelable {
         return mUseWakeLock;
     }
 
+    int getSubId() {
+        return mSubId;
+    }
+
     /**
      * Run the MMS request.
      *
      * @param context the context to use
      * @param networkManager the MmsNetworkManager to use to setup MMS network
+     * @param networkAcquired true if the caller holds the MMS network for the request
      * @param apnSettingsLoader the APN loader
      * @param carrierConfigValuesLoader the carrier config loader
      * @param userAgentInfoLoader the user agent info loader
      */
     void execute(final Context context, final MmsNetworkManager networkManager,
-            final ApnSettingsLoader apnSettingsLoader,
+            final boolean networkAcquired, final ApnSettingsLoader apnSettingsLoader,
             final CarrierConfigValuesLoader carrierConfigValuesLoader,
             final UserAgentInfoLoader userAgentInfoLoader) {
         Log.i(MmsService.TAG, "Execute " + this.getClass().getSimpleName());
         int result = SmsManager.MMS_ERROR_UNSPECIFIED;
         int httpStatusCode = 0;
         byte[] response = null;
-        final Bundle mmsConfig = carrierConfigValuesLoader.get(MmsManager.DEFAULT_SUB_ID);
+        mUsePersistentConnection = MmsService.getUsePersistentConnections();
+        mResponseStreamed = false;
+        final Bundle mmsConfig = carrierConfigValuesLoader.get(mSubId);
         if (mmsConfig == null) {
             Log.e(MmsService.TAG, "Failed to load carrier configuration values");
             result = SmsManager.MMS_ERROR_CONFIGURATION_ERROR;
@@ -143,8 +166,10 @@ abstract class MmsRequest implements Parcelable {
         } else {
             // Everything's OK. Now execute the request.
             try {
-                // Acquire the MMS network
-                networkManager.acquireNetwork();
+                // Acquire the MMS network, unless the request's scheduler group holds it
+                if (!networkAcquired) {
+                    networkManager.acquireNetwork();
+                }
                 // Load the potential APNs. In most cases there should be only one APN available.
                 // On some devices on which we can't obtain APN from system, we look up our own
                 // APN list. Since we don't have exact information, we may get a list of potential
@@ -167,7 +192,7 @@ abstract class MmsRequest implements Parcelable {
                     try {
                         final String url = getHttpRequestUrl(apn);
                         // Request a global route for the host to connect
-                        requestRoute(networkManager.getConnectivityManager(), apn, url);
+                        requestRoute(networkManager, apn, url, mUsePersistentConnection);
                         // Perform the HTTP request
                         response = doHttp(
                                 context, networkManager, apn, mmsConfig, userAgent, uaProfUrl);
@@ -202,11 +227,36 @@ abstract class MmsRequest implements Parcelable {
                 result = SmsManager.MMS_ERROR_UNSPECIFIED;
             } finally {
                 // Release MMS network
-                networkManager.releaseNetwork();
+                if (!networkAcquired) {
+                    networkManager.releaseNetwork();
+                }
             }
         }
         // Process result and send back via PendingIntent
         returnResult(context, result, response, httpStatusCode);
+        deleteRequestBodyFile();
+    }
+
+    /**
+     * Create a file in the cache directory to stream a request body through
+     *
+     * @param context the Context
+     * @return the new empty file, or null if it could not be created
+     */
+    protected static File createBodyFile(final Context context) {
+        try {
+            return File.createTempFile(BODY_FILE_PREFIX, null, context.getCacheDir());
+        } catch (IOException e) {
+            Log.w(MmsService.TAG, "Creating body file failed", e);
+            return null;
+        }
+    }
+
+    private void deleteRequestBodyFile() {
+        if (mRequestBodyFile != null) {
+            mRequestBodyFile.delete();
+            mRequestBodyFile = null;
+        }
     }
 
     /**
@@ -262,7 +312,8 @@ abstract class MmsRequest implements Parcelable {
         }
         // Extra information to send back with the pending intent
         final Intent fillIn = new Intent();
-        if (response != null) {
+        // A response streamed to its destination is transferred with a null response
+        if (response != null || (result == Activity.RESULT_OK && mResponseStreamed)) {
             if (!transferResponse(context, fillIn, response)) {
                 // Failed to send PDU data back to caller
                 result = SmsManager.MMS_ERROR_IO_ERROR;
@@ -282,18 +333,25 @@ abstract class MmsRequest implements Parcelable {
     /**
      * Request the route to the APN (either proxy host or the MMSC host)
      *
-     * @param connectivityManager the ConnectivityManager to use
+     * @param networkManager the MmsNetworkManager of the MMS network
      * @param apn the current APN
      * @param url the URL to connect to
+     * @param useCachedRoute whether to skip hosts a route was already requested to on the
+     *                       current MMS network
      * @throws MmsHttpException for unknown host or route failure
      */
-    private static void requestRoute(final ConnectivityManager connectivityManager,
-            final ApnSettingsLoader.Apn apn, final String url) throws MmsHttpException {
+    private static void requestRoute(final MmsNetworkManager networkManager,
+            final ApnSettingsLoader.Apn apn, final String url, final boolean useCachedRoute)
+            throws MmsHttpException {
         String host = apn.getMmsProxy();
         if (TextUtils.isEmpty(host)) {
             final Uri uri = Uri.parse(url);
             host = uri.getHost();
         }
+        if (useCachedRoute && networkManager.isRouteRequested(host)) {
+            return;
+        }
+        final ConnectivityManager connectivityManager = networkManager.getConnectivityManager();
         boolean success = false;
         // Request route to all resolved host addresses
         try {
@@ -309,6 +367,7 @@ abstract class MmsRequest implements Parcelable {
             if (!success) {
                 throw new MmsHttpException(0/*statusCode*/, "No route requested");
             }
+            networkManager.onRouteRequested(host);
         } catch (UnknownHostException e) {
             Log.w(MmsService.TAG, "Unknown host " + host);
             throw new MmsHttpException(0/*statusCode*/, "Unknown host");
@@ -376,6 +435,7 @@ abstract class MmsRequest implements Parcelable {
     @Override
     public void writeToParcel(Parcel parcel, int flags) {
         parcel.writeByte((byte) (mUseWakeLock ? 1 : 0));
+        parcel.writeInt(mSubId);
         parcel.writeString(mLocationUrl);
         parcel.writeParcelable(mPduUri, 0);
         parcel.writeParcelable(mPendingIntent, 0);
@@ -384,6 +444,7 @@ abstract class MmsRequest implements Parcelable {
     protected MmsRequest(final Parcel in) {
         final ClassLoader classLoader = MmsRequest.class.getClassLoader();
         mUseWakeLock = in.readByte() != 0;
+        mSubId = in.readInt();
         mLocationUrl = in.readString();
         mPduUri = in.readParcelable(classLoader);
         mPendingIntent = in.readParcelable(classLoader);
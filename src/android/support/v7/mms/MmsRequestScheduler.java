@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v7.mms;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules MMS requests in groups, one per subscription. A group acquires the MMS network once
+ * when its first request is queued and holds it until its last request finishes, so that
+ * queued requests don't tear down and set up the network in between. Each group runs up to a
+ * fixed number of requests at a time, alternating between sends and downloads, and groups
+ * don't wait on each other, so traffic of one SIM doesn't hold up the other.
+ *
+ * The legacy network APIs can't pick a SIM, so all groups share the MMS network of the
+ * {@link MmsNetworkManager}, and the APN is always the one of that network.
+ */
+class MmsRequestScheduler {
+    /**
+     * Runs a request on a scheduler thread
+     */
+    interface RequestRunner {
+        /**
+         * @param request the request to run
+         * @param networkAcquired true if the MMS network is held for the request, false if
+         *                        acquiring it for the group failed and the request has to try
+         *                        on its own
+         */
+        void run(MmsRequest request, boolean networkAcquired);
+    }
+
+    // Throughput of the requests of a subscription, kept for the life of the process
+    private static final SparseArray<SubscriptionStats> sStats =
+            new SparseArray<SubscriptionStats>();
+
+    private static class SubscriptionStats {
+        int sends;
+        int downloads;
+        int networkAcquisitions;
+        int networkAcquisitionFailures;
+        long networkAcquireMillis;
+        long queueMillis;
+        long runMillis;
+        // Time the group had requests queued or running
+        long busyMillis;
+    }
+
+    private static class QueuedRequest {
+        final MmsRequest mRequest;
+        final long mQueuedMillis;
+
+        QueuedRequest(final MmsRequest request) {
+            mRequest = request;
+            mQueuedMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static class Group {
+        final int mSubId;
+        final ArrayDeque<QueuedRequest> mPendingSends = new ArrayDeque<QueuedRequest>();
+        final ArrayDeque<QueuedRequest> mPendingDownloads = new ArrayDeque<QueuedRequest>();
+        int mRunning;
+        // Whether the group is between acquiring the network and draining
+        boolean mActive;
+        // Null while the network is being acquired
+        Boolean mNetworkAcquired;
+        boolean mPreferDownload;
+        long mActiveSinceMillis;
+
+        Group(final int subId) {
+            mSubId = subId;
+        }
+
+        boolean isDrained() {
+            return mRunning == 0 && mPendingSends.isEmpty() && mPendingDownloads.isEmpty();
+        }
+
+        QueuedRequest pollNext() {
+            final boolean download = mPendingSends.isEmpty()
+                    || (mPreferDownload && !mPendingDownloads.isEmpty());
+            mPreferDownload = !download;
+            return download ? mPendingDownloads.poll() : mPendingSends.poll();
+        }
+    }
+
+    private final MmsNetworkManager mNetworkManager;
+    private final int mMaxConcurrentRequests;
+    private final RequestRunner mRunner;
+    private final ExecutorService mExecutor;
+    // Groups by subscription, guarded by itself
+    private final SparseArray<Group> mGroups = new SparseArray<Group>();
+
+    /**
+     * @param networkManager the manager of the MMS network
+     * @param maxConcurrentRequests the number of requests of a subscription run at a time
+     * @param runner runs the requests
+     */
+    MmsRequestScheduler(final MmsNetworkManager networkManager, final int maxConcurrentRequests,
+            final RequestRunner runner) {
+        mNetworkManager = networkManager;
+        mMaxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+        mRunner = runner;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "MmsRequest-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Queue a request in the group of its subscription
+     *
+     * @param request the request to run
+     * @throws java.util.concurrent.RejectedExecutionException if the scheduler is shut down
+     */
+    void schedule(final MmsRequest request) {
+        final int subId = request.getSubId();
+        synchronized (mGroups) {
+            Group group = mGroups.get(subId);
+            if (group == null) {
+                group = new Group(subId);
+                mGroups.put(subId, group);
+            }
+            final QueuedRequest queuedRequest = new QueuedRequest(request);
+            if (request instanceof SendRequest) {
+                group.mPendingSends.add(queuedRequest);
+            } else {
+                group.mPendingDownloads.add(queuedRequest);
+            }
+            if (!group.mActive) {
+                group.mActive = true;
+                group.mNetworkAcquired = null;
+                group.mActiveSinceMillis = SystemClock.elapsedRealtime();
+                final Group activatedGroup = group;
+                try {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            acquireNetwork(activatedGroup);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    group.mActive = false;
+                    group.mPendingSends.remove(queuedRequest);
+                    group.mPendingDownloads.remove(queuedRequest);
+                    throw e;
+                }
+            } else if (group.mNetworkAcquired != null) {
+                dispatchLocked(group);
+            }
+        }
+    }
+
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private void acquireNetwork(final Group group) {
+        final long startMillis = SystemClock.elapsedRealtime();
+        boolean acquired = false;
+        try {
+            mNetworkManager.acquireNetwork();
+            acquired = true;
+        } catch (MmsNetworkException e) {
+            // Let the requests report the failure themselves
+            Log.w(MmsService.TAG, "Acquiring MMS network for sub " + group.mSubId + " failed",
+                    e);
+        }
+        synchronized (sStats) {
+            final SubscriptionStats stats = getStatsLocked(group.mSubId);
+            stats.networkAcquisitions++;
+            if (!acquired) {
+                stats.networkAcquisitionFailures++;
+            }
+            stats.networkAcquireMillis += SystemClock.elapsedRealtime() - startMillis;
+        }
+        synchronized (mGroups) {
+            group.mNetworkAcquired = acquired;
+            dispatchLocked(group);
+        }
+    }
+
+    private void dispatchLocked(final Group group) {
+        final boolean networkAcquired = group.mNetworkAcquired;
+        while (group.mRunning < mMaxConcurrentRequests) {
+            final QueuedRequest queuedRequest = group.pollNext();
+            if (queuedRequest == null) {
+                break;
+            }
+            group.mRunning++;
+            final MmsRequest request = queuedRequest.mRequest;
+            final long queuedMillis = queuedRequest.mQueuedMillis;
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long startMillis = SystemClock.elapsedRealtime();
+                        try {
+                            mRunner.run(request, networkAcquired);
+                        } finally {
+                            onRequestFinished(group, request, startMillis - queuedMillis,
+                                    SystemClock.elapsedRealtime() - startMillis);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Shut down, the service is going away along with the queued requests
+                group.mRunning--;
+                Log.w(MmsService.TAG, "Dropping MMS request for sub " + group.mSubId, e);
+            }
+        }
+        maybeReleaseLocked(group);
+    }
+
+    private void onRequestFinished(final Group group, final MmsRequest request,
+            final long queueMillis, final long runMillis) {
+        synchronized (sStats) {
+            final SubscriptionStats stats = getStatsLocked(group.mSubId);
+            if (request instanceof SendRequest) {
+                stats.sends++;
+            } else {
+                stats.downloads++;
+            }
+            stats.queueMillis += queueMillis;
+            stats.runMillis += runMillis;
+        }
+        synchronized (mGroups) {
+            group.mRunning--;
+            dispatchLocked(group);
+        }
+    }
+
+    /**
+     * Release the network of a group as soon as it has no more requests
+     */
+    private void maybeReleaseLocked(final Group group) {
+        if (!group.mActive || !group.isDrained()) {
+            return;
+        }
+        group.mActive = false;
+        synchronized (sStats) {
+            getStatsLocked(group.mSubId).busyMillis +=
+                    SystemClock.elapsedRealtime() - group.mActiveSinceMillis;
+        }
+        if (Boolean.TRUE.equals(group.mNetworkAcquired)) {
+            // MmsNetworkManager never calls back into the scheduler, so this can't deadlock
+            mNetworkManager.releaseNetwork();
+        }
+        group.mNetworkAcquired = null;
+    }
+
+    private static SubscriptionStats getStatsLocked(final int subId) {
+        SubscriptionStats stats = sStats.get(subId);
+        if (stats == null) {
+            stats = new SubscriptionStats();
+            sStats.put(subId, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Dump the throughput of the requests of each subscription
+     *
+     * @param writer the writer to dump to
+     */
+    static void dump(final PrintWriter writer) {
+        writer.println("MmsRequestScheduler:");
+        synchronized (sStats) {
+            for (int i = 0; i < sStats.size(); i++) {
+                final SubscriptionStats stats = sStats.valueAt(i);
+                final int requests = stats.sends + stats.downloads;
+                writer.println("  sub=" + sStats.keyAt(i)
+                        + " sends=" + stats.sends
+                        + " downloads=" + stats.downloads
+                        + " throughput=" + (stats.busyMillis == 0 ? 0 :
+                                requests * 60000L / stats.busyMillis) + "/min"
+                        + " avgQueueMs=" + (requests == 0 ? 0 : stats.queueMillis / requests)
+                        + " avgRunMs=" + (requests == 0 ? 0 : stats.runMillis / requests)
+                        + " networkAcquisitions=" + stats.networkAcquisitions
+                        + " failed=" + stats.networkAcquisitionFailures
+                        + " avgAcquireMs=" + (stats.networkAcquisitions == 0 ? 0 :
+                                stats.networkAcquireMillis / stats.networkAcquisitions));
+            }
+        }
+    }
+}
@@ -26,8 +26,7 @@ import android.os.Process;
 import android.telephony.SmsManager;
 import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.PrintWriter;
 import java.util.concurrent.RejectedExecutionException;
 
 /**
@@ -47,7 +46,7 @@ public class MmsService extends Service {
     private static final String WAKELOCK_ID = "mmslib_wakelock";
 
     /**
-     * Thread pool size for each request queue
+     * Number of requests of each subscription run at a time
      */
     private static volatile int sThreadPoolSize = DEFAULT_THREAD_POOL_SIZE;
 
@@ -58,6 +57,11 @@ public class MmsService extends Service {
     private static volatile PowerManager.WakeLock sWakeLock = null;
     private static final Object sWakeLockLock = new Object();
 
+    /**
+     * Whether requests stream their bodies over persistent HTTP connections
+     */
+    private static volatile boolean sUsePersistentConnections = false;
+
     /**
      * Carrier configuration values loader
      */
@@ -74,7 +78,7 @@ public class MmsService extends Service {
     private static volatile UserAgentInfoLoader sUserAgentInfoLoader = null;
 
     /**
-     * Set the size of thread pool for request execution.
+     * Set the number of requests of each subscription run at a time.
      * Default is DEFAULT_THREAD_POOL_SIZE
      *
      * @param size thread pool size
@@ -92,6 +96,24 @@ public class MmsService extends Service {
         sUseWakeLock = useWakeLock;
     }
 
+    /**
+     * Set whether to stream request bodies over persistent HTTP connections
+     *
+     * @param usePersistentConnections true to use persistent connections, false otherwise
+     */
+    static void setUsePersistentConnections(final boolean usePersistentConnections) {
+        sUsePersistentConnections = usePersistentConnections;
+    }
+
+    /**
+     * Get whether to stream request bodies over persistent HTTP connections
+     *
+     * @return true if persistent connections are used
+     */
+    static boolean getUsePersistentConnections() {
+        return sUsePersistentConnections;
+    }
+
     /**
      * Set the optional carrier config values
      *
@@ -235,10 +257,10 @@ public class MmsService extends Service {
         return pid == getMyPid();
     }
 
-    // Request execution thread pools. One thread pool for sending and one for downloading.
-    // The size of the thread pool controls the parallelism of request execution.
+    // Runs the requests of each subscription on a shared MMS network.
+    // The thread pool size controls the parallelism of each subscription's requests.
     // See {@link setThreadPoolSize}
-    private ExecutorService[] mExecutors = new ExecutorService[2];
+    private MmsRequestScheduler mScheduler;
 
     // Active request count
     private int mActiveRequestCount;
@@ -279,17 +301,44 @@ public class MmsService extends Service {
         }
     }
 
+    /**
+     * Dump the throughput of MMS requests of each subscription
+     *
+     * @param writer the writer to dump to
+     */
+    static void dump(final PrintWriter writer) {
+        MmsRequestScheduler.dump(writer);
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
 
         ensureLoaders(this);
 
-        for (int i = 0; i < mExecutors.length; i++) {
-            mExecutors[i] = Executors.newFixedThreadPool(sThreadPoolSize);
-        }
-
         mNetworkManager = new MmsNetworkManager(this);
+        mScheduler = new MmsRequestScheduler(mNetworkManager, sThreadPoolSize,
+                new MmsRequestScheduler.RequestRunner() {
+                    @Override
+                    public void run(final MmsRequest request, final boolean networkAcquired) {
+                        try {
+                            request.execute(
+                                    MmsService.this,
+                                    mNetworkManager,
+                                    networkAcquired,
+                                    getApnSettingsLoader(),
+                                    getCarrierConfigValuesLoader(),
+                                    getUserAgentInfoLoader());
+                        } catch (Exception e) {
+                            Log.w(TAG, "Unexpected execution failure", e);
+                        } finally {
+                            if (request.getUseWakeLock()) {
+                                releaseWakeLock();
+                            }
+                            releaseService();
+                        }
+                    }
+                });
 
         synchronized (this) {
             mActiveRequestCount = 0;
@@ -301,9 +350,7 @@ public class MmsService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
-        for (ExecutorService executor : mExecutors) {
-            executor.shutdown();
-        }
+        mScheduler.shutdown();
     }
 
     @Override
@@ -324,26 +371,7 @@ public class MmsService extends Service {
                 final MmsRequest request = intent.getParcelableExtra(EXTRA_REQUEST);
                 if (request != null) {
                     try {
-                        retainService(request, new Runnable() {
-                            @Override
-                            public void run() {
-                                try {
-                                    request.execute(
-                                            MmsService.this,
-                                            mNetworkManager,
-                                            getApnSettingsLoader(),
-                                            getCarrierConfigValuesLoader(),
-                                            getUserAgentInfoLoader());
-                                } catch (Exception e) {
-                                    Log.w(TAG, "Unexpected execution failure", e);
-                                } finally {
-                                    if (request.getUseWakeLock()) {
-                                        releaseWakeLock();
-                                    }
-                                    releaseService();
-                                }
-                            }
-                        });
+                        retainService(request);
                         scheduled = true;
                     } catch (RejectedExecutionException e) {
                         // Rare thing happened. Send back failure using the pending intent
@@ -373,15 +401,13 @@ public class MmsService extends Service {
     }
 
     /**
-     * Retain the service for executing the request in service thread pool
+     * Retain the service for executing the request in the scheduler of its subscription
      *
      * @param request The request to execute
-     * @param runnable The runnable to run the request in thread pool
      */
-    private void retainService(final MmsRequest request, final Runnable runnable) {
-        final ExecutorService executor = getRequestExecutor(request);
+    private void retainService(final MmsRequest request) {
         synchronized (this) {
-            executor.execute(runnable);
+            mScheduler.schedule(request);
             mActiveRequestCount++;
         }
     }
@@ -448,16 +474,6 @@ public class MmsService extends Service {
         }
     }
 
-    private ExecutorService getRequestExecutor(final MmsRequest request) {
-        if (request instanceof SendRequest) {
-            // Send
-            return mExecutors[0];
-        } else {
-            // Download
-            return mExecutors[1];
-        }
-    }
-
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -29,7 +29,11 @@ import android.telephony.SmsManager;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -44,18 +48,21 @@ class SendRequest extends MmsRequest {
 
     private byte[] mPduData;
 
-    SendRequest(final String locationUrl, final Uri pduUri, final PendingIntent sentIntent) {
-        super(locationUrl, pduUri, sentIntent);
+    SendRequest(final int subId, final String locationUrl, final Uri pduUri,
+            final PendingIntent sentIntent) {
+        super(subId, locationUrl, pduUri, sentIntent);
     }
 
     @Override
     protected boolean loadRequest(final Context context, final Bundle mmsConfig) {
-        mPduData = readPduFromContentUri(
-                context,
-                mPduUri,
-                mmsConfig.getInt(
-                        CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE,
-                        CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE_DEFAULT));
+        final int maxSize = mmsConfig.getInt(
+                CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE,
+                CarrierConfigValuesLoader.CONFIG_MAX_MESSAGE_SIZE_DEFAULT);
+        if (mUsePersistentConnection) {
+            mRequestBodyFile = copyPduFromContentUri(context, mPduUri, maxSize);
+            return (mRequestBodyFile != null);
+        }
+        mPduData = readPduFromContentUri(context, mPduUri, maxSize);
         return (mPduData != null);
     }
 
@@ -78,6 +85,15 @@ class SendRequest extends MmsRequest {
     protected byte[] doHttp(Context context, MmsNetworkManager netMgr, ApnSettingsLoader.Apn apn,
             Bundle mmsConfig, String userAgent, String uaProfUrl) throws MmsHttpException {
         final MmsHttpClient httpClient = netMgr.getHttpClient();
+        if (mRequestBodyFile != null) {
+            // SendConf pdus are always small, so only the request is streamed from a file
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            httpClient.execute(getHttpRequestUrl(apn), mRequestBodyFile,
+                    MmsHttpClient.METHOD_POST, !TextUtils.isEmpty(apn.getMmsProxy()),
+                    apn.getMmsProxy(), apn.getMmsProxyPort(), mmsConfig, userAgent, uaProfUrl,
+                    response);
+            return response.toByteArray();
+        }
         return httpClient.execute(getHttpRequestUrl(apn), mPduData, MmsHttpClient.METHOD_POST,
                 !TextUtils.isEmpty(apn.getMmsProxy()), apn.getMmsProxy(), apn.getMmsProxyPort(),
                 mmsConfig, userAgent, uaProfUrl);
@@ -146,6 +162,81 @@ class SendRequest extends MmsRequest {
         return null;
     }
 
+    /**
+     * Copy pdu from content provider uri to a file
+     *
+     * @param contentUri content provider uri from which to read
+     * @param maxSize maximum number of bytes to copy
+     * @return the file holding the pdu if succeeded else null
+     */
+    private File copyPduFromContentUri(final Context context, final Uri contentUri,
+            final int maxSize) {
+        if (contentUri == null) {
+            return null;
+        }
+        final File pduFile = createBodyFile(context);
+        if (pduFile == null) {
+            return null;
+        }
+        final Callable<Boolean> copyPduToFile = new Callable<Boolean>() {
+            public Boolean call() {
+                ParcelFileDescriptor.AutoCloseInputStream inStream = null;
+                OutputStream outStream = null;
+                try {
+                    final ContentResolver cr = context.getContentResolver();
+                    final ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "r");
+                    inStream = new ParcelFileDescriptor.AutoCloseInputStream(pduFd);
+                    outStream = new FileOutputStream(pduFile);
+                    final byte[] buf = new byte[4096];
+                    long total = 0;
+                    int count;
+                    while ((count = inStream.read(buf)) > 0) {
+                        total += count;
+                        if (total > maxSize) {
+                            Log.e(MmsService.TAG, "Reading PDU from sender: PDU too large");
+                            return false;
+                        }
+                        outStream.write(buf, 0, count);
+                    }
+                    if (total <= 0) {
+                        Log.e(MmsService.TAG, "Reading PDU from sender: empty PDU");
+                        return false;
+                    }
+                    return true;
+                } catch (IOException e) {
+                    Log.e(MmsService.TAG, "Reading PDU from sender: IO exception", e);
+                    return false;
+                } finally {
+                    if (inStream != null) {
+                        try {
+                            inStream.close();
+                        } catch (IOException ex) {
+                            // Ignore
+                        }
+                    }
+                    if (outStream != null) {
+                        try {
+                            outStream.close();
+                        } catch (IOException ex) {
+                            // Ignore
+                        }
+                    }
+                }
+            }
+        };
+        final Future<Boolean> pendingResult = mPduTransferExecutor.submit(copyPduToFile);
+        try {
+            if (pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                return pduFile;
+            }
+        } catch (Exception e) {
+            // Typically a timeout occurred - cancel task
+            pendingResult.cancel(true);
+        }
+        pduFile.delete();
+        return null;
+    }
+
     public static final Parcelable.Creator<SendRequest> CREATOR
             = new Parcelable.Creator<SendRequest>() {
         public SendRequest createFromParcel(Parcel in) {
@@ -146,12 +146,18 @@ public class BugleApplication extends Application implements UncaughtExceptionHa
         MmsManager.setForceLegacyMms(!bugleGservices.getBoolean(
                 BugleGservicesKeys.USE_MMS_API_IF_PRESENT,
                 BugleGservicesKeys.USE_MMS_API_IF_PRESENT_DEFAULT));
+        MmsManager.setUsePersistentConnections(bugleGservices.getBoolean(
+                BugleGservicesKeys.MMS_PERSISTENT_CONNECTIONS,
+                BugleGservicesKeys.MMS_PERSISTENT_CONNECTIONS_DEFAULT));
         bugleGservices.registerForChanges(new Runnable() {
             @Override
             public void run() {
                 MmsManager.setForceLegacyMms(!bugleGservices.getBoolean(
                         BugleGservicesKeys.USE_MMS_API_IF_PRESENT,
                         BugleGservicesKeys.USE_MMS_API_IF_PRESENT_DEFAULT));
+                MmsManager.setUsePersistentConnections(bugleGservices.getBoolean(
+                        BugleGservicesKeys.MMS_PERSISTENT_CONNECTIONS,
+                        BugleGservicesKeys.MMS_PERSISTENT_CONNECTIONS_DEFAULT));
             }
         });
     }
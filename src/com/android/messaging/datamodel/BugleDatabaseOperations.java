@@ -53,6 +53,7 @@ import com.google.common.annotations.VisibleForTesting;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import javax.annotation.Nullable;
@@ -69,6 +70,39 @@ public class BugleDatabaseOperations {
     private static final ArrayMap<String, String> sNormalizedPhoneNumberToParticipantIdCache =
             new ArrayMap<String, String>();
 
+    // Statements run on hot paths, compiled once through the DatabaseWrapper statement cache
+    private static final String PARTICIPANTS_BY_SUB_ID_SQL =
+            " FROM " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " WHERE " + ParticipantColumns.SUB_ID + "=?";
+    private static final String PARTICIPANTS_BY_DESTINATION_SQL =
+            " FROM " + DatabaseHelper.PARTICIPANTS_TABLE
+            + " WHERE " + ParticipantColumns.NORMALIZED_DESTINATION + "=? AND "
+            + ParticipantColumns.SUB_ID + "=?";
+    private static final String QUERY_PARTICIPANT_ID_BY_SUB_ID_SQL =
+            "SELECT " + ParticipantColumns._ID + PARTICIPANTS_BY_SUB_ID_SQL;
+    private static final String QUERY_PARTICIPANT_COUNT_BY_SUB_ID_SQL =
+            "SELECT COUNT(*)" + PARTICIPANTS_BY_SUB_ID_SQL;
+    private static final String QUERY_PARTICIPANT_ID_BY_DESTINATION_SQL =
+            "SELECT " + ParticipantColumns._ID + PARTICIPANTS_BY_DESTINATION_SQL;
+    private static final String QUERY_PARTICIPANT_COUNT_BY_DESTINATION_SQL =
+            "SELECT COUNT(*)" + PARTICIPANTS_BY_DESTINATION_SQL;
+    private static final String QUERY_MESSAGE_CONVERSATION_ID_SQL =
+            "SELECT " + MessageColumns.CONVERSATION_ID + " FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " WHERE " + MessageColumns._ID + "=?";
+    private static final String QUERY_UNREAD_MESSAGE_COUNT_SQL =
+            "SELECT COUNT(*) FROM " + DatabaseHelper.MESSAGES_TABLE
+            + " WHERE " + MessageColumns.CONVERSATION_ID + "=? AND " + MessageColumns.READ + "=0";
+    private static final String MARK_MESSAGES_READ_SQL =
+            "UPDATE " + DatabaseHelper.MESSAGES_TABLE
+            + " SET " + MessageColumns.READ + "=1, " + MessageColumns.SEEN + "=1"
+            + " WHERE (" + MessageColumns.READ + "!=1 OR " + MessageColumns.SEEN + "!=1)"
+            + " AND " + MessageColumns.CONVERSATION_ID + "=?";
+    private static final String MARK_MESSAGES_SEEN_SQL =
+            "UPDATE " + DatabaseHelper.MESSAGES_TABLE + " SET " + MessageColumns.SEEN + "=1"
+            + " WHERE " + MessageColumns.SEEN + "!=1";
+    private static final String MARK_CONVERSATION_MESSAGES_SEEN_SQL =
+            MARK_MESSAGES_SEEN_SQL + " AND " + MessageColumns.CONVERSATION_ID + "=?";
+
     /**
      * Convert list of recipient strings (email/phone number) into list of ConversationParticipants
      *
@@ -522,6 +556,8 @@ public class BugleDatabaseOperations {
                         ConversationColumns._ID + "=?", new String[] { conversationId });
                 conversationDeleted = (count > 0);
             }
+            DataChangeBus.get().messagesChanged(dbWrapper, conversationId);
+            DataChangeBus.get().conversationChanged(dbWrapper, conversationId);
             dbWrapper.setTransactionSuccessful();
         } finally {
             dbWrapper.endTransaction();
@@ -783,8 +819,12 @@ public class BugleDatabaseOperations {
     public static boolean updateConversationRowIfExists(final DatabaseWrapper dbWrapper,
             final String conversationId, final ContentValues values) {
         Assert.isNotMainThread();
-        return updateRowIfExists(dbWrapper, DatabaseHelper.CONVERSATIONS_TABLE,
+        final boolean updated = updateRowIfExists(dbWrapper, DatabaseHelper.CONVERSATIONS_TABLE,
                 ConversationColumns._ID, conversationId, values);
+        if (updated) {
+            DataChangeBus.get().conversationChanged(dbWrapper, conversationId);
+        }
+        return updated;
     }
 
     @DoesNotRunOnMainThread
@@ -799,8 +839,18 @@ public class BugleDatabaseOperations {
     public static boolean updateMessageRowIfExists(final DatabaseWrapper dbWrapper,
             final String messageId, final ContentValues values) {
         Assert.isNotMainThread();
-        return updateRowIfExists(dbWrapper, DatabaseHelper.MESSAGES_TABLE, MessageColumns._ID,
-                messageId, values);
+        final boolean updated = updateRowIfExists(dbWrapper, DatabaseHelper.MESSAGES_TABLE,
+                MessageColumns._ID, messageId, values);
+        if (updated) {
+            // Most updates don't move the message, so its conversation isn't in the values
+            String conversationId = values.getAsString(MessageColumns.CONVERSATION_ID);
+            if (conversationId == null) {
+                conversationId = dbWrapper.simpleQueryForString(
+                        QUERY_MESSAGE_CONVERSATION_ID_SQL, new Object[] { messageId });
+            }
+            DataChangeBus.get().messageUpdated(dbWrapper, conversationId, messageId);
+        }
+        return updated;
     }
 
     @DoesNotRunOnMainThread
@@ -1103,21 +1153,49 @@ public class BugleDatabaseOperations {
     @DoesNotRunOnMainThread
     public static int getUnreadMessageCount(final DatabaseWrapper dbWrapper,
             final String conversationId) {
-        int count = 0;
         Assert.isNotMainThread();
-        Cursor cursor = null;
-        try {
-            cursor = dbWrapper.query(DatabaseHelper.MESSAGES_TABLE,
-                    MessageData.getProjection(), MessageColumns.CONVERSATION_ID + "=?"
-                            + " AND " + MessageColumns.READ + "=?",
-                    new String[] { conversationId, "0" }, null, null, null);
-            if (cursor!=null) {
-                count = cursor.getCount();
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+        return (int) dbWrapper.simpleQueryForLong(QUERY_UNREAD_MESSAGE_COUNT_SQL,
+                new Object[] { conversationId });
+    }
+
+    /**
+     * Marks all messages in a conversation as read, and therefore also as seen
+     * @return the number of messages that changed
+     */
+    @DoesNotRunOnMainThread
+    public static int markMessagesAsReadInTransaction(final DatabaseWrapper dbWrapper,
+            final String conversationId) {
+        Assert.isNotMainThread();
+        Assert.isTrue(dbWrapper.getDatabase().inTransaction());
+        final int count = dbWrapper.executeUpdateDelete(MARK_MESSAGES_READ_SQL,
+                new Object[] { conversationId });
+        if (count > 0) {
+            DataChangeBus.get().messagesChanged(dbWrapper, conversationId);
+        }
+        return count;
+    }
+
+    /**
+     * Marks the messages in a conversation, or in all conversations, as seen
+     * @param conversationId the conversation, or null for all conversations
+     * @return the number of messages that changed
+     */
+    @DoesNotRunOnMainThread
+    public static int markMessagesAsSeenInTransaction(final DatabaseWrapper dbWrapper,
+            @Nullable final String conversationId) {
+        Assert.isNotMainThread();
+        Assert.isTrue(dbWrapper.getDatabase().inTransaction());
+        if (conversationId == null) {
+            final int count = dbWrapper.executeUpdateDelete(MARK_MESSAGES_SEEN_SQL, null);
+            if (count > 0) {
+                DataChangeBus.get().allMessagesChanged(dbWrapper);
             }
+            return count;
+        }
+        final int count = dbWrapper.executeUpdateDelete(MARK_CONVERSATION_MESSAGES_SEEN_SQL,
+                new Object[] { conversationId });
+        if (count > 0) {
+            DataChangeBus.get().messagesChanged(dbWrapper, conversationId);
         }
         return count;
     }
@@ -1183,7 +1261,7 @@ public class BugleDatabaseOperations {
 
         // Insert a new part row
         final SQLiteStatement insert = messagePart.getInsertStatement(dbWrapper, conversationId);
-        final long rowNumber = insert.executeInsert();
+        final long rowNumber = dbWrapper.executeInsert(insert);
 
         Assert.inRange(rowNumber, 0, Long.MAX_VALUE);
         final String partId = Long.toString(rowNumber);
@@ -1205,7 +1283,7 @@ public class BugleDatabaseOperations {
 
         // Insert message row
         final SQLiteStatement insert = message.getInsertStatement(dbWrapper);
-        final long rowNumber = insert.executeInsert();
+        final long rowNumber = dbWrapper.executeInsert(insert);
 
         Assert.inRange(rowNumber, 0, Long.MAX_VALUE);
         final String messageId = Long.toString(rowNumber);
@@ -1215,6 +1293,7 @@ public class BugleDatabaseOperations {
             messagePart.updateMessageId(messageId);
             insertNewMessagePartInTransaction(dbWrapper, messagePart, message.getConversationId());
         }
+        DataChangeBus.get().messageInserted(dbWrapper, message.getConversationId(), messageId);
     }
 
     /**
@@ -1333,6 +1412,7 @@ public class BugleDatabaseOperations {
         Assert.isTrue(dbWrapper.getDatabase().inTransaction());
 
         dbWrapper.insert(DatabaseHelper.FAVORITES_TABLE, null, values);
+        DataChangeBus.get().favoritesChanged(dbWrapper);
     }
 
     @DoesNotRunOnMainThread
@@ -1344,6 +1424,7 @@ public class BugleDatabaseOperations {
         dbWrapper.delete(DatabaseHelper.FAVORITES_TABLE,
                 DatabaseHelper.FavoritesColumns.MESSAGE_ID + " =?",
                 new String[]{messageId});
+        DataChangeBus.get().favoritesChanged(dbWrapper);
 
     }
 
@@ -1393,6 +1474,9 @@ public class BugleDatabaseOperations {
                 // Delete message
                 count = dbWrapper.delete(DatabaseHelper.MESSAGES_TABLE,
                         MessageColumns._ID + "=?", new String[] { messageId });
+                if (count > 0) {
+                    DataChangeBus.get().messageDeleted(dbWrapper, conversationId, messageId);
+                }
 
                 if (!deleteConversationIfEmptyInTransaction(dbWrapper, conversationId)) {
                     // TODO: Should we leave the conversation sort timestamp alone?
@@ -1780,7 +1864,7 @@ public class BugleDatabaseOperations {
         final ContentValues values = new ContentValues();
         values.put(ConversationParticipantsColumns.CONVERSATION_ID, conversationId);
         values.put(ConversationParticipantsColumns.PARTICIPANT_ID, participantId);
-        dbWrapper.insert(DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE, null, values);
+        dbWrapper.executeInsert(DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE, values);
     }
 
     /**
@@ -1810,40 +1894,34 @@ public class BugleDatabaseOperations {
         }
 
         // This code will only be executed for incremental additions.
-        Cursor cursor = null;
-        try {
-            if (subId != ParticipantData.OTHER_THAN_SELF_SUB_ID) {
-                // Now look for an existing participant in the db with this sub id.
-                cursor = dbWrapper.query(DatabaseHelper.PARTICIPANTS_TABLE,
-                        new String[] {ParticipantColumns._ID},
-                        ParticipantColumns.SUB_ID + "=?",
-                        new String[] { Integer.toString(subId) }, null, null, null);
-            } else {
-                // Look for existing participant with this normalized phone number and no subId.
-                cursor = dbWrapper.query(DatabaseHelper.PARTICIPANTS_TABLE,
-                        new String[] {ParticipantColumns._ID},
-                        ParticipantColumns.NORMALIZED_DESTINATION + "=? AND "
-                                + ParticipantColumns.SUB_ID + "=?",
-                                new String[] {canonicalRecipient, Integer.toString(subId)},
-                                null, null, null);
-            }
+        final String countSql;
+        final Object[] bindArgs;
+        if (subId != ParticipantData.OTHER_THAN_SELF_SUB_ID) {
+            // Now look for an existing participant in the db with this sub id.
+            bindArgs = new Object[] { subId };
+            participantId = dbWrapper.simpleQueryForString(QUERY_PARTICIPANT_ID_BY_SUB_ID_SQL,
+                    bindArgs);
+            countSql = QUERY_PARTICIPANT_COUNT_BY_SUB_ID_SQL;
+        } else {
+            // Look for existing participant with this normalized phone number and no subId.
+            bindArgs = new Object[] { canonicalRecipient, subId };
+            participantId = dbWrapper.simpleQueryForString(
+                    QUERY_PARTICIPANT_ID_BY_DESTINATION_SQL, bindArgs);
+            countSql = QUERY_PARTICIPANT_COUNT_BY_DESTINATION_SQL;
+        }
 
-            if (cursor.moveToFirst()) {
+        if (participantId != null) {
+            // Counting the matches is an extra query, so only check it when debugging
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                final long count = dbWrapper.simpleQueryForLong(countSql, bindArgs);
                 // TODO Is this assert correct for multi-sim where a new sim was put in?
-                Assert.isTrue(cursor.getCount() == 1);
-
-                // We found an existing participant in the database
-                participantId = cursor.getString(0);
-
-                synchronized (sNormalizedPhoneNumberToParticipantIdCache) {
-                    // Add it to the cache for next time
-                    sNormalizedPhoneNumberToParticipantIdCache.put(canonicalRecipient,
-                            participantId);
-                }
+                Assert.isTrue(count == 1);
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+
+            synchronized (sNormalizedPhoneNumberToParticipantIdCache) {
+                // Add it to the cache for next time
+                sNormalizedPhoneNumberToParticipantIdCache.put(canonicalRecipient,
+                        participantId);
             }
         }
         return participantId;
@@ -1900,10 +1978,11 @@ public class BugleDatabaseOperations {
 
         // Insert the participant into the participants table
         final ContentValues values = participant.toContentValues();
-        final long participantRow = dbWrapper.insert(DatabaseHelper.PARTICIPANTS_TABLE, null,
+        final long participantRow = dbWrapper.executeInsert(DatabaseHelper.PARTICIPANTS_TABLE,
                 values);
         participantId = Long.toString(participantRow);
         Assert.notNull(canonicalRecipient);
+        DataChangeBus.get().participantChanged(dbWrapper, participantId);
 
         synchronized (sNormalizedPhoneNumberToParticipantIdCache) {
             // Now that we've inserted it, add it to our cache
@@ -1919,11 +1998,14 @@ public class BugleDatabaseOperations {
         Assert.isNotMainThread();
         final ContentValues values = new ContentValues();
         values.put(ParticipantColumns.BLOCKED, blocked ? 1 : 0);
-        dbWrapper.update(DatabaseHelper.PARTICIPANTS_TABLE, values,
+        final int count = dbWrapper.update(DatabaseHelper.PARTICIPANTS_TABLE, values,
                 ParticipantColumns.NORMALIZED_DESTINATION + "=? AND " +
                         ParticipantColumns.SUB_ID + "=?",
                 new String[] { destination, Integer.toString(
                         ParticipantData.OTHER_THAN_SELF_SUB_ID) });
+        if (count > 0) {
+            DataChangeBus.get().participantsChanged(dbWrapper, null /* conversationId */);
+        }
     }
 
     @DoesNotRunOnMainThread
@@ -2034,27 +2116,36 @@ public class BugleDatabaseOperations {
     public static boolean updateRowIfExists(final DatabaseWrapper db, final String table,
             final String rowKey, final String rowId, final ContentValues values) {
         Assert.isNotMainThread();
-        final StringBuilder sb = new StringBuilder();
-        final ArrayList<String> whereValues = new ArrayList<String>(values.size() + 1);
-        whereValues.add(rowId);
-
-        for (final String key : values.keySet()) {
-            if (sb.length() > 0) {
-                sb.append(" OR ");
+        // Build the statement by hand rather than going through ContentValues, so that it can be
+        // reused from the statement cache. Columns are sorted so that the same set of columns
+        // always builds the same sql.
+        final String[] keys = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(keys);
+        final StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        final StringBuilder where = new StringBuilder();
+        final ArrayList<Object> bindArgs = new ArrayList<Object>(keys.length * 2 + 1);
+        for (int i = 0; i < keys.length; i++) {
+            sql.append(i > 0 ? "," : "").append(keys[i]).append("=?");
+            bindArgs.add(values.get(keys[i]));
+        }
+        bindArgs.add(rowId);
+
+        for (final String key : keys) {
+            if (where.length() > 0) {
+                where.append(" OR ");
             }
             final Object value = values.get(key);
-            sb.append(key);
+            where.append(key);
             if (value != null) {
-                sb.append(" IS NOT ?");
-                whereValues.add(value.toString());
+                where.append(" IS NOT ?");
+                bindArgs.add(value);
             } else {
-                sb.append(" IS NOT NULL");
+                where.append(" IS NOT NULL");
             }
         }
 
-        final String whereClause = rowKey + "=?" + " AND (" + sb.toString() + ")";
-        final String [] whereValuesArray = whereValues.toArray(new String[whereValues.size()]);
-        final int count = db.update(table, values, whereClause, whereValuesArray);
+        sql.append(" WHERE ").append(rowKey).append("=? AND (").append(where).append(')');
+        final int count = db.executeUpdateDelete(sql.toString(), bindArgs.toArray());
         if (count > 1) {
             LogUtil.w(LogUtil.BUGLE_TAG, "Updated more than 1 row " + count + "; " + table +
                     " for " + rowKey + " = " + rowId + " (deleted?)");
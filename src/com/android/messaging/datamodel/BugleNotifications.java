@@ -29,6 +29,9 @@ import android.graphics.Typeface;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
 import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
@@ -80,7 +83,9 @@ import com.android.messaging.util.PhoneUtils;
 import com.android.messaging.util.RingtoneUtil;
 import com.android.messaging.util.ThreadUtil;
 import com.android.messaging.util.UriUtil;
+import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -143,6 +148,33 @@ public class BugleNotifications {
      */
     private static final float OBSERVABLE_CONVERSATION_NOTIFICATION_VOLUME = 0.25f;
 
+    // How long past the update delay the device is kept awake for a pending update
+    private static final long UPDATE_WAKE_LOCK_MARGIN_MS = 10 * 1000;
+
+    // Updates requested while a rebuild is pending are merged into it. Guarded by sUpdateLock.
+    private static final Object sUpdateLock = new Object();
+    private static Handler sUpdateHandler;
+    private static PowerManager.WakeLock sUpdateWakeLock;
+    private static boolean sUpdateScheduled;
+    private static boolean sPendingSilent;
+    private static String sPendingConversationId;
+    private static int sPendingCoverage;
+
+    // Stats, guarded by sUpdateLock
+    private static long sUpdatesRequested;
+    private static long sUpdatesCoalesced;
+    private static long sRebuilds;
+    private static long sRebuildQueryMillis;
+    private static long sRebuildRenderMillis;
+    private static long sMaxRebuildMillis;
+    private static long sChildrenPosted;
+    private static long sChildrenSkipped;
+
+    // Signatures of the posted group children by conversation id, so that children whose
+    // content didn't change aren't rendered and posted again. Guarded by itself.
+    private static final SimpleArrayMap<String, String> sPostedChildSignatures =
+            new SimpleArrayMap<String, String>();
+
     /**
      * Entry point for posting notifications.
      * Don't call this on the UI thread.
@@ -171,7 +203,89 @@ public class BugleNotifications {
                     + " conversationId = " + conversationId
                     + " coverage = " + coverage);
         }
-    Assert.isNotMainThread();
+        Assert.isNotMainThread();
+        final long delayMs = BugleGservices.get().getLong(
+                BugleGservicesKeys.NOTIFICATION_UPDATE_DELAY_MS,
+                BugleGservicesKeys.NOTIFICATION_UPDATE_DELAY_MS_DEFAULT);
+        if (delayMs <= 0) {
+            synchronized (sUpdateLock) {
+                sUpdatesRequested++;
+            }
+            updateNow(silent, conversationId, coverage);
+            return;
+        }
+
+        synchronized (sUpdateLock) {
+            sUpdatesRequested++;
+            if (sUpdateScheduled) {
+                // Merge into the pending rebuild. It rings if any of the merged updates would.
+                sUpdatesCoalesced++;
+                sPendingSilent &= silent;
+                sPendingCoverage |= coverage;
+                sPendingConversationId =
+                        mergeConversationIds(sPendingConversationId, conversationId);
+                return;
+            }
+            if (sUpdateHandler == null) {
+                final HandlerThread thread = new HandlerThread("BugleNotifications");
+                thread.start();
+                sUpdateHandler = new Handler(thread.getLooper());
+                final PowerManager powerManager = (PowerManager) Factory.get()
+                        .getApplicationContext().getSystemService(Context.POWER_SERVICE);
+                sUpdateWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                        "BugleNotifications");
+                sUpdateWakeLock.setReferenceCounted(false);
+            }
+            sUpdateScheduled = true;
+            sPendingSilent = silent;
+            sPendingConversationId = conversationId;
+            sPendingCoverage = coverage;
+            // The caller typically holds a wake lock only until it returns, so keep the device
+            // awake until the rebuild is done
+            sUpdateWakeLock.acquire(delayMs + UPDATE_WAKE_LOCK_MARGIN_MS);
+            sUpdateHandler.postDelayed(sPendingUpdateRunnable, delayMs);
+        }
+    }
+
+    /**
+     * Returns the conversation id of a rebuild that merges updates for two conversation ids.
+     * The id only tells that a message was received in that conversation, so it's kept only if
+     * both updates are for the same conversation. A null id means no particular conversation.
+     */
+    @VisibleForTesting
+    static String mergeConversationIds(final String pendingConversationId,
+            final String conversationId) {
+        return TextUtils.equals(pendingConversationId, conversationId) ? conversationId : null;
+    }
+
+    private static final Runnable sPendingUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final boolean silent;
+            final String conversationId;
+            final int coverage;
+            synchronized (sUpdateLock) {
+                silent = sPendingSilent;
+                conversationId = sPendingConversationId;
+                coverage = sPendingCoverage;
+                sUpdateScheduled = false;
+                sPendingConversationId = null;
+            }
+            try {
+                updateNow(silent, conversationId, coverage);
+            } finally {
+                synchronized (sUpdateLock) {
+                    // A newer update holds the wake lock for its own rebuild
+                    if (!sUpdateScheduled && sUpdateWakeLock.isHeld()) {
+                        sUpdateWakeLock.release();
+                    }
+                }
+            }
+        }
+    };
+
+    private static void updateNow(final boolean silent, final String conversationId,
+            final int coverage) {
         checkInitialized();
 
         if (!shouldNotify()) {
@@ -240,6 +354,13 @@ public class BugleNotifications {
         // createMessageNotification). We need to do bookkeeping to track the current set of
         // notification group children, including removing them when we cancel notifications).
         if (type == PendingIntentConstants.SMS_NOTIFICATION_ID) {
+            synchronized (sPostedChildSignatures) {
+                if (conversationId == null) {
+                    sPostedChildSignatures.clear();
+                } else {
+                    sPostedChildSignatures.remove(conversationId);
+                }
+            }
             final Context context = Factory.get().getApplicationContext();
             final ConversationIdSet groupChildIds = getGroupChildIds(context);
 
@@ -274,11 +395,9 @@ public class BugleNotifications {
             final NotificationState state) {
         final ConversationIdSet newChildren = new ConversationIdSet();
         if (state instanceof MultiConversationNotificationState) {
-            for (final NotificationState child :
-                ((MultiConversationNotificationState) state).mChildren) {
-                if (child.mConversationIds != null) {
-                    newChildren.add(child.mConversationIds.first());
-                }
+            for (final ConversationLineInfo childConvInfo :
+                ((MultiConversationNotificationState) state).mChildConvInfos) {
+                newChildren.add(childConvInfo.mConversationId);
             }
         }
         for (final String childConversationId : previousGroupChildren) {
@@ -593,7 +712,18 @@ public class BugleNotifications {
 
     private static void createMessageNotification(final boolean silent,
             final String conversationId) {
+        final long startTime = SystemClock.elapsedRealtime();
         final NotificationState state = MessageNotificationState.getNotificationState();
+        final long queryTime = SystemClock.elapsedRealtime();
+        try {
+            postMessageNotification(state, silent, conversationId);
+        } finally {
+            recordRebuild(queryTime - startTime, SystemClock.elapsedRealtime() - queryTime);
+        }
+    }
+
+    private static void postMessageNotification(final NotificationState state,
+            final boolean silent, final String conversationId) {
         final boolean softSound = DataModel.get().isNewMessageObservable(conversationId);
         if (state == null) {
             cancel(PendingIntentConstants.SMS_NOTIFICATION_ID);
@@ -619,17 +749,41 @@ public class BugleNotifications {
             cancelStaleGroupChildren(oldGroupChildIds, state);
         }
 
-        // Send per-conversation notifications (if there are multiple conversations).
+        // Send per-conversation notifications (if there are multiple conversations). Children
+        // that are already posted with the same content are left alone, without building them.
         final ConversationIdSet groupChildIds = new ConversationIdSet();
+        int childrenPosted = 0;
+        int childrenSkipped = 0;
         if (state instanceof MultiConversationNotificationState) {
-            for (final NotificationState child :
-                ((MultiConversationNotificationState) state).mChildren) {
-                processAndSend(child, true /* silent */, softSound);
-                if (child.mConversationIds != null) {
-                    groupChildIds.add(child.mConversationIds.first());
+            final MultiConversationNotificationState multiState =
+                    (MultiConversationNotificationState) state;
+            for (final ConversationLineInfo childConvInfo : multiState.mChildConvInfos) {
+                final String childConversationId = childConvInfo.mConversationId;
+                final String signature = multiState.getChildSignature(childConvInfo);
+                final String postedSignature;
+                synchronized (sPostedChildSignatures) {
+                    postedSignature = sPostedChildSignatures.get(childConversationId);
+                }
+                if (!softSound && TextUtils.equals(signature, postedSignature)) {
+                    childrenSkipped++;
+                } else {
+                    processAndSend(multiState.createChild(childConvInfo), true /* silent */,
+                            softSound);
+                    childrenPosted++;
+                    // With a soft sound nothing is actually posted
+                    if (!softSound) {
+                        synchronized (sPostedChildSignatures) {
+                            sPostedChildSignatures.put(childConversationId, signature);
+                        }
+                    }
                 }
+                groupChildIds.add(childConversationId);
             }
         }
+        synchronized (sUpdateLock) {
+            sChildrenPosted += childrenPosted;
+            sChildrenSkipped += childrenSkipped;
+        }
 
         // Record the new set of group children.
         writeGroupChildIds(context, groupChildIds);
@@ -1176,6 +1330,36 @@ public class BugleNotifications {
         BuglePrefs.getApplicationPrefs().putString(prefKey, childIds.getDelimitedString());
     }
 
+    private static void recordRebuild(final long queryMillis, final long renderMillis) {
+        synchronized (sUpdateLock) {
+            sRebuilds++;
+            sRebuildQueryMillis += queryMillis;
+            sRebuildRenderMillis += renderMillis;
+            sMaxRebuildMillis = Math.max(sMaxRebuildMillis, queryMillis + renderMillis);
+        }
+        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+            LogUtil.d(TAG, "Rebuilt message notifications: query " + queryMillis + " ms, render "
+                    + renderMillis + " ms");
+        }
+    }
+
+    /**
+     * Prints how often message notifications were rebuilt and how long that took
+     */
+    public static void dump(final PrintWriter writer) {
+        synchronized (sUpdateLock) {
+            writer.println(String.format(Locale.US, "Notifications: %d updates requested, %d "
+                    + "coalesced, %d rebuilds", sUpdatesRequested, sUpdatesCoalesced, sRebuilds));
+            if (sRebuilds > 0) {
+                writer.println(String.format(Locale.US, "  avg query %d ms, avg render %d ms, "
+                        + "max rebuild %d ms", sRebuildQueryMillis / sRebuilds,
+                        sRebuildRenderMillis / sRebuilds, sMaxRebuildMillis));
+            }
+            writer.println(String.format(Locale.US, "  group children: %d posted, %d unchanged",
+                    sChildrenPosted, sChildrenSkipped));
+        }
+    }
+
     /**
      * Reset the timer for a notification ding on a particular conversation or all conversations.
      */
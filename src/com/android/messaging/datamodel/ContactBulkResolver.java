@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.support.v4.util.ArrayMap;
+import android.support.v4.util.LongSparseArray;
+import android.text.TextUtils;
+
+import com.android.messaging.sms.MmsSmsUtils;
+import com.android.messaging.util.ContactUtil;
+import com.android.messaging.util.PhoneUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Resolves the contacts of many participant destinations with a few batched queries on the
+ * contacts data tables, instead of one PhoneLookup / EmailLookup query (plus a structured name
+ * query) per participant. Contact phone numbers are matched on their normalized form, so this
+ * doesn't do the loose matching of PhoneLookup, and it only sees contacts of the personal
+ * profile.
+ */
+class ContactBulkResolver {
+    // Stays well below the sqlite limit of 999 bound arguments per statement
+    private static final int QUERY_BATCH_SIZE = 500;
+
+    // ContactUtil.PhoneQuery.PROJECTION plus the normalized number that phones are matched on
+    private static final String[] PHONE_PROJECTION = new String[] {
+        Phone.CONTACT_ID,
+        Phone.DISPLAY_NAME_PRIMARY,
+        Phone.PHOTO_THUMBNAIL_URI,
+        Phone.NUMBER,
+        Phone.TYPE,
+        Phone.LABEL,
+        Phone.LOOKUP_KEY,
+        Phone._ID,
+        ContactUtil.PhoneQuery.SORT_KEY,
+        Phone.NORMALIZED_NUMBER
+    };
+    private static final int INDEX_NORMALIZED_NUMBER = 9;
+
+    // Key column value for rows whose number has to be normalized here
+    private static final int NORMALIZE_NUMBER = -1;
+
+    private static final String[] STRUCTURED_NAME_PROJECTION = new String[] {
+        Data.CONTACT_ID,
+        StructuredName.GIVEN_NAME
+    };
+
+    /**
+     * Contact data matching a participant destination
+     */
+    static class ContactMatch {
+        final long contactId;
+        final String displayName;
+        final String photoUri;
+        final String lookupKey;
+        final String destination;
+        String firstName;
+
+        ContactMatch(final long contactId, final String displayName, final String photoUri,
+                final String lookupKey, final String destination) {
+            this.contactId = contactId;
+            this.displayName = displayName;
+            this.photoUri = photoUri;
+            this.lookupKey = lookupKey;
+            this.destination = destination;
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    // Matching contacts by the key of the participant destination, see getKey
+    private final ArrayMap<String, List<ContactMatch>> mMatches =
+            new ArrayMap<String, List<ContactMatch>>();
+    private int mQueryCount;
+
+    ContactBulkResolver(final ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Queries the contacts matching all the given normalized destinations
+     */
+    void resolve(final Collection<String> normalizedDestinations) {
+        final ArrayList<String> phones = new ArrayList<String>();
+        final ArrayList<String> emails = new ArrayList<String>();
+        for (final String destination : normalizedDestinations) {
+            if (TextUtils.isEmpty(destination)) {
+                continue;
+            }
+            final String key = getKey(destination);
+            if (mMatches.containsKey(key)) {
+                continue;
+            }
+            mMatches.put(key, new ArrayList<ContactMatch>(1));
+            if (MmsSmsUtils.isEmailAddress(destination)) {
+                emails.add(key);
+            } else {
+                phones.add(key);
+            }
+        }
+
+        for (int start = 0; start < phones.size(); start += QUERY_BATCH_SIZE) {
+            final List<String> batch =
+                    phones.subList(start, Math.min(phones.size(), start + QUERY_BATCH_SIZE));
+            queryMatches(Phone.CONTENT_URI, PHONE_PROJECTION,
+                    Phone.NORMALIZED_NUMBER + " IN (" + getPlaceholders(batch.size()) + ")",
+                    batch.toArray(new String[batch.size()]), INDEX_NORMALIZED_NUMBER);
+        }
+        if (!phones.isEmpty()) {
+            // Numbers the contacts provider couldn't normalize are normalized here the same way
+            // participant destinations are
+            queryMatches(Phone.CONTENT_URI, PHONE_PROJECTION,
+                    Phone.NORMALIZED_NUMBER + " IS NULL", null, NORMALIZE_NUMBER);
+        }
+        for (int start = 0; start < emails.size(); start += QUERY_BATCH_SIZE) {
+            final List<String> batch =
+                    emails.subList(start, Math.min(emails.size(), start + QUERY_BATCH_SIZE));
+            queryMatches(Email.CONTENT_URI, ContactUtil.EmailQuery.PROJECTION,
+                    "LOWER(" + Email.ADDRESS + ") IN (" + getPlaceholders(batch.size()) + ")",
+                    batch.toArray(new String[batch.size()]), ContactUtil.INDEX_PHONE_EMAIL);
+        }
+        queryFirstNames();
+    }
+
+    /**
+     * @return the number of content resolver queries made by {@link #resolve}
+     */
+    int getQueryCount() {
+        return mQueryCount;
+    }
+
+    /**
+     * Picks the contact for a destination the same way the single lookup does: the contact the
+     * participant is already matched to if it still matches, the first matching one otherwise.
+     * @return the matching contact, or null if no contact matches the destination
+     */
+    ContactMatch findMatch(final String normalizedDestination, final long currentContactId) {
+        final List<ContactMatch> matches = mMatches.get(getKey(normalizedDestination));
+        if (matches == null || matches.isEmpty()) {
+            return null;
+        }
+        for (final ContactMatch match : matches) {
+            if (match.contactId == currentContactId) {
+                return match;
+            }
+        }
+        return matches.get(0);
+    }
+
+    /**
+     * Adds the contacts of the data rows returned by a query to the destinations they match
+     * @param keyIndex the column holding the destination key, or NORMALIZE_NUMBER to match on
+     *        the phone number normalized with the sim locale
+     */
+    private void queryMatches(final Uri uri, final String[] projection,
+            final String selection, final String[] selectionArgs, final int keyIndex) {
+        Cursor cursor = null;
+        try {
+            mQueryCount++;
+            cursor = mContentResolver.query(uri, projection, selection, selectionArgs, null);
+            if (cursor == null) {
+                return;
+            }
+            final PhoneUtils phoneUtils =
+                    keyIndex == NORMALIZE_NUMBER ? PhoneUtils.getDefault() : null;
+            while (cursor.moveToNext()) {
+                final String destination = cursor.getString(ContactUtil.INDEX_PHONE_EMAIL);
+                if (TextUtils.isEmpty(destination)) {
+                    continue;
+                }
+                final String key = keyIndex == NORMALIZE_NUMBER ?
+                        phoneUtils.getCanonicalBySimLocale(destination) :
+                        getKey(cursor.getString(keyIndex));
+                final List<ContactMatch> matches = mMatches.get(key);
+                if (matches == null) {
+                    continue;
+                }
+                final long contactId = cursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+                if (containsContact(matches, contactId)) {
+                    // The same number of a contact with several raw contacts
+                    continue;
+                }
+                matches.add(new ContactMatch(contactId,
+                        cursor.getString(ContactUtil.INDEX_DISPLAY_NAME),
+                        cursor.getString(ContactUtil.INDEX_PHOTO_URI),
+                        cursor.getString(ContactUtil.INDEX_LOOKUP_KEY),
+                        destination));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Fills in the first name of all matched contacts, from the structured name used as their
+     * primary display name
+     */
+    private void queryFirstNames() {
+        final LongSparseArray<List<ContactMatch>> matchesByContact =
+                new LongSparseArray<List<ContactMatch>>();
+        for (int i = 0; i < mMatches.size(); i++) {
+            for (final ContactMatch match : mMatches.valueAt(i)) {
+                List<ContactMatch> contactMatches = matchesByContact.get(match.contactId);
+                if (contactMatches == null) {
+                    contactMatches = new ArrayList<ContactMatch>(1);
+                    matchesByContact.put(match.contactId, contactMatches);
+                }
+                contactMatches.add(match);
+            }
+        }
+
+        final int count = matchesByContact.size();
+        for (int start = 0; start < count; start += QUERY_BATCH_SIZE) {
+            final int end = Math.min(count, start + QUERY_BATCH_SIZE);
+            final String[] selectionArgs = new String[end - start + 1];
+            selectionArgs[0] = StructuredName.CONTENT_ITEM_TYPE;
+            for (int i = start; i < end; i++) {
+                selectionArgs[i - start + 1] = String.valueOf(matchesByContact.keyAt(i));
+            }
+            final String selection = Data.MIMETYPE + "=? AND "
+                    + Contacts.DISPLAY_NAME_PRIMARY + "=" + StructuredName.DISPLAY_NAME + " AND "
+                    + Data.CONTACT_ID + " IN (" + getPlaceholders(end - start) + ")";
+            Cursor cursor = null;
+            try {
+                mQueryCount++;
+                cursor = mContentResolver.query(Data.CONTENT_URI, STRUCTURED_NAME_PROJECTION,
+                        selection, selectionArgs, null);
+                if (cursor == null) {
+                    continue;
+                }
+                while (cursor.moveToNext()) {
+                    final List<ContactMatch> contactMatches =
+                            matchesByContact.get(cursor.getLong(0));
+                    if (contactMatches == null) {
+                        continue;
+                    }
+                    final String firstName = cursor.getString(1);
+                    for (final ContactMatch match : contactMatches) {
+                        if (match.firstName == null) {
+                            match.firstName = firstName;
+                        }
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    private static boolean containsContact(final List<ContactMatch> matches,
+            final long contactId) {
+        for (final ContactMatch match : matches) {
+            if (match.contactId == contactId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getKey(final String destination) {
+        // Email addresses match regardless of case
+        return MmsSmsUtils.isEmailAddress(destination) ?
+                destination.toLowerCase(Locale.US) : destination;
+    }
+
+    private static String getPlaceholders(final int count) {
+        final StringBuilder placeholders = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                placeholders.append(',');
+            }
+            placeholders.append('?');
+        }
+        return placeholders.toString();
+    }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import com.android.messaging.Factory;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.Assert.RunsOnMainThread;
+import com.android.messaging.widget.BugleWidgetProvider;
+import com.android.messaging.widget.WidgetConversationProvider;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * In-process bus for changes made by the data layer.
+ *
+ * Write paths in {@link BugleDatabaseOperations} publish typed changes carrying the ids of the
+ * rows they touch, and the coarse MessagingContentProvider.notify* calls publish the uris they
+ * used to notify directly. Changes published inside a transaction are held until it commits and
+ * dropped if it doesn't. Changes are flushed on the bus's own background thread as soon as it
+ * gets to them, without any added delay; everything published until then is merged into one
+ * {@link DataChanges} batch. Each distinct uri and widget the batch affects is notified once from
+ * that thread, so a burst of writes during a sync causes one round of reloads instead of one per
+ * message and the binder calls to the widget manager stay off the main thread. The batch is then
+ * handed to the listeners on the main thread.
+ *
+ * Notifications are therefore asynchronous: they are delivered after the publishing call (or the
+ * transaction) returns, not during it.
+ */
+public class DataChangeBus {
+    /**
+     * Implemented by in-process consumers that want to know which rows changed
+     */
+    public interface DataChangeListener {
+        /**
+         * Called on the main thread with the changes merged since the last dispatch, once the
+         * content observers of the affected uris have been notified
+         */
+        void onDataChanged(DataChanges changes);
+    }
+
+    /**
+     * A batch of changes. Typed changes carry row ids; coarse changes only say that some rows
+     * of a conversation, or of everything, changed.
+     */
+    public static class DataChanges {
+        private boolean mEverythingChanged;
+        private boolean mAllMessagesChanged;
+        private boolean mAllParticipantsChanged;
+        private boolean mConversationListChanged;
+        private boolean mPartsChanged;
+        private boolean mFavoritesChanged;
+        private final HashSet<String> mInsertedMessageIds = new HashSet<String>();
+        private final HashSet<String> mUpdatedMessageIds = new HashSet<String>();
+        private final HashSet<String> mDeletedMessageIds = new HashSet<String>();
+        private final HashSet<String> mChangedParticipantIds = new HashSet<String>();
+        // Conversations whose messages changed
+        private final HashSet<String> mMessagesChangedConversationIds = new HashSet<String>();
+        // Conversations whose row changed
+        private final HashSet<String> mMetadataChangedConversationIds = new HashSet<String>();
+        // Conversations whose participants changed
+        private final HashSet<String> mParticipantsChangedConversationIds =
+                new HashSet<String>();
+        private int mChangeCount;
+
+        public boolean isEverythingChanged() {
+            return mEverythingChanged;
+        }
+
+        public boolean isAllMessagesChanged() {
+            return mEverythingChanged || mAllMessagesChanged;
+        }
+
+        public boolean isAllParticipantsChanged() {
+            return mEverythingChanged || mAllParticipantsChanged;
+        }
+
+        public boolean isConversationListChanged() {
+            return mEverythingChanged || mConversationListChanged
+                    || !mMessagesChangedConversationIds.isEmpty()
+                    || !mMetadataChangedConversationIds.isEmpty();
+        }
+
+        public boolean isFavoritesChanged() {
+            return mEverythingChanged || mFavoritesChanged;
+        }
+
+        public Set<String> getInsertedMessageIds() {
+            return Collections.unmodifiableSet(mInsertedMessageIds);
+        }
+
+        public Set<String> getUpdatedMessageIds() {
+            return Collections.unmodifiableSet(mUpdatedMessageIds);
+        }
+
+        public Set<String> getDeletedMessageIds() {
+            return Collections.unmodifiableSet(mDeletedMessageIds);
+        }
+
+        /**
+         * @return the participants whose rows changed; see also {@link #isAllParticipantsChanged}
+         */
+        public Set<String> getChangedParticipantIds() {
+            return Collections.unmodifiableSet(mChangedParticipantIds);
+        }
+
+        public Set<String> getMetadataChangedConversationIds() {
+            return Collections.unmodifiableSet(mMetadataChangedConversationIds);
+        }
+
+        /**
+         * @return true if messages of the conversation may have changed
+         */
+        public boolean isMessagesChanged(final String conversationId) {
+            return isAllMessagesChanged()
+                    || mMessagesChangedConversationIds.contains(conversationId);
+        }
+
+        /**
+         * @return the number of changes merged into this batch
+         */
+        public int getChangeCount() {
+            return mChangeCount;
+        }
+
+        boolean isEmpty() {
+            return mChangeCount == 0;
+        }
+
+        void addAll(final DataChanges other) {
+            mEverythingChanged |= other.mEverythingChanged;
+            mAllMessagesChanged |= other.mAllMessagesChanged;
+            mAllParticipantsChanged |= other.mAllParticipantsChanged;
+            mConversationListChanged |= other.mConversationListChanged;
+            mPartsChanged |= other.mPartsChanged;
+            mFavoritesChanged |= other.mFavoritesChanged;
+            mInsertedMessageIds.addAll(other.mInsertedMessageIds);
+            mUpdatedMessageIds.addAll(other.mUpdatedMessageIds);
+            mDeletedMessageIds.addAll(other.mDeletedMessageIds);
+            mChangedParticipantIds.addAll(other.mChangedParticipantIds);
+            mMessagesChangedConversationIds.addAll(other.mMessagesChangedConversationIds);
+            mMetadataChangedConversationIds.addAll(other.mMetadataChangedConversationIds);
+            mParticipantsChangedConversationIds.addAll(other.mParticipantsChangedConversationIds);
+            mChangeCount += other.mChangeCount;
+        }
+    }
+
+    private static DataChangeBus sInstance;
+
+    // Changes published by the current thread's transaction
+    private static final ThreadLocal<DataChanges> sTransactionChanges =
+            new ThreadLocal<DataChanges>();
+
+    private final Object mLock = new Object();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Only used on the main thread
+    private final List<DataChangeListener> mListeners = new ArrayList<DataChangeListener>();
+    // Guarded by mLock
+    private Handler mFlushHandler;
+    private DataChanges mPending = new DataChanges();
+    private boolean mFlushScheduled;
+    private long mPublishedCount;
+    private long mDroppedCount;
+    private long mBatchCount;
+
+    public static synchronized DataChangeBus get() {
+        if (sInstance == null) {
+            sInstance = new DataChangeBus();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    DataChangeBus() {
+    }
+
+    @RunsOnMainThread
+    public void addListener(final DataChangeListener listener) {
+        Assert.isMainThread();
+        mListeners.add(listener);
+    }
+
+    @RunsOnMainThread
+    public void removeListener(final DataChangeListener listener) {
+        Assert.isMainThread();
+        mListeners.remove(listener);
+    }
+
+    public void messageInserted(final DatabaseWrapper db, final String conversationId,
+            final String messageId) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mInsertedMessageIds.add(messageId);
+            changes.mMessagesChangedConversationIds.add(conversationId);
+            endChangeLocked(changes);
+        }
+    }
+
+    /**
+     * @param conversationId the message's conversation, or null if the writer doesn't know it
+     */
+    public void messageUpdated(final DatabaseWrapper db, @Nullable final String conversationId,
+            final String messageId) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mUpdatedMessageIds.add(messageId);
+            if (conversationId != null) {
+                changes.mMessagesChangedConversationIds.add(conversationId);
+            }
+            endChangeLocked(changes);
+        }
+    }
+
+    public void messageDeleted(final DatabaseWrapper db, final String conversationId,
+            final String messageId) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mDeletedMessageIds.add(messageId);
+            changes.mMessagesChangedConversationIds.add(conversationId);
+            endChangeLocked(changes);
+        }
+    }
+
+    public void conversationChanged(@Nullable final DatabaseWrapper db,
+            final String conversationId) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mMetadataChangedConversationIds.add(conversationId);
+            endChangeLocked(changes);
+        }
+    }
+
+    public void participantChanged(final DatabaseWrapper db, final String participantId) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mChangedParticipantIds.add(participantId);
+            endChangeLocked(changes);
+        }
+    }
+
+    /**
+     * Some messages of a conversation changed, without saying which
+     */
+    public void messagesChanged(@Nullable final DatabaseWrapper db,
+            final String conversationId) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mMessagesChangedConversationIds.add(conversationId);
+            endChangeLocked(changes);
+        }
+    }
+
+    public void participantsChanged(@Nullable final DatabaseWrapper db,
+            @Nullable final String conversationId) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            if (conversationId == null) {
+                changes.mAllParticipantsChanged = true;
+            } else {
+                changes.mParticipantsChangedConversationIds.add(conversationId);
+            }
+            endChangeLocked(changes);
+        }
+    }
+
+    public void allMessagesChanged(@Nullable final DatabaseWrapper db) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mAllMessagesChanged = true;
+            endChangeLocked(changes);
+        }
+    }
+
+    public void conversationListChanged() {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(null);
+            changes.mConversationListChanged = true;
+            endChangeLocked(changes);
+        }
+    }
+
+    public void partsChanged() {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(null);
+            changes.mPartsChanged = true;
+            endChangeLocked(changes);
+        }
+    }
+
+    public void favoritesChanged(@Nullable final DatabaseWrapper db) {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(db);
+            changes.mFavoritesChanged = true;
+            endChangeLocked(changes);
+        }
+    }
+
+    public void everythingChanged() {
+        synchronized (mLock) {
+            final DataChanges changes = getBatchLocked(null);
+            changes.mEverythingChanged = true;
+            endChangeLocked(changes);
+        }
+    }
+
+    /**
+     * Called by {@link DatabaseWrapper} when the outermost transaction of the current thread ends
+     */
+    void onTransactionEnded(final boolean committed) {
+        final DataChanges changes = sTransactionChanges.get();
+        if (changes == null) {
+            return;
+        }
+        sTransactionChanges.remove();
+        synchronized (mLock) {
+            if (committed) {
+                mPending.addAll(changes);
+                scheduleFlushLocked();
+            } else {
+                mDroppedCount += changes.mChangeCount;
+            }
+        }
+    }
+
+    /**
+     * @return the batch to record a change into: the current transaction's if there is one,
+     *  else the pending batch
+     */
+    private DataChanges getBatchLocked(@Nullable final DatabaseWrapper db) {
+        if (db != null && db.getDatabase().inTransaction()) {
+            DataChanges changes = sTransactionChanges.get();
+            if (changes == null) {
+                changes = new DataChanges();
+                sTransactionChanges.set(changes);
+            }
+            return changes;
+        }
+        return mPending;
+    }
+
+    private void endChangeLocked(final DataChanges changes) {
+        mPublishedCount++;
+        changes.mChangeCount++;
+        if (changes == mPending) {
+            scheduleFlushLocked();
+        }
+    }
+
+    private void scheduleFlushLocked() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            getFlushHandlerLocked().post(mFlushRunnable);
+        }
+    }
+
+    private Handler getFlushHandlerLocked() {
+        if (mFlushHandler == null) {
+            final HandlerThread thread = new HandlerThread("DataChangeBus");
+            thread.start();
+            mFlushHandler = new Handler(thread.getLooper());
+        }
+        return mFlushHandler;
+    }
+
+    @VisibleForTesting
+    Handler getFlushHandler() {
+        synchronized (mLock) {
+            return getFlushHandlerLocked();
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Notifies the observers of the pending changes, then posts them to the listeners. Runs on
+     * the flush thread.
+     */
+    @VisibleForTesting
+    void flush() {
+        final DataChanges changes;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            changes = mPending;
+            mPending = new DataChanges();
+            if (changes.isEmpty()) {
+                return;
+            }
+            mBatchCount++;
+        }
+        notifyContentObservers(changes);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                dispatchToListeners(changes);
+            }
+        });
+    }
+
+    @RunsOnMainThread
+    private void dispatchToListeners(final DataChanges changes) {
+        for (final DataChangeListener listener :
+                new ArrayList<DataChangeListener>(mListeners)) {
+            listener.onDataChanged(changes);
+        }
+    }
+
+    /**
+     * Notifies each uri and widget affected by the batch once
+     */
+    private static void notifyContentObservers(final DataChanges changes) {
+        final Context context = Factory.get().getApplicationContext();
+        final ContentResolver cr = context.getContentResolver();
+        if (changes.mEverythingChanged) {
+            cr.notifyChange(Uri.parse(MessagingContentProvider.CONTENT_AUTHORITY), null);
+            BugleWidgetProvider.notifyConversationListChanged(context);
+            WidgetConversationProvider.notifyMessagesChanged(context, null /*conversationId*/);
+            return;
+        }
+        if (changes.mAllMessagesChanged) {
+            cr.notifyChange(MessagingContentProvider.CONVERSATION_MESSAGES_URI, null);
+        } else {
+            for (final String conversationId : changes.mMessagesChangedConversationIds) {
+                cr.notifyChange(
+                        MessagingContentProvider.buildConversationMessagesUri(conversationId),
+                        null);
+            }
+        }
+        for (final String conversationId : changes.mMessagesChangedConversationIds) {
+            WidgetConversationProvider.notifyMessagesChanged(context, conversationId);
+        }
+        for (final String conversationId : changes.mMetadataChangedConversationIds) {
+            cr.notifyChange(MessagingContentProvider.buildConversationMetadataUri(conversationId),
+                    null);
+        }
+        if (changes.mAllParticipantsChanged) {
+            cr.notifyChange(MessagingContentProvider.CONVERSATION_PARTICIPANTS_URI, null);
+        } else {
+            for (final String conversationId : changes.mParticipantsChangedConversationIds) {
+                cr.notifyChange(
+                        MessagingContentProvider.buildConversationParticipantsUri(conversationId),
+                        null);
+            }
+        }
+        if (changes.mPartsChanged) {
+            cr.notifyChange(MessagingContentProvider.PARTS_URI, null);
+        }
+        if (changes.mFavoritesChanged) {
+            cr.notifyChange(MessagingContentProvider.FAVORITES_URI, null);
+        }
+        if (changes.isConversationListChanged()) {
+            cr.notifyChange(MessagingContentProvider.CONVERSATIONS_URI, null);
+            BugleWidgetProvider.notifyConversationListChanged(context);
+        }
+    }
+
+    public void dump(final PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println(String.format(Locale.US,
+                    "Data changes: %d published, %d batches, %d dropped by rollbacks",
+                    mPublishedCount, mBatchCount, mDroppedCount));
+        }
+    }
+}
@@ -25,6 +25,7 @@ import com.android.messaging.datamodel.action.ActionService;
 import com.android.messaging.datamodel.action.BackgroundWorker;
 import com.android.messaging.datamodel.action.FixupMessageStatusOnStartupAction;
 import com.android.messaging.datamodel.action.ProcessPendingMessagesAction;
+import com.android.messaging.datamodel.action.RebuildSearchIndexAction;
 import com.android.messaging.datamodel.data.BlockedParticipantsData;
 import com.android.messaging.datamodel.data.BlockedParticipantsData.BlockedParticipantsDataListener;
 import com.android.messaging.datamodel.data.ContactListItemData;
@@ -53,6 +54,8 @@ import com.android.messaging.datamodel.data.VCardContactItemData;
 import com.android.messaging.sms.MmsConfig;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
 import com.android.messaging.util.ConnectivityUtil;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
@@ -206,6 +209,9 @@ public class DataModelImpl extends DataModel {
         LogUtil.w(LogUtil.BUGLE_TAG, "Rebuilt databases: reseting related state");
         // Clear other things that implicitly reference the DB
         SyncManager.resetLastSyncTimestamps();
+        // A freshly created search index is already in sync with the (empty) parts table
+        BuglePrefs.getApplicationPrefs().putBoolean(
+                BuglePrefsKeys.SEARCH_INDEX_REBUILD_PENDING, false);
     }
 
     @Override
@@ -223,6 +229,8 @@ public class DataModelImpl extends DataModel {
         FixupMessageStatusOnStartupAction.fixupMessageStatus();
         ProcessPendingMessagesAction.processFirstPendingMessage();
         SyncManager.immediateSync();
+        RebuildSearchIndexAction.rebuildSearchIndexIfNeeded();
+        ParticipantRefresh.prewarmPhoneNumberCache();
 
         if (OsUtil.isAtLeastL_MR1()) {
             // Start listening for subscription change events for refreshing self participants.
@@ -62,6 +62,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public static final String CONVERSATION_PARTICIPANTS_TABLE = "conversation_participants";
     public static final String FAVORITES_TABLE = "favorites";
 
+    // Full-text index over the text column of the parts table
+    public static final String PARTS_FTS_TABLE = "parts_fts";
+
     // Views
     static final String DRAFT_PARTS_VIEW = "draft_parts_view";
 
@@ -366,14 +369,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + CONVERSATIONS_TABLE + "(" + ConversationColumns._ID + ") ON DELETE CASCADE "
                     + ");";
 
+    static final String PARTS_TRIGGER = PARTS_TABLE + "_TRIGGER";
+
     public static final String CREATE_PARTS_TRIGGER_SQL =
-            "CREATE TRIGGER " + PARTS_TABLE + "_TRIGGER" + " AFTER INSERT ON " + PARTS_TABLE
+            "CREATE TRIGGER " + PARTS_TRIGGER + " AFTER INSERT ON " + PARTS_TABLE
             + " FOR EACH ROW "
             + " BEGIN UPDATE " + PARTS_TABLE
             + " SET " + PartColumns.TIMESTAMP + "="
             + " (SELECT received_timestamp FROM " + MESSAGES_TABLE + " WHERE " + MESSAGES_TABLE
             + "." + MessageColumns._ID + "=" + "NEW." + PartColumns.MESSAGE_ID + ")"
             + " WHERE " + PARTS_TABLE + "." + PartColumns._ID + "=" + "NEW." + PartColumns._ID
+            + "; INSERT INTO " + PARTS_FTS_TABLE + "(docid, " + PartColumns.TEXT + ")"
+            + " SELECT NEW." + PartColumns._ID + ", NEW." + PartColumns.TEXT
+            + " WHERE NEW." + PartColumns.TEXT + " IS NOT NULL"
             + "; END";
 
     public static final String CREATE_MESSAGES_TRIGGER_SQL =
@@ -384,6 +392,43 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             + PartColumns.MESSAGE_ID + " = NEW." + MessageColumns._ID
             + "; END;";
 
+    // The parts full-text index is an external content FTS4 table, so it stores only the index
+    // and reads the text back from the parts table. Rows are keyed by the part _id (docid). The
+    // insert side is handled by CREATE_PARTS_TRIGGER_SQL, the triggers below keep it in sync with
+    // updates and deletes. Old index entries must be removed BEFORE the content row changes.
+    private static final String CREATE_PARTS_FTS_TABLE_SQL =
+            "CREATE VIRTUAL TABLE " + PARTS_FTS_TABLE + " USING fts4(content=\"" + PARTS_TABLE
+            + "\", " + PartColumns.TEXT + ", tokenize=unicode61)";
+
+    // Fallback for platform SQLite builds without the unicode61 tokenizer
+    private static final String CREATE_PARTS_FTS_TABLE_SIMPLE_SQL =
+            "CREATE VIRTUAL TABLE " + PARTS_FTS_TABLE + " USING fts4(content=\"" + PARTS_TABLE
+            + "\", " + PartColumns.TEXT + ")";
+
+    public static final String CREATE_PARTS_FTS_BEFORE_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + PARTS_FTS_TABLE + "_BU_TRIGGER BEFORE UPDATE OF "
+            + PartColumns.TEXT + " ON " + PARTS_TABLE
+            + " FOR EACH ROW WHEN OLD." + PartColumns.TEXT + " IS NOT NULL"
+            + " BEGIN DELETE FROM " + PARTS_FTS_TABLE + " WHERE docid=OLD." + PartColumns._ID
+            + "; END";
+
+    public static final String CREATE_PARTS_FTS_AFTER_UPDATE_TRIGGER_SQL =
+            "CREATE TRIGGER " + PARTS_FTS_TABLE + "_AU_TRIGGER AFTER UPDATE OF "
+            + PartColumns.TEXT + " ON " + PARTS_TABLE
+            + " FOR EACH ROW WHEN NEW." + PartColumns.TEXT + " IS NOT NULL"
+            + " BEGIN INSERT INTO " + PARTS_FTS_TABLE + "(docid, " + PartColumns.TEXT + ")"
+            + " VALUES (NEW." + PartColumns._ID + ", NEW." + PartColumns.TEXT + "); END";
+
+    public static final String CREATE_PARTS_FTS_BEFORE_DELETE_TRIGGER_SQL =
+            "CREATE TRIGGER " + PARTS_FTS_TABLE + "_BD_TRIGGER BEFORE DELETE ON " + PARTS_TABLE
+            + " FOR EACH ROW WHEN OLD." + PartColumns.TEXT + " IS NOT NULL"
+            + " BEGIN DELETE FROM " + PARTS_FTS_TABLE + " WHERE docid=OLD." + PartColumns._ID
+            + "; END";
+
+    // Repopulates the full-text index from the parts table
+    private static final String REBUILD_PARTS_FTS_SQL =
+            "INSERT INTO " + PARTS_FTS_TABLE + "(" + PARTS_FTS_TABLE + ") VALUES('rebuild')";
+
     // Primary sort index for parts table : by message_id
     private static final String PARTS_TABLE_MESSAGE_INDEX_SQL =
             "CREATE INDEX index_" + PARTS_TABLE + "_message_id ON " + PARTS_TABLE + "("
@@ -620,11 +665,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String[] CREATE_TRIGGER_SQLS = new String[] {
             CREATE_PARTS_TRIGGER_SQL,
             CREATE_MESSAGES_TRIGGER_SQL,
+            CREATE_PARTS_FTS_BEFORE_UPDATE_TRIGGER_SQL,
+            CREATE_PARTS_FTS_AFTER_UPDATE_TRIGGER_SQL,
+            CREATE_PARTS_FTS_BEFORE_DELETE_TRIGGER_SQL,
     };
 
     // List of all our views
     private static final String[] CREATE_VIEW_SQLS = new String[] {
-        ConversationListItemData.getConversationListViewSql(),
         ConversationListItemData.getSearchListViewSql(),
         ConversationImagePartsView.getCreateSql(),
         DRAFT_PARTS_VIEW_SQL,
@@ -724,6 +771,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(createViewSql);
     }
 
+    /**
+     * Drop and rebuild a given trigger.
+     */
+    static void rebuildTrigger(final SQLiteDatabase db, final String triggerName,
+            final String createTriggerSql) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + triggerName);
+        db.execSQL(createTriggerSql);
+    }
+
     private static void dropView(final SQLiteDatabase db, final String viewName,
             final boolean throwOnFailure) {
         final String dropPrefix = "DROP VIEW IF EXISTS ";
@@ -847,11 +903,49 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * Creates the full-text index table over message part text. The triggers that maintain it
+     * are created separately along with the other triggers.
+     */
+    static void createSearchIndexTable(final SQLiteDatabase db) {
+        try {
+            db.execSQL(CREATE_PARTS_FTS_TABLE_SQL);
+        } catch (final SQLException ex) {
+            LogUtil.w(LogUtil.BUGLE_DATABASE_TAG, "unicode61 tokenizer not available, "
+                    + "falling back to simple tokenizer for " + PARTS_FTS_TABLE, ex);
+            db.execSQL(CREATE_PARTS_FTS_TABLE_SIMPLE_SQL);
+        }
+    }
+
+    /**
+     * Repopulates the full-text index from the current contents of the parts table. This is
+     * needed for databases which had messages before the index was introduced.
+     */
+    public static void rebuildSearchIndex(final DatabaseWrapper db) {
+        db.execSQL(REBUILD_PARTS_FTS_SQL);
+    }
+
+    /**
+     * Creates the conversation list table with its index and the triggers that maintain it, and
+     * fills it from the existing conversations.
+     */
+    static void createConversationListTable(final SQLiteDatabase db) {
+        db.execSQL(ConversationListItemData.getConversationListTableSql());
+        db.execSQL(ConversationListItemData.getConversationListIndexSql());
+        for (final String sql : ConversationListItemData.getConversationListTriggerSqls()) {
+            db.execSQL(sql);
+        }
+        db.execSQL(ConversationListItemData.getPopulateConversationListSql());
+    }
+
     private static void createDatabase(final SQLiteDatabase db) {
         for (final String sql : CREATE_TABLE_SQLS) {
             db.execSQL(sql);
         }
 
+        createSearchIndexTable(db);
+        createConversationListTable(db);
+
         for (final String sql : CREATE_INDEX_SQLS) {
             db.execSQL(sql);
         }
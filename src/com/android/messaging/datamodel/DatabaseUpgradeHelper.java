@@ -17,12 +17,18 @@ package com.android.messaging.datamodel;
 
 import android.database.sqlite.SQLiteDatabase;
 
+import com.android.messaging.datamodel.action.RebuildSearchIndexAction;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
 import com.android.messaging.util.LogUtil;
 
 public class DatabaseUpgradeHelper {
     private static final String TAG = LogUtil.BUGLE_DATABASE_TAG;
 
+    // The view the conversation list was read from before version 3
+    private static final String OLD_CONVERSATION_LIST_VIEW = "conversation_list_view";
+
     public void doOnUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
         Assert.isTrue(newVersion >= oldVersion);
         if (oldVersion == newVersion) {
@@ -31,9 +37,44 @@ public class DatabaseUpgradeHelper {
 
         LogUtil.i(TAG, "Database upgrade started from version " + oldVersion + " to " + newVersion);
 
+        int currentVersion = oldVersion;
+        if (currentVersion < 2) {
+            currentVersion = upgradeToVersion2(db);
+        }
+        if (currentVersion < 3) {
+            currentVersion = upgradeToVersion3(db);
+        }
+
         // Add future upgrade code here
     }
 
+    /**
+     * Adds the full-text index over message part text. The index itself is populated later by
+     * {@link RebuildSearchIndexAction} so the upgrade doesn't block opening the database.
+     */
+    private int upgradeToVersion2(final SQLiteDatabase db) {
+        DatabaseHelper.createSearchIndexTable(db);
+        DatabaseHelper.rebuildTrigger(db, DatabaseHelper.PARTS_TRIGGER,
+                DatabaseHelper.CREATE_PARTS_TRIGGER_SQL);
+        db.execSQL(DatabaseHelper.CREATE_PARTS_FTS_BEFORE_UPDATE_TRIGGER_SQL);
+        db.execSQL(DatabaseHelper.CREATE_PARTS_FTS_AFTER_UPDATE_TRIGGER_SQL);
+        db.execSQL(DatabaseHelper.CREATE_PARTS_FTS_BEFORE_DELETE_TRIGGER_SQL);
+        BuglePrefs.getApplicationPrefs().putBoolean(
+                BuglePrefsKeys.SEARCH_INDEX_REBUILD_PENDING, true);
+        LogUtil.i(TAG, "Upgraded database to version 2");
+        return 2;
+    }
+
+    /**
+     * Replaces the conversation list view with the trigger maintained conversation list table.
+     */
+    private int upgradeToVersion3(final SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + OLD_CONVERSATION_LIST_VIEW);
+        DatabaseHelper.createConversationListTable(db);
+        LogUtil.i(TAG, "Upgraded database to version 3");
+        return 3;
+    }
+
     public void onDowngrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
         DatabaseHelper.rebuildTables(db);
         LogUtil.e(TAG, "Database downgrade requested for version " +
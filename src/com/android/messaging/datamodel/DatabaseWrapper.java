@@ -21,6 +21,7 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.database.sqlite.SQLiteStatement;
@@ -34,7 +35,13 @@ import com.android.messaging.util.DebugUtils;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.UiUtils;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Stack;
 import java.util.regex.Pattern;
 
@@ -59,9 +66,34 @@ public class DatabaseWrapper {
 
     private final SparseArray<SQLiteStatement> mCompiledStatements;
 
+    // Number of statements kept in the statement cache
+    private static final int STATEMENT_CACHE_SIZE = 32;
+
+    // Statements compiled by SQL, least recently used first. Like mCompiledStatements, the cached
+    // statements are only used inside transactions, which serializes access to them.
+    private final LinkedHashMap<String, SQLiteStatement> mStatementCache;
+    // Statements evicted from the cache while a transaction was open. An outer frame of a nested
+    // transaction might still be using them, so they are closed when the transaction ends.
+    private final List<SQLiteStatement> mEvictedStatements = new ArrayList<SQLiteStatement>();
+
+    // Stats for the statement cache and for writes through ContentValues, to compare the two
+    private final Object mStatsLock = new Object();
+    private long mStatementCacheHits;
+    private long mStatementCacheMisses;
+    private long mStatementCacheEvictions;
+    private long mStatementExecutions;
+    private long mStatementNanos;
+    // Statements compiled for a single use outside of transactions
+    private long mUncachedStatementExecutions;
+    private long mUncachedStatementNanos;
+    private long mContentValuesWrites;
+    private long mContentValuesNanos;
+
     static class TransactionData {
         long time;
         boolean transactionSuccessful;
+        // A nested transaction failed, which rolls back the outermost one
+        boolean nestedTransactionFailed;
     }
 
     // track transaction on a per thread basis
@@ -86,6 +118,20 @@ public class DatabaseWrapper {
         mDatabase = db;
         mContext = context;
         mCompiledStatements = new SparseArray<SQLiteStatement>();
+        mStatementCache = new LinkedHashMap<String, SQLiteStatement>(
+                STATEMENT_CACHE_SIZE, 0.75f, true /* accessOrder */) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() <= STATEMENT_CACHE_SIZE) {
+                    return false;
+                }
+                mEvictedStatements.add(eldest.getValue());
+                synchronized (mStatsLock) {
+                    mStatementCacheEvictions++;
+                }
+                return true;
+            }
+        };
     }
 
     public SQLiteStatement getStatementInTransaction(final int index, final String statement) {
@@ -100,6 +146,234 @@ public class DatabaseWrapper {
         return compiled;
     }
 
+    /**
+     * Runs an insert statement that the caller has compiled and bound, counting it in the
+     * statement stats
+     * @return the row id of the new row
+     */
+    public long executeInsert(final SQLiteStatement statement) {
+        final long startNanos = System.nanoTime();
+        try {
+            return statement.executeInsert();
+        } finally {
+            recordStatementExecution(startNanos, statement.toString(), true /* cached */);
+        }
+    }
+
+    /**
+     * Returns a compiled statement for the given sql from the statement cache, compiling it on a
+     * miss. Must be called in a transaction, and the statement must only be used until the
+     * transaction ends.
+     */
+    public SQLiteStatement getCachedStatementInTransaction(final String sql) {
+        // Use transaction to serialize access to statements
+        Assert.isTrue(mDatabase.inTransaction());
+        synchronized (mStatementCache) {
+            SQLiteStatement compiled = mStatementCache.get(sql);
+            synchronized (mStatsLock) {
+                if (compiled != null) {
+                    mStatementCacheHits++;
+                } else {
+                    mStatementCacheMisses++;
+                }
+            }
+            if (compiled == null) {
+                compiled = mDatabase.compileStatement(sql);
+                mStatementCache.put(sql, compiled);
+            }
+            return compiled;
+        }
+    }
+
+    /**
+     * Runs an UPDATE or DELETE statement. Inside a transaction the compiled statement is cached.
+     * @return the number of rows changed
+     */
+    public int executeUpdateDelete(final String sql, final Object[] bindArgs) {
+        maybePlayDebugNoise();
+        final long startNanos = System.nanoTime();
+        final boolean cached = mDatabase.inTransaction();
+        final SQLiteStatement statement = acquireStatement(sql, bindArgs);
+        int count = 0;
+        try {
+            count = statement.executeUpdateDelete();
+        } catch (SQLiteFullException ex) {
+            LogUtil.e(TAG, "Database full, unable to executeUpdateDelete", ex);
+            UiUtils.showToastAtBottom(R.string.db_full);
+        } finally {
+            releaseStatement(statement);
+        }
+        recordStatementExecution(startNanos, sql, cached);
+        return count;
+    }
+
+    /**
+     * Inserts a row built from the values. Inside a transaction the compiled statement is cached.
+     * @return the row id of the new row, or -1 on failure
+     */
+    public long executeInsert(final String table, final ContentValues values) {
+        final String[] columns = values.keySet().toArray(new String[values.size()]);
+        // Sort the columns so that the same set of columns always maps to the same statement
+        Arrays.sort(columns);
+        final StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        final Object[] bindArgs = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? "," : "").append(columns[i]);
+            bindArgs[i] = values.get(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ",?" : "?");
+        }
+        sql.append(')');
+
+        maybePlayDebugNoise();
+        final long startNanos = System.nanoTime();
+        final String sqlString = sql.toString();
+        final boolean cached = mDatabase.inTransaction();
+        final SQLiteStatement statement = acquireStatement(sqlString, bindArgs);
+        long rowId = -1;
+        try {
+            rowId = statement.executeInsert();
+        } catch (SQLiteFullException ex) {
+            LogUtil.e(TAG, "Database full, unable to executeInsert", ex);
+            UiUtils.showToastAtBottom(R.string.db_full);
+        } finally {
+            releaseStatement(statement);
+        }
+        recordStatementExecution(startNanos, sqlString, cached);
+        return rowId;
+    }
+
+    /**
+     * Runs a query returning a single value. Inside a transaction the compiled statement is
+     * cached.
+     * @return the value in the first column of the first row, or null if there are no rows
+     */
+    public String simpleQueryForString(final String sql, final Object[] bindArgs) {
+        maybePlayDebugNoise();
+        final long startNanos = System.nanoTime();
+        final boolean cached = mDatabase.inTransaction();
+        final SQLiteStatement statement = acquireStatement(sql, bindArgs);
+        try {
+            return statement.simpleQueryForString();
+        } catch (final SQLiteDoneException e) {
+            return null;
+        } finally {
+            releaseStatement(statement);
+            recordStatementExecution(startNanos, sql, cached);
+        }
+    }
+
+    /**
+     * Runs a query returning a single number, such as a count. Inside a transaction the compiled
+     * statement is cached.
+     * @return the value in the first column of the first row, or 0 if there are no rows
+     */
+    public long simpleQueryForLong(final String sql, final Object[] bindArgs) {
+        maybePlayDebugNoise();
+        final long startNanos = System.nanoTime();
+        final boolean cached = mDatabase.inTransaction();
+        final SQLiteStatement statement = acquireStatement(sql, bindArgs);
+        try {
+            return statement.simpleQueryForLong();
+        } catch (final SQLiteDoneException e) {
+            return 0;
+        } finally {
+            releaseStatement(statement);
+            recordStatementExecution(startNanos, sql, cached);
+        }
+    }
+
+    /**
+     * Gets a statement from the cache inside a transaction, or compiles one for a single use
+     * outside of transactions, and binds the arguments
+     */
+    private SQLiteStatement acquireStatement(final String sql, final Object[] bindArgs) {
+        final SQLiteStatement statement = mDatabase.inTransaction() ?
+                getCachedStatementInTransaction(sql) : mDatabase.compileStatement(sql);
+        statement.clearBindings();
+        if (bindArgs != null) {
+            for (int i = 0; i < bindArgs.length; i++) {
+                DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+            }
+        }
+        return statement;
+    }
+
+    private void releaseStatement(final SQLiteStatement statement) {
+        if (mDatabase.inTransaction()) {
+            // Don't hold on to the bound values while the statement sits in the cache
+            statement.clearBindings();
+        } else {
+            statement.close();
+        }
+    }
+
+    /**
+     * @param cached whether the statement was reused from a cache rather than compiled for this
+     *        execution alone
+     */
+    private void recordStatementExecution(final long startNanos, final String sql,
+            final boolean cached) {
+        final long nanos = System.nanoTime() - startNanos;
+        synchronized (mStatsLock) {
+            if (cached) {
+                mStatementExecutions++;
+                mStatementNanos += nanos;
+            } else {
+                mUncachedStatementExecutions++;
+                mUncachedStatementNanos += nanos;
+            }
+        }
+        if (mLog) {
+            printTiming(System.currentTimeMillis() - nanos / 1000000,
+                    String.format(Locale.US, "execute statement %s", sql));
+        }
+    }
+
+    private void recordContentValuesWrite(final long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        synchronized (mStatsLock) {
+            mContentValuesWrites++;
+            mContentValuesNanos += nanos;
+        }
+    }
+
+    /**
+     * Closes the statements evicted from the cache once no transaction can be using them anymore
+     */
+    private void closeEvictedStatements() {
+        if (mDatabase.inTransaction()) {
+            return;
+        }
+        synchronized (mStatementCache) {
+            for (final SQLiteStatement statement : mEvictedStatements) {
+                statement.close();
+            }
+            mEvictedStatements.clear();
+        }
+    }
+
+    public void dump(final PrintWriter writer) {
+        synchronized (mStatsLock) {
+            writer.println(String.format(Locale.US, "Statement cache: %d hits, %d misses, "
+                    + "%d evictions", mStatementCacheHits, mStatementCacheMisses,
+                    mStatementCacheEvictions));
+            writer.println(String.format(Locale.US, "  cached statements: %d executions, "
+                    + "avg %d us", mStatementExecutions,
+                    mStatementExecutions == 0 ? 0 : mStatementNanos / mStatementExecutions / 1000));
+            writer.println(String.format(Locale.US, "  uncached statements: %d executions, "
+                    + "avg %d us", mUncachedStatementExecutions,
+                    mUncachedStatementExecutions == 0 ? 0
+                            : mUncachedStatementNanos / mUncachedStatementExecutions / 1000));
+            writer.println(String.format(Locale.US, "  ContentValues writes: %d, avg %d us",
+                    mContentValuesWrites,
+                    mContentValuesWrites == 0 ? 0 : mContentValuesNanos / mContentValuesWrites
+                            / 1000));
+        }
+    }
+
     private void maybePlayDebugNoise() {
         DebugUtils.maybePlayDebugNoise(mContext, DebugUtils.DEBUG_SOUND_DB_OP);
     }
@@ -140,7 +414,13 @@ public class DatabaseWrapper {
     public void endTransaction() {
         long t1 = 0;
         long transactionStartTime = 0;
-        final TransactionData f = sTransactionDepth.get().pop();
+        final Stack<TransactionData> transactionStack = sTransactionDepth.get();
+        final TransactionData f = transactionStack.pop();
+        final boolean outermost = transactionStack.isEmpty();
+        if (!outermost && (!f.transactionSuccessful || f.nestedTransactionFailed)) {
+            transactionStack.peek().nestedTransactionFailed = true;
+        }
+        boolean committed = f.transactionSuccessful && !f.nestedTransactionFailed;
         if (f.transactionSuccessful == false) {
             LogUtil.w(TAG, "endTransaction without setting successful");
             for (final StackTraceElement st : (new Exception()).getStackTrace()) {
@@ -156,6 +436,11 @@ public class DatabaseWrapper {
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to endTransaction", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
+            committed = false;
+        }
+        closeEvictedStatements();
+        if (outermost) {
+            DataChangeBus.get().onTransactionEnded(committed);
         }
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
@@ -181,6 +466,7 @@ public class DatabaseWrapper {
         if (mLog) {
             t1 = System.currentTimeMillis();
         }
+        final long startNanos = System.nanoTime();
         try {
             mDatabase.insertWithOnConflict(searchTable, nullColumnHack, initialValues,
                     conflictAlgorithm);
@@ -188,6 +474,7 @@ public class DatabaseWrapper {
             LogUtil.e(TAG, "Database full, unable to insertWithOnConflict", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordContentValuesWrite(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US,
                     "insertWithOnConflict with ", searchTable));
@@ -342,12 +629,14 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         int count = 0;
+        final long startNanos = System.nanoTime();
         try {
             count = mDatabase.update(table, values, selection, selectionArgs);
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to update", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordContentValuesWrite(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "update %s with %s ==> %d",
                     table, selection, count));
@@ -384,12 +673,14 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         long rowId = -1;
+        final long startNanos = System.nanoTime();
         try {
             rowId = mDatabase.insert(table, nullColumnHack, values);
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to insert", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordContentValuesWrite(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "insert to %s", table));
         }
@@ -404,12 +695,14 @@ public class DatabaseWrapper {
         }
         maybePlayDebugNoise();
         long rowId = -1;
+        final long startNanos = System.nanoTime();
         try {
             rowId = mDatabase.replace(table, nullColumnHack, values);
         } catch (SQLiteFullException ex) {
             LogUtil.e(TAG, "Database full, unable to replace", ex);
             UiUtils.showToastAtBottom(R.string.db_full);
         }
+        recordContentValuesWrite(startNanos);
         if (mLog) {
             printTiming(t1, String.format(Locale.US, "replace to %s", table));
         }
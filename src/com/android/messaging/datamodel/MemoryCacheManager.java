@@ -18,6 +18,7 @@ package com.android.messaging.datamodel;
 
 import com.android.messaging.Factory;
 
+import java.io.PrintWriter;
 import java.util.HashSet;
 
 /**
@@ -39,6 +40,14 @@ public class MemoryCacheManager {
         void reclaim();
     }
 
+    /**
+     * Extend this interface for memory caches that report their usage, such as reuse hits and
+     * retained bytes, in dumps.
+     */
+    public interface DumpableMemoryCache extends MemoryCache {
+        void dump(PrintWriter writer);
+    }
+
     /**
      * Register the memory cache with the application.
      */
@@ -72,4 +81,20 @@ public class MemoryCacheManager {
             cache.reclaim();
         }
     }
+
+    /**
+     * Dump the usage of the memory caches that report it.
+     */
+    @SuppressWarnings("unchecked")
+    public void dump(final PrintWriter writer) {
+        final HashSet<MemoryCache> shallowCopy;
+        synchronized (mMemoryCacheLock) {
+            shallowCopy = (HashSet<MemoryCache>) mMemoryCaches.clone();
+        }
+        for (final MemoryCache cache : shallowCopy) {
+            if (cache instanceof DumpableMemoryCache) {
+                ((DumpableMemoryCache) cache).dump(writer);
+            }
+        }
+    }
 }
@@ -333,6 +333,42 @@ public abstract class MessageNotificationState extends NotificationState {
         return super.getNumRequestCodesNeeded() + NUM_EXTRA_REQUEST_CODES_NEEDED;
     }
 
+    /**
+     * @return a value that changes whenever anything the notification of a conversation shows
+     *  changes: the messages and their senders, the conversation's name and sender avatar, and
+     *  its notification settings. Only the senders of the messages shown are covered; changes to
+     *  other participants of a group show up with its next message.
+     */
+    static String getSignature(final ConversationLineInfo convInfo) {
+        final StringBuilder signature = new StringBuilder(convInfo.mConversationId);
+        signature.append('|').append(convInfo.mIsGroup)
+                .append('|').append(convInfo.mGroupConversationName)
+                .append('|').append(convInfo.mIncludeEmailAddress)
+                .append('|').append(convInfo.mSelfParticipantId)
+                .append('|').append(convInfo.mSubId)
+                .append('|').append(convInfo.mParticipantCount)
+                .append('|').append(convInfo.mTotalMessageCount)
+                .append('|').append(convInfo.mRingtoneUri)
+                .append('|').append(convInfo.mNotificationEnabled)
+                .append('|').append(convInfo.mNotificationVibrate)
+                .append('|').append(convInfo.mAvatarUri)
+                .append('|').append(convInfo.mContactUri);
+        for (final NotificationLineInfo lineInfo : convInfo.mLineInfos) {
+            signature.append('|').append(lineInfo.mNotificationType);
+            if (lineInfo instanceof MessageLineInfo) {
+                final MessageLineInfo messageInfo = (MessageLineInfo) lineInfo;
+                signature.append(':').append(messageInfo.mMessageId)
+                        .append(':').append(messageInfo.mAuthorFullName)
+                        .append(':').append(messageInfo.mAuthorFirstName)
+                        .append(':').append(messageInfo.mText)
+                        .append(':').append(messageInfo.mAttachmentUri)
+                        .append(':').append(messageInfo.mAttachmentType)
+                        .append(':').append(messageInfo.mIsManualDownloadNeeded);
+            }
+        }
+        return signature.toString();
+    }
+
     private int getBaseExtraRequestCode() {
         return mBaseRequestCode + super.getNumRequestCodesNeeded();
     }
@@ -355,8 +391,10 @@ public abstract class MessageNotificationState extends NotificationState {
      */
     public static class MultiConversationNotificationState extends MessageNotificationState {
 
-        public final List<MessageNotificationState>
-                mChildren = new ArrayList<MessageNotificationState>();
+        // The conversations that get a child notification on wearables, in group order. The
+        // children themselves are only built by createChild, for the ones that need posting.
+        public final List<ConversationLineInfo>
+                mChildConvInfos = new ArrayList<ConversationLineInfo>();
 
         public MultiConversationNotificationState(
                 final ConversationInfoList convList, final MessageNotificationState state) {
@@ -371,7 +409,7 @@ public abstract class MessageNotificationState extends NotificationState {
                     convList.mMessageCount, convList.mMessageCount);
             mTickerText = state.mContent;
 
-            // Create child notifications for each conversation,
+            // Collect the conversations of the child notifications,
             // which will be displayed (only) on a wearable device.
             for (int i = 0; i < convList.mConvInfos.size(); i++) {
                 final ConversationLineInfo convInfo = convList.mConvInfos.get(i);
@@ -379,12 +417,30 @@ public abstract class MessageNotificationState extends NotificationState {
                     continue;
                 }
                 setPeopleForConversation(convInfo.mConversationId);
-                final ConversationInfoList list = new ConversationInfoList(
-                        convInfo.mTotalMessageCount, Lists.newArrayList(convInfo));
-                mChildren.add(new BundledMessageNotificationState(list, i));
+                mChildConvInfos.add(convInfo);
             }
         }
 
+        /**
+         * @return a value that changes whenever anything shown in the child notification of the
+         *  conversation changes, computed without building the child
+         */
+        String getChildSignature(final ConversationLineInfo convInfo) {
+            // The group order is part of the posted notification
+            return getSignature(convInfo) + '#' + mConvList.mConvInfos.indexOf(convInfo);
+        }
+
+        /**
+         * Builds the child notification of one of the conversations in mChildConvInfos, which
+         * loads its avatars and people
+         */
+        MessageNotificationState createChild(final ConversationLineInfo convInfo) {
+            final ConversationInfoList list = new ConversationInfoList(
+                    convInfo.mTotalMessageCount, Lists.newArrayList(convInfo));
+            return new BundledMessageNotificationState(list,
+                    mConvList.mConvInfos.indexOf(convInfo));
+        }
+
         @Override
         public int getIcon() {
             return R.drawable.ic_sms_multi_light;
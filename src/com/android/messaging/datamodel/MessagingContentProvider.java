@@ -16,37 +16,43 @@
 package com.android.messaging.datamodel;
 
 import android.content.ContentProvider;
-import android.content.ContentResolver;
 import android.content.ContentValues;
-import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
+import android.support.annotation.Nullable;
+import android.support.v7.mms.MmsManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.messaging.BugleApplication;
-import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.action.ActionMonitor;
+import com.android.messaging.datamodel.action.BackgroundWorkerService;
 import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.ConversationMessageData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.media.MediaResourceManager;
+import com.android.messaging.sms.MmsAttachmentPreprocessor;
 import com.android.messaging.util.Assert;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
+import com.android.messaging.util.JpegSizePredictor;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
-import com.android.messaging.widget.BugleWidgetProvider;
-import com.android.messaging.widget.WidgetConversationProvider;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * A centralized provider for Uris exposed by Bugle.
@@ -57,7 +63,7 @@ public class MessagingContentProvider extends ContentProvider {
     @VisibleForTesting
     public static final String AUTHORITY =
             "com.android.messaging.datamodel.MessagingContentProvider";
-    private static final String CONTENT_AUTHORITY = "content://" + AUTHORITY + '/';
+    static final String CONTENT_AUTHORITY = "content://" + AUTHORITY + '/';
 
     // Conversations query
     private static final String CONVERSATIONS_QUERY = "conversations";
@@ -69,6 +75,15 @@ public class MessagingContentProvider extends ContentProvider {
 
     public static final Uri PARTS_URI = Uri.parse(CONTENT_AUTHORITY + SEARCH_QUERY);
 
+    // Ranked, paged message search. The query text and paging are passed as uri parameters.
+    private static final String SEARCH_MESSAGES_QUERY = SEARCH_QUERY + "/search";
+
+    static final Uri SEARCH_MESSAGES_URI =
+            Uri.parse(CONTENT_AUTHORITY + SEARCH_MESSAGES_QUERY);
+
+    private static final String SEARCH_PARAM_QUERY = "q";
+    private static final String SEARCH_PARAM_LIMIT = "limit";
+    private static final String SEARCH_PARAM_OFFSET = "offset";
 
     // Messages query
     private static final String MESSAGES_QUERY = "messages";
@@ -78,6 +93,12 @@ public class MessagingContentProvider extends ContentProvider {
     public static final Uri CONVERSATION_MESSAGES_URI = Uri.parse(CONTENT_AUTHORITY +
             MESSAGES_QUERY + "/conversation");
 
+    // Windowed conversation messages query. The window is bounded by message keys (see
+    // ConversationMessageData#makeMessageKey) and a size passed as uri parameters.
+    private static final String MESSAGES_PARAM_LIMIT = "limit";
+    private static final String MESSAGES_PARAM_FROM = "from";
+    private static final String MESSAGES_PARAM_BEFORE = "before";
+
     // Conversation participants query
     private static final String PARTICIPANTS_QUERY = "participants";
 
@@ -111,18 +132,13 @@ public class MessagingContentProvider extends ContentProvider {
      * <b>IMPORTANT!</b> You probably shouldn't be calling this. Prefer to notify more specific
      * uri's instead. Currently only sync uses this, because sync can potentially update many
      * different tables at once.
+     * <p>
+     * Like the other notify methods this goes through the {@link DataChangeBus}, which merges
+     * the notifications made until its background thread flushes them, so observers are notified
+     * after this returns rather than during the call.
      */
     public static void notifyEverythingChanged() {
-        final Uri uri = Uri.parse(CONTENT_AUTHORITY);
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
-
-        // Notify any conversations widgets the conversation list has changed.
-        BugleWidgetProvider.notifyConversationListChanged(context);
-
-        // Notify all conversation widgets to update.
-        WidgetConversationProvider.notifyMessagesChanged(context, null /*conversationId*/);
+        DataChangeBus.get().everythingChanged();
     }
 
     /**
@@ -135,19 +151,15 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyParticipantsChanged(final String conversationId) {
-        final Uri uri = buildConversationParticipantsUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
+        DataChangeBus.get().participantsChanged(null, conversationId);
     }
 
     public static void notifyAllMessagesChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_MESSAGES_URI, null);
+        DataChangeBus.get().allMessagesChanged(null);
     }
 
     public static void notifyAllParticipantsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(CONVERSATION_PARTICIPANTS_URI, null);
+        DataChangeBus.get().participantsChanged(null, null /* conversationId */);
     }
 
     // Default value for unknown dimension of image
@@ -164,6 +176,7 @@ public class MessagingContentProvider extends ContentProvider {
     private static final int PARTICIPANTS_QUERY_CODE = 70;
     private static final int SEARCH_MESSAGES_QUERY_CODE = 80;
     private static final int FAVORITES_QUERY_CODE = 90;
+    private static final int SEARCH_MESSAGES_FTS_QUERY_CODE = 100;
 
     // TODO: Move to a better structured URI namespace.
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -180,6 +193,7 @@ public class MessagingContentProvider extends ContentProvider {
         sURIMatcher.addURI(AUTHORITY, DRAFT_IMAGES_QUERY + "/*",
                 DRAFT_IMAGES_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, SEARCH_QUERY, SEARCH_MESSAGES_QUERY_CODE);
+        sURIMatcher.addURI(AUTHORITY, SEARCH_MESSAGES_QUERY, SEARCH_MESSAGES_FTS_QUERY_CODE);
         sURIMatcher.addURI(AUTHORITY, FAVORITES_QUERY, FAVORITES_QUERY_CODE);
     }
 
@@ -192,15 +206,33 @@ public class MessagingContentProvider extends ContentProvider {
         return builder.build();
     }
 
-    public static void notifyMessagesChanged(final String conversationId) {
-        final Uri uri = buildConversationMessagesUri(conversationId);
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(uri, null);
-        notifyConversationListChanged();
+    /**
+     * Build a uri for a window of a conversation's messages, newest first.
+     * @param limit the maximum number of messages, or 0 for no limit
+     * @param fromKey if not null, only include this message and newer ones
+     * @param beforeKey if not null, only include messages older than this one
+     */
+    public static Uri buildConversationMessagesWindowUri(final String conversationId,
+            final int limit, @Nullable final String fromKey, @Nullable final String beforeKey) {
+        final Uri.Builder builder = CONVERSATION_MESSAGES_URI.buildUpon();
+        builder.appendPath(conversationId);
+        if (limit > 0) {
+            builder.appendQueryParameter(MESSAGES_PARAM_LIMIT, Integer.toString(limit));
+        }
+        if (fromKey != null) {
+            builder.appendQueryParameter(MESSAGES_PARAM_FROM, fromKey);
+        }
+        if (beforeKey != null) {
+            builder.appendQueryParameter(MESSAGES_PARAM_BEFORE, beforeKey);
+        }
+        return builder.build();
+    }
 
-        // Notify the widget the messages changed
-        WidgetConversationProvider.notifyMessagesChanged(context, conversationId);
+    /**
+     * Notifies the conversation's messages, the conversation list and the widgets
+     */
+    public static void notifyMessagesChanged(final String conversationId) {
+        DataChangeBus.get().messagesChanged(null, conversationId);
     }
 
     /**
@@ -213,29 +245,34 @@ public class MessagingContentProvider extends ContentProvider {
     }
 
     public static void notifyConversationMetadataChanged(final String conversationId) {
-        final Uri uri = buildConversationMetadataUri(conversationId);
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(uri, null);
-        notifyConversationListChanged();
+        DataChangeBus.get().conversationChanged(null, conversationId);
     }
 
     public static void notifyPartsChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(PARTS_URI, null);
+        DataChangeBus.get().partsChanged();
     }
 
     public static void notifyConversationListChanged() {
-        final Context context = Factory.get().getApplicationContext();
-        final ContentResolver cr = context.getContentResolver();
-        cr.notifyChange(CONVERSATIONS_URI, null);
-
-        // Notify the widget the conversation list changed
-        BugleWidgetProvider.notifyConversationListChanged(context);
+        DataChangeBus.get().conversationListChanged();
     }
 
     public static void notifyFavoritesChanged() {
-        final ContentResolver cr = Factory.get().getApplicationContext().getContentResolver();
-        cr.notifyChange(FAVORITES_URI, null);
+        DataChangeBus.get().favoritesChanged(null);
+    }
+
+    /**
+     * Build a uri for a page of message search results.
+     * @param searchText the text as typed by the user
+     * @param limit maximum number of rows to return
+     * @param offset number of leading rows to skip
+     */
+    public static Uri buildSearchMessagesUri(final String searchText, final int limit,
+            final int offset) {
+        final Uri.Builder builder = SEARCH_MESSAGES_URI.buildUpon();
+        builder.appendQueryParameter(SEARCH_PARAM_QUERY, searchText == null ? "" : searchText);
+        builder.appendQueryParameter(SEARCH_PARAM_LIMIT, Integer.toString(limit));
+        builder.appendQueryParameter(SEARCH_PARAM_OFFSET, Integer.toString(offset));
+        return builder.build();
     }
 
     /**
@@ -296,12 +333,12 @@ public class MessagingContentProvider extends ContentProvider {
         String limit = null;
         switch (match) {
             case CONVERSATIONS_QUERY_CODE:
-                queryBuilder.setTables(ConversationListItemData.getConversationListView());
+                queryBuilder.setTables(ConversationListItemData.getConversationListTable());
                 // Hide empty conversations (ones with 0 sort_timestamp)
                 queryBuilder.appendWhere(ConversationColumns.SORT_TIMESTAMP + " > 0 ");
                 break;
             case CONVERSATION_QUERY_CODE:
-                queryBuilder.setTables(ConversationListItemData.getConversationListView());
+                queryBuilder.setTables(ConversationListItemData.getConversationListTable());
                 if (uri.getPathSegments().size() == 2) {
                     queryBuilder.appendWhere(ConversationColumns._ID + "=?");
                     // Get the conversation id from the uri
@@ -321,6 +358,13 @@ public class MessagingContentProvider extends ContentProvider {
                 // Hide empty conversations (ones with 0 sort_timestamp)
                 queryBuilder.appendWhere(ConversationColumns.SORT_TIMESTAMP + " > 0 ");
                 break;
+            case SEARCH_MESSAGES_FTS_QUERY_CODE:
+                if (selection == null && selectionArgs == null && sortOrder == null) {
+                    return querySearchMessages(uri, projection);
+                } else {
+                    throw new IllegalArgumentException(
+                            "Cannot set selection or sort order with this query");
+                }
             case CONVERSATION_PARTICIPANTS_QUERY_CODE:
                 queryBuilder.setTables(DatabaseHelper.PARTICIPANTS_TABLE);
                 if (uri.getPathSegments().size() == 3 &&
@@ -358,7 +402,9 @@ public class MessagingContentProvider extends ContentProvider {
                     // selection/sorting for this query.
 
                     if (selection == null && selectionArgs == null && sortOrder == null) {
-                        return queryConversationMessages(conversationId, uri);
+                        // Windowed queries are notified of all the conversation's changes
+                        return queryConversationMessages(conversationId, uri,
+                                buildConversationMessagesUri(conversationId));
                     } else {
                         throw new IllegalArgumentException(
                                 "Cannot set selection or sort order with this query");
@@ -404,14 +450,204 @@ public class MessagingContentProvider extends ContentProvider {
         return cursor;
     }
 
-    private Cursor queryConversationMessages(final String conversationId, final Uri notifyUri) {
-        final String[] queryArgs = { conversationId };
-        final Cursor cursor = getDatabaseWrapper().rawQuery(
-                ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
+    private Cursor queryConversationMessages(final String conversationId, final Uri uri,
+            final Uri notifyUri) {
+        final int limit = parseIntParameter(uri, MESSAGES_PARAM_LIMIT, 0);
+        String fromKey = uri.getQueryParameter(MESSAGES_PARAM_FROM);
+        final String beforeKey = uri.getQueryParameter(MESSAGES_PARAM_BEFORE);
+        final Cursor cursor;
+        if (limit <= 0 && fromKey == null && beforeKey == null) {
+            final String[] queryArgs = { conversationId };
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesQuerySql(), queryArgs);
+        } else {
+            final String[] fromArgs;
+            final String[] beforeArgs = beforeKey == null ? null :
+                    ConversationMessageData.getMessageKeyArgs(beforeKey);
+            if (beforeKey != null && beforeArgs == null) {
+                throw new IllegalArgumentException("Malformed URI " + uri);
+            }
+            if (limit > 0 && fromKey == null) {
+                // Find where the window starts from the messages table alone, so that the
+                // window query only joins and groups the messages in the window
+                fromKey = queryMessagesWindowStart(conversationId, beforeArgs, limit);
+            }
+            if (fromKey != null) {
+                fromArgs = ConversationMessageData.getMessageKeyArgs(fromKey);
+                if (fromArgs == null) {
+                    throw new IllegalArgumentException("Malformed URI " + uri);
+                }
+            } else {
+                fromArgs = null;
+            }
+            final ArrayList<String> queryArgs = new ArrayList<String>(7);
+            queryArgs.add(conversationId);
+            if (fromArgs != null) {
+                queryArgs.addAll(Arrays.asList(fromArgs));
+            }
+            if (beforeArgs != null) {
+                queryArgs.addAll(Arrays.asList(beforeArgs));
+            }
+            cursor = getDatabaseWrapper().rawQuery(
+                    ConversationMessageData.getConversationMessagesWindowQuerySql(
+                            fromArgs != null, beforeArgs != null, 0 /* limit */),
+                    queryArgs.toArray(new String[queryArgs.size()]));
+        }
         cursor.setNotificationUri(getContext().getContentResolver(), notifyUri);
         return cursor;
     }
 
+    /**
+     * @return the key of the oldest message in a window of the given size, or null if there are
+     *  no more messages than that
+     */
+    private String queryMessagesWindowStart(final String conversationId,
+            @Nullable final String[] beforeArgs, final int windowSize) {
+        final ArrayList<String> queryArgs = new ArrayList<String>(4);
+        queryArgs.add(conversationId);
+        if (beforeArgs != null) {
+            queryArgs.addAll(Arrays.asList(beforeArgs));
+        }
+        final Cursor cursor = getDatabaseWrapper().rawQuery(
+                ConversationMessageData.getConversationMessagesWindowStartQuerySql(
+                        beforeArgs != null, windowSize),
+                queryArgs.toArray(new String[queryArgs.size()]));
+        try {
+            if (cursor.moveToFirst()) {
+                return ConversationMessageData.makeMessageKey(cursor.getLong(0),
+                        cursor.getString(1));
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor querySearchMessages(final Uri uri, final String[] projection) {
+        final String searchText = uri.getQueryParameter(SEARCH_PARAM_QUERY);
+        final int limit = parseIntParameter(uri, SEARCH_PARAM_LIMIT, -1);
+        final int offset = parseIntParameter(uri, SEARCH_PARAM_OFFSET, 0);
+        final String limitClause = limit < 0 ? null : (offset + "," + limit);
+        final String likePattern = "%" + escapeLikePattern(searchText) + "%";
+
+        final Cursor cursor;
+        final String matchQuery = buildFullTextMatchQuery(searchText);
+        if (matchQuery != null && !isSearchIndexRebuildPending()) {
+            final StringBuilder sql = new StringBuilder("SELECT ");
+            sql.append(projection == null ? "*" : TextUtils.join(", ", projection));
+            sql.append(" FROM (").append(ConversationListItemData.getSearchQuerySql());
+            sql.append(") ORDER BY ").append(ConversationListItemData.SEARCH_QUERY_SORT_ORDER);
+            if (limitClause != null) {
+                sql.append(" LIMIT ").append(limitClause);
+            }
+            cursor = getDatabaseWrapper().rawQuery(sql.toString(),
+                    new String[] { matchQuery, likePattern, matchQuery });
+        } else {
+            // The index can't serve this query, fall back to scanning the search view
+            final SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+            queryBuilder.setTables(ConversationListItemData.getSearchListView());
+            queryBuilder.appendWhere(ConversationColumns.SORT_TIMESTAMP + " > 0 ");
+            cursor = getDatabaseWrapper().query(queryBuilder, projection,
+                    "(" + ConversationListItemData.getSearchPartsTextColumn()
+                            + " LIKE ? ESCAPE '\\' OR " + ConversationColumns.NAME
+                            + " LIKE ? ESCAPE '\\')",
+                    new String[] { likePattern, likePattern }, null, null,
+                    ConversationColumns.SORT_TIMESTAMP + " DESC", limitClause);
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), PARTS_URI);
+        return cursor;
+    }
+
+    private static int parseIntParameter(final Uri uri, final String name,
+            final int defaultValue) {
+        final String value = uri.getQueryParameter(name);
+        if (TextUtils.isEmpty(value)) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed URI " + uri);
+        }
+    }
+
+    private static boolean isSearchIndexRebuildPending() {
+        return BuglePrefs.getApplicationPrefs().getBoolean(
+                BuglePrefsKeys.SEARCH_INDEX_REBUILD_PENDING,
+                BuglePrefsKeys.SEARCH_INDEX_REBUILD_PENDING_DEFAULT);
+    }
+
+    private static String escapeLikePattern(final String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * Turn user typed text into an FTS match expression where every whitespace separated word
+     * must match as a prefix.
+     * @return the match expression, or null if the full-text index can't answer this query,
+     *         in which case a substring scan should be used instead
+     */
+    @VisibleForTesting
+    static String buildFullTextMatchQuery(final String searchText) {
+        if (TextUtils.isEmpty(searchText)) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (final String word : searchText.trim().split("\\s+")) {
+            final String token = word.replace("\"", "");
+            if (!isFullTextSearchable(token)) {
+                return null;
+            }
+            if (!hasLetterOrDigit(token)) {
+                // The tokenizer drops punctuation, so this word can never be matched
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(token).append("*\"");
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static boolean hasLetterOrDigit(final String token) {
+        for (int i = 0; i < token.length(); ) {
+            final int codePoint = token.codePointAt(i);
+            if (Character.isLetterOrDigit(codePoint)) {
+                return true;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return false;
+    }
+
+    /**
+     * The FTS tokenizers split words on whitespace and punctuation only, which doesn't work for
+     * scripts that are written without spaces between words. Users expect substring matches in
+     * those scripts.
+     */
+    private static boolean isFullTextSearchable(final String token) {
+        for (int i = 0; i < token.length(); ) {
+            final int codePoint = token.codePointAt(i);
+            final Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+            if (script == Character.UnicodeScript.HAN
+                    || script == Character.UnicodeScript.HIRAGANA
+                    || script == Character.UnicodeScript.KATAKANA
+                    || script == Character.UnicodeScript.HANGUL
+                    || script == Character.UnicodeScript.THAI
+                    || script == Character.UnicodeScript.LAO
+                    || script == Character.UnicodeScript.KHMER
+                    || script == Character.UnicodeScript.MYANMAR) {
+                return false;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return true;
+    }
+
     @Override
     public String getType(final Uri uri) {
         final StringBuilder sb = new
@@ -491,6 +727,18 @@ public class MessagingContentProvider extends ContentProvider {
             }
         }
         writer.println("Default SMS app: " + defaultSmsApp);
+        DataModel.get().getSyncManager().getSyncStats().dump(writer);
+        MediaResourceManager.get().dump(writer);
+        DataModel.get().getDatabase().dump(writer);
+        DataChangeBus.get().dump(writer);
+        ActionMonitor.dump(writer);
+        BackgroundWorkerService.dump(writer);
+        MmsManager.dump(writer);
+        PhoneUtils.dumpCanonicalCache(writer);
+        JpegSizePredictor.get().dump(writer);
+        MmsAttachmentPreprocessor.get().dump(writer);
+        MemoryCacheManager.get().dump(writer);
+        BugleNotifications.dump(writer);
         // Now dump logs
         LogUtil.dump(writer);
     }
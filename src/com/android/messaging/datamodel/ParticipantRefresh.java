@@ -17,21 +17,25 @@
 package com.android.messaging.datamodel;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.graphics.Color;
+import android.os.SystemClock;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.support.v4.util.ArrayMap;
 import android.telephony.SubscriptionInfo;
 import android.text.TextUtils;
 
 import com.android.messaging.Factory;
+import com.android.messaging.datamodel.ContactBulkResolver.ContactMatch;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsColumns;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.datamodel.data.ParticipantData.ParticipantsQuery;
+import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.ContactUtil;
@@ -79,6 +83,15 @@ public class ParticipantRefresh {
      */
     public static final int REFRESH_MODE_SELF_ONLY = 2;
 
+    // Below this many participants, looking them up one by one takes fewer queries
+    private static final int BULK_RESOLVE_MIN_PARTICIPANTS = 20;
+
+    // Number of participant updates per transaction
+    private static final int UPDATE_CHUNK_SIZE = 100;
+
+    // Number of recent participant numbers loaded into the canonical phone number cache
+    private static final int PREWARM_PHONE_NUMBER_COUNT = 500;
+
     public static class ConversationParticipantsQuery {
         public static final String[] PROJECTION = new String[] {
             ConversationParticipantsColumns._ID,
@@ -160,6 +173,38 @@ public class ParticipantRefresh {
         }
     }
 
+    /**
+     * Pre-warms the canonical phone number cache in the background with the destinations of
+     * the most recent participants, which are the numbers sync and notifications look up.
+     */
+    public static void prewarmPhoneNumberCache() {
+        SafeAsyncTask.executeOnThreadPool(new Runnable() {
+            @Override
+            public void run() {
+                final DatabaseWrapper db = DataModel.get().getDatabase();
+                final ArrayList<String> destinations = new ArrayList<String>();
+                Cursor cursor = null;
+                try {
+                    cursor = db.query(DatabaseHelper.PARTICIPANTS_TABLE,
+                            new String[] { ParticipantColumns.NORMALIZED_DESTINATION },
+                            ParticipantColumns.SUB_ID + "=?",
+                            new String[] {
+                                    String.valueOf(ParticipantData.OTHER_THAN_SELF_SUB_ID) },
+                            null, null, ParticipantColumns._ID + " DESC",
+                            String.valueOf(PREWARM_PHONE_NUMBER_COUNT));
+                    while (cursor.moveToNext()) {
+                        destinations.add(cursor.getString(0));
+                    }
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+                PhoneUtils.getDefault().prewarmCanonicalCache(destinations);
+            }
+        });
+    }
+
     /**
      * Refresh self participants on subscription or settings change.
      */
@@ -257,31 +302,16 @@ public class ParticipantRefresh {
         }
 
         final DatabaseWrapper db = DataModel.get().getDatabase();
+        final long startTime = SystemClock.elapsedRealtime();
+        final ArrayList<ParticipantData> participants = new ArrayList<ParticipantData>();
         Cursor cursor = null;
-        boolean selfUpdated = false;
         try {
             cursor = db.query(DatabaseHelper.PARTICIPANTS_TABLE,
                     ParticipantsQuery.PROJECTION, selection, selectionArgs, null, null, null);
 
             if (cursor != null) {
                 while (cursor.moveToNext()) {
-                    try {
-                        final ParticipantData participantData =
-                                ParticipantData.getFromCursor(cursor);
-                        if (refreshParticipant(db, participantData)) {
-                            if (participantData.isSelf()) {
-                                selfUpdated = true;
-                            }
-                            updateParticipant(db, participantData);
-                            final String id = participantData.getId();
-                            changedParticipants.add(id);
-                        }
-                    } catch (final Exception exception) {
-                        // Failure to update one participant shouldn't cancel the entire refresh.
-                        // Log the failure so we know what's going on and resume the loop.
-                        LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: Failed to " +
-                                "update participant", exception);
-                    }
+                    participants.add(ParticipantData.getFromCursor(cursor));
                 }
             }
         } finally {
@@ -290,8 +320,58 @@ public class ParticipantRefresh {
             }
         }
 
-        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "Number of participants refreshed:" + changedParticipants.size());
+        // Resolve the contacts of many participants at once rather than with a lookup each
+        ContactBulkResolver resolver = null;
+        if (participants.size() >= BULK_RESOLVE_MIN_PARTICIPANTS) {
+            final ArrayList<String> destinations = new ArrayList<String>(participants.size());
+            for (final ParticipantData participantData : participants) {
+                destinations.add(participantData.getNormalizedDestination());
+            }
+            resolver = new ContactBulkResolver(db.getContext().getContentResolver());
+            try {
+                resolver.resolve(destinations);
+            } catch (final Exception exception) {
+                // Fall back to looking up participants one by one
+                LogUtil.e(TAG, "ParticipantRefresh: Failed to resolve contacts in bulk",
+                        exception);
+                resolver = null;
+            }
+        }
+        final long resolveTime = SystemClock.elapsedRealtime();
+
+        boolean selfUpdated = false;
+        final ArrayList<ParticipantData> changedParticipantData =
+                new ArrayList<ParticipantData>();
+        for (final ParticipantData participantData : participants) {
+            try {
+                if (refreshParticipant(db, participantData, resolver)) {
+                    if (participantData.isSelf()) {
+                        selfUpdated = true;
+                    }
+                    changedParticipantData.add(participantData);
+                    changedParticipants.add(participantData.getId());
+                }
+            } catch (final Exception exception) {
+                // Failure to update one participant shouldn't cancel the entire refresh.
+                // Log the failure so we know what's going on and resume the loop.
+                LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: Failed to " +
+                        "update participant", exception);
+            }
+        }
+        final long matchTime = SystemClock.elapsedRealtime();
+
+        updateParticipants(db, changedParticipantData);
+
+        if (refreshMode == REFRESH_MODE_FULL
+                || LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.i(TAG, "ParticipantRefresh: Refreshed " + participants.size()
+                    + " participants, " + changedParticipantData.size() + " changed, in "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms (contacts "
+                    + (resolveTime - startTime) + "ms with "
+                    + (resolver == null ? "single lookups" :
+                            resolver.getQueryCount() + " bulk queries")
+                    + ", matching " + (matchTime - resolveTime) + "ms, updates "
+                    + (SystemClock.elapsedRealtime() - matchTime) + "ms)");
         }
 
         // Refresh conversations for participants that are changed.
@@ -415,6 +495,15 @@ public class ParticipantRefresh {
      */
     public static boolean refreshParticipant(final DatabaseWrapper db,
             final ParticipantData participantData) {
+        return refreshParticipant(db, participantData, null /* resolver */);
+    }
+
+    /**
+     * Refresh one participant, using the contacts of the resolver if there is one
+     * @return true if the ParticipantData was changed
+     */
+    private static boolean refreshParticipant(final DatabaseWrapper db,
+            final ParticipantData participantData, final ContactBulkResolver resolver) {
         boolean updated = false;
 
         if (participantData.isSelf()) {
@@ -430,7 +519,7 @@ public class ParticipantRefresh {
             // Fall-through and try to update based on Contacts data
         }
 
-        updated |= refreshFromContacts(db, participantData);
+        updated |= refreshFromContacts(db, participantData, resolver);
         return updated;
     }
 
@@ -488,7 +577,7 @@ public class ParticipantRefresh {
     }
 
     private static boolean refreshFromContacts(final DatabaseWrapper db,
-            final ParticipantData participantData) {
+            final ParticipantData participantData, final ContactBulkResolver resolver) {
         final String normalizedDestination = participantData.getNormalizedDestination();
         final long currentContactId = participantData.getContactId();
         final String currentDisplayName = participantData.getFullName();
@@ -496,13 +585,6 @@ public class ParticipantRefresh {
         final String currentPhotoUri = participantData.getProfilePhotoUri();
         final String currentContactDestination = participantData.getContactDestination();
 
-        Cursor matchingContactCursor = null;
-        long matchingContactId = -1;
-        String matchingDisplayName = null;
-        String matchingFirstName = null;
-        String matchingPhotoUri = null;
-        String matchingLookupKey = null;
-        String matchingDestination = null;
         boolean updated = false;
 
         if (TextUtils.isEmpty(normalizedDestination)) {
@@ -512,45 +594,20 @@ public class ParticipantRefresh {
             return false;
         }
 
+        ContactMatch match;
         try {
-            matchingContactCursor = ContactUtil.lookupDestination(db.getContext(),
-                    normalizedDestination).performSynchronousQuery();
-            if (matchingContactCursor == null || matchingContactCursor.getCount() == 0) {
-                // If there is no match, mark the participant as contact not found.
-                if (currentContactId != ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND) {
-                    participantData.setContactId(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND);
-                    participantData.setFullName(null);
-                    participantData.setFirstName(null);
-                    participantData.setProfilePhotoUri(null);
-                    participantData.setLookupKey(null);
-                    updated = true;
-                }
-                return updated;
-            }
-
-            while (matchingContactCursor.moveToNext()) {
-                final long contactId = matchingContactCursor.getLong(ContactUtil.INDEX_CONTACT_ID);
-                // Pick either the first contact or the contact with same id as previous matched
-                // contact id.
-                if (matchingContactId == -1 || currentContactId == contactId) {
-                    matchingContactId = contactId;
-                    matchingDisplayName = matchingContactCursor.getString(
-                            ContactUtil.INDEX_DISPLAY_NAME);
-                    matchingFirstName = ContactUtil.lookupFirstName(db.getContext(), contactId);
-                    matchingPhotoUri = matchingContactCursor.getString(
-                            ContactUtil.INDEX_PHOTO_URI);
-                    matchingLookupKey = matchingContactCursor.getString(
-                            ContactUtil.INDEX_LOOKUP_KEY);
-                    matchingDestination = matchingContactCursor.getString(
-                            ContactUtil.INDEX_PHONE_EMAIL);
-                }
-
-                // There is no need to try other contacts if the current contactId was not filled...
-                if (currentContactId < 0
-                        // or we found the matching contact id
-                        || currentContactId == contactId) {
-                    break;
+            // The bulk resolver only sees personal contacts, so work contacts are looked up
+            if (resolver != null && !ContactUtil.isEnterpriseContactId(currentContactId)) {
+                match = resolver.findMatch(normalizedDestination, currentContactId);
+                // The bulk resolver only matches normalized numbers exactly, so confirm a miss
+                // with the loose matching of PhoneLookup before unlinking a contact
+                if (match == null && (currentContactId >= 0
+                        || !isExactlyMatchable(normalizedDestination))) {
+                    match = lookupContact(db.getContext(), normalizedDestination,
+                            currentContactId);
                 }
+            } else {
+                match = lookupContact(db.getContext(), normalizedDestination, currentContactId);
             }
         } catch (final Exception exception) {
             // It's possible for contact query to fail and we don't want that to crash our app.
@@ -558,32 +615,41 @@ public class ParticipantRefresh {
             LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "Participant refresh: failed to refresh " +
                     "participant. exception=" + exception);
             return false;
-        } finally {
-            if (matchingContactCursor != null) {
-                matchingContactCursor.close();
+        }
+
+        if (match == null) {
+            // If there is no match, mark the participant as contact not found.
+            if (currentContactId != ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND) {
+                participantData.setContactId(ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND);
+                participantData.setFullName(null);
+                participantData.setFirstName(null);
+                participantData.setProfilePhotoUri(null);
+                participantData.setLookupKey(null);
+                updated = true;
             }
+            return updated;
         }
 
         // Update participant only if something changed.
-        final boolean isContactIdChanged = (matchingContactId != currentContactId);
+        final boolean isContactIdChanged = (match.contactId != currentContactId);
         final boolean isDisplayNameChanged =
-                !TextUtils.equals(matchingDisplayName, currentDisplayName);
-        final boolean isFirstNameChanged = !TextUtils.equals(matchingFirstName, currentFirstName);
-        final boolean isPhotoUrlChanged = !TextUtils.equals(matchingPhotoUri, currentPhotoUri);
-        final boolean isDestinationChanged = !TextUtils.equals(matchingDestination,
+                !TextUtils.equals(match.displayName, currentDisplayName);
+        final boolean isFirstNameChanged = !TextUtils.equals(match.firstName, currentFirstName);
+        final boolean isPhotoUrlChanged = !TextUtils.equals(match.photoUri, currentPhotoUri);
+        final boolean isDestinationChanged = !TextUtils.equals(match.destination,
                 currentContactDestination);
 
         if (isContactIdChanged || isDisplayNameChanged || isFirstNameChanged || isPhotoUrlChanged
                 || isDestinationChanged) {
-            participantData.setContactId(matchingContactId);
-            participantData.setFullName(matchingDisplayName);
-            participantData.setFirstName(matchingFirstName);
-            participantData.setProfilePhotoUri(matchingPhotoUri);
-            participantData.setLookupKey(matchingLookupKey);
-            participantData.setContactDestination(matchingDestination);
+            participantData.setContactId(match.contactId);
+            participantData.setFullName(match.displayName);
+            participantData.setFirstName(match.firstName);
+            participantData.setProfilePhotoUri(match.photoUri);
+            participantData.setLookupKey(match.lookupKey);
+            participantData.setContactDestination(match.destination);
             if (isDestinationChanged) {
                 // Update the send destination to the new one entered by user in Contacts.
-                participantData.setSendDestination(matchingDestination);
+                participantData.setSendDestination(match.destination);
             }
             updated = true;
         }
@@ -591,6 +657,90 @@ public class ParticipantRefresh {
         return updated;
     }
 
+    /**
+     * @return whether the bulk resolver can match the destination as well as a single lookup,
+     *     i.e. it's an email address or a phone number in E.164 form
+     */
+    private static boolean isExactlyMatchable(final String normalizedDestination) {
+        return MmsSmsUtils.isEmailAddress(normalizedDestination)
+                || normalizedDestination.startsWith("+");
+    }
+
+    /**
+     * Looks up the contact of one destination with PhoneLookup / EmailLookup
+     * @return the matching contact, or null if there is none
+     */
+    private static ContactMatch lookupContact(final Context context,
+            final String normalizedDestination, final long currentContactId) {
+        Cursor matchingContactCursor = null;
+        ContactMatch match = null;
+        try {
+            matchingContactCursor = ContactUtil.lookupDestination(context,
+                    normalizedDestination).performSynchronousQuery();
+            if (matchingContactCursor == null) {
+                return null;
+            }
+
+            while (matchingContactCursor.moveToNext()) {
+                final long contactId = matchingContactCursor.getLong(ContactUtil.INDEX_CONTACT_ID);
+                // Pick either the first contact or the contact with same id as previous matched
+                // contact id.
+                if (match == null || currentContactId == contactId) {
+                    match = new ContactMatch(contactId,
+                            matchingContactCursor.getString(ContactUtil.INDEX_DISPLAY_NAME),
+                            matchingContactCursor.getString(ContactUtil.INDEX_PHOTO_URI),
+                            matchingContactCursor.getString(ContactUtil.INDEX_LOOKUP_KEY),
+                            matchingContactCursor.getString(ContactUtil.INDEX_PHONE_EMAIL));
+                }
+
+                // There is no need to try other contacts if the current contactId was not filled...
+                if (currentContactId < 0
+                        // or we found the matching contact id
+                        || currentContactId == contactId) {
+                    break;
+                }
+            }
+        } finally {
+            if (matchingContactCursor != null) {
+                matchingContactCursor.close();
+            }
+        }
+        if (match != null) {
+            match.firstName = ContactUtil.lookupFirstName(context, match.contactId);
+        }
+        return match;
+    }
+
+    /**
+     * Update participants with matching contact's contactId, displayName and photoUri, a chunk
+     * of participants per transaction.
+     */
+    private static void updateParticipants(final DatabaseWrapper db,
+            final List<ParticipantData> participants) {
+        for (int start = 0; start < participants.size(); start += UPDATE_CHUNK_SIZE) {
+            final int end = Math.min(participants.size(), start + UPDATE_CHUNK_SIZE);
+            db.beginTransaction();
+            try {
+                for (int i = start; i < end; i++) {
+                    try {
+                        updateParticipant(db, participants.get(i));
+                    } catch (final Exception exception) {
+                        // Failure to update one participant shouldn't cancel the entire refresh.
+                        LogUtil.e(LogUtil.BUGLE_DATAMODEL_TAG, "ParticipantRefresh: Failed to " +
+                                "update participant", exception);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(TAG, "ParticipantRefresh: Updated " + end + " of "
+                        + participants.size() + " participants");
+            }
+        }
+    }
+
     /**
      * Update participant with matching contact's contactId, displayName and photoUri.
      */
@@ -612,14 +762,8 @@ public class ParticipantRefresh {
         values.put(ParticipantColumns.CONTACT_DESTINATION, participantData.getContactDestination());
         values.put(ParticipantColumns.SEND_DESTINATION, participantData.getSendDestination());
 
-        db.beginTransaction();
-        try {
-            db.update(DatabaseHelper.PARTICIPANTS_TABLE, values, ParticipantColumns._ID + "=?",
-                    new String[] { participantData.getId() });
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
-        }
+        db.update(DatabaseHelper.PARTICIPANTS_TABLE, values, ParticipantColumns._ID + "=?",
+                new String[] { participantData.getId() });
     }
 
     /**
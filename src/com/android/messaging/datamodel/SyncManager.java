@@ -35,9 +35,11 @@ import com.android.messaging.util.OsUtil;
 import com.android.messaging.util.PhoneUtils;
 import com.google.common.collect.Lists;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This class manages message sync with the Telephony SmsProvider/MmsProvider.
@@ -99,6 +101,15 @@ public class SyncManager {
 
     private final ThreadInfoCache mThreadInfoCache = new ThreadInfoCache();
 
+    private final SyncStats mSyncStats = new SyncStats();
+
+    /**
+     * Highest telephony SMS/MMS row ids when the in progress sync started - saved once the sync
+     * completes so that the next sync can find messages added since
+     */
+    private long mPendingSmsIdHighWaterMark = -1L;
+    private long mPendingMmsIdHighWaterMark = -1L;
+
     /**
      * User customization to conversations. If this is set, we need to recover them after
      * a full sync.
@@ -214,6 +225,7 @@ public class SyncManager {
         }
 
         mSyncInProgressTimestamp = startTimestamp;
+        mSyncStats.reset();
 
         return true;
     }
@@ -334,6 +346,53 @@ public class SyncManager {
         prefs.putLong(BuglePrefsKeys.LAST_FULL_SYNC_TIME,
                 BuglePrefsKeys.LAST_FULL_SYNC_TIME_DEFAULT);
         prefs.putLong(BuglePrefsKeys.LAST_SYNC_TIME, BuglePrefsKeys.LAST_SYNC_TIME_DEFAULT);
+        prefs.putLong(BuglePrefsKeys.SYNC_SMS_ID_HIGH_WATER_MARK,
+                BuglePrefsKeys.SYNC_ID_HIGH_WATER_MARK_DEFAULT);
+        prefs.putLong(BuglePrefsKeys.SYNC_MMS_ID_HIGH_WATER_MARK,
+                BuglePrefsKeys.SYNC_ID_HIGH_WATER_MARK_DEFAULT);
+    }
+
+    /**
+     * @return highest telephony SMS row id known to be synced, or -1 if unknown
+     */
+    public long getSmsIdHighWaterMark() {
+        return BuglePrefs.getApplicationPrefs().getLong(
+                BuglePrefsKeys.SYNC_SMS_ID_HIGH_WATER_MARK,
+                BuglePrefsKeys.SYNC_ID_HIGH_WATER_MARK_DEFAULT);
+    }
+
+    /**
+     * @return highest telephony MMS row id known to be synced, or -1 if unknown
+     */
+    public long getMmsIdHighWaterMark() {
+        return BuglePrefs.getApplicationPrefs().getLong(
+                BuglePrefsKeys.SYNC_MMS_ID_HIGH_WATER_MARK,
+                BuglePrefsKeys.SYNC_ID_HIGH_WATER_MARK_DEFAULT);
+    }
+
+    /**
+     * Called from data model thread when a sync starts with the highest telephony row ids at
+     * that point. Rows added later are picked up by the next sync.
+     */
+    public synchronized void beginHighWaterMarks(final long smsId, final long mmsId) {
+        mPendingSmsIdHighWaterMark = smsId;
+        mPendingMmsIdHighWaterMark = mmsId;
+    }
+
+    /**
+     * Called from data model thread once all messages are in sync to remember the row ids
+     * captured when the sync started
+     */
+    public synchronized void commitHighWaterMarks() {
+        if (mPendingSmsIdHighWaterMark >= 0 && mPendingMmsIdHighWaterMark >= 0) {
+            final BuglePrefs prefs = BuglePrefs.getApplicationPrefs();
+            prefs.putLong(BuglePrefsKeys.SYNC_SMS_ID_HIGH_WATER_MARK,
+                    mPendingSmsIdHighWaterMark);
+            prefs.putLong(BuglePrefsKeys.SYNC_MMS_ID_HIGH_WATER_MARK,
+                    mPendingMmsIdHighWaterMark);
+        }
+        mPendingSmsIdHighWaterMark = -1L;
+        mPendingMmsIdHighWaterMark = -1L;
     }
 
     private class TelephonyMessagesObserver extends ContentObserver {
@@ -375,6 +434,83 @@ public class SyncManager {
         return mThreadInfoCache;
     }
 
+    public SyncStats getSyncStats() {
+        return mSyncStats;
+    }
+
+    /**
+     * Throughput of the stages of the sync pipeline. The background stages (scanning the cursors
+     * and resolving MMS parts/senders) record from the background worker thread and the write
+     * stage records from the action thread, so all access is synchronized.
+     */
+    public static class SyncStats {
+        public static final int STAGE_SCAN = 0;
+        public static final int STAGE_RESOLVE = 1;
+        public static final int STAGE_WRITE = 2;
+        private static final String[] STAGE_NAMES = { "scan", "resolve", "write" };
+
+        // Weight of the most recent batch in the smoothed throughput
+        private static final double SMOOTHING_FACTOR = 0.5;
+
+        private final long[] mMessages = new long[STAGE_NAMES.length];
+        private final long[] mMillis = new long[STAGE_NAMES.length];
+        // Smoothed messages per ms for each stage, negative until the first sample
+        private final double[] mThroughput = new double[STAGE_NAMES.length];
+        private int mBatches;
+
+        SyncStats() {
+            reset();
+        }
+
+        /**
+         * Clear the stats when a new sync starts
+         */
+        public synchronized void reset() {
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                mMessages[stage] = 0;
+                mMillis[stage] = 0;
+                mThroughput[stage] = -1;
+            }
+            mBatches = 0;
+        }
+
+        /**
+         * Record the work done by one stage for one batch
+         * @param stage one of the STAGE_ constants
+         * @param messages number of messages handled
+         * @param millis time it took in ms
+         */
+        public synchronized void record(final int stage, final int messages, final long millis) {
+            mMessages[stage] += messages;
+            mMillis[stage] += millis;
+            if (stage == STAGE_WRITE) {
+                mBatches++;
+            }
+            if (messages > 0) {
+                final double throughput = (double) messages / (double) Math.max(1, millis);
+                mThroughput[stage] = mThroughput[stage] < 0 ? throughput :
+                        SMOOTHING_FACTOR * throughput + (1 - SMOOTHING_FACTOR) * mThroughput[stage];
+            }
+        }
+
+        /**
+         * @return smoothed throughput of a stage in messages per ms, or a negative value if no
+         *  batch has been timed in the current sync
+         */
+        public synchronized double getThroughput(final int stage) {
+            return mThroughput[stage];
+        }
+
+        public synchronized void dump(final PrintWriter writer) {
+            writer.println("Sync stats (" + mBatches + " batches):");
+            for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+                writer.println(String.format(Locale.US, "  %s: %d messages in %d ms (%.2f/ms)",
+                        STAGE_NAMES[stage], mMessages[stage], mMillis[stage],
+                        Math.max(0, mThroughput[stage])));
+            }
+        }
+    }
+
     public static class ThreadInfoCache {
         // Cache of thread->conversationId map
         private final LongSparseArray<String> mThreadToConversationId =
@@ -59,6 +59,34 @@ public abstract class Action implements Parcelable {
         return null;
     }
 
+    /**
+     * Actions with the same serialization key run on the action service one at a time, in the
+     * order they were started, while actions with different keys may run in parallel. The
+     * default null key is for actions that may touch any data: they wait for all the actions
+     * started before them and run alone.
+     * Applies to {@link #executeAction}, {@link #processBackgroundResponse} and
+     * {@link #processBackgroundFailure}.
+     */
+    protected String getSerializationKey() {
+        return null;
+    }
+
+    /**
+     * @return a serialization key for actions that only touch the given conversation, or null if
+     *         the conversation isn't known
+     */
+    protected static String getConversationSerializationKey(final String conversationId) {
+        return conversationId == null ? null : "conversation:" + conversationId;
+    }
+
+    /**
+     * @return the lane of the background worker that {@link #doBackgroundWork} runs in; work in
+     *         different lanes runs in parallel. The default null lane runs one action at a time.
+     */
+    protected String getBackgroundWorkLane() {
+        return null;
+    }
+
     /**
      * Queues up background work ie. {@link #doBackgroundWork} will be called on the
      * background worker thread.
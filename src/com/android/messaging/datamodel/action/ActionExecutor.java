@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.SystemClock;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Runs action service work on a few threads while keeping the ordering guarantees that actions
+ * had on the single IntentService thread:
+ * <ul>
+ * <li>work with the same serialization key runs one at a time, in the order it was submitted</li>
+ * <li>work with a null (global) key waits for all earlier work, and nothing submitted after it
+ *  starts until it is done</li>
+ * </ul>
+ * So an action on one conversation no longer waits behind a long running action on another.
+ */
+class ActionExecutor {
+    abstract static class Task {
+        final String key;
+        final long submitTimeMillis = SystemClock.elapsedRealtime();
+        long startTimeMillis;
+
+        /**
+         * @param key the serialization key, or null to run alone
+         */
+        Task(final String key) {
+            this.key = key;
+        }
+
+        abstract void run();
+
+        /**
+         * Called on the worker thread once the task has run
+         * @param idle whether there is no other work queued or running
+         */
+        abstract void onFinished(boolean idle);
+    }
+
+    private final Object mLock = new Object();
+    // Tasks in submission order, guarded by mLock
+    private final LinkedList<Task> mQueue = new LinkedList<Task>();
+    private final HashSet<String> mRunningKeys = new HashSet<String>();
+    private int mRunningCount;
+    private boolean mGlobalRunning;
+
+    ActionExecutor(final int threadCount) {
+        for (int i = 0; i < threadCount; i++) {
+            final Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "ActionService-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    void submit(final Task task) {
+        synchronized (mLock) {
+            mQueue.addLast(task);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return whether there is no work queued or running
+     */
+    boolean isIdle() {
+        synchronized (mLock) {
+            return mRunningCount == 0 && mQueue.isEmpty();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            final Task task;
+            try {
+                task = take();
+            } catch (final InterruptedException e) {
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                final boolean idle;
+                synchronized (mLock) {
+                    mRunningCount--;
+                    if (task.key == null) {
+                        mGlobalRunning = false;
+                    } else {
+                        mRunningKeys.remove(task.key);
+                    }
+                    idle = mRunningCount == 0 && mQueue.isEmpty();
+                    mLock.notifyAll();
+                }
+                task.onFinished(idle);
+            }
+        }
+    }
+
+    private Task take() throws InterruptedException {
+        synchronized (mLock) {
+            while (true) {
+                final Task task = pollLocked();
+                if (task != null) {
+                    task.startTimeMillis = SystemClock.elapsedRealtime();
+                    mRunningCount++;
+                    if (task.key == null) {
+                        mGlobalRunning = true;
+                    } else {
+                        mRunningKeys.add(task.key);
+                    }
+                    return task;
+                }
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * @return the first queued task that may start now, or null
+     */
+    private Task pollLocked() {
+        if (mGlobalRunning) {
+            return null;
+        }
+        // Keys of earlier tasks that are still queued; a later task with the same key must wait
+        HashSet<String> blockedKeys = null;
+        final Iterator<Task> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            final Task task = iterator.next();
+            if (task.key == null) {
+                // Global tasks are barriers: they start once everything before them is done
+                if (blockedKeys == null && mRunningCount == 0) {
+                    iterator.remove();
+                    return task;
+                }
+                return null;
+            }
+            if (!mRunningKeys.contains(task.key)
+                    && (blockedKeys == null || !blockedKeys.contains(task.key))) {
+                iterator.remove();
+                return task;
+            }
+            if (blockedKeys == null) {
+                blockedKeys = new HashSet<String>();
+            }
+            blockedKeys.add(task.key);
+        }
+        return null;
+    }
+}
@@ -26,8 +26,10 @@ import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.ThreadUtil;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 import java.util.TimeZone;
 
 /**
@@ -474,4 +476,43 @@ public class ActionMonitor {
             }
         }
     }
+
+    // Timings of action service work per action class and step: count, total and max time
+    // queued, total and max time running. Guarded by itself.
+    private static final SimpleArrayMap<String, long[]> sActionTimings =
+            new SimpleArrayMap<String, long[]>();
+
+    /**
+     * Records how long a step of an action waited for the action service and how long it ran
+     * @param step which of the action's methods ran, e.g. "executeAction"
+     */
+    static void recordActionTiming(final Action action, final String step,
+            final long queueMillis, final long runMillis) {
+        final String name = action.getClass().getSimpleName() + "#" + step;
+        synchronized (sActionTimings) {
+            long[] timings = sActionTimings.get(name);
+            if (timings == null) {
+                timings = new long[5];
+                sActionTimings.put(name, timings);
+            }
+            timings[0]++;
+            timings[1] += queueMillis;
+            timings[2] = Math.max(timings[2], queueMillis);
+            timings[3] += runMillis;
+            timings[4] = Math.max(timings[4], runMillis);
+        }
+    }
+
+    public static void dump(final PrintWriter writer) {
+        synchronized (sActionTimings) {
+            writer.println("Action timings:");
+            for (int i = 0; i < sActionTimings.size(); i++) {
+                final long[] timings = sActionTimings.valueAt(i);
+                writer.println(String.format(Locale.US,
+                        "  %s: %d runs, queued avg %d ms max %d ms, ran avg %d ms max %d ms",
+                        sActionTimings.keyAt(i), timings[0], timings[1] / timings[0],
+                        timings[2], timings[3] / timings[0], timings[4]));
+            }
+        }
+    }
 }
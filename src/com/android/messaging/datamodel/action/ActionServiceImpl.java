@@ -17,12 +17,13 @@
 package com.android.messaging.datamodel.action;
 
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.SystemClock;
 
 import com.android.messaging.Factory;
@@ -33,15 +34,24 @@ import com.android.messaging.util.WakeLockHelper;
 import com.google.common.annotations.VisibleForTesting;
 
 /**
- * ActionService used to perform background processing for data model
+ * ActionService used to perform background processing for data model.
+ *
+ * Intents are handled on the threads of an {@link ActionExecutor}: actions with different
+ * serialization keys (see {@link Action#getSerializationKey}) run in parallel, and actions with
+ * the same key, or with no key, keep the one at a time ordering of the single service thread
+ * this used to have.
  */
-public class ActionServiceImpl extends IntentService {
+public class ActionServiceImpl extends Service {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
     private static final boolean VERBOSE = false;
 
-    public ActionServiceImpl() {
-        super("ActionService");
-    }
+    // Number of actions that may run at once
+    private static final int EXECUTOR_THREAD_COUNT = 3;
+
+    private static ActionExecutor sExecutor;
+
+    // Start id of the latest intent, guarded by this
+    private int mLastStartId;
 
     /**
      * Start action by sending intent to the service
@@ -49,9 +59,7 @@ public class ActionServiceImpl extends IntentService {
      */
     protected static void startAction(final Action action) {
         final Intent intent = makeIntent(OP_START_ACTION);
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
+        putAction(intent, action);
         action.markStart();
         startServiceWithIntent(intent);
     }
@@ -65,9 +73,7 @@ public class ActionServiceImpl extends IntentService {
     protected static void scheduleAction(final Action action, final int requestCode,
             final long delayMs) {
         final Intent intent = PendingActionReceiver.makeIntent(OP_START_ACTION);
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
+        putAction(intent, action);
 
         PendingActionReceiver.scheduleAlarm(intent, requestCode, delayMs);
     }
@@ -81,9 +87,7 @@ public class ActionServiceImpl extends IntentService {
             final Bundle response) {
         final Intent intent = makeIntent(OP_RECEIVE_BACKGROUND_RESPONSE);
 
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
+        putAction(intent, action);
         intent.putExtra(EXTRA_WORKER_RESPONSE, response);
 
         startServiceWithIntent(intent);
@@ -97,9 +101,7 @@ public class ActionServiceImpl extends IntentService {
             final Exception exception) {
         final Intent intent = makeIntent(OP_RECEIVE_BACKGROUND_FAILURE);
 
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
+        putAction(intent, action);
         intent.putExtra(EXTRA_WORKER_EXCEPTION, exception);
 
         startServiceWithIntent(intent);
@@ -127,8 +129,22 @@ public class ActionServiceImpl extends IntentService {
     @VisibleForTesting
     protected static final String BUNDLE_ACTION = "bundle_action";
 
+    @VisibleForTesting
+    protected static final String EXTRA_SERIALIZATION_KEY = "serialization_key";
+
     private BackgroundWorker mBackgroundWorker;
 
+    /**
+     * Adds an action to an intent for the service. Its serialization key is added next to it so
+     * that the intent can be queued without unparcelling the action on the main thread.
+     */
+    private static void putAction(final Intent intent, final Action action) {
+        final Bundle actionBundle = new Bundle();
+        actionBundle.putParcelable(BUNDLE_ACTION, action);
+        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
+        intent.putExtra(EXTRA_SERIALIZATION_KEY, action.getSerializationKey());
+    }
+
     /**
      * Allocate an intent with a specific opcode.
      */
@@ -189,9 +205,7 @@ public class ActionServiceImpl extends IntentService {
     public static PendingIntent makeStartActionPendingIntent(final Context context,
             final Action action, final int requestCode, final boolean launchesAnActivity) {
         final Intent intent = PendingActionReceiver.makeIntent(OP_START_ACTION);
-        final Bundle actionBundle = new Bundle();
-        actionBundle.putParcelable(BUNDLE_ACTION, action);
-        intent.putExtra(EXTRA_ACTION_BUNDLE, actionBundle);
+        putAction(intent, action);
         if (launchesAnActivity) {
             intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
         }
@@ -215,6 +229,19 @@ public class ActionServiceImpl extends IntentService {
         DataModel.get().getConnectivityUtil().unregisterForSignalStrength();
     }
 
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
+
+    private static synchronized ActionExecutor getExecutor() {
+        // The executor outlives service instances so that its threads are created only once
+        if (sExecutor == null) {
+            sExecutor = new ActionExecutor(EXECUTOR_THREAD_COUNT);
+        }
+        return sExecutor;
+    }
+
     private static final String WAKELOCK_ID = "bugle_datamodel_service_wakelock";
     @VisibleForTesting
     static WakeLockHelper sWakeLock = new WakeLockHelper(WAKELOCK_ID);
@@ -248,35 +275,84 @@ public class ActionServiceImpl extends IntentService {
      * {@inheritDoc}
      */
     @Override
-    protected void onHandleIntent(final Intent intent) {
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
         if (intent == null) {
             // Shouldn't happen but sometimes does following another crash.
-            LogUtil.w(TAG, "ActionService.onHandleIntent: Called with null intent");
-            return;
+            LogUtil.w(TAG, "ActionService.onStartCommand: Called with null intent");
+            synchronized (this) {
+                mLastStartId = startId;
+            }
+            stopSelfIfIdle();
+            return START_NOT_STICKY;
         }
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
         sWakeLock.ensure(intent, opcode);
 
+        // The action is unparcelled on the worker thread, the key is all that's needed to queue.
+        // Submitted under the same lock as the idle check so that the service isn't stopped
+        // between the two.
+        synchronized (this) {
+            mLastStartId = startId;
+            submitIntent(intent, opcode);
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Queues the action of the intent on the executor
+     */
+    private void submitIntent(final Intent intent, final int opcode) {
+        getExecutor().submit(new ActionExecutor.Task(
+                intent.getStringExtra(EXTRA_SERIALIZATION_KEY)) {
+            private Action mAction;
+
+            @Override
+            void run() {
+                final Bundle actionBundle = intent.getBundleExtra(EXTRA_ACTION_BUNDLE);
+                actionBundle.setClassLoader(getClassLoader());
+                mAction = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
+                handleIntent(intent, opcode, mAction);
+            }
+
+            @Override
+            void onFinished(final boolean idle) {
+                if (mAction != null) {
+                    ActionMonitor.recordActionTiming(mAction, getStepName(opcode),
+                            startTimeMillis - submitTimeMillis,
+                            SystemClock.elapsedRealtime() - startTimeMillis);
+                }
+                if (idle) {
+                    stopSelfIfIdle();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the service if no work is queued, unless it has been started again since. The check
+     * and the stop happen under the lock onStartCommand queues work under.
+     */
+    private synchronized void stopSelfIfIdle() {
+        if (getExecutor().isIdle()) {
+            stopSelf(mLastStartId);
+        }
+    }
+
+    private void handleIntent(final Intent intent, final int opcode, final Action action) {
         try {
-            Action action;
-            final Bundle actionBundle = intent.getBundleExtra(EXTRA_ACTION_BUNDLE);
-            actionBundle.setClassLoader(getClassLoader());
             switch(opcode) {
                 case OP_START_ACTION: {
-                    action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
                     executeAction(action);
                     break;
                 }
 
                 case OP_RECEIVE_BACKGROUND_RESPONSE: {
-                    action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
                     final Bundle response = intent.getBundleExtra(EXTRA_WORKER_RESPONSE);
                     processBackgroundResponse(action, response);
                     break;
                 }
 
                 case OP_RECEIVE_BACKGROUND_FAILURE: {
-                    action = (Action) actionBundle.getParcelable(BUNDLE_ACTION);
                     processBackgroundFailure(action);
                     break;
                 }
@@ -292,9 +368,22 @@ public class ActionServiceImpl extends IntentService {
         }
     }
 
+    private static String getStepName(final int opcode) {
+        switch (opcode) {
+            case OP_START_ACTION:
+                return "executeAction";
+            case OP_RECEIVE_BACKGROUND_RESPONSE:
+                return "processBackgroundResponse";
+            case OP_RECEIVE_BACKGROUND_FAILURE:
+                return "processBackgroundFailure";
+            default:
+                return "unknown";
+        }
+    }
+
     private static final long EXECUTION_TIME_WARN_LIMIT_MS = 1000; // 1 second
     /**
-     * Local execution of action on ActionService thread
+     * Local execution of action on an ActionService thread
      */
     private void executeAction(final Action action) {
         action.markBeginExecute();
@@ -310,7 +399,7 @@ public class ActionServiceImpl extends IntentService {
     }
 
     /**
-     * Process response on ActionService thread
+     * Process response on an ActionService thread
      */
     private void processBackgroundResponse(final Action action, final Bundle response) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundResponse");
@@ -322,7 +411,7 @@ public class ActionServiceImpl extends IntentService {
     }
 
     /**
-     * Process failure on ActionService thread
+     * Process failure on an ActionService thread
      */
     private void processBackgroundFailure(final Action action) {
         final LoggingTimer timer = createLoggingTimer(action, "#processBackgroundFailure");
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.SystemClock;
+import android.support.v4.util.SimpleArrayMap;
+
+import java.io.PrintWriter;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules background work of actions in lanes. Each lane runs its work in submission order
+ * with a bounded number of items in flight, and lanes run independently of each other, so that
+ * e.g. sending SMS on one subscription doesn't wait for an MMS download on another one.
+ * Sms send lanes run one item at a time: sends are queued one message at a time anyway, and
+ * sending in parallel could deliver messages out of order.
+ *
+ * Lanes are named by {@link Action#getBackgroundWorkLane}; the part of the name before the first
+ * ':' selects the concurrency of the lane. Work that doesn't pick a lane goes to
+ * {@link #LANE_DEFAULT}, which runs one item at a time like the single worker thread did.
+ * Batches of actions are unparcelled in {@link #LANE_DISPATCH} before being queued to their
+ * lanes, so that they are queued in the order they arrived.
+ */
+class BackgroundWorkScheduler {
+    static final String LANE_DEFAULT = "default";
+    static final String LANE_SMS_SEND = "sms_send";
+    static final String LANE_MMS = "mms";
+    static final String LANE_MEDIA = "media";
+    static final String LANE_DISPATCH = "dispatch";
+
+    // Mms transfers go through one data connection per subscription
+    private static final int MMS_CONCURRENCY = 1;
+    private static final int MEDIA_CONCURRENCY = 2;
+    private static final int DEFAULT_CONCURRENCY = 1;
+
+    // Keep idle threads around briefly so bursts of work don't create new ones
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    abstract static class Work implements Runnable {
+        final long submitTimeMillis = SystemClock.elapsedRealtime();
+
+        /**
+         * Called on the worker thread after the work has run
+         * @param idle whether there is no other work queued or running in any lane
+         */
+        abstract void onFinished(boolean idle);
+    }
+
+    private static class Lane {
+        final String name;
+        final int concurrency;
+        final LinkedList<Work> queue = new LinkedList<Work>();
+        int running;
+
+        // Stats
+        int maxDepth;
+        long completedCount;
+        long totalQueueMillis;
+        long maxQueueMillis;
+        long totalRunMillis;
+        long maxRunMillis;
+
+        Lane(final String name, final int concurrency) {
+            this.name = name;
+            this.concurrency = concurrency;
+        }
+
+        int getDepth() {
+            return queue.size() + running;
+        }
+    }
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final SimpleArrayMap<String, Lane> mLanes = new SimpleArrayMap<String, Lane>();
+    private int mPendingCount;
+
+    private final Executor mExecutor;
+
+    BackgroundWorkScheduler() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        // Concurrency is bounded by the lanes, so the pool itself doesn't need to be
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "BackgroundWorker-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * @return the name of the lane for sending sms on the given subscription
+     */
+    static String getSmsSendLane(final int subId) {
+        return LANE_SMS_SEND + ":" + subId;
+    }
+
+    /**
+     * @return the name of the lane for mms transfers on the given subscription
+     */
+    static String getMmsLane(final int subId) {
+        return LANE_MMS + ":" + subId;
+    }
+
+    /**
+     * Queues work to the given lane, or to the default lane if laneName is null
+     */
+    void submit(final String laneName, final Work work) {
+        final Lane lane;
+        synchronized (mLock) {
+            lane = getLaneLocked(laneName == null ? LANE_DEFAULT : laneName);
+            lane.queue.addLast(work);
+            lane.maxDepth = Math.max(lane.maxDepth, lane.getDepth());
+            mPendingCount++;
+        }
+        startNext(lane);
+    }
+
+    /**
+     * @return whether there is no work queued or running in any lane
+     */
+    boolean isIdle() {
+        synchronized (mLock) {
+            return mPendingCount == 0;
+        }
+    }
+
+    private Lane getLaneLocked(final String name) {
+        Lane lane = mLanes.get(name);
+        if (lane == null) {
+            lane = new Lane(name, getConcurrency(name));
+            mLanes.put(name, lane);
+        }
+        return lane;
+    }
+
+    private static int getConcurrency(final String laneName) {
+        final int separator = laneName.indexOf(':');
+        final String type = separator < 0 ? laneName : laneName.substring(0, separator);
+        if (LANE_MMS.equals(type)) {
+            return MMS_CONCURRENCY;
+        } else if (LANE_MEDIA.equals(type)) {
+            return MEDIA_CONCURRENCY;
+        }
+        return DEFAULT_CONCURRENCY;
+    }
+
+    /**
+     * Starts as much queued work of the lane as its concurrency allows
+     */
+    private void startNext(final Lane lane) {
+        while (true) {
+            final Work work;
+            synchronized (mLock) {
+                if (lane.running >= lane.concurrency || lane.queue.isEmpty()) {
+                    return;
+                }
+                work = lane.queue.removeFirst();
+                lane.running++;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runWork(lane, work);
+                }
+            });
+        }
+    }
+
+    private void runWork(final Lane lane, final Work work) {
+        final long startTimeMillis = SystemClock.elapsedRealtime();
+        try {
+            work.run();
+        } finally {
+            final long queueMillis = startTimeMillis - work.submitTimeMillis;
+            final long runMillis = SystemClock.elapsedRealtime() - startTimeMillis;
+            final boolean idle;
+            synchronized (mLock) {
+                lane.running--;
+                lane.completedCount++;
+                lane.totalQueueMillis += queueMillis;
+                lane.maxQueueMillis = Math.max(lane.maxQueueMillis, queueMillis);
+                lane.totalRunMillis += runMillis;
+                lane.maxRunMillis = Math.max(lane.maxRunMillis, runMillis);
+                mPendingCount--;
+                idle = mPendingCount == 0;
+            }
+            startNext(lane);
+            work.onFinished(idle);
+        }
+    }
+
+    /**
+     * Dumps the current depth and the latency of each lane
+     */
+    void dump(final PrintWriter writer) {
+        writer.println("BackgroundWorkScheduler:");
+        synchronized (mLock) {
+            for (int i = 0; i < mLanes.size(); i++) {
+                final Lane lane = mLanes.valueAt(i);
+                final long count = Math.max(1, lane.completedCount);
+                writer.println(String.format(Locale.US,
+                        "  %s: depth=%d running=%d maxDepth=%d completed=%d"
+                        + " queueMs(avg/max)=%d/%d runMs(avg/max)=%d/%d",
+                        lane.name, lane.getDepth(), lane.running, lane.maxDepth,
+                        lane.completedCount, lane.totalQueueMillis / count, lane.maxQueueMillis,
+                        lane.totalRunMillis / count, lane.maxRunMillis));
+            }
+        }
+    }
+}
@@ -16,10 +16,11 @@
 
 package com.android.messaging.datamodel.action;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.IBinder;
 
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DataModel;
@@ -30,14 +31,21 @@ import com.android.messaging.util.LoggingTimer;
 import com.android.messaging.util.WakeLockHelper;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Background worker service is an initial example of a background work queue handler
  * Used to actually "send" messages which may take some time and should not block ActionService
  * or UI
+ *
+ * Work is queued in batches (one intent and wakelock per batch) and run by a
+ * {@link BackgroundWorkScheduler} in the lane each action picks, so independent work such as
+ * sends on different subscriptions runs in parallel.
  */
-public class BackgroundWorkerService extends IntentService {
+public class BackgroundWorkerService extends Service {
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
     private static final boolean VERBOSE = false;
 
@@ -45,10 +53,14 @@ public class BackgroundWorkerService extends IntentService {
     @VisibleForTesting
     static WakeLockHelper sWakeLock = new WakeLockHelper(WAKELOCK_ID);
 
+    private static BackgroundWorkScheduler sScheduler;
+
     private final ActionService mHost;
 
+    // Start id of the latest intent, guarded by this
+    private int mLastStartId;
+
     public BackgroundWorkerService() {
-        super("BackgroundWorker");
         mHost = DataModel.get().getActionService();
     }
 
@@ -56,9 +68,25 @@ public class BackgroundWorkerService extends IntentService {
      * Queue a list of requests from action service to this worker
      */
     public static void queueBackgroundWork(final List<Action> actions) {
-        for (final Action action : actions) {
-            startServiceWithAction(action, 0);
+        if (actions.isEmpty()) {
+            return;
         }
+        startServiceWithActions(new ArrayList<Action>(actions), 0);
+    }
+
+    /**
+     * Dumps the state of the background work lanes
+     */
+    public static void dump(final PrintWriter writer) {
+        getScheduler().dump(writer);
+    }
+
+    private static synchronized BackgroundWorkScheduler getScheduler() {
+        // The scheduler outlives service instances so that its threads can be reused
+        if (sScheduler == null) {
+            sScheduler = new BackgroundWorkScheduler();
+        }
+        return sScheduler;
     }
 
     // ops
@@ -69,17 +97,17 @@ public class BackgroundWorkerService extends IntentService {
     @VisibleForTesting
     protected static final String EXTRA_OP_CODE = "op";
     @VisibleForTesting
-    protected static final String EXTRA_ACTION = "action";
+    protected static final String EXTRA_ACTIONS = "actions";
     @VisibleForTesting
     protected static final String EXTRA_ATTEMPT = "retry_attempt";
 
     /**
-     * Queue action intent to the BackgroundWorkerService after acquiring wake lock
+     * Queue a batch of actions to the BackgroundWorkerService after acquiring wake lock
      */
-    private static void startServiceWithAction(final Action action,
+    private static void startServiceWithActions(final ArrayList<Action> actions,
             final int retryCount) {
         final Intent intent = new Intent();
-        intent.putExtra(EXTRA_ACTION, action);
+        intent.putParcelableArrayListExtra(EXTRA_ACTIONS, actions);
         intent.putExtra(EXTRA_ATTEMPT, retryCount);
         startServiceWithIntent(OP_PROCESS_REQUEST, intent);
     }
@@ -106,34 +134,106 @@ public class BackgroundWorkerService extends IntentService {
     }
 
     @Override
-    protected void onHandleIntent(final Intent intent) {
+    public IBinder onBind(final Intent intent) {
+        return null;
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
         if (intent == null) {
             // Shouldn't happen but sometimes does following another crash.
-            LogUtil.w(TAG, "BackgroundWorkerService.onHandleIntent: Called with null intent");
-            return;
+            LogUtil.w(TAG, "BackgroundWorkerService.onStartCommand: Called with null intent");
+            synchronized (this) {
+                mLastStartId = startId;
+            }
+            stopSelfIfIdle();
+            return START_NOT_STICKY;
         }
         final int opcode = intent.getIntExtra(EXTRA_OP_CODE, 0);
         sWakeLock.ensure(intent, opcode);
 
-        try {
-            switch(opcode) {
-                case OP_PROCESS_REQUEST: {
-                    final Action action = intent.getParcelableExtra(EXTRA_ACTION);
-                    final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
+        switch(opcode) {
+            case OP_PROCESS_REQUEST: {
+                final int attempt = intent.getIntExtra(EXTRA_ATTEMPT, -1);
+                // Unparcelling the actions can be expensive, e.g. a send carries its whole
+                // message, so it's done on a worker thread. Submitted under the same lock as the
+                // idle check so that the service isn't stopped between the two.
+                synchronized (this) {
+                    mLastStartId = startId;
+                    getScheduler().submit(BackgroundWorkScheduler.LANE_DISPATCH,
+                            new BackgroundWorkScheduler.Work() {
+                        @Override
+                        public void run() {
+                            if (!queueActions(intent, opcode, attempt)) {
+                                sWakeLock.release(intent, opcode);
+                            }
+                        }
+
+                        @Override
+                        void onFinished(final boolean idle) {
+                            if (idle) {
+                                stopSelfIfIdle();
+                            }
+                        }
+                    });
+                }
+                break;
+            }
+
+            default:
+                sWakeLock.release(intent, opcode);
+                throw new RuntimeException("Unrecognized opcode in BackgroundWorkerService");
+        }
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Unparcels the actions of an intent and queues each of them to its lane. The wakelock of
+     * the intent is released once they are all done.
+     * @return false if the intent had no actions to queue
+     */
+    private boolean queueActions(final Intent intent, final int opcode, final int attempt) {
+        intent.setExtrasClassLoader(getClassLoader());
+        final ArrayList<Action> actions = intent.getParcelableArrayListExtra(EXTRA_ACTIONS);
+        if (actions == null || actions.isEmpty()) {
+            LogUtil.w(TAG, "BackgroundWorkerService: intent without actions");
+            return false;
+        }
+        final AtomicInteger remaining = new AtomicInteger(actions.size());
+        for (final Action action : actions) {
+            getScheduler().submit(action.getBackgroundWorkLane(),
+                    new BackgroundWorkScheduler.Work() {
+                @Override
+                public void run() {
                     doBackgroundWork(action, attempt);
-                    break;
                 }
 
-                default:
-                    throw new RuntimeException("Unrecognized opcode in BackgroundWorkerService");
-            }
-        } finally {
-            sWakeLock.release(intent, opcode);
+                @Override
+                void onFinished(final boolean idle) {
+                    if (remaining.decrementAndGet() == 0) {
+                        sWakeLock.release(intent, opcode);
+                    }
+                    if (idle) {
+                        stopSelfIfIdle();
+                    }
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * Stops the service if no work is queued, unless it has been started again since. The check
+     * and the stop happen under the lock onStartCommand queues work under.
+     */
+    private synchronized void stopSelfIfIdle() {
+        if (getScheduler().isIdle()) {
+            stopSelf(mLastStartId);
         }
     }
 
     /**
-     * Local execution of background work for action on ActionService thread
+     * Local execution of background work for action on a BackgroundWorker thread
      */
     private void doBackgroundWork(final Action action, final int attempt) {
         action.markBackgroundWorkStarting();
@@ -158,7 +258,9 @@ public class BackgroundWorkerService extends IntentService {
             }
             if (retry) {
                 action.markBackgroundWorkQueued();
-                startServiceWithAction(action, attempt + 1);
+                final ArrayList<Action> actions = new ArrayList<Action>(1);
+                actions.add(action);
+                startServiceWithActions(actions, attempt + 1);
             } else {
                 action.markBackgroundCompletionQueued();
                 mHost.handleFailureFromBackgroundWorker(action, exception);
@@ -175,6 +175,11 @@ public class DeleteConversationAction extends Action implements Parcelable {
         }
     }
 
+    @Override
+    protected String getSerializationKey() {
+        return getConversationSerializationKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         requestBackgroundWork();
@@ -226,6 +226,11 @@ public class DownloadMmsAction extends Action implements Parcelable {
         }
     }
 
+    @Override
+    protected String getBackgroundWorkLane() {
+        return BackgroundWorkScheduler.getMmsLane(actionParameters.getInt(KEY_SUB_ID));
+    }
+
     @Override
     protected Bundle doBackgroundWork() {
         final Context context = Factory.get().getApplicationContext();
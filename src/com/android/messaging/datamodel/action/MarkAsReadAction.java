@@ -16,14 +16,11 @@
 
 package com.android.messaging.datamodel.action;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.android.messaging.datamodel.BugleDatabaseOperations;
 import com.android.messaging.datamodel.DataModel;
-import com.android.messaging.datamodel.DatabaseHelper;
-import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
 
@@ -65,11 +62,18 @@ public class MarkAsReadAction extends Action implements Parcelable {
     }
 
 
+    @Override
+    protected String getSerializationKey() {
+        if (actionParameters.getBoolean(KEY_IS_LIST)) {
+            return null;
+        }
+        return getConversationSerializationKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final boolean isList = actionParameters.getBoolean(KEY_IS_LIST);
         final DatabaseWrapper db = DataModel.get().getDatabase();
-        final ContentValues values = new ContentValues();
         int count = 0;
 
         // TODO: Consider doing this in background service to avoid delaying other actions
@@ -80,31 +84,18 @@ public class MarkAsReadAction extends Action implements Parcelable {
             if (isList) {
                 final ArrayList<String> conversationIds = actionParameters.getStringArrayList(KEY_CONVERSATION_ID);
                 for (String conversationId : conversationIds) {
-
-                    values.put(MessageColumns.CONVERSATION_ID, conversationId);
-                    values.put(MessageColumns.READ, 1);
-                    values.put(MessageColumns.SEEN, 1);     // if they read it, they saw it
-
-                    count = db.update(DatabaseHelper.MESSAGES_TABLE, values,
-                            "(" + MessageColumns.READ + " !=1 OR " +
-                                    MessageColumns.SEEN + " !=1 ) AND " +
-                                    MessageColumns.CONVERSATION_ID + "=?",
-                            new String[]{conversationId});
+                    // if they read it, they saw it
+                    count = BugleDatabaseOperations.markMessagesAsReadInTransaction(db,
+                            conversationId);
                 }
                 if (count > 0) {
                     MessagingContentProvider.notifyConversationListChanged();
                 }
             } else {
                 final String conversationId = actionParameters.getString(KEY_CONVERSATION_ID);
-                values.put(MessageColumns.CONVERSATION_ID, conversationId);
-                values.put(MessageColumns.READ, 1);
-                values.put(MessageColumns.SEEN, 1);     // if they read it, they saw it
-
-                count = db.update(DatabaseHelper.MESSAGES_TABLE, values,
-                        "(" + MessageColumns.READ + " !=1 OR " +
-                                MessageColumns.SEEN + " !=1 ) AND " +
-                                MessageColumns.CONVERSATION_ID + "=?",
-                        new String[]{conversationId});
+                // if they read it, they saw it
+                count = BugleDatabaseOperations.markMessagesAsReadInTransaction(db,
+                        conversationId);
 
                 BugleDatabaseOperations.updateConversationListView(db,conversationId);
                 if (count > 0) {
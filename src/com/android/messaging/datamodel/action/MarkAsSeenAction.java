@@ -16,15 +16,13 @@
 
 package com.android.messaging.datamodel.action;
 
-import android.content.ContentValues;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import com.android.messaging.datamodel.BugleDatabaseOperations;
 import com.android.messaging.datamodel.BugleNotifications;
 import com.android.messaging.datamodel.DataModel;
-import com.android.messaging.datamodel.DatabaseHelper;
-import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.util.LogUtil;
@@ -61,6 +59,11 @@ public class MarkAsSeenAction extends Action implements Parcelable {
         actionParameters.putString(KEY_CONVERSATION_ID, conversationId);
     }
 
+    @Override
+    protected String getSerializationKey() {
+        return getConversationSerializationKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final String conversationId =
@@ -76,20 +79,15 @@ public class MarkAsSeenAction extends Action implements Parcelable {
         db.beginTransaction();
 
         try {
-            final ContentValues values = new ContentValues();
-            values.put(MessageColumns.SEEN, 1);
-
             if (hasSpecificConversation) {
-                final int count = db.update(DatabaseHelper.MESSAGES_TABLE, values,
-                        MessageColumns.SEEN + " != 1 AND " +
-                                MessageColumns.CONVERSATION_ID + "=?",
-                        new String[] { conversationId });
+                final int count = BugleDatabaseOperations.markMessagesAsSeenInTransaction(db,
+                        conversationId);
                 if (count > 0) {
                     MessagingContentProvider.notifyMessagesChanged(conversationId);
                 }
             } else {
-                db.update(DatabaseHelper.MESSAGES_TABLE, values,
-                        MessageColumns.SEEN + " != 1", null/*selectionArgs*/);
+                BugleDatabaseOperations.markMessagesAsSeenInTransaction(db,
+                        null /* conversationId */);
             }
 
             db.setTransactionSuccessful();
@@ -68,6 +68,14 @@ public class MarkAsUnreadAction extends Action implements Parcelable {
         actionParameters.putBoolean(KEY_IS_LIST, true);
     }
 
+    @Override
+    protected String getSerializationKey() {
+        if (actionParameters.getBoolean(KEY_IS_LIST)) {
+            return null;
+        }
+        return getConversationSerializationKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final boolean isList = actionParameters.getBoolean(KEY_IS_LIST);
@@ -49,7 +49,6 @@ import com.android.messaging.util.LogUtil;
 import com.google.common.io.Files;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.List;
 
@@ -205,6 +204,17 @@ public class ProcessDownloadedMmsAction extends Action {
         return null;
     }
 
+    @Override
+    protected String getBackgroundWorkLane() {
+        if (actionParameters.getBoolean(KEY_SEND_DEFERRED_RESP_STATUS, false)) {
+            // Only sends a response to the mmsc
+            return BackgroundWorkScheduler.getMmsLane(
+                    actionParameters.getInt(KEY_SUB_ID, ParticipantData.DEFAULT_SELF_SUB_ID));
+        }
+        // Persists the downloaded pdu and its parts
+        return BackgroundWorkScheduler.LANE_MEDIA;
+    }
+
     @Override
     protected Bundle doBackgroundWork() throws DataModelException {
         final Context context = Factory.get().getApplicationContext();
@@ -243,31 +253,18 @@ public class ProcessDownloadedMmsAction extends Action {
             if (resultCode == Activity.RESULT_OK) {
                 final Uri contentUri = actionParameters.getParcelable(KEY_CONTENT_URI);
                 final File downloadedFile = MmsFileProvider.getFile(contentUri);
-                byte[] downloadedData = null;
                 try {
-                    downloadedData = Files.toByteArray(downloadedFile);
-                } catch (final FileNotFoundException e) {
-                    LogUtil.e(TAG, "ProcessDownloadedMmsAction: MMS download file not found: "
-                            + downloadedFile.getAbsolutePath());
-                } catch (final IOException e) {
-                    LogUtil.e(TAG, "ProcessDownloadedMmsAction: Error reading MMS download file: "
-                            + downloadedFile.getAbsolutePath(), e);
-                }
-
-                // Can delete the temp file now
-                if (downloadedFile.exists()) {
-                    downloadedFile.delete();
-                    if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
-                        LogUtil.d(TAG, "ProcessDownloadedMmsAction: Deleted temp file with "
-                                + "downloaded MMS pdu: " + downloadedFile.getAbsolutePath());
-                    }
-                }
-
-                if (downloadedData != null) {
-                    final RetrieveConf retrieveConf =
-                            MmsSender.parseRetrieveConf(downloadedData, subId);
-                    if (MmsUtils.isDumpMmsEnabled()) {
-                        MmsUtils.dumpPdu(downloadedData, retrieveConf);
+                    // Parse straight from the file, so large attachments are copied from it into
+                    // telephony instead of being held in memory
+                    RetrieveConf retrieveConf = null;
+                    if (downloadedFile.exists()) {
+                        retrieveConf = MmsSender.parseRetrieveConf(downloadedFile, subId);
+                        if (MmsUtils.isDumpMmsEnabled()) {
+                            dumpDownloadedPdu(downloadedFile, retrieveConf);
+                        }
+                    } else {
+                        LogUtil.e(TAG, "ProcessDownloadedMmsAction: MMS download file not found: "
+                                + downloadedFile.getAbsolutePath());
                     }
                     if (retrieveConf != null) {
                         // Insert the downloaded MMS into telephony
@@ -293,12 +290,18 @@ public class ProcessDownloadedMmsAction extends Action {
                         rawStatus = result.rawStatus;
                         mmsUri = result.uri;
                     } else {
-                        // Invalid response PDU
+                        // Missing file or invalid response PDU
                         status = MmsUtils.MMS_REQUEST_MANUAL_RETRY;
                     }
-                } else {
-                    // Failed to read download file
-                    status = MmsUtils.MMS_REQUEST_MANUAL_RETRY;
+                } finally {
+                    // Can delete the temp file now that the parts read from it are persisted
+                    if (downloadedFile.exists()) {
+                        downloadedFile.delete();
+                        if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                            LogUtil.d(TAG, "ProcessDownloadedMmsAction: Deleted temp file with "
+                                    + "downloaded MMS pdu: " + downloadedFile.getAbsolutePath());
+                        }
+                    }
                 }
             } else {
                 LogUtil.w(TAG, "ProcessDownloadedMmsAction: Platform returned error resultCode: "
@@ -321,6 +324,16 @@ public class ProcessDownloadedMmsAction extends Action {
         return response;
     }
 
+    private static void dumpDownloadedPdu(final File downloadedFile,
+            final RetrieveConf retrieveConf) {
+        try {
+            MmsUtils.dumpPdu(Files.toByteArray(downloadedFile), retrieveConf);
+        } catch (final IOException e) {
+            LogUtil.e(TAG, "ProcessDownloadedMmsAction: Error reading MMS download file: "
+                    + downloadedFile.getAbsolutePath(), e);
+        }
+    }
+
     @Override
     protected Object processBackgroundResponse(final Bundle response) {
         if (response == null) {
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.android.messaging.datamodel.DataModel;
+import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.DatabaseWrapper;
+import com.android.messaging.datamodel.MessagingContentProvider;
+import com.android.messaging.util.BuglePrefs;
+import com.android.messaging.util.BuglePrefsKeys;
+import com.android.messaging.util.LogUtil;
+
+/**
+ * Action used to repopulate the message full-text search index from the parts table. This is
+ * run once after upgrading a database which predates the index, and can be forced from the
+ * debug menu.
+ */
+public class RebuildSearchIndexAction extends Action implements Parcelable {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static final String KEY_FORCE = "force";
+
+    /**
+     * Rebuild the search index if a database upgrade left it unpopulated
+     */
+    public static void rebuildSearchIndexIfNeeded() {
+        final RebuildSearchIndexAction action = new RebuildSearchIndexAction(false /* force */);
+        action.start();
+    }
+
+    /**
+     * Unconditionally rebuild the search index
+     */
+    public static void rebuildSearchIndex() {
+        final RebuildSearchIndexAction action = new RebuildSearchIndexAction(true /* force */);
+        action.start();
+    }
+
+    private RebuildSearchIndexAction(final boolean force) {
+        actionParameters.putBoolean(KEY_FORCE, force);
+    }
+
+    @Override
+    protected Object executeAction() {
+        // Open the database first so that any pending upgrade has already run
+        final DatabaseWrapper db = DataModel.get().getDatabase();
+        final BuglePrefs prefs = BuglePrefs.getApplicationPrefs();
+        final boolean pending = prefs.getBoolean(BuglePrefsKeys.SEARCH_INDEX_REBUILD_PENDING,
+                BuglePrefsKeys.SEARCH_INDEX_REBUILD_PENDING_DEFAULT);
+        if (!pending && !actionParameters.getBoolean(KEY_FORCE)) {
+            return null;
+        }
+
+        final long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            DatabaseHelper.rebuildSearchIndex(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        prefs.putBoolean(BuglePrefsKeys.SEARCH_INDEX_REBUILD_PENDING, false);
+
+        LogUtil.i(TAG, "RebuildSearchIndexAction: rebuilt search index in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        MessagingContentProvider.notifyPartsChanged();
+        return null;
+    }
+
+    private RebuildSearchIndexAction(final Parcel in) {
+        super(in);
+    }
+
+    public static final Parcelable.Creator<RebuildSearchIndexAction> CREATOR
+            = new Parcelable.Creator<RebuildSearchIndexAction>() {
+        @Override
+        public RebuildSearchIndexAction createFromParcel(final Parcel in) {
+            return new RebuildSearchIndexAction(in);
+        }
+
+        @Override
+        public RebuildSearchIndexAction[] newArray(final int size) {
+            return new RebuildSearchIndexAction[size];
+        }
+    };
+
+    @Override
+    public void writeToParcel(final Parcel parcel, final int flags) {
+        writeActionToParcel(parcel, flags);
+    }
+}
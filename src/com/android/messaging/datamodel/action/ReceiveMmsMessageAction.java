@@ -157,6 +157,12 @@ public class ReceiveMmsMessageAction extends Action implements Parcelable {
         return message;
     }
 
+    @Override
+    protected String getBackgroundWorkLane() {
+        return BackgroundWorkScheduler.getMmsLane(
+                actionParameters.getInt(KEY_SUB_ID, ParticipantData.DEFAULT_SELF_SUB_ID));
+    }
+
     @Override
     protected Bundle doBackgroundWork() throws DataModelException {
         final Context context = Factory.get().getApplicationContext();
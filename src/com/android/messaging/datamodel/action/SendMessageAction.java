@@ -177,6 +177,19 @@ public class SendMessageAction extends Action implements Parcelable {
         return null;
     }
 
+    /**
+     * Sends run in the lane of their subscription, so sends on different SIMs don't wait for
+     * each other
+     */
+    @Override
+    protected String getBackgroundWorkLane() {
+        final MessageData message = actionParameters.getParcelable(KEY_MESSAGE);
+        final int subId = actionParameters.getInt(KEY_SUB_ID, ParticipantData.DEFAULT_SELF_SUB_ID);
+        return message.getProtocol() == MessageData.PROTOCOL_SMS
+                ? BackgroundWorkScheduler.getSmsSendLane(subId)
+                : BackgroundWorkScheduler.getMmsLane(subId);
+    }
+
     /**
      * Send message on background worker thread
      */
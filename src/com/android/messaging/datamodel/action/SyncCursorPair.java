@@ -19,6 +19,7 @@ package com.android.messaging.datamodel.action;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
+import android.provider.BaseColumns;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.Sms;
 import android.support.v4.util.LongSparseArray;
@@ -40,6 +41,7 @@ import com.android.messaging.sms.DatabaseMessages.SmsMessage;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
@@ -137,6 +139,299 @@ class SyncCursorPair {
                 null, mRemoteMmsSelection, null);
     }
 
+    /**
+     * Compact summary of the messages in a sync window: the number of messages, the sum of their
+     * telephony row ids and the sum of their timestamps in millis. All are additive, so the
+     * fingerprint of one half of a window can be derived from the whole and the other half.
+     *
+     * The timestamps catch a telephony row id that was deleted and reused within a window, which
+     * leaves the count and the id sum unchanged. What still goes unnoticed is a message replaced
+     * by one with the same id and timestamp, or changes whose ids and timestamps happen to cancel
+     * out within one window; those are left to the next full sync.
+     */
+    static final class Fingerprint {
+        final long mCount;
+        final long mIdSum;
+        final long mTimestampSum;
+
+        Fingerprint(final long count, final long idSum, final long timestampSum) {
+            mCount = count;
+            mIdSum = idSum;
+            mTimestampSum = timestampSum;
+        }
+
+        Fingerprint plus(final Fingerprint other) {
+            return new Fingerprint(mCount + other.mCount, mIdSum + other.mIdSum,
+                    mTimestampSum + other.mTimestampSum);
+        }
+
+        Fingerprint minus(final Fingerprint other) {
+            return new Fingerprint(mCount - other.mCount, mIdSum - other.mIdSum,
+                    mTimestampSum - other.mTimestampSum);
+        }
+
+        boolean matches(final Fingerprint other) {
+            return mCount == other.mCount && mIdSum == other.mIdSum
+                    && mTimestampSum == other.mTimestampSum;
+        }
+
+        @Override
+        public String toString() {
+            return mCount + "/" + mIdSum + "/" + mTimestampSum;
+        }
+    }
+
+    /**
+     * Reads the fingerprints of sync windows for {@link #findNewestChangedWindow}
+     */
+    interface FingerprintSource {
+        /**
+         * @return fingerprint of the local messages from lowerBound (inclusive) to upperBound
+         *  (exclusive); bounds below zero are not applied
+         */
+        Fingerprint getLocalFingerprint(long lowerBound, long upperBound);
+
+        /**
+         * @return fingerprint of the telephony messages in the same window
+         */
+        Fingerprint getRemoteFingerprint(long lowerBound, long upperBound);
+
+        /**
+         * @return timestamp (rounded down to a second) of the oldest local or remote message
+         */
+        long getOldestTimestamp();
+    }
+
+    /**
+     * Reads fingerprints from the local database and the telephony provider
+     */
+    private static class DatabaseFingerprintSource implements FingerprintSource {
+        private final DatabaseWrapper mDb;
+
+        DatabaseFingerprintSource(final DatabaseWrapper db) {
+            mDb = db;
+        }
+
+        @Override
+        public Fingerprint getLocalFingerprint(final long lowerBound, final long upperBound) {
+            return new SyncCursorPair(lowerBound, upperBound).getLocalFingerprint(mDb);
+        }
+
+        @Override
+        public Fingerprint getRemoteFingerprint(final long lowerBound, final long upperBound) {
+            return new SyncCursorPair(lowerBound, upperBound).getRemoteFingerprint();
+        }
+
+        @Override
+        public long getOldestTimestamp() {
+            return SyncCursorPair.getOldestTimestamp(mDb);
+        }
+    }
+
+    /**
+     * @return fingerprint of the local messages in the sync window
+     */
+    Fingerprint getLocalFingerprint(final DatabaseWrapper db) {
+        final Cursor cursor = db.query(
+                DatabaseHelper.MESSAGES_TABLE,
+                LOCAL_FINGERPRINT_PROJECTION,
+                mLocalSelection,
+                null/*selectionArgs*/,
+                null/*groupBy*/,
+                null/*having*/,
+                null/*orderBy*/);
+        try {
+            return getFingerprintFromCursor(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * @return fingerprint of the telephony SMS and MMS messages in the sync window
+     */
+    Fingerprint getRemoteFingerprint() {
+        final Context context = Factory.get().getApplicationContext();
+        Cursor smsCursor = null;
+        Cursor mmsCursor = null;
+        try {
+            smsCursor = SqliteWrapper.query(
+                    context,
+                    context.getContentResolver(),
+                    Sms.CONTENT_URI,
+                    REMOTE_SMS_FINGERPRINT_PROJECTION,
+                    mRemoteSmsSelection,
+                    null/*selectionArgs*/,
+                    null/*orderBy*/);
+            final Fingerprint sms = getFingerprintFromCursor(smsCursor);
+            mmsCursor = SqliteWrapper.query(
+                    context,
+                    context.getContentResolver(),
+                    Mms.CONTENT_URI,
+                    REMOTE_MMS_FINGERPRINT_PROJECTION,
+                    mRemoteMmsSelection,
+                    null/*selectionArgs*/,
+                    null/*orderBy*/);
+            final Fingerprint mms = getFingerprintFromCursor(mmsCursor);
+            return sms.plus(mms);
+        } finally {
+            if (smsCursor != null) {
+                smsCursor.close();
+            }
+            if (mmsCursor != null) {
+                mmsCursor.close();
+            }
+        }
+    }
+
+    /**
+     * Find the most recent time bucket before upperBound whose local and remote messages differ.
+     * The window is bisected and only the newer half is queried at each step since the older
+     * half's fingerprint follows from the whole.
+     *
+     * @param db local database wrapper
+     * @param upperBound exclusive upper bound of the messages to check
+     * @param bucketMillis size of the buckets to narrow the mismatch down to
+     * @return {lowerBound, upperBound} of the changed window, or null if the messages before
+     *  upperBound are in sync or the fingerprints could not be read
+     */
+    static long[] findNewestChangedWindow(final DatabaseWrapper db, final long upperBound,
+            final long bucketMillis) {
+        return findNewestChangedWindow(new DatabaseFingerprintSource(db), upperBound,
+                bucketMillis);
+    }
+
+    /**
+     * Find the most recent time bucket before upperBound whose fingerprints differ, reading
+     * them from the given source
+     * @see #findNewestChangedWindow(DatabaseWrapper, long, long)
+     */
+    static long[] findNewestChangedWindow(final FingerprintSource source,
+            final long upperBound, final long bucketMillis) {
+        try {
+            long lower = -1L;
+            long upper = upperBound;
+            Fingerprint local = source.getLocalFingerprint(lower, upper);
+            Fingerprint remote = source.getRemoteFingerprint(lower, upper);
+            if (local.matches(remote)) {
+                return null;
+            }
+            // Start from the oldest message on either side so that empty history is skipped
+            lower = source.getOldestTimestamp();
+            // Bucket boundaries are whole seconds so that MMS windows split the same way
+            while (upper - lower > bucketMillis) {
+                final long middle = ((lower + (upper - lower) / 2) / 1000) * 1000;
+                if (middle <= lower) {
+                    break;
+                }
+                final Fingerprint newerLocal = source.getLocalFingerprint(middle, upper);
+                final Fingerprint newerRemote = source.getRemoteFingerprint(middle, upper);
+                if (newerLocal.matches(newerRemote)) {
+                    local = local.minus(newerLocal);
+                    remote = remote.minus(newerRemote);
+                    upper = middle;
+                } else {
+                    local = newerLocal;
+                    remote = newerRemote;
+                    lower = middle;
+                }
+            }
+            if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                LogUtil.d(TAG, "SyncCursorPair: Messages from " + lower + " to " + upper
+                        + " changed (local = " + local + ", remote = " + remote + ")");
+            }
+            return new long[] { lower, upper };
+        } catch (final Exception e) {
+            LogUtil.e(TAG, "SyncCursorPair: failed to query local or remote fingerprints", e);
+        }
+        return null;
+    }
+
+    /**
+     * @return timestamp (rounded down to a second) of the oldest local or remote message
+     */
+    private static long getOldestTimestamp(final DatabaseWrapper db) {
+        final Context context = Factory.get().getApplicationContext();
+        long oldest = Long.MAX_VALUE;
+        Cursor cursor = db.query(
+                DatabaseHelper.MESSAGES_TABLE,
+                new String[] { "min(" + MessageColumns.RECEIVED_TIMESTAMP + ")" },
+                LOCAL_MESSAGES_SELECTION,
+                null/*selectionArgs*/,
+                null/*groupBy*/,
+                null/*having*/,
+                null/*orderBy*/);
+        oldest = Math.min(oldest, getMinFromCursor(cursor, 1));
+        cursor = SqliteWrapper.query(context, context.getContentResolver(), Sms.CONTENT_URI,
+                new String[] { "min(" + Sms.DATE + ")" }, getSmsTypeSelectionSql(),
+                null/*selectionArgs*/, null/*orderBy*/);
+        oldest = Math.min(oldest, getMinFromCursor(cursor, 1));
+        cursor = SqliteWrapper.query(context, context.getContentResolver(), Mms.CONTENT_URI,
+                new String[] { "min(" + Mms.DATE + ")" }, getMmsTypeSelectionSql(),
+                null/*selectionArgs*/, null/*orderBy*/);
+        oldest = Math.min(oldest, getMinFromCursor(cursor, 1000));
+        return oldest == Long.MAX_VALUE ? -1L : Math.max(-1L, (oldest / 1000) * 1000 - 1000);
+    }
+
+    /**
+     * Get the date of the oldest telephony message added after the given high-water marks
+     *
+     * @param smsIdHighWaterMark highest SMS row id already synced
+     * @param mmsIdHighWaterMark highest MMS row id already synced
+     * @return timestamp in millis of the oldest new message, or -1 if there is none
+     */
+    static long getOldestTimestampAfter(final long smsIdHighWaterMark,
+            final long mmsIdHighWaterMark) {
+        final Context context = Factory.get().getApplicationContext();
+        long oldest = Long.MAX_VALUE;
+        try {
+            Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                    Sms.CONTENT_URI, new String[] { "min(" + Sms.DATE + ")" },
+                    getSmsTypeSelectionSql() + " AND " + Sms._ID + ">" + smsIdHighWaterMark,
+                    null/*selectionArgs*/, null/*orderBy*/);
+            oldest = Math.min(oldest, getMinFromCursor(cursor, 1));
+            cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                    Mms.CONTENT_URI, new String[] { "min(" + Mms.DATE + ")" },
+                    getMmsTypeSelectionSql() + " AND " + Mms._ID + ">" + mmsIdHighWaterMark,
+                    null/*selectionArgs*/, null/*orderBy*/);
+            oldest = Math.min(oldest, getMinFromCursor(cursor, 1000));
+        } catch (final Exception e) {
+            LogUtil.e(TAG, "SyncCursorPair: failed to query new telephony messages", e);
+            return -1L;
+        }
+        return oldest == Long.MAX_VALUE ? -1L : oldest;
+    }
+
+    /**
+     * @return the current highest row id of the telephony SMS or MMS messages, or -1 if it
+     *  could not be read
+     */
+    static long getMaxRemoteId(final boolean mms) {
+        final Context context = Factory.get().getApplicationContext();
+        try {
+            final Cursor cursor = SqliteWrapper.query(context, context.getContentResolver(),
+                    mms ? Mms.CONTENT_URI : Sms.CONTENT_URI,
+                    new String[] { "max(" + BaseColumns._ID + ")" },
+                    mms ? getMmsTypeSelectionSql() : getSmsTypeSelectionSql(),
+                    null/*selectionArgs*/, null/*orderBy*/);
+            if (cursor != null) {
+                try {
+                    if (cursor.moveToFirst()) {
+                        // An empty table has no rows to miss
+                        return cursor.isNull(0) ? 0L : cursor.getLong(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } catch (final Exception e) {
+            LogUtil.e(TAG, "SyncCursorPair: failed to query telephony high-water mark", e);
+        }
+        return -1L;
+    }
+
     void close() {
         if (mLocalCursorIterator != null) {
             mLocalCursorIterator.close();
@@ -150,7 +445,7 @@ class SyncCursorPair {
             final int maxMessagesToUpdate, final ArrayList<SmsMessage> smsToAdd,
             final LongSparseArray<MmsMessage> mmsToAdd,
             final ArrayList<LocalDatabaseMessage> messagesToDelete,
-            final SyncManager.ThreadInfoCache threadInfoCache) {
+            final SyncManager.ThreadInfoCache threadInfoCache, final SyncMmsResolver resolver) {
         // Set of local messages matched with the timestamp of a remote message
         final Set<DatabaseMessage> matchedLocalMessages = Sets.newHashSet();
         // Set of remote messages matched with the timestamp of a local message
@@ -188,7 +483,7 @@ class SyncCursorPair {
                             < remoteMessage.getTimestampInMillis())) {
                 // Found a remote message that is not in local db
                 // Add the remote message
-                saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache);
+                saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache, resolver);
                 lastTimestampMillis = Math.min(lastTimestampMillis,
                         remoteMessage.getTimestampInMillis());
                 // Advance to next remote message
@@ -219,7 +514,8 @@ class SyncCursorPair {
                         // Delete local message
                         messagesToDelete.add((LocalDatabaseMessage) localMessage);
                         // Add remote message
-                        saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache);
+                        saveMessageToAdd(smsToAdd, mmsToAdd, remoteMessage, threadInfoCache,
+                                resolver);
                     }
                     // Get next local and remote messages
                     localMessage = localMessagePeek;
@@ -265,7 +561,7 @@ class SyncCursorPair {
                     // Add messages remote only
                     for (final DatabaseMessage msg : Sets.difference(
                             matchedRemoteMessages, matchedLocalMessages)) {
-                        saveMessageToAdd(smsToAdd, mmsToAdd, msg, threadInfoCache);
+                        saveMessageToAdd(smsToAdd, mmsToAdd, msg, threadInfoCache, resolver);
                     }
                 }
             }
@@ -600,6 +896,50 @@ class SyncCursorPair {
 
     private static final String[] COUNT_PROJECTION = new String[] { "count()" };
 
+    private static final String[] REMOTE_SMS_FINGERPRINT_PROJECTION = new String[] {
+            "count()", "sum(" + BaseColumns._ID + ")", "sum(" + Sms.DATE + ")" };
+
+    // MMS dates are in seconds
+    private static final String[] REMOTE_MMS_FINGERPRINT_PROJECTION = new String[] {
+            "count()", "sum(" + BaseColumns._ID + ")", "sum(" + Mms.DATE + ") * 1000" };
+
+    // The telephony row id is the trailing number of the local message's telephony uri
+    private static final String[] LOCAL_FINGERPRINT_PROJECTION = new String[] {
+            "count()",
+            String.format(Locale.US, "sum(CAST(substr(%1$s, length(rtrim(%1$s, '0123456789')) + 1)"
+                    + " AS INTEGER))", MessageColumns.SMS_MESSAGE_URI),
+            "sum(" + MessageColumns.RECEIVED_TIMESTAMP + ")"
+    };
+
+    @VisibleForTesting
+    static Fingerprint getFingerprintFromCursor(final Cursor cursor) {
+        if (cursor != null && cursor.moveToFirst()) {
+            // The sums of an empty window are null, which reads as 0
+            return new Fingerprint(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2));
+        }
+        // As with counts, only trust a fingerprint we were able to read
+        throw new IllegalArgumentException("Cannot get fingerprint from "
+                + (cursor == null ? "null" : "empty") + " cursor");
+    }
+
+    /**
+     * Read a min() aggregate and close the cursor
+     * @return the minimum scaled to millis, or Long.MAX_VALUE if there were no rows
+     */
+    private static long getMinFromCursor(final Cursor cursor, final long scale) {
+        if (cursor == null) {
+            return Long.MAX_VALUE;
+        }
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0) * scale;
+            }
+            return Long.MAX_VALUE;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private static int getCountFromCursor(final Cursor cursor) {
         if (cursor != null && cursor.moveToFirst()) {
             return cursor.getInt(0);
@@ -617,19 +957,21 @@ class SyncCursorPair {
 
     private void saveMessageToAdd(final List<SmsMessage> smsToAdd,
             final LongSparseArray<MmsMessage> mmsToAdd, final DatabaseMessage message,
-            final ThreadInfoCache threadInfoCache) {
-        long threadId;
+            final ThreadInfoCache threadInfoCache, final SyncMmsResolver resolver) {
         if (message.getProtocol() == MessageData.PROTOCOL_MMS) {
             final MmsMessage mms = (MmsMessage) message;
             mmsToAdd.append(mms.getId(), mms);
-            threadId = mms.mThreadId;
+            // Cache the lookup and canonicalization of the phone number outside of the
+            // transaction and before the resolver needs it for the sender...
+            threadInfoCache.getThreadRecipients(mms.mThreadId);
+            resolver.add(mms);
         } else {
             final SmsMessage sms = (SmsMessage) message;
             smsToAdd.add(sms);
-            threadId = sms.mThreadId;
+            // Cache the lookup and canonicalization of the phone number outside of the
+            // transaction...
+            threadInfoCache.getThreadRecipients(sms.mThreadId);
         }
-        // Cache the lookup and canonicalization of the phone number outside of the transaction...
-        threadInfoCache.getThreadRecipients(threadId);
     }
 
     /**
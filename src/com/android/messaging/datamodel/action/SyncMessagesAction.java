@@ -16,41 +16,31 @@
 
 package com.android.messaging.datamodel.action;
 
-import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.SystemClock;
-import android.provider.Telephony.Mms;
 import android.support.v4.util.LongSparseArray;
 
-import com.android.messaging.Factory;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseWrapper;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.SyncManager;
+import com.android.messaging.datamodel.SyncManager.SyncStats;
 import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
-import com.android.messaging.datamodel.data.ParticipantData;
-import com.android.messaging.mmslib.SqliteWrapper;
-import com.android.messaging.sms.DatabaseMessages;
 import com.android.messaging.sms.DatabaseMessages.LocalDatabaseMessage;
 import com.android.messaging.sms.DatabaseMessages.MmsMessage;
 import com.android.messaging.sms.DatabaseMessages.SmsMessage;
-import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.BugleGservices;
 import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.BuglePrefs;
 import com.android.messaging.util.BuglePrefsKeys;
-import com.android.messaging.util.ContentType;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
 
 import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
 
 /**
  * Action used to sync messages from smsmms db to local database
@@ -60,6 +50,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
 
+    private static final String SERIALIZATION_KEY = "sync";
+
     private static final String KEY_START_TIMESTAMP = "start_timestamp";
     private static final String KEY_MAX_UPDATE = "max_update";
     private static final String KEY_LOWER_BOUND = "lower_bound";
@@ -139,6 +131,18 @@ public class SyncMessagesAction extends Action implements Parcelable {
         actionParameters.putLong(KEY_START_TIMESTAMP, startTimestamp);
     }
 
+    /**
+     * Sync batches only need to be ordered with respect to each other. Actions that insert
+     * messages keep the null key, so they still don't overlap with a batch, and any change they
+     * make to the telephony database while a batch is read marks the batch dirty. Conversation
+     * actions such as marking a conversation read only update existing rows, in their own
+     * transactions, which a batch doesn't compare.
+     */
+    @Override
+    protected String getSerializationKey() {
+        return SERIALIZATION_KEY;
+    }
+
     @Override
     protected Object executeAction() {
         final DatabaseWrapper db = DataModel.get().getDatabase();
@@ -157,32 +161,36 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
         final SyncManager syncManager = DataModel.get().getSyncManager();
         if (lowerBoundTimeMillis >= 0) {
-            // Cursors
-            final SyncCursorPair cursors = new SyncCursorPair(-1L, lowerBoundTimeMillis);
-            final boolean inSync = cursors.isSynchronized(db);
-            if (!inSync) {
-                if (syncManager.delayUntilFullSync(startTimestamp) == 0) {
-                    lowerBoundTimeMillis = -1;
-                    actionParameters.putLong(KEY_LOWER_BOUND, lowerBoundTimeMillis);
-
-                    if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
-                        LogUtil.d(TAG, "SyncMessagesAction: Messages before "
-                                + lowerBoundTimeMillis + " not in sync; promoting to full sync");
-                    }
-                } else if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
-                    LogUtil.d(TAG, "SyncMessagesAction: Messages before "
-                            + lowerBoundTimeMillis + " not in sync; will do incremental sync");
-                }
-            } else {
+            // Telephony messages added since the last sync may be dated before it (e.g. restored
+            // from a backup) so extend the window back to the oldest of them
+            final long smsIdHighWaterMark = syncManager.getSmsIdHighWaterMark();
+            final long mmsIdHighWaterMark = syncManager.getMmsIdHighWaterMark();
+            final long oldestNewTimestamp = (smsIdHighWaterMark < 0 || mmsIdHighWaterMark < 0)
+                    ? -1L : SyncCursorPair.getOldestTimestampAfter(smsIdHighWaterMark,
+                            mmsIdHighWaterMark);
+            if (oldestNewTimestamp >= 0 && oldestNewTimestamp < lowerBoundTimeMillis) {
                 if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
-                    LogUtil.d(TAG, "SyncMessagesAction: Messages before " + lowerBoundTimeMillis
-                            + " are in sync");
+                    LogUtil.d(TAG, "SyncMessagesAction: New messages dated from "
+                            + oldestNewTimestamp + "; extending sync lower bound from "
+                            + lowerBoundTimeMillis);
                 }
+                lowerBoundTimeMillis = oldestNewTimestamp;
+                actionParameters.putLong(KEY_LOWER_BOUND, lowerBoundTimeMillis);
+            }
+
+            // Messages before the window are checked once the incremental sync completes; any
+            // buckets that changed are then located and re-scanned rather than doing a full sync
+            if (LogUtil.isLoggable(TAG, LogUtil.DEBUG)) {
+                final SyncCursorPair cursors = new SyncCursorPair(-1L, lowerBoundTimeMillis);
+                LogUtil.d(TAG, "SyncMessagesAction: Messages before " + lowerBoundTimeMillis
+                        + (cursors.isSynchronized(db) ? " are in sync" : " not in sync"));
             }
         }
 
         // Check if sync allowed (can be too soon after last or one is already running)
         if (syncManager.shouldSync(lowerBoundTimeMillis < 0, startTimestamp)) {
+            syncManager.beginHighWaterMarks(SyncCursorPair.getMaxRemoteId(false /* mms */),
+                    SyncCursorPair.getMaxRemoteId(true /* mms */));
             syncManager.startSyncBatch(upperBoundTimeMillis);
             requestBackgroundWork();
         }
@@ -225,6 +233,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
         // Clear the singleton cache that maps threads to recipients and to conversations.
         final SyncManager.ThreadInfoCache cache = syncManager.getThreadInfoCache();
         cache.clear();
+        final SyncStats stats = syncManager.getSyncStats();
 
         // Sms messages to store
         final ArrayList<SmsMessage> smsToAdd = new ArrayList<SmsMessage>();
@@ -242,7 +251,7 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
             // Actually compare the messages using cursor pair
             lastTimestampMillis = syncCursorPair(db, cursors, smsToAdd, mmsToAdd,
-                    messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache);
+                    messagesToDelete, maxMessagesToScan, maxMessagesToUpdate, cache, stats);
         }
         final Bundle response = new Bundle();
 
@@ -273,14 +282,18 @@ public class SyncMessagesAction extends Action implements Parcelable {
      * @param maxMessagesToScan max messages to scan for changes
      * @param maxMessagesToUpdate max messages to return for updates
      * @param cache cache for conversation id / thread id / recipient set mapping
+     * @param stats sync pipeline stats to record the scan and resolve stages in
      * @return timestamp of the oldest message seen during the sync scan
      */
     private long syncCursorPair(final DatabaseWrapper db, final SyncCursorPair cursors,
             final ArrayList<SmsMessage> smsToAdd, final LongSparseArray<MmsMessage> mmsToAdd,
             final ArrayList<LocalDatabaseMessage> messagesToDelete, final int maxMessagesToScan,
-            final int maxMessagesToUpdate, final ThreadInfoCache cache) {
+            final int maxMessagesToUpdate, final ThreadInfoCache cache, final SyncStats stats) {
         long lastTimestampMillis;
         final long startTimeMillis = SystemClock.elapsedRealtime();
+        // Parts and senders of MMS messages are resolved in parallel while the scan continues
+        final SyncMmsResolver resolver = new SyncMmsResolver(cache);
+        boolean resolved = false;
 
         // Number of messages scanned local and remote
         int localPos = 0;
@@ -303,7 +316,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
             }
 
             lastTimestampMillis = cursors.scan(maxMessagesToScan, maxMessagesToUpdate,
-                    smsToAdd, mmsToAdd, messagesToDelete, cache);
+                    smsToAdd, mmsToAdd, messagesToDelete, cache, resolver);
+            final long scanTimeMillis = SystemClock.elapsedRealtime() - startTimeMillis;
 
             localPos = cursors.getLocalPosition();
             remotePos = cursors.getRemotePosition();
@@ -314,10 +328,12 @@ public class SyncMessagesAction extends Action implements Parcelable {
                         + remoteTotal + ")");
             }
 
-            // Batch loading the parts of the MMS messages in this batch
-            loadMmsParts(mmsToAdd);
-            // Lookup senders for incoming mms messages
-            setMmsSenders(mmsToAdd, cache);
+            // Wait for the parts and senders of the remaining MMS messages in this batch
+            final int mmsResolved = resolver.finish();
+            resolved = true;
+
+            stats.record(SyncStats.STAGE_SCAN, localPos + remotePos, scanTimeMillis);
+            stats.record(SyncStats.STAGE_RESOLVE, mmsResolved, resolver.getResolveTimeMillis());
         } catch (final SQLiteException e) {
             LogUtil.e(TAG, "SyncMessagesAction: Database exception", e);
             // Let's abort
@@ -329,6 +345,9 @@ public class SyncMessagesAction extends Action implements Parcelable {
             LogUtil.wtf(TAG, "SyncMessagesAction: unexpected failure in scan", e);
             lastTimestampMillis = SYNC_FAILED;
         } finally {
+            if (!resolved) {
+                resolver.cancel();
+            }
             if (cursors != null) {
                 cursors.close();
             }
@@ -412,6 +431,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
                     batch.updateLocalDatabase();
                     final long endTimeMillis = SystemClock.elapsedRealtime();
                     txnTimeMillis = endTimeMillis - startTimeMillis;
+                    syncManager.getSyncStats().record(SyncStats.STAGE_WRITE, messagesUpdated,
+                            txnTimeMillis);
 
                     LogUtil.i(TAG, "SyncMessagesAction: Updated local database "
                             + "(took " + txnTimeMillis + " ms). Added "
@@ -442,8 +463,8 @@ public class SyncMessagesAction extends Action implements Parcelable {
 
                     // Include final millisecond of last sync in next sync
                     final long newUpperBoundTimeMillis = lastTimestampMillis + 1;
-                    final int newMaxMessagesToUpdate = nextBatchSize(messagesUpdated,
-                            txnTimeMillis);
+                    final int newMaxMessagesToUpdate = nextBatchSize(
+                            syncManager.getSyncStats());
 
                     final SyncMessagesAction nextBatch =
                             new SyncMessagesAction(lowerBoundTimeMillis, newUpperBoundTimeMillis,
@@ -478,19 +499,34 @@ public class SyncMessagesAction extends Action implements Parcelable {
                         requestBackgroundWork(nextBatch);
                         // After partial sync verify sync state
                     } else if (lowerBoundTimeMillis >= 0 && !olders.isSynchronized(db)) {
-                        // Add a batch going back to start of time
-                        LogUtil.w(TAG, "SyncMessagesAction: Changed messages before sync batch; "
-                                + "scheduling a full sync now.");
-
-                        final SyncMessagesAction nextBatch =
-                                new SyncMessagesAction(-1L, startTimestamp, 0, startTimestamp);
-
-                        syncManager.startSyncBatch(startTimestamp);
-                        requestBackgroundWork(nextBatch);
+                        // Only look below this batch so that every re-scan makes progress
+                        final long[] changedWindow = findChangedWindow(db, lowerBoundTimeMillis);
+                        if (changedWindow != null) {
+                            LogUtil.i(TAG, "SyncMessagesAction: Changed messages from "
+                                    + changedWindow[0] + " to " + changedWindow[1]
+                                    + "; scheduling a sync of that window now.");
+
+                            final SyncMessagesAction nextBatch = new SyncMessagesAction(
+                                    changedWindow[0], changedWindow[1], 0, startTimestamp);
+
+                            syncManager.startSyncBatch(changedWindow[1]);
+                            requestBackgroundWork(nextBatch);
+                        } else {
+                            // Add a batch going back to start of time
+                            LogUtil.w(TAG, "SyncMessagesAction: Changed messages before sync "
+                                    + "batch; scheduling a full sync now.");
+
+                            final SyncMessagesAction nextBatch =
+                                    new SyncMessagesAction(-1L, startTimestamp, 0, startTimestamp);
+
+                            syncManager.startSyncBatch(startTimestamp);
+                            requestBackgroundWork(nextBatch);
+                        }
                     } else {
                         LogUtil.i(TAG, "SyncMessagesAction: All messages now in sync");
 
                         // All done, in sync
+                        syncManager.commitHighWaterMarks();
                         syncManager.complete();
                     }
                 }
@@ -503,114 +539,37 @@ public class SyncMessagesAction extends Action implements Parcelable {
     }
 
     /**
-     * Decide the next batch size based on the stats we collected with past batch
-     * @param messagesUpdated number of messages updated in this batch
-     * @param txnTimeMillis time the transaction took in ms
+     * Locate the newest bucket of messages before upperBound that differs between local and
+     * telephony databases
+     * @return {lowerBound, upperBound} of the bucket, or null if none could be found
+     */
+    private static long[] findChangedWindow(final DatabaseWrapper db, final long upperBound) {
+        final long bucketMillis = BugleGservices.get().getLong(
+                BugleGservicesKeys.SMS_SYNC_BUCKET_MILLIS,
+                BugleGservicesKeys.SMS_SYNC_BUCKET_MILLIS_DEFAULT);
+        return SyncCursorPair.findNewestChangedWindow(db, upperBound, bucketMillis);
+    }
+
+    /**
+     * Decide the next batch size based on the write throughput of the batches so far. Only the
+     * write stage holds up the action thread, so that is the stage the time limit applies to;
+     * the throughput is smoothed over the batches of this sync so that one slow transaction
+     * does not collapse the next batch.
+     * @param stats stats collected for the batches of the current sync
      * @return Target number of messages to sync for next batch
      */
-    private static int nextBatchSize(final int messagesUpdated, final long txnTimeMillis) {
+    private static int nextBatchSize(final SyncStats stats) {
         final BugleGservices bugleGservices = BugleGservices.get();
         final long smsSyncSubsequentBatchTimeLimitMillis = bugleGservices.getLong(
                 BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS,
                 BugleGservicesKeys.SMS_SYNC_BATCH_TIME_LIMIT_MILLIS_DEFAULT);
 
-        if (txnTimeMillis <= 0) {
+        final double messagesPerMilli = stats.getThroughput(SyncStats.STAGE_WRITE);
+        if (messagesPerMilli <= 0) {
             return 0;
         }
-        // Number of messages we can sync within the batch time limit using
-        // the average sync time calculated based on the stats we collected
-        // in previous batch
-        return (int) ((double) (messagesUpdated) / (double) txnTimeMillis
-                        * smsSyncSubsequentBatchTimeLimitMillis);
-    }
-
-    /**
-     * Batch loading MMS parts for the messages in current batch
-     */
-    private void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
-        final Context context = Factory.get().getApplicationContext();
-        final int totalIds = mmses.size();
-        for (int start = 0; start < totalIds; start += MmsUtils.MAX_IDS_PER_QUERY) {
-            final int end = Math.min(start + MmsUtils.MAX_IDS_PER_QUERY, totalIds); //excluding
-            final int count = end - start;
-            final String batchSelection = String.format(
-                    Locale.US,
-                    "%s != '%s' AND %s IN %s",
-                    Mms.Part.CONTENT_TYPE,
-                    ContentType.APP_SMIL,
-                    Mms.Part.MSG_ID,
-                    MmsUtils.getSqlInOperand(count));
-            final String[] batchSelectionArgs = new String[count];
-            for (int i = 0; i < count; i++) {
-                batchSelectionArgs[i] = Long.toString(mmses.valueAt(start + i).getId());
-            }
-            final Cursor cursor = SqliteWrapper.query(
-                    context,
-                    context.getContentResolver(),
-                    MmsUtils.MMS_PART_CONTENT_URI,
-                    DatabaseMessages.MmsPart.PROJECTION,
-                    batchSelection,
-                    batchSelectionArgs,
-                    null/*sortOrder*/);
-            if (cursor != null) {
-                try {
-                    while (cursor.moveToNext()) {
-                        // Delay loading the media content for parsing for efficiency
-                        // TODO: load the media and fill in the dimensions when
-                        // we actually display it
-                        final DatabaseMessages.MmsPart part =
-                                DatabaseMessages.MmsPart.get(cursor, false/*loadMedia*/);
-                        final DatabaseMessages.MmsMessage mms = mmses.get(part.mMessageId);
-                        if (mms != null) {
-                            mms.addPart(part);
-                        }
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
-        }
-    }
-
-    /**
-     * Batch loading MMS sender for the messages in current batch
-     */
-    private void setMmsSenders(final LongSparseArray<MmsMessage> mmses,
-            final ThreadInfoCache cache) {
-        // Store all the MMS messages
-        for (int i = 0; i < mmses.size(); i++) {
-            final MmsMessage mms = mmses.valueAt(i);
-
-            final boolean isOutgoing = mms.mType != Mms.MESSAGE_BOX_INBOX;
-            String senderId = null;
-            if (!isOutgoing) {
-                // We only need to find out sender phone number for received message
-                senderId = getMmsSender(mms, cache);
-                if (senderId == null) {
-                    LogUtil.w(TAG, "SyncMessagesAction: Could not find sender of incoming MMS "
-                            + "message " + mms.getUri() + "; using 'unknown sender' instead");
-                    senderId = ParticipantData.getUnknownSenderDestination();
-                }
-            }
-            mms.setSender(senderId);
-        }
-    }
-
-    /**
-     * Find out the sender of an MMS message
-     */
-    private String getMmsSender(final MmsMessage mms, final ThreadInfoCache cache) {
-        final List<String> recipients = cache.getThreadRecipients(mms.mThreadId);
-        Assert.notNull(recipients);
-        Assert.isTrue(recipients.size() > 0);
-
-        if (recipients.size() == 1
-                && recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
-            LogUtil.w(TAG, "SyncMessagesAction: MMS message " + mms.mUri + " has unknown sender "
-                    + "(thread id = " + mms.mThreadId + ")");
-        }
-
-        return MmsUtils.getMmsSender(recipients, mms.mUri);
+        // Number of messages we can sync within the batch time limit
+        return (int) (messagesPerMilli * smsSyncSubsequentBatchTimeLimitMillis);
     }
 
     private SyncMessagesAction(final Parcel in) {
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.Telephony.Mms;
+import android.support.v4.util.LongSparseArray;
+
+import com.android.messaging.Factory;
+import com.android.messaging.datamodel.SyncManager.ThreadInfoCache;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.mmslib.SqliteWrapper;
+import com.android.messaging.sms.DatabaseMessages;
+import com.android.messaging.sms.DatabaseMessages.MmsMessage;
+import com.android.messaging.sms.MmsUtils;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.LogUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the parts and senders of the MMS messages found by a sync scan. Messages are handed
+ * over while the cursors are still being scanned and resolved in chunks on a small pool of
+ * threads, so the telephony queries for one chunk overlap with scanning and with other chunks.
+ *
+ * The queue of pending chunks is bounded; when it is full the scanning thread resolves the chunk
+ * itself, which throttles the scan to the speed of the resolvers.
+ */
+class SyncMmsResolver {
+    private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 10;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final ThreadInfoCache mCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final List<Future<Void>> mPending = new ArrayList<Future<Void>>();
+    private final AtomicLong mResolveTimeMillis = new AtomicLong();
+    private LongSparseArray<MmsMessage> mChunk = new LongSparseArray<MmsMessage>();
+    private int mMessageCount;
+
+    SyncMmsResolver(final ThreadInfoCache cache) {
+        mCache = cache;
+        mExecutor = getExecutor();
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            final BugleGservices bugleGservices = BugleGservices.get();
+            final int threads = Math.max(1, bugleGservices.getInt(
+                    BugleGservicesKeys.SMS_SYNC_MMS_RESOLVER_THREADS,
+                    BugleGservicesKeys.SMS_SYNC_MMS_RESOLVER_THREADS_DEFAULT));
+            final int queueCapacity = Math.max(1, bugleGservices.getInt(
+                    BugleGservicesKeys.SMS_SYNC_MMS_RESOLVER_QUEUE_SIZE,
+                    BugleGservicesKeys.SMS_SYNC_MMS_RESOLVER_QUEUE_SIZE_DEFAULT));
+            sExecutor = new ThreadPoolExecutor(threads, threads,
+                    IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "SyncMmsResolver-" + mCount.incrementAndGet());
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Queue an MMS message found by the scan. Only called from the scanning thread.
+     */
+    void add(final MmsMessage mms) {
+        mChunk.append(mms.getId(), mms);
+        mMessageCount++;
+        if (mChunk.size() >= MmsUtils.MAX_IDS_PER_QUERY) {
+            submitChunk();
+        }
+    }
+
+    /**
+     * Wait for all queued messages to be resolved. Rethrows the first failure of any chunk.
+     * @return number of MMS messages resolved
+     */
+    int finish() throws InterruptedException {
+        if (mChunk.size() > 0) {
+            submitChunk();
+        }
+        try {
+            for (final Future<Void> future : mPending) {
+                future.get();
+            }
+        } catch (final ExecutionException e) {
+            cancel();
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        mPending.clear();
+        return mMessageCount;
+    }
+
+    /**
+     * Abandon any chunks that have not been resolved yet
+     */
+    void cancel() {
+        for (final Future<Void> future : mPending) {
+            future.cancel(false /* mayInterruptIfRunning */);
+        }
+        mPending.clear();
+    }
+
+    /**
+     * @return total time spent resolving chunks, summed over all resolver threads
+     */
+    long getResolveTimeMillis() {
+        return mResolveTimeMillis.get();
+    }
+
+    private void submitChunk() {
+        final LongSparseArray<MmsMessage> chunk = mChunk;
+        mChunk = new LongSparseArray<MmsMessage>();
+        mPending.add(mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                final long startTimeMillis = SystemClock.elapsedRealtime();
+                loadMmsParts(chunk);
+                setMmsSenders(chunk, mCache);
+                mResolveTimeMillis.addAndGet(SystemClock.elapsedRealtime() - startTimeMillis);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Batch loading MMS parts for a chunk of at most {@link MmsUtils#MAX_IDS_PER_QUERY} messages
+     */
+    private static void loadMmsParts(final LongSparseArray<MmsMessage> mmses) {
+        final Context context = Factory.get().getApplicationContext();
+        final int count = mmses.size();
+        Assert.isTrue(count <= MmsUtils.MAX_IDS_PER_QUERY);
+        final String batchSelection = String.format(
+                Locale.US,
+                "%s != '%s' AND %s IN %s",
+                Mms.Part.CONTENT_TYPE,
+                ContentType.APP_SMIL,
+                Mms.Part.MSG_ID,
+                MmsUtils.getSqlInOperand(count));
+        final String[] batchSelectionArgs = new String[count];
+        for (int i = 0; i < count; i++) {
+            batchSelectionArgs[i] = Long.toString(mmses.keyAt(i));
+        }
+        final Cursor cursor = SqliteWrapper.query(
+                context,
+                context.getContentResolver(),
+                MmsUtils.MMS_PART_CONTENT_URI,
+                DatabaseMessages.MmsPart.PROJECTION,
+                batchSelection,
+                batchSelectionArgs,
+                null/*sortOrder*/);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    // Delay loading the media content for parsing for efficiency
+                    // TODO: load the media and fill in the dimensions when
+                    // we actually display it
+                    final DatabaseMessages.MmsPart part =
+                            DatabaseMessages.MmsPart.get(cursor, false/*loadMedia*/);
+                    final DatabaseMessages.MmsMessage mms = mmses.get(part.mMessageId);
+                    if (mms != null) {
+                        mms.addPart(part);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Batch loading MMS sender for a chunk of messages
+     */
+    private static void setMmsSenders(final LongSparseArray<MmsMessage> mmses,
+            final ThreadInfoCache cache) {
+        for (int i = 0; i < mmses.size(); i++) {
+            final MmsMessage mms = mmses.valueAt(i);
+
+            final boolean isOutgoing = mms.mType != Mms.MESSAGE_BOX_INBOX;
+            String senderId = null;
+            if (!isOutgoing) {
+                // We only need to find out sender phone number for received message
+                senderId = getMmsSender(mms, cache);
+                if (senderId == null) {
+                    LogUtil.w(TAG, "SyncMessagesAction: Could not find sender of incoming MMS "
+                            + "message " + mms.getUri() + "; using 'unknown sender' instead");
+                    senderId = ParticipantData.getUnknownSenderDestination();
+                }
+            }
+            mms.setSender(senderId);
+        }
+    }
+
+    /**
+     * Find out the sender of an MMS message
+     */
+    private static String getMmsSender(final MmsMessage mms, final ThreadInfoCache cache) {
+        final List<String> recipients = cache.getThreadRecipients(mms.mThreadId);
+        Assert.notNull(recipients);
+        Assert.isTrue(recipients.size() > 0);
+
+        if (recipients.size() == 1
+                && recipients.get(0).equals(ParticipantData.getUnknownSenderDestination())) {
+            LogUtil.w(TAG, "SyncMessagesAction: MMS message " + mms.mUri + " has unknown sender "
+                    + "(thread id = " + mms.mThreadId + ")");
+        }
+
+        return MmsUtils.getMmsSender(recipients, mms.mUri);
+    }
+}
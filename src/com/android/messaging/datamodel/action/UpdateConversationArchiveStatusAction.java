@@ -49,6 +49,11 @@ public class UpdateConversationArchiveStatusAction extends Action {
         actionParameters.putBoolean(KEY_IS_ARCHIVE, isArchive);
     }
 
+    @Override
+    protected String getSerializationKey() {
+        return getConversationSerializationKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final String conversationId = actionParameters.getString(KEY_CONVERSATION_ID);
@@ -112,6 +112,11 @@ public class UpdateConversationOptionsAction extends Action
         }
     }
 
+    @Override
+    protected String getSerializationKey() {
+        return getConversationSerializationKey(actionParameters.getString(KEY_CONVERSATION_ID));
+    }
+
     @Override
     protected Object executeAction() {
         final String conversationId = actionParameters.getString(KEY_CONVERSATION_ID);
@@ -32,6 +32,9 @@ import com.android.messaging.Factory;
 import com.android.messaging.R;
 import com.android.messaging.datamodel.BoundCursorLoader;
 import com.android.messaging.datamodel.BugleNotifications;
+import com.android.messaging.datamodel.DataChangeBus;
+import com.android.messaging.datamodel.DataChangeBus.DataChangeListener;
+import com.android.messaging.datamodel.DataChangeBus.DataChanges;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
 import com.android.messaging.datamodel.MessagingContentProvider;
@@ -50,6 +53,8 @@ import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.RunsOnMainThread;
+import com.android.messaging.util.BugleGservices;
+import com.android.messaging.util.BugleGservicesKeys;
 import com.android.messaging.util.ContactUtil;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.OsUtil;
@@ -113,7 +118,7 @@ public class ConversationData extends BindableData {
         public void onSubscriptionListDataLoaded(ConversationData data);
     }
 
-    private static class ReversedCursor extends CursorWrapper {
+    static class ReversedCursor extends CursorWrapper {
         final int mCount;
 
         public ReversedCursor(final Cursor cursor) {
@@ -177,6 +182,70 @@ public class ConversationData extends BindableData {
         }
     }
 
+    /**
+     * How the messages cursor changed since the previous one that was published: the rows
+     * between the unchanged rows at the start and at the end were replaced. Rows are compared
+     * by the signature of their contents.
+     */
+    public static class MessagesDelta {
+        private final int mOldCount;
+        private final int mStart;
+        private final int mRemovedCount;
+        private final int mInsertedCount;
+
+        MessagesDelta(final int oldCount, final int start, final int removedCount,
+                final int insertedCount) {
+            mOldCount = oldCount;
+            mStart = start;
+            mRemovedCount = removedCount;
+            mInsertedCount = insertedCount;
+        }
+
+        /**
+         * @return the delta between two lists of row signatures
+         */
+        static MessagesDelta compute(final int[] oldRows, final int[] newRows) {
+            final int minCount = Math.min(oldRows.length, newRows.length);
+            int start = 0;
+            while (start < minCount && oldRows[start] == newRows[start]) {
+                start++;
+            }
+            int end = 0;
+            while (end < minCount - start && oldRows[oldRows.length - 1 - end]
+                    == newRows[newRows.length - 1 - end]) {
+                end++;
+            }
+            return new MessagesDelta(oldRows.length, start, oldRows.length - start - end,
+                    newRows.length - start - end);
+        }
+
+        /**
+         * @return the number of rows of the previous cursor
+         */
+        public int getOldCount() {
+            return mOldCount;
+        }
+
+        /**
+         * @return the position of the first row that changed
+         */
+        public int getStart() {
+            return mStart;
+        }
+
+        public int getRemovedCount() {
+            return mRemovedCount;
+        }
+
+        public int getInsertedCount() {
+            return mInsertedCount;
+        }
+
+        public boolean isEmpty() {
+            return mRemovedCount == 0 && mInsertedCount == 0;
+        }
+    }
+
     /**
      * A trampoline class so that we can inherit from LoaderManager.LoaderCallbacks multiple times.
      */
@@ -255,12 +324,19 @@ public class ConversationData extends BindableData {
             final String bindingId = args.getString(BINDING_ID);
             // Check if data still bound to the requesting ui element
             if (isBound(bindingId)) {
-                final Uri uri =
+                // In windowed mode only the newest messages are loaded at first
+                final Uri uri = mWindowSize > 0 ?
+                        MessagingContentProvider.buildConversationMessagesWindowUri(
+                                mConversationId, mWindowSize, null, null) :
                         MessagingContentProvider.buildConversationMessagesUri(mConversationId);
-                loader = new BoundCursorLoader(bindingId, mContext, uri,
-                        ConversationMessageData.getProjection(), null, null, null);
+                loader = mWindowSize > 0 ?
+                        new MessagesWindowLoader(bindingId, mContext, uri) :
+                        new BoundCursorLoader(bindingId, mContext, uri,
+                                ConversationMessageData.getProjection(), null, null, null);
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
+                mHeadWindowPinned = false;
+                mMessagesWindow.setHeadWindowStart(null);
             } else {
                 LogUtil.w(TAG, "Creating messages loader after unbinding mConversationId = " +
                         mConversationId);
@@ -274,42 +350,13 @@ public class ConversationData extends BindableData {
 
             // Check if data still bound to the requesting ui element
             if (isBound(loader.getBindingId())) {
-                // Check if we have a new message, or if we had a message sync.
-                ConversationMessageData newMessage = null;
-                boolean isSync = false;
-                Cursor data = null;
-                if (rawData != null) {
+                if (mWindowSize > 0 && rawData != null) {
+                    onHeadWindowLoaded(loader, (ConversationMessagesWindow.SignedCursor) rawData);
+                } else {
                     // Note that the cursor is sorted DESC so here we reverse it.
                     // This is a performance issue (improvement) for large cursors.
-                    data = new ReversedCursor(rawData);
-
-                    final int messageCountOld = mMessageCount;
-                    mMessageCount = data.getCount();
-                    final ConversationMessageData lastMessage = getLastMessage(data);
-                    if (lastMessage != null) {
-                        final long lastMessageTimestampOld = mLastMessageTimestamp;
-                        mLastMessageTimestamp = lastMessage.getReceivedTimeStamp();
-                        final String lastMessageIdOld = mLastMessageId;
-                        mLastMessageId = lastMessage.getMessageId();
-                        if (TextUtils.equals(lastMessageIdOld, mLastMessageId) &&
-                                messageCountOld < mMessageCount) {
-                            // Last message stays the same (no incoming message) but message
-                            // count increased, which means there has been a message sync.
-                            isSync = true;
-                        } else if (messageCountOld != MESSAGE_COUNT_NaN && // Ignore initial load
-                                mLastMessageTimestamp != LAST_MESSAGE_TIMESTAMP_NaN &&
-                                mLastMessageTimestamp > lastMessageTimestampOld) {
-                            newMessage = lastMessage;
-                        }
-                    } else {
-                        mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
-                    }
-                } else {
-                    mMessageCount = MESSAGE_COUNT_NaN;
+                    publishMessages(rawData == null ? null : new ReversedCursor(rawData));
                 }
-
-                mListeners.onConversationMessagesCursorUpdated(ConversationData.this, data,
-                        newMessage, isSync);
             } else {
                 LogUtil.w(TAG, "Messages loader finished after unbinding mConversationId = " +
                         mConversationId);
@@ -326,26 +373,242 @@ public class ConversationData extends BindableData {
                         false);
                 mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
                 mMessageCount = MESSAGE_COUNT_NaN;
+                mMessagesWindow.clearHead();
+                mPublishedRowSignatures = null;
+                closeOlderPages();
             } else {
                 LogUtil.w(TAG, "Messages loader reset after unbinding mConversationId = " +
                         mConversationId);
             }
         }
+    }
 
-        private ConversationMessageData getLastMessage(final Cursor cursor) {
-            if (cursor != null && cursor.getCount() > 0) {
-                final int position = cursor.getPosition();
-                if (cursor.moveToLast()) {
-                    final ConversationMessageData messageData = new ConversationMessageData();
-                    messageData.bind(cursor);
-                    cursor.move(position);
-                    return messageData;
+    /**
+     * Sends the conversation's messages to the listeners, noting whether there is a new message
+     * or a message sync since the last time.
+     */
+    private void publishMessages(final Cursor data) {
+        // Check if we have a new message, or if we had a message sync.
+        ConversationMessageData newMessage = null;
+        boolean isSync = false;
+        if (data != null) {
+            final int messageCountOld = mMessageCount;
+            mMessageCount = data.getCount();
+            final ConversationMessageData lastMessage = getLastMessage(data);
+            if (lastMessage != null) {
+                final long lastMessageTimestampOld = mLastMessageTimestamp;
+                mLastMessageTimestamp = lastMessage.getReceivedTimeStamp();
+                final String lastMessageIdOld = mLastMessageId;
+                mLastMessageId = lastMessage.getMessageId();
+                if (TextUtils.equals(lastMessageIdOld, mLastMessageId) &&
+                        messageCountOld < mMessageCount) {
+                    // Last message stays the same (no incoming message) but message
+                    // count increased, which means there has been a message sync.
+                    isSync = true;
+                } else if (messageCountOld != MESSAGE_COUNT_NaN && // Ignore initial load
+                        mLastMessageTimestamp != LAST_MESSAGE_TIMESTAMP_NaN &&
+                        mLastMessageTimestamp > lastMessageTimestampOld) {
+                    newMessage = lastMessage;
                 }
+            } else {
+                mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
             }
-            return null;
+        } else {
+            mMessageCount = MESSAGE_COUNT_NaN;
+        }
+
+        mListeners.onConversationMessagesCursorUpdated(ConversationData.this, data,
+                newMessage, isSync);
+    }
+
+    /**
+     * Publishes the messages loaded in windowed mode along with their delta from the previous
+     * ones, so that the UI can update just the rows that changed.
+     */
+    private void publishMessagesWindow() {
+        final int[] rowSignatures = mMessagesWindow.getRowSignatures();
+        mMessagesDelta = mPublishedRowSignatures == null ? null :
+                MessagesDelta.compute(mPublishedRowSignatures, rowSignatures);
+        mPublishedRowSignatures = rowSignatures;
+        try {
+            publishMessages(mMessagesWindow.buildMessagesCursor());
+        } finally {
+            mMessagesDelta = null;
         }
     }
 
+    /**
+     * @return how the messages cursor being published changed from the previous one, or null if
+     *     it's not known and the whole list has to be considered changed. Only valid while
+     *     {@link ConversationDataListener#onConversationMessagesCursorUpdated} is being called.
+     */
+    @Nullable
+    public MessagesDelta getMessagesDelta() {
+        return mMessagesDelta;
+    }
+
+    private ConversationMessageData getLastMessage(final Cursor cursor) {
+        if (cursor != null && cursor.getCount() > 0) {
+            final int position = cursor.getPosition();
+            if (cursor.moveToLast()) {
+                final ConversationMessageData messageData = new ConversationMessageData();
+                messageData.bind(cursor);
+                cursor.move(position);
+                return messageData;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads the newest messages in windowed mode, along with the signature of their contents
+     */
+    private static class MessagesWindowLoader extends BoundCursorLoader {
+        MessagesWindowLoader(final String bindingId, final Context context, final Uri uri) {
+            super(bindingId, context, uri, ConversationMessageData.getProjection(), null, null,
+                    null);
+        }
+
+        @Override
+        public Cursor loadInBackground() {
+            final Cursor cursor = super.loadInBackground();
+            return cursor == null ? null : new ConversationMessagesWindow.SignedCursor(cursor);
+        }
+    }
+
+    /**
+     * Handles a new cursor for the newest messages in windowed mode. The first load is limited to
+     * the window size; after that the loader is pinned to the oldest message it returned so that
+     * new messages are added to the window instead of pushing older ones out of it. Older messages
+     * are paged in by {@link #loadOlderMessages} and kept until the data is unbound.
+     */
+    private void onHeadWindowLoaded(final BoundCursorLoader loader,
+            final ConversationMessagesWindow.SignedCursor rawData) {
+        if (!mHeadWindowPinned) {
+            mHeadWindowPinned = true;
+            if (rawData.getCount() >= mWindowSize && rawData.moveToLast()) {
+                mMessagesWindow.setHeadWindowStart(ConversationMessageData.getMessageKey(rawData));
+                loader.setUri(MessagingContentProvider.buildConversationMessagesWindowUri(
+                        mConversationId, 0 /* limit */, mMessagesWindow.getHeadWindowStart(),
+                        null));
+            } else {
+                // The whole conversation fits in the window
+                loader.setUri(
+                        MessagingContentProvider.buildConversationMessagesUri(mConversationId));
+            }
+        }
+        final boolean headChanged = mMessagesWindow.setHead(rawData);
+        publishMessagesWindow();
+        if (!headChanged && !mRefreshingOlderMessages) {
+            // The change wasn't in the window of newest messages, so it must have been in the
+            // older messages that were paged in
+            refreshOlderMessages();
+        }
+    }
+
+    /**
+     * Loads the next page of older messages in windowed mode.
+     * @return false if there is nothing to load
+     */
+    @RunsOnMainThread
+    public boolean loadOlderMessages() {
+        Assert.isMainThread();
+        if (!mMessagesWindow.hasOlderMessages() || mMessagesWindow.getHead() == null
+                || mLoadingOlderMessages) {
+            return false;
+        }
+        final Uri uri = MessagingContentProvider.buildConversationMessagesWindowUri(
+                mConversationId, mWindowSize, null, mMessagesWindow.getOldestLoadedKey());
+        queryOlderMessages(uri, false /* replacePages */);
+        return true;
+    }
+
+    /**
+     * Queries again all the older messages that have been paged in.
+     */
+    private void refreshOlderMessages() {
+        if (!mMessagesWindow.hasOlderPages()) {
+            return;
+        }
+        final Uri uri = MessagingContentProvider.buildConversationMessagesWindowUri(
+                mConversationId, 0 /* limit */, mMessagesWindow.getOldestLoadedKey(),
+                mMessagesWindow.getHeadWindowStart());
+        queryOlderMessages(uri, true /* replacePages */);
+    }
+
+    /**
+     * Refreshes the older pages when the data layer reports a change to a message in them or to
+     * the sender of one, since the pages carry the sender's name and photo. Changes that don't
+     * name messages or participants are handled when the messages loader reloads.
+     */
+    private final DataChangeListener mDataChangeListener = new DataChangeListener() {
+        @Override
+        public void onDataChanged(final DataChanges changes) {
+            if (!mMessagesWindow.hasOlderPages() || mRefreshingOlderMessages) {
+                return;
+            }
+            if (mMessagesWindow.olderPagesContain(changes.getUpdatedMessageIds())
+                    || mMessagesWindow.olderPagesContain(changes.getDeletedMessageIds())
+                    || changes.isAllParticipantsChanged()
+                    || mMessagesWindow.olderPagesContainSenders(
+                            changes.getChangedParticipantIds())) {
+                refreshOlderMessages();
+            }
+        }
+    };
+
+    private void queryOlderMessages(final Uri uri, final boolean replacePages) {
+        mLoadingOlderMessages = true;
+        mRefreshingOlderMessages = replacePages;
+        final int generation = ++mOlderMessagesGeneration;
+        new SafeAsyncTask<Void, Void, ConversationMessagesWindow.SignedCursor>() {
+            @Override
+            protected ConversationMessagesWindow.SignedCursor doInBackgroundTimed(
+                    final Void... params) {
+                final Cursor cursor = mContext.getContentResolver().query(uri,
+                        ConversationMessageData.getProjection(), null, null, null);
+                // Signing the rows also fills the cursor window off the main thread
+                return cursor == null ? null : new ConversationMessagesWindow.SignedCursor(cursor);
+            }
+
+            @Override
+            protected void onPostExecute(final ConversationMessagesWindow.SignedCursor cursor) {
+                if (generation != mOlderMessagesGeneration || !isBound()
+                        || mMessagesWindow.getHead() == null) {
+                    // Superseded, or the messages have been reset since
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    return;
+                }
+                mLoadingOlderMessages = false;
+                mRefreshingOlderMessages = false;
+                if (cursor == null) {
+                    return;
+                }
+                final List<Cursor> retiredPages;
+                if (replacePages) {
+                    retiredPages = mMessagesWindow.replaceOlderPages(cursor);
+                } else {
+                    retiredPages = Collections.emptyList();
+                    mMessagesWindow.addOlderPage(cursor, mWindowSize);
+                }
+                publishMessagesWindow();
+                // Only close the replaced pages once the listeners have moved off them
+                for (final Cursor retired : retiredPages) {
+                    retired.close();
+                }
+            }
+        }.executeOnThreadPool();
+    }
+
+    private void closeOlderPages() {
+        mOlderMessagesGeneration++;
+        mLoadingOlderMessages = false;
+        mRefreshingOlderMessages = false;
+        mMessagesWindow.closeOlderPages();
+    }
+
     /**
      * A trampoline class so that we can inherit from LoaderManager.LoaderCallbacks multiple times.
      */
@@ -463,6 +726,18 @@ public class ConversationData extends BindableData {
     private ConversationListItemData mConversationMetadata;
     private final SubscriptionListData mSubscriptionListData;
     private LoaderManager mLoaderManager;
+    // Number of messages loaded at a time in windowed mode, or 0 to load all of them at once
+    private int mWindowSize;
+    // Messages loaded in windowed mode
+    private final ConversationMessagesWindow mMessagesWindow = new ConversationMessagesWindow();
+    private boolean mHeadWindowPinned;
+    private boolean mLoadingOlderMessages;
+    private boolean mRefreshingOlderMessages;
+    private int mOlderMessagesGeneration;
+    // Row signatures of the last messages cursor published in windowed mode
+    private int[] mPublishedRowSignatures;
+    // Delta from the previous messages cursor, only set while the listeners are being notified
+    private MessagesDelta mMessagesDelta;
     private long mLastMessageTimestamp = LAST_MESSAGE_TIMESTAMP_NaN;
     private int mMessageCount = MESSAGE_COUNT_NaN;
     private String mLastMessageId;
@@ -480,6 +755,9 @@ public class ConversationData extends BindableData {
         mConversationMetadata = new ConversationListItemData();
         mSelfParticipantsData = new SelfParticipantsData();
         mSubscriptionListData = new SubscriptionListData(context);
+        mWindowSize = Math.max(0, BugleGservices.get().getInt(
+                BugleGservicesKeys.CONVERSATION_MESSAGES_WINDOW_SIZE,
+                BugleGservicesKeys.CONVERSATION_MESSAGES_WINDOW_SIZE_DEFAULT));
 
         mListeners = new ConversationDataEventDispatcher();
         mListeners.add(listener);
@@ -527,6 +805,15 @@ public class ConversationData extends BindableData {
     private static final int PARTICIPANT_LOADER = 3;
     private static final int SELF_PARTICIPANT_LOADER = 4;
 
+    /**
+     * Loads all of the conversation's messages at once instead of a window of the newest ones.
+     * Must be called before {@link #init}.
+     */
+    public void disableMessageWindow() {
+        Assert.isNull(mLoaderManager);
+        mWindowSize = 0;
+    }
+
     public void init(final LoaderManager loaderManager,
             final BindingBase<ConversationData> binding) {
         // Remember the binding id so that loader callbacks can check if data is still bound
@@ -536,6 +823,9 @@ public class ConversationData extends BindableData {
         mLoaderManager = loaderManager;
         mLoaderManager.initLoader(CONVERSATION_META_DATA_LOADER, args, mMetadataLoaderCallbacks);
         mLoaderManager.initLoader(CONVERSATION_MESSAGES_LOADER, args, mMessagesLoaderCallbacks);
+        if (mWindowSize > 0) {
+            DataChangeBus.get().addListener(mDataChangeListener);
+        }
         mLoaderManager.initLoader(PARTICIPANT_LOADER, args, mParticipantsLoaderCallbacks);
         mLoaderManager.initLoader(SELF_PARTICIPANT_LOADER, args, mSelfParticipantLoaderCallbacks);
     }
@@ -555,6 +845,8 @@ public class ConversationData extends BindableData {
             mLoaderManager.destroyLoader(SELF_PARTICIPANT_LOADER);
             mLoaderManager = null;
         }
+        DataChangeBus.get().removeListener(mDataChangeListener);
+        closeOlderPages();
     }
 
     /**
@@ -21,11 +21,13 @@ import android.content.Context;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.util.Log;
 
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.BoundCursorLoader;
 import com.android.messaging.datamodel.BugleNotifications;
+import com.android.messaging.datamodel.DataChangeBus;
+import com.android.messaging.datamodel.DataChangeBus.DataChangeListener;
+import com.android.messaging.datamodel.DataChangeBus.DataChanges;
 import com.android.messaging.datamodel.DataModel;
 import com.android.messaging.datamodel.DatabaseHelper;
 import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
@@ -49,7 +51,6 @@ public class ConversationListData extends BindableData
 
     private static final String TAG = LogUtil.BUGLE_DATAMODEL_TAG;
     private static final String BINDING_ID = "bindingId";
-    public static final String SEARCH_SORT = ConversationListViewColumns.SORT_TIMESTAMP + " DESC";
     public static final String SORT_ORDER =
             ConversationListViewColumns.TOP_CHAT + " DESC, "
             + ConversationListViewColumns.SORT_TIMESTAMP + " DESC";
@@ -59,8 +60,14 @@ public class ConversationListData extends BindableData
     public static final String WHERE_NOT_ARCHIVED =
             "(" + ConversationListViewColumns.ARCHIVE_STATUS + " = 0)";
     private FavoritesData mFavoritesData;
+    // Set until the favorites are read, and again when the data layer reports they changed
+    private boolean mFavoritesStale = true;
     private String searchString;
 
+    // Number of search results requested per page
+    private static final int SEARCH_PAGE_SIZE = 100;
+    private int mSearchResultLimit = SEARCH_PAGE_SIZE;
+
     public interface ConversationListDataListener {
         void onConversationListCursorUpdated(ConversationListData data, Cursor cursor, FavoritesData favoritesData);
         void setBlockedParticipantsAvailable(boolean blockedAvailable);
@@ -122,15 +129,14 @@ public class ConversationListData extends BindableData
                             SORT_ORDER);
                     break;
                 case SEARCH_LIST_LOADER:
-                    String whereArgs = "(" + ConversationListViewColumns.PARTS_TEXT + " LIKE " + "\'%" + searchString + "%\'" +
-                            " OR " + ConversationListViewColumns.NAME + " LIKE" + "\'%" + searchString + "%\'" + ")";
-                    Log.i(TAG,"whereArgs:"+whereArgs);
+                    // Results are ranked by the provider, so no selection or sort order here
                     loader = new BoundCursorLoader(bindingId, mContext,
-                            MessagingContentProvider.PARTS_URI,
+                            MessagingContentProvider.buildSearchMessagesUri(searchString,
+                                    mSearchResultLimit, 0 /* offset */),
                             ConversationListItemData.SEARCH_PROJECTION,
-                            whereArgs,
+                            null,       // selection
                             null,       // selection args
-                            SEARCH_SORT);
+                            null);      // sort order
                     break;
                 default:
                     Assert.fail("Unknown loader id");
@@ -163,7 +169,9 @@ public class ConversationListData extends BindableData
                     mListener.isAllReadConversations(data != null && data.getCount() > 0 ? false : true);
                     break;
                 case CONVERSATION_LIST_LOADER:
-                    setupFavoriteData();
+                    if (mFavoritesStale) {
+                        setupFavoriteData();
+                    }
                     mListener.onConversationListCursorUpdated(this, data, mFavoritesData);
                     break;
                 case SEARCH_LIST_LOADER:
@@ -179,6 +187,7 @@ public class ConversationListData extends BindableData
     }
 
     private void setupFavoriteData() {
+        mFavoritesStale = false;
         synchronized (this) {
             ExecutorService executorService = Executors.newFixedThreadPool(1);
             Thread thread = new Thread(new Runnable() {
@@ -239,8 +248,18 @@ public class ConversationListData extends BindableData
         mLoaderManager.initLoader(CONVERSATION_LIST_LOADER, mArgs, this);
         mLoaderManager.initLoader(BLOCKED_PARTICIPANTS_AVAILABLE_LOADER, mArgs, this);
         mLoaderManager.initLoader(HAS_READ_CONVERSATIONS_LOADER, mArgs, this);
+        DataChangeBus.get().addListener(mDataChangeListener);
     }
 
+    private final DataChangeListener mDataChangeListener = new DataChangeListener() {
+        @Override
+        public void onDataChanged(final DataChanges changes) {
+            if (changes.isFavoritesChanged()) {
+                mFavoritesStale = true;
+            }
+        }
+    };
+
     public void handleMessagesSeen() {
         BugleNotifications.markAllMessagesAsSeen();
 
@@ -250,6 +269,7 @@ public class ConversationListData extends BindableData
     @Override
     protected void unregisterListeners() {
         mListener = null;
+        DataChangeBus.get().removeListener(mDataChangeListener);
 
         // This could be null if we bind but the caller doesn't init the BindableData
         if (mLoaderManager != null) {
@@ -284,6 +304,20 @@ public class ConversationListData extends BindableData
                 mLoaderManager.initLoader(SEARCH_LIST_LOADER, mArgs, this);
             }
             this.searchString = searchString;
+            mSearchResultLimit = SEARCH_PAGE_SIZE;
+            mLoaderManager.restartLoader(SEARCH_LIST_LOADER, mArgs, this);
+        }
+    }
+
+    /**
+     * Extends the current search results by another page, called when the user scrolls close to
+     * the end of the loaded results.
+     * @param loadedCount the number of results currently shown
+     */
+    public void loadMoreSearchResults(final int loadedCount) {
+        if (Factory.get().getInSearchMode() == Factory.INSEARCH_MODE && mLoaderManager != null
+                && loadedCount >= mSearchResultLimit) {
+            mSearchResultLimit += SEARCH_PAGE_SIZE;
             mLoaderManager.restartLoader(SEARCH_LIST_LOADER, mArgs, this);
         }
     }
@@ -309,14 +309,33 @@ public class ConversationListItemData {
     }
 
     /**
-     * Get the name of the view for this data item
+     * Get the name of the table for this data item
      */
-    public static final String getConversationListView() {
-        return CONVERSATION_LIST_VIEW;
+    public static final String getConversationListTable() {
+        return CONVERSATION_LIST_TABLE;
     }
 
-    public static final String getConversationListViewSql() {
-        return CONVERSATION_LIST_VIEW_SQL;
+    public static final String getConversationListTableSql() {
+        return CONVERSATION_LIST_TABLE_SQL;
+    }
+
+    public static final String getConversationListIndexSql() {
+        return CONVERSATION_LIST_INDEX_SQL;
+    }
+
+    /**
+     * Get the triggers that keep the conversation list table in sync with the tables it is
+     * built from
+     */
+    public static final String[] getConversationListTriggerSqls() {
+        return CONVERSATION_LIST_TRIGGER_SQLS;
+    }
+
+    /**
+     * Get the sql that fills an empty conversation list table from all conversations
+     */
+    public static final String getPopulateConversationListSql() {
+        return getRefreshConversationListRowsSql(null);
     }
 
     public int getUnreadCount() {
@@ -331,106 +350,219 @@ public class ConversationListItemData {
         return SEARCH_LIST_VIEW_SQL;
     }
 
-    private static final String CONVERSATION_LIST_VIEW = "conversation_list_view";
+    /**
+     * Get the name of the search view column holding the text of the matched part
+     */
+    public static final String getSearchPartsTextColumn() {
+        return ConversationListViewColumns.PARTS_TEXT;
+    }
+
+    private static final String CONVERSATION_LIST_TABLE = "conversation_list";
 
     private static final String SEARCH_LIST_VIEW = "search_list_view";
 
-    private static final String CONVERSATION_LIST_VIEW_PROJECTION =
-            DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID
-            + " as " + ConversationListViewColumns._ID + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NAME
-            + " as " + ConversationListViewColumns.NAME + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.CURRENT_SELF_ID
-            + " as " + ConversationListViewColumns.CURRENT_SELF_ID + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.ARCHIVE_STATUS
-            + " as " + ConversationListViewColumns.ARCHIVE_STATUS + ", "
-            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.READ
-            + " as " + ConversationListViewColumns.READ + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.ICON
-            + " as " + ConversationListViewColumns.ICON + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.PARTICIPANT_CONTACT_ID
-            + " as " + ConversationListViewColumns.PARTICIPANT_CONTACT_ID + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.PARTICIPANT_LOOKUP_KEY
-            + " as " + ConversationListViewColumns.PARTICIPANT_LOOKUP_KEY + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.'
-                    + ConversationColumns.OTHER_PARTICIPANT_NORMALIZED_DESTINATION
-            + " as " + ConversationListViewColumns.OTHER_PARTICIPANT_NORMALIZED_DESTINATION + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SORT_TIMESTAMP
-            + " as " + ConversationListViewColumns.SORT_TIMESTAMP + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SHOW_DRAFT
-            + " as " + ConversationListViewColumns.SHOW_DRAFT + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.DRAFT_SNIPPET_TEXT
-            + " as " + ConversationListViewColumns.DRAFT_SNIPPET_TEXT + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.DRAFT_PREVIEW_URI
-            + " as " + ConversationListViewColumns.DRAFT_PREVIEW_URI + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.DRAFT_SUBJECT_TEXT
-            + " as " + ConversationListViewColumns.DRAFT_SUBJECT_TEXT + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.'
-                    + ConversationColumns.DRAFT_PREVIEW_CONTENT_TYPE
-            + " as " + ConversationListViewColumns.DRAFT_PREVIEW_CONTENT_TYPE + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.PREVIEW_URI
-            + " as " + ConversationListViewColumns.PREVIEW_URI + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.PREVIEW_CONTENT_TYPE
-            + " as " + ConversationListViewColumns.PREVIEW_CONTENT_TYPE + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.PARTICIPANT_COUNT
-            + " as " + ConversationListViewColumns.PARTICIPANT_COUNT + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NOTIFICATION_ENABLED
-            + " as " + ConversationListViewColumns.NOTIFICATION_ENABLED + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NOTIFICATION_SOUND_URI
-            + " as " + ConversationListViewColumns.NOTIFICATION_SOUND_URI + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NOTIFICATION_VIBRATION
-            + " as " + ConversationListViewColumns.NOTIFICATION_VIBRATION + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' +
-                    ConversationColumns.INCLUDE_EMAIL_ADDRESS
-            + " as " + ConversationListViewColumns.INCLUDE_EMAIL_ADDRESS + ", "
-            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.STATUS
-            + " as " + ConversationListViewColumns.MESSAGE_STATUS + ", "
-            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RAW_TELEPHONY_STATUS
-            + " as " + ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS + ", "
-            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
-            + " as " + ConversationListViewColumns.MESSAGE_ID + ", "
-            + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.FIRST_NAME
-            + " as " + ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME + ", "
-            + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.DISPLAY_DESTINATION
-            + " as " + ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION + ","
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.TOP_CHAT
-            + " as " + ConversationListViewColumns.TOP_CHAT + ","
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.UNREAD_COUNT
-            + " as " + ConversationListViewColumns.UNREAD_COUNT;
-
-    private static final String JOIN_PARTICIPANTS =
-            " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE + " ON ("
-            //+ DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.SENDER_PARTICIPANT_ID
-            + "cp" + '.' + DatabaseHelper.ConversationParticipantsColumns.PARTICIPANT_ID
-            + '=' + DatabaseHelper.PARTICIPANTS_TABLE + '.' + DatabaseHelper.ParticipantColumns._ID
-            + ") ";
+    // The conversation list table holds one denormalized row per conversation, so that lists are
+    // read with a single indexed scan instead of joining conversations, messages and participants
+    // on every query. Each entry is { column, type, expression over the source tables }.
+    private static final String[][] CONVERSATION_LIST_COLUMNS = new String[][] {
+        { ConversationListViewColumns._ID, "INTEGER PRIMARY KEY",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID },
+        { ConversationListViewColumns.NAME, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.NAME },
+        { ConversationListViewColumns.CURRENT_SELF_ID, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.CURRENT_SELF_ID },
+        { ConversationListViewColumns.ARCHIVE_STATUS, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.ARCHIVE_STATUS },
+        { ConversationListViewColumns.READ, "INT",
+                DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.READ },
+        { ConversationListViewColumns.ICON, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.ICON },
+        { ConversationListViewColumns.PARTICIPANT_CONTACT_ID, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.PARTICIPANT_CONTACT_ID },
+        { ConversationListViewColumns.PARTICIPANT_LOOKUP_KEY, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.PARTICIPANT_LOOKUP_KEY },
+        { ConversationListViewColumns.OTHER_PARTICIPANT_NORMALIZED_DESTINATION, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.OTHER_PARTICIPANT_NORMALIZED_DESTINATION },
+        { ConversationListViewColumns.SORT_TIMESTAMP, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SORT_TIMESTAMP },
+        { ConversationListViewColumns.SHOW_DRAFT, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SHOW_DRAFT },
+        { ConversationListViewColumns.DRAFT_SNIPPET_TEXT, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.DRAFT_SNIPPET_TEXT },
+        { ConversationListViewColumns.DRAFT_PREVIEW_URI, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.DRAFT_PREVIEW_URI },
+        { ConversationListViewColumns.DRAFT_SUBJECT_TEXT, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.DRAFT_SUBJECT_TEXT },
+        { ConversationListViewColumns.DRAFT_PREVIEW_CONTENT_TYPE, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.DRAFT_PREVIEW_CONTENT_TYPE },
+        { ConversationListViewColumns.PREVIEW_URI, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.PREVIEW_URI },
+        { ConversationListViewColumns.PREVIEW_CONTENT_TYPE, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.PREVIEW_CONTENT_TYPE },
+        { ConversationListViewColumns.PARTICIPANT_COUNT, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.PARTICIPANT_COUNT },
+        { ConversationListViewColumns.NOTIFICATION_ENABLED, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.NOTIFICATION_ENABLED },
+        { ConversationListViewColumns.NOTIFICATION_SOUND_URI, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.NOTIFICATION_SOUND_URI },
+        { ConversationListViewColumns.NOTIFICATION_VIBRATION, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.NOTIFICATION_VIBRATION },
+        { ConversationListViewColumns.INCLUDE_EMAIL_ADDRESS, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.'
+                        + ConversationColumns.INCLUDE_EMAIL_ADDRESS },
+        { ConversationListViewColumns.MESSAGE_STATUS, "INT",
+                DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.STATUS },
+        { ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS, "INT",
+                DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RAW_TELEPHONY_STATUS },
+        { ConversationListViewColumns.MESSAGE_ID, "INT",
+                DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID },
+        { ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME, "TEXT",
+                DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.FIRST_NAME },
+        { ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION, "TEXT",
+                DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns.DISPLAY_DESTINATION },
+        { ConversationListViewColumns.TOP_CHAT, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.TOP_CHAT },
+        { ConversationListViewColumns.UNREAD_COUNT, "INT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.UNREAD_COUNT },
+        { ConversationListViewColumns.SNIPPET_TEXT, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SNIPPET_TEXT },
+        { ConversationListViewColumns.SUBJECT_TEXT, "TEXT",
+                DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SUBJECT_TEXT },
+    };
 
-    private static final String JOIN_CONVERSATION_PARTICIPANTS =
-            " LEFT JOIN (select MIN(" + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + '.' + DatabaseHelper.ConversationParticipantsColumns._ID
-                    + ") as pc_id," + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + '.' + DatabaseHelper.ConversationParticipantsColumns.CONVERSATION_ID
-                    + "," + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + '.' + DatabaseHelper.ConversationParticipantsColumns.PARTICIPANT_ID
-                    + " FROM " + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + " group by " + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + '.' + DatabaseHelper.ConversationParticipantsColumns.CONVERSATION_ID
-                    + ") as cp ON (" + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID
-                    + '=' + "cp" + '.' + DatabaseHelper.ConversationParticipantsColumns.CONVERSATION_ID + ")";
+    private static final String CONVERSATION_LIST_TABLE_SQL;
+    private static final String CONVERSATION_LIST_INSERT_PREFIX;
+    static {
+        final StringBuilder create = new StringBuilder("CREATE TABLE ")
+                .append(CONVERSATION_LIST_TABLE).append(" (");
+        final StringBuilder insert = new StringBuilder("INSERT INTO ")
+                .append(CONVERSATION_LIST_TABLE).append(" (");
+        final StringBuilder select = new StringBuilder();
+        for (int i = 0; i < CONVERSATION_LIST_COLUMNS.length; i++) {
+            final String separator = i == 0 ? "" : ", ";
+            create.append(separator).append(CONVERSATION_LIST_COLUMNS[i][0]).append(' ')
+                    .append(CONVERSATION_LIST_COLUMNS[i][1]);
+            insert.append(separator).append(CONVERSATION_LIST_COLUMNS[i][0]);
+            select.append(separator).append(CONVERSATION_LIST_COLUMNS[i][2]);
+        }
+        CONVERSATION_LIST_TABLE_SQL = create.append(")").toString();
+        CONVERSATION_LIST_INSERT_PREFIX = insert.append(") SELECT ").append(select).toString();
+    }
 
-    // View that makes latest message read flag available with rest of conversation data.
-    private static final String CONVERSATION_LIST_VIEW_SQL = "CREATE VIEW " +
-            CONVERSATION_LIST_VIEW + " AS SELECT "
-            + CONVERSATION_LIST_VIEW_PROJECTION + ", "
-            // Snippet not part of the base projection shared with searchf view
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SNIPPET_TEXT
-            + " as " + ConversationListViewColumns.SNIPPET_TEXT + ", "
-            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns.SUBJECT_TEXT
-            + " as " + ConversationListViewColumns.SUBJECT_TEXT + " "
-            + " FROM " + DatabaseHelper.CONVERSATIONS_TABLE
+    // The snippet sender is the conversation's first participant. Looking it up per
+    // conversation uses the conversation_participants index instead of grouping the whole table.
+    private static final String JOIN_SNIPPET_SENDER =
+            " LEFT JOIN " + DatabaseHelper.PARTICIPANTS_TABLE + " ON ("
+            + DatabaseHelper.PARTICIPANTS_TABLE + '.' + ParticipantColumns._ID + "=(SELECT "
+            + DatabaseHelper.ConversationParticipantsColumns.PARTICIPANT_ID
+            + " FROM " + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + " WHERE "
+            + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + '.'
+            + DatabaseHelper.ConversationParticipantsColumns.CONVERSATION_ID + '='
+            + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID
+            + " ORDER BY " + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + '.'
+            + DatabaseHelper.ConversationParticipantsColumns._ID + " LIMIT 1))";
+
+    private static final String CONVERSATION_LIST_FROM =
+            " FROM " + DatabaseHelper.CONVERSATIONS_TABLE
             + " LEFT JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON ("
             + DatabaseHelper.CONVERSATIONS_TABLE + '.' +  ConversationColumns.LATEST_MESSAGE_ID
-            + '=' + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + ") "
-            + JOIN_CONVERSATION_PARTICIPANTS
-            + JOIN_PARTICIPANTS
-            + "ORDER BY " + DatabaseHelper.CONVERSATIONS_TABLE + '.'
-            + ConversationColumns.SORT_TIMESTAMP + " DESC";
+            + '=' + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + ")"
+            + JOIN_SNIPPET_SENDER;
 
+    /**
+     * @param conversationIds sql for the ids of the conversations to refresh, either a single
+     *        value or a sub-select, or null for all conversations
+     * @return sql that (re)creates the conversation list rows of the given conversations
+     */
+    private static String getRefreshConversationListRowsSql(final String conversationIds) {
+        if (conversationIds == null) {
+            return CONVERSATION_LIST_INSERT_PREFIX + CONVERSATION_LIST_FROM;
+        }
+        // Rows are deleted then inserted rather than replaced, since a conflict clause of the
+        // statement firing the trigger would override the REPLACE
+        return "DELETE FROM " + CONVERSATION_LIST_TABLE + " WHERE "
+                + ConversationListViewColumns._ID + " IN (" + conversationIds + "); "
+                + CONVERSATION_LIST_INSERT_PREFIX + CONVERSATION_LIST_FROM + " WHERE "
+                + DatabaseHelper.CONVERSATIONS_TABLE + '.' + ConversationColumns._ID
+                + " IN (" + conversationIds + ")";
+    }
+
+    // Serves the conversation list and archived list ordered by ConversationListData.SORT_ORDER
+    private static final String CONVERSATION_LIST_INDEX_SQL =
+            "CREATE INDEX index_" + CONVERSATION_LIST_TABLE + "_sort ON " + CONVERSATION_LIST_TABLE
+            + "(" + ConversationListViewColumns.ARCHIVE_STATUS + ", "
+            + ConversationListViewColumns.TOP_CHAT + ", "
+            + ConversationListViewColumns.SORT_TIMESTAMP + ")";
+
+    // Any change to a conversation rebuilds its row. Changes to the other source tables only
+    // touch the rows that show them: the latest message of a conversation, and the first
+    // participant of a conversation.
+    private static final String[] CONVERSATION_LIST_TRIGGER_SQLS = new String[] {
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_conversation_insert_trigger"
+                + " AFTER INSERT ON " + DatabaseHelper.CONVERSATIONS_TABLE
+                + " FOR EACH ROW BEGIN "
+                + getRefreshConversationListRowsSql("NEW." + ConversationColumns._ID) + "; END",
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_conversation_update_trigger"
+                + " AFTER UPDATE ON " + DatabaseHelper.CONVERSATIONS_TABLE
+                + " FOR EACH ROW BEGIN "
+                + getRefreshConversationListRowsSql("NEW." + ConversationColumns._ID) + "; END",
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_conversation_delete_trigger"
+                + " AFTER DELETE ON " + DatabaseHelper.CONVERSATIONS_TABLE
+                + " FOR EACH ROW BEGIN DELETE FROM " + CONVERSATION_LIST_TABLE + " WHERE "
+                + ConversationListViewColumns._ID + "=OLD." + ConversationColumns._ID + "; END",
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_message_update_trigger"
+                + " AFTER UPDATE OF " + MessageColumns.READ + ", " + MessageColumns.STATUS + ", "
+                + MessageColumns.RAW_TELEPHONY_STATUS + " ON " + DatabaseHelper.MESSAGES_TABLE
+                + " FOR EACH ROW BEGIN UPDATE " + CONVERSATION_LIST_TABLE + " SET "
+                + ConversationListViewColumns.READ + "=NEW." + MessageColumns.READ + ", "
+                + ConversationListViewColumns.MESSAGE_STATUS + "=NEW." + MessageColumns.STATUS
+                + ", " + ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS + "=NEW."
+                + MessageColumns.RAW_TELEPHONY_STATUS + " WHERE "
+                + ConversationListViewColumns._ID + "=NEW." + MessageColumns.CONVERSATION_ID
+                + " AND " + ConversationListViewColumns.MESSAGE_ID + "=NEW." + MessageColumns._ID
+                + "; END",
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_message_delete_trigger"
+                + " AFTER DELETE ON " + DatabaseHelper.MESSAGES_TABLE
+                + " FOR EACH ROW BEGIN UPDATE " + CONVERSATION_LIST_TABLE + " SET "
+                + ConversationListViewColumns.READ + "=NULL, "
+                + ConversationListViewColumns.MESSAGE_STATUS + "=NULL, "
+                + ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS + "=NULL, "
+                + ConversationListViewColumns.MESSAGE_ID + "=NULL WHERE "
+                + ConversationListViewColumns._ID + "=OLD." + MessageColumns.CONVERSATION_ID
+                + " AND " + ConversationListViewColumns.MESSAGE_ID + "=OLD." + MessageColumns._ID
+                + "; END",
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_conversation_participant_insert_trigger"
+                + " AFTER INSERT ON " + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE
+                + " FOR EACH ROW BEGIN " + getRefreshConversationListRowsSql(
+                        "NEW." + DatabaseHelper.ConversationParticipantsColumns.CONVERSATION_ID)
+                + "; END",
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_conversation_participant_delete_trigger"
+                + " AFTER DELETE ON " + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE
+                + " FOR EACH ROW BEGIN " + getRefreshConversationListRowsSql(
+                        "OLD." + DatabaseHelper.ConversationParticipantsColumns.CONVERSATION_ID)
+                + "; END",
+        "CREATE TRIGGER " + CONVERSATION_LIST_TABLE + "_participant_update_trigger"
+                + " AFTER UPDATE OF " + ParticipantColumns.FIRST_NAME + ", "
+                + ParticipantColumns.DISPLAY_DESTINATION + " ON "
+                + DatabaseHelper.PARTICIPANTS_TABLE + " FOR EACH ROW WHEN NEW."
+                + ParticipantColumns.FIRST_NAME + " IS NOT OLD." + ParticipantColumns.FIRST_NAME
+                + " OR NEW." + ParticipantColumns.DISPLAY_DESTINATION + " IS NOT OLD."
+                + ParticipantColumns.DISPLAY_DESTINATION + " BEGIN "
+                + getRefreshConversationListRowsSql("SELECT "
+                        + DatabaseHelper.ConversationParticipantsColumns.CONVERSATION_ID
+                        + " FROM " + DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE + " WHERE "
+                        + DatabaseHelper.ConversationParticipantsColumns.PARTICIPANT_ID
+                        + "=NEW." + ParticipantColumns._ID)
+                + "; END",
+    };
 
     //add by zhaoxue.meng for search view
 
@@ -538,6 +670,124 @@ public class ConversationListItemData {
             + "ORDER BY " + DatabaseHelper.PARTS_TABLE + '.'
             + DatabaseHelper.PartColumns.TIMESTAMP + " DESC";
 
+    // Full-text search over message part text, driven from the parts_fts index so that the cost
+    // depends on the number of hits rather than the number of messages. The second half of the
+    // union adds the parts of conversations whose name matches, excluding parts already found by
+    // the full-text half. Bind arguments are: fts match query, name LIKE pattern, fts match query.
+    private static final String SEARCH_RANK = "search_rank";
+    private static final String SEARCH_TIMESTAMP = "search_timestamp";
+
+    // Each phrase hit adds four space separated integers to the offsets() string
+    private static final String SEARCH_FTS_RANK_EXPRESSION =
+            "((length(offsets(" + DatabaseHelper.PARTS_FTS_TABLE + ")) - length(replace(offsets("
+            + DatabaseHelper.PARTS_FTS_TABLE + "), ' ', '')) + 1) / 4)";
+
+    // Columns of the conversation of a hit, read from its conversation list row
+    private static final String[] SEARCH_CONVERSATION_COLUMNS = {
+        ConversationListViewColumns.NAME,
+        ConversationListViewColumns.CURRENT_SELF_ID,
+        ConversationListViewColumns.ARCHIVE_STATUS,
+        ConversationListViewColumns.ICON,
+        ConversationListViewColumns.PARTICIPANT_CONTACT_ID,
+        ConversationListViewColumns.PARTICIPANT_LOOKUP_KEY,
+        ConversationListViewColumns.OTHER_PARTICIPANT_NORMALIZED_DESTINATION,
+        ConversationListViewColumns.SORT_TIMESTAMP,
+        ConversationListViewColumns.SHOW_DRAFT,
+        ConversationListViewColumns.DRAFT_SNIPPET_TEXT,
+        ConversationListViewColumns.DRAFT_PREVIEW_URI,
+        ConversationListViewColumns.DRAFT_SUBJECT_TEXT,
+        ConversationListViewColumns.DRAFT_PREVIEW_CONTENT_TYPE,
+        ConversationListViewColumns.PREVIEW_URI,
+        ConversationListViewColumns.PREVIEW_CONTENT_TYPE,
+        ConversationListViewColumns.PARTICIPANT_COUNT,
+        ConversationListViewColumns.NOTIFICATION_ENABLED,
+        ConversationListViewColumns.NOTIFICATION_SOUND_URI,
+        ConversationListViewColumns.NOTIFICATION_VIBRATION,
+        ConversationListViewColumns.INCLUDE_EMAIL_ADDRESS,
+        ConversationListViewColumns.SNIPPET_SENDER_FIRST_NAME,
+        ConversationListViewColumns.SNIPPET_SENDER_DISPLAY_DESTINATION,
+        ConversationListViewColumns.SNIPPET_TEXT,
+        ConversationListViewColumns.SUBJECT_TEXT,
+    };
+
+    // The part and message columns describe the hit itself, the rest come from the conversation
+    // list row so that search doesn't look up the snippet sender again for every hit
+    private static final String SEARCH_QUERY_PROJECTION;
+    static {
+        final StringBuilder projection = new StringBuilder()
+                .append(DatabaseHelper.PARTS_TABLE).append('.')
+                .append(DatabaseHelper.PartColumns.CONVERSATION_ID)
+                .append(" as ").append(ConversationListViewColumns._ID).append(", ")
+                .append(DatabaseHelper.PARTS_TABLE).append('.')
+                .append(DatabaseHelper.PartColumns.TEXT)
+                .append(" as ").append(ConversationListViewColumns.PARTS_TEXT).append(", ")
+                .append(DatabaseHelper.PARTS_TABLE).append('.')
+                .append(DatabaseHelper.PartColumns.TIMESTAMP)
+                .append(" as ").append(SEARCH_TIMESTAMP).append(", ")
+                .append(DatabaseHelper.MESSAGES_TABLE).append('.').append(MessageColumns.READ)
+                .append(" as ").append(ConversationListViewColumns.READ).append(", ")
+                .append(DatabaseHelper.MESSAGES_TABLE).append('.').append(MessageColumns.STATUS)
+                .append(" as ").append(ConversationListViewColumns.MESSAGE_STATUS).append(", ")
+                .append(DatabaseHelper.MESSAGES_TABLE).append('.')
+                .append(MessageColumns.RAW_TELEPHONY_STATUS)
+                .append(" as ").append(ConversationListViewColumns.MESSAGE_RAW_TELEPHONY_STATUS)
+                .append(", ")
+                .append(DatabaseHelper.MESSAGES_TABLE).append('.').append(MessageColumns._ID)
+                .append(" as ").append(ConversationListViewColumns.MESSAGE_ID);
+        for (final String column : SEARCH_CONVERSATION_COLUMNS) {
+            projection.append(", ").append(CONVERSATION_LIST_TABLE).append('.').append(column)
+                    .append(" as ").append(column);
+        }
+        SEARCH_QUERY_PROJECTION = projection.append(", ").toString();
+    }
+
+    private static final String SEARCH_QUERY_SQL =
+            "SELECT " + SEARCH_QUERY_PROJECTION + SEARCH_FTS_RANK_EXPRESSION + " as " + SEARCH_RANK
+            + " FROM " + DatabaseHelper.PARTS_FTS_TABLE
+            + " JOIN " + DatabaseHelper.PARTS_TABLE + " ON ("
+            + DatabaseHelper.PARTS_TABLE + '.' + DatabaseHelper.PartColumns._ID
+            + '=' + DatabaseHelper.PARTS_FTS_TABLE + ".docid)"
+            + " JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON ("
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID
+            + '=' + DatabaseHelper.PARTS_TABLE + '.' + DatabaseHelper.PartColumns.MESSAGE_ID + ")"
+            + " JOIN " + CONVERSATION_LIST_TABLE + " ON ("
+            + CONVERSATION_LIST_TABLE + '.' + ConversationListViewColumns._ID
+            + '=' + DatabaseHelper.PARTS_TABLE + '.' + DatabaseHelper.PartColumns.CONVERSATION_ID
+            + ")"
+            + " WHERE " + DatabaseHelper.PARTS_FTS_TABLE + " MATCH ? AND "
+            + CONVERSATION_LIST_TABLE + '.' + ConversationListViewColumns.SORT_TIMESTAMP + " > 0"
+            + " UNION ALL "
+            + "SELECT " + SEARCH_QUERY_PROJECTION + "0 as " + SEARCH_RANK
+            + " FROM " + CONVERSATION_LIST_TABLE
+            + " JOIN " + DatabaseHelper.MESSAGES_TABLE + " ON ("
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.CONVERSATION_ID
+            + '=' + CONVERSATION_LIST_TABLE + '.' + ConversationListViewColumns._ID + ")"
+            + " JOIN " + DatabaseHelper.PARTS_TABLE + " ON ("
+            + DatabaseHelper.PARTS_TABLE + '.' + DatabaseHelper.PartColumns.MESSAGE_ID
+            + '=' + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + ")"
+            + " WHERE " + CONVERSATION_LIST_TABLE + '.' + ConversationListViewColumns.NAME
+            + " LIKE ? ESCAPE '\\' AND "
+            + CONVERSATION_LIST_TABLE + '.' + ConversationListViewColumns.SORT_TIMESTAMP + " > 0"
+            + " AND " + DatabaseHelper.PARTS_TABLE + '.' + DatabaseHelper.PartColumns._ID
+            + " NOT IN (SELECT docid FROM " + DatabaseHelper.PARTS_FTS_TABLE
+            + " WHERE " + DatabaseHelper.PARTS_FTS_TABLE + " MATCH ?)";
+
+    /**
+     * Order for full-text search results: best match first, then most recent conversation and
+     * message.
+     */
+    public static final String SEARCH_QUERY_SORT_ORDER =
+            SEARCH_RANK + " DESC, " + ConversationListViewColumns.SORT_TIMESTAMP + " DESC, "
+            + SEARCH_TIMESTAMP + " DESC";
+
+    /**
+     * Get the raw sql used for full-text message search. The result columns are a superset of
+     * {@link #SEARCH_PROJECTION}.
+     */
+    public static final String getSearchQuerySql() {
+        return SEARCH_QUERY_SQL;
+    }
+
     public static class ConversationListViewColumns implements BaseColumns {
         public static final String _ID = ConversationColumns._ID;
         static final String NAME = ConversationColumns.NAME;
@@ -692,7 +942,7 @@ public class ConversationListItemData {
         Cursor cursor = null;
         try {
             // TODO: Should we be able to read a row from just the conversation table?
-            cursor = dbWrapper.query(getConversationListView(),
+            cursor = dbWrapper.query(getConversationListTable(),
                     PROJECTION,
                     ConversationColumns._ID + "=?",
                     new String[] { conversationId },
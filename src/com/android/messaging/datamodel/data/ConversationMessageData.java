@@ -638,6 +638,82 @@ public class ConversationMessageData {
                 + CONVERSATION_MESSAGES_QUERY_SQL_GROUP_BY;
     }
 
+    /**
+     * Query for a window of a conversation's messages, newest first, bounded by the (received
+     * timestamp, message id) keyset of its messages. Takes the conversation id, then the
+     * timestamp, timestamp and id of each bound as arguments.
+     * @param hasFromBound whether to only include messages at or after a message
+     * @param hasBeforeBound whether to only include messages before a message
+     * @param limit maximum number of messages, or 0 for no limit
+     */
+    public static final String getConversationMessagesWindowQuerySql(final boolean hasFromBound,
+            final boolean hasBeforeBound, final int limit) {
+        return CONVERSATION_MESSAGES_QUERY_SQL
+                + " AND "
+                + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID + "=?"
+                + (hasFromBound ? " AND " + MESSAGE_KEY_FROM_SQL : "")
+                + (hasBeforeBound ? " AND " + MESSAGE_KEY_BEFORE_SQL : "")
+                + ")"
+                + CONVERSATION_MESSAGES_WINDOW_QUERY_SQL_GROUP_BY
+                + (limit > 0 ? " LIMIT " + limit : "");
+    }
+
+    /**
+     * Query for the key of the message a window of the given size starts at, which only reads
+     * the messages table. Takes the conversation id and, if there is a before bound, its
+     * timestamp, timestamp and id as arguments.
+     */
+    public static final String getConversationMessagesWindowStartQuerySql(
+            final boolean hasBeforeBound, final int windowSize) {
+        return "SELECT " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.RECEIVED_TIMESTAMP
+                + ", " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns._ID
+                + " FROM " + DatabaseHelper.MESSAGES_TABLE
+                + " WHERE " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.CONVERSATION_ID
+                + "=? AND " + DatabaseHelper.MESSAGES_TABLE + "." + MessageColumns.STATUS
+                + " <> " + MessageData.BUGLE_STATUS_OUTGOING_DRAFT
+                + (hasBeforeBound ? " AND " + MESSAGE_KEY_BEFORE_SQL : "")
+                + MESSAGE_KEY_ORDER_BY_SQL
+                + " LIMIT 1 OFFSET " + (windowSize - 1);
+    }
+
+    /**
+     * @return the key of the message at the cursor's position, used to bound windows of messages
+     */
+    static String getMessageKey(final Cursor cursor) {
+        return makeMessageKey(cursor.getLong(INDEX_RECEIVED_TIMESTAMP),
+                cursor.getString(INDEX_MESSAGE_ID));
+    }
+
+    /**
+     * @return the id of the message at the cursor's position
+     */
+    static String getMessageId(final Cursor cursor) {
+        return cursor.getString(INDEX_MESSAGE_ID);
+    }
+
+    /**
+     * @return the id of the sender of the message at the cursor's position
+     */
+    static String getSenderParticipantId(final Cursor cursor) {
+        return cursor.getString(INDEX_PARTICIPANT_ID);
+    }
+
+    public static String makeMessageKey(final long receivedTimestamp, final String messageId) {
+        return receivedTimestamp + "," + messageId;
+    }
+
+    /**
+     * @return the arguments for a bound on the given message key, or null if it is malformed
+     */
+    public static String[] getMessageKeyArgs(final String messageKey) {
+        final int separator = messageKey.indexOf(',');
+        if (separator <= 0) {
+            return null;
+        }
+        final String timestamp = messageKey.substring(0, separator);
+        return new String[] { timestamp, timestamp, messageKey.substring(separator + 1) };
+    }
+
     static final String getConversationMessageIdsQuerySql() {
         return CONVERSATION_MESSAGES_IDS_QUERY_SQL
                 + " AND "
@@ -814,6 +890,26 @@ public class ConversationMessageData {
           + " ORDER BY "
           + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC";
 
+    // Windows are paged by (received timestamp, id), so the id breaks ties in the order
+    private static final String MESSAGE_KEY_ORDER_BY_SQL =
+            " ORDER BY "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + " DESC, "
+            + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + " DESC";
+
+    private static final String CONVERSATION_MESSAGES_WINDOW_QUERY_SQL_GROUP_BY =
+            " GROUP BY " + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID
+          + MESSAGE_KEY_ORDER_BY_SQL;
+
+    private static final String MESSAGE_KEY_FROM_SQL =
+            "(" + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + ">?"
+            + " OR (" + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP
+            + "=? AND " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + ">=?))";
+
+    private static final String MESSAGE_KEY_BEFORE_SQL =
+            "(" + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP + "<?"
+            + " OR (" + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns.RECEIVED_TIMESTAMP
+            + "=? AND " + DatabaseHelper.MESSAGES_TABLE + '.' + MessageColumns._ID + "<?))";
+
     private static final String NOTIFICATION_QUERY_SQL_GROUP_BY =
             " GROUP BY " + DatabaseHelper.PARTS_TABLE + '.' + PartColumns.MESSAGE_ID
           + " ORDER BY "
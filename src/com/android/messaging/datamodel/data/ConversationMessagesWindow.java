@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The messages of a conversation loaded in windowed mode: the head, which is the latest cursor of
+ * the messages loader, and the pages of older messages loaded since. All cursors are sorted DESC
+ * and keep their rows; the cursor handed to the UI only wraps them, oldest message first.
+ * Not thread safe, it's used on the main thread.
+ */
+class ConversationMessagesWindow {
+    /**
+     * A cursor with the signatures of its rows, computed where it was loaded so that a reload
+     * can be compared with the previous one without going over its rows on the main thread
+     */
+    static class SignedCursor extends CursorWrapper {
+        private final int[] mRowSignatures;
+        private final int mSignature;
+
+        SignedCursor(final Cursor cursor) {
+            super(cursor);
+            mRowSignatures = getRowSignatures(cursor);
+            mSignature = Arrays.hashCode(mRowSignatures);
+        }
+
+        int getSignature() {
+            return mSignature;
+        }
+
+        /**
+         * @return the signature of each row, in the order of the cursor
+         */
+        int[] getRowSignatures() {
+            return mRowSignatures;
+        }
+    }
+
+    private SignedCursor mHead;
+    // Key of the oldest message of the head, if the head is limited
+    private String mHeadWindowStart;
+    // Older pages, newest page first
+    private final List<SignedCursor> mOlderPages = new ArrayList<SignedCursor>();
+    private String mOldestLoadedKey;
+    private boolean mHasOlderMessages;
+
+    /**
+     * Limits the head to the messages from the given key on, or to none if it's null
+     */
+    void setHeadWindowStart(final String headWindowStart) {
+        mHeadWindowStart = headWindowStart;
+        mOldestLoadedKey = headWindowStart;
+        mHasOlderMessages = headWindowStart != null;
+    }
+
+    String getHeadWindowStart() {
+        return mHeadWindowStart;
+    }
+
+    /**
+     * Replaces the head
+     * @return whether its contents changed; the first head always counts as a change
+     */
+    boolean setHead(final SignedCursor head) {
+        final boolean changed = mHead == null || mHead.getSignature() != head.getSignature();
+        mHead = head;
+        return changed;
+    }
+
+    Cursor getHead() {
+        return mHead;
+    }
+
+    /**
+     * Drops the head, e.g. when the loader is reset
+     */
+    void clearHead() {
+        mHead = null;
+    }
+
+    boolean hasOlderPages() {
+        return !mOlderPages.isEmpty();
+    }
+
+    boolean hasOlderMessages() {
+        return mHasOlderMessages;
+    }
+
+    /**
+     * @return the key of the oldest message loaded, which bounds the next page
+     */
+    String getOldestLoadedKey() {
+        return mOldestLoadedKey;
+    }
+
+    /**
+     * Adds the next page of older messages. A page shorter than the page size is the last one.
+     */
+    void addOlderPage(final SignedCursor page, final int pageSize) {
+        if (page.getCount() < pageSize) {
+            mHasOlderMessages = false;
+        }
+        if (page.getCount() > 0) {
+            mOlderPages.add(page);
+            if (page.moveToLast()) {
+                mOldestLoadedKey = ConversationMessageData.getMessageKey(page);
+            }
+        } else {
+            page.close();
+        }
+    }
+
+    /**
+     * Replaces all the older pages with one page that was queried again over the same range
+     * @return the replaced pages, to be closed once the UI has moved off them
+     */
+    List<Cursor> replaceOlderPages(final SignedCursor pages) {
+        final List<Cursor> retired = new ArrayList<Cursor>(mOlderPages);
+        mOlderPages.clear();
+        if (pages.getCount() > 0) {
+            mOlderPages.add(pages);
+            if (pages.moveToLast()) {
+                mOldestLoadedKey = ConversationMessageData.getMessageKey(pages);
+            }
+        } else {
+            retired.add(pages);
+            mOldestLoadedKey = mHeadWindowStart;
+        }
+        return retired;
+    }
+
+    /**
+     * @return whether any of the given messages is in the older pages
+     */
+    boolean olderPagesContain(final Set<String> messageIds) {
+        for (final SignedCursor page : mOlderPages) {
+            page.moveToPosition(-1);
+            while (page.moveToNext()) {
+                if (messageIds.contains(ConversationMessageData.getMessageId(page))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether any of the given participants sent a message in the older pages
+     */
+    boolean olderPagesContainSenders(final Set<String> participantIds) {
+        if (participantIds.isEmpty()) {
+            return false;
+        }
+        for (final SignedCursor page : mOlderPages) {
+            page.moveToPosition(-1);
+            while (page.moveToNext()) {
+                if (participantIds.contains(
+                        ConversationMessageData.getSenderParticipantId(page))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    void closeOlderPages() {
+        for (final Cursor cursor : mOlderPages) {
+            cursor.close();
+        }
+        mOlderPages.clear();
+        mOldestLoadedKey = mHeadWindowStart;
+        mHasOlderMessages = mHeadWindowStart != null;
+    }
+
+    /**
+     * @return all the loaded messages, oldest first
+     */
+    Cursor buildMessagesCursor() {
+        if (mOlderPages.isEmpty()) {
+            return new ConversationData.ReversedCursor(mHead);
+        }
+        final Cursor[] cursors = new Cursor[mOlderPages.size() + 1];
+        for (int i = 0; i < mOlderPages.size(); i++) {
+            cursors[mOlderPages.size() - 1 - i] =
+                    new ConversationData.ReversedCursor(mOlderPages.get(i));
+        }
+        cursors[cursors.length - 1] = new ConversationData.ReversedCursor(mHead);
+        return new MergeCursor(cursors);
+    }
+
+    /**
+     * @return the signatures of all the loaded messages, in the order of
+     *     {@link #buildMessagesCursor}
+     */
+    int[] getRowSignatures() {
+        int count = mHead.getCount();
+        for (final SignedCursor page : mOlderPages) {
+            count += page.getCount();
+        }
+        final int[] signatures = new int[count];
+        int position = 0;
+        for (int i = mOlderPages.size() - 1; i >= 0; i--) {
+            position = copyReversed(mOlderPages.get(i).getRowSignatures(), signatures, position);
+        }
+        copyReversed(mHead.getRowSignatures(), signatures, position);
+        return signatures;
+    }
+
+    private static int copyReversed(final int[] source, final int[] destination,
+            final int start) {
+        for (int i = 0; i < source.length; i++) {
+            destination[start + i] = source[source.length - 1 - i];
+        }
+        return start + source.length;
+    }
+
+    /**
+     * @return a hash of the contents of each row of the cursor, to tell which rows a reload
+     *     changed
+     */
+    static int[] getRowSignatures(final Cursor cursor) {
+        final int[] signatures = new int[cursor.getCount()];
+        final int columnCount = cursor.getColumnCount();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            int signature = 0;
+            for (int column = 0; column < columnCount; column++) {
+                if (cursor.getType(column) != Cursor.FIELD_TYPE_BLOB) {
+                    final String value = cursor.getString(column);
+                    signature = 31 * signature + (value == null ? 0 : value.hashCode());
+                }
+            }
+            signatures[cursor.getPosition()] = signature;
+        }
+        return signatures;
+    }
+}
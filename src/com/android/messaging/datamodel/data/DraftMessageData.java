@@ -112,6 +112,11 @@ public class DraftMessageData extends BindableData implements ReadDraftDataActio
      * may skip loading from database if we are still bound */
     private boolean mIsDraftCachedCopy;
 
+    /** Whether the user added attachments to the draft. Only then are the attachments prepared
+     * for sending ahead of time; the attachments of a draft that was just loaded are prepared
+     * if it's sent */
+    private boolean mAttachmentsAdded;
+
     /** Whether we are currently asynchronously validating the draft before sending. */
     private CheckDraftForSendTask mCheckDraftForSendTask;
 
@@ -204,6 +209,7 @@ public class DraftMessageData extends BindableData implements ReadDraftDataActio
 
     private void clearLocalDraftCopy() {
         mIsDraftCachedCopy = false;
+        mAttachmentsAdded = false;
         mAttachments.clear();
         setMessageText("");
         setMessageSubject("");
@@ -314,6 +320,7 @@ public class DraftMessageData extends BindableData implements ReadDraftDataActio
         if (reachedLimit) {
             dispatchAttachmentLimitReached();
         }
+        mAttachmentsAdded = true;
         dispatchChanged(ATTACHMENTS_CHANGED);
     }
 
@@ -511,6 +518,7 @@ public class DraftMessageData extends BindableData implements ReadDraftDataActio
                     updatedAttachment.setSinglePartOnly(true);
                 }
                 mAttachments.add(updatedAttachment);
+                mAttachmentsAdded = true;
                 dispatchChanged(ATTACHMENTS_CHANGED);
                 return;
             }
@@ -672,6 +680,11 @@ public class DraftMessageData extends BindableData implements ReadDraftDataActio
             mCheckDraftForSendTask.cancel(true /* mayInterruptIfRunning */);
             mCheckDraftForSendTask = null;
         }
+        // The user changed the attachments or the subscription they are sent from, so get the
+        // attachments ready for sending while the user finishes the message
+        if (mAttachmentsAdded && (changeFlags & (ATTACHMENTS_CHANGED | SELF_CHANGED)) != 0) {
+            MmsUtils.prepareAttachmentsForSending(mAttachments, getSelfSubId());
+        }
         mListeners.onDraftChanged(this, changeFlags);
     }
 
@@ -37,6 +37,7 @@ import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.ContentType;
+import com.android.messaging.util.GifReencoder;
 import com.android.messaging.util.GifTranscoder;
 import com.android.messaging.util.ImageUtils;
 import com.android.messaging.util.LogUtil;
@@ -481,14 +482,20 @@ public class MessagePartData implements Parcelable {
             // No limit is imposed on non-attachment part (i.e. plain text), so treat it as zero.
             return NO_MINIMUM_SIZE;
         } else if (isImage()) {
-            // GIFs are resized by the native transcoder (exposed by GifTranscoder).
+            // GIFs are resized by the native transcoder (exposed by GifTranscoder) or the Java
+            // re-encoder (GifReencoder).
             if (ImageUtils.isGif(mContentType, mContentUri)) {
                 final long originalImageSize = UriUtil.getContentSize(mContentUri);
                 // Wish we could save the size here, but we don't have a part id yet
                 decodeAndSaveSizeIfImage(false /* saveToStorage */);
-                return GifTranscoder.canBeTranscoded(mWidth, mHeight) ?
+                long minimumSize = GifTranscoder.canBeTranscoded(mWidth, mHeight) ?
                         GifTranscoder.estimateFileSizeAfterTranscode(originalImageSize)
                         : originalImageSize;
+                if (GifReencoder.isEnabled()) {
+                    minimumSize = Math.min(minimumSize, GifReencoder.estimateMinimumFileSize(
+                            mWidth, mHeight, originalImageSize));
+                }
+                return minimumSize;
             }
             // Other images should be arbitrarily resized by ImageResizer before sending.
             return MmsUtils.MIN_IMAGE_BYTE_SIZE;
@@ -23,6 +23,7 @@ import com.android.messaging.Factory;
 import com.android.messaging.R;
 import com.android.messaging.util.Assert;
 import com.android.messaging.util.AvatarUriUtil;
+import com.android.messaging.util.ContactUtil;
 import com.android.messaging.util.ImageUtils;
 import com.android.messaging.util.UriUtil;
 
@@ -50,6 +51,33 @@ public class AvatarRequestDescriptor extends UriImageRequestDescriptor {
         this.isWearBackground = isWearBackground;
     }
 
+    @Override
+    public String getDiskCacheNamespace() {
+        if (uri == null) {
+            return null;
+        }
+        final String avatarType = AvatarUriUtil.getAvatarType(uri);
+        if (UriUtil.isLocalResourceUri(uri)
+                || AvatarUriUtil.TYPE_LOCAL_RESOURCE_URI.equals(avatarType)) {
+            return MediaDiskCache.NAMESPACE_CONTACT_PHOTOS;
+        } else if (AvatarUriUtil.TYPE_SIM_SELECTOR_URI.equals(avatarType)) {
+            // Cheap to render and themed by the SIM color
+            return null;
+        }
+        return MediaDiskCache.NAMESPACE_AVATARS;
+    }
+
+    @Override
+    public String getDiskCacheVersion(final Context context) {
+        if (!MediaDiskCache.NAMESPACE_CONTACT_PHOTOS.equals(getDiskCacheNamespace())) {
+            return super.getDiskCacheVersion(context);
+        }
+        // Contact photos can change without their uri changing
+        final Uri photoUri = UriUtil.isLocalResourceUri(uri) ? uri :
+                AvatarUriUtil.getPrimaryUri(uri);
+        return photoUri == null ? null : ContactUtil.getPhotoVersion(context, photoUri);
+    }
+
     @Override
     public MediaRequest<ImageResource> buildSyncMediaRequest(final Context context) {
         final String avatarType = uri == null ? null : AvatarUriUtil.getAvatarType(uri);
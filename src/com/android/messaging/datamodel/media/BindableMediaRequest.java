@@ -28,6 +28,8 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
         extends BindableOnceData
         implements MediaRequest<T>, MediaResourceLoadListener<T> {
     private MediaResourceLoadListener<T> mListener;
+    // Drops the queued loading work for this request, if any, when it is unbound
+    private volatile Runnable mOnUnboundListener;
 
     public BindableMediaRequest(final MediaResourceLoadListener<T> listener) {
         mListener = listener;
@@ -56,8 +58,21 @@ public abstract class BindableMediaRequest<T extends RefCountedMediaResource>
         }
     }
 
+    /**
+     * Sets a callback to run when this request is unbound. Used by the scheduler to drop the
+     * request's loading work if it hasn't started yet.
+     */
+    void setOnUnboundListener(final Runnable listener) {
+        mOnUnboundListener = listener;
+    }
+
     @Override
     protected void unregisterListeners() {
         mListener = null;
+        final Runnable onUnboundListener = mOnUnboundListener;
+        mOnUnboundListener = null;
+        if (onUnboundListener != null) {
+            onUnboundListener.run();
+        }
     }
 }
@@ -37,10 +37,11 @@ public class BugleMediaCacheManager extends MediaCacheManager {
     protected MediaCache<?> createMediaCacheById(final int id) {
         switch (id) {
             case DEFAULT_IMAGE_CACHE:
-                return new PoolableImageCache(SHARED_IMAGE_CACHE_SIZE, id, "DefaultImageCache");
+                return new PoolableImageCache(SHARED_IMAGE_CACHE_SIZE, id, "DefaultImageCache",
+                        getSharedBitmapPool());
 
             case AVATAR_IMAGE_CACHE:
-                return new PoolableImageCache(id, "AvatarImageCache");
+                return new PoolableImageCache(id, "AvatarImageCache", getSharedBitmapPool());
 
             case VCARD_CACHE:
                 return new MediaCache<VCardResource>(VCARD_CACHE_SIZE, id, "VCardCache");
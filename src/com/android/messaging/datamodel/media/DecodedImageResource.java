@@ -124,7 +124,8 @@ public class DecodedImageResource extends ImageResource {
         acquireLock();
         try {
             if (mBitmap != null) {
-                mBitmap.recycle();
+                // Nobody references the bitmap anymore, so let another image reuse it
+                MediaCacheManager.get().getSharedBitmapPool().reclaimBitmap(mBitmap);
                 mBitmap = null;
             }
         } finally {
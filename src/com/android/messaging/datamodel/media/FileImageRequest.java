@@ -76,7 +76,7 @@ public class FileImageRequest extends UriImageRequest {
                     // the thumbnail itself but at least on some phones, the thumbnail
                     // doesn't have an orientation tag. So use the outer image's orientation
                     // tag and hope for the best.
-                    mOrientation = ImageUtils.getOrientation(getInputStreamForResource());
+                    mOrientation = readOrientation();
                     if (com.android.messaging.util.exif.ExifInterface.
                             getOrientationParams(mOrientation).invertDimensions) {
                         mDescriptor.updateSourceDimensions(options.outHeight, options.outWidth);
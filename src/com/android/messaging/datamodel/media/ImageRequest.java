@@ -125,6 +125,13 @@ public abstract class ImageRequest<D extends ImageRequestDescriptor>
         }
     }
 
+    /**
+     * Reads the exif orientation of the image resource.
+     */
+    protected int readOrientation() throws FileNotFoundException {
+        return ImageUtils.getOrientation(getInputStreamForResource());
+    }
+
     protected boolean isGif() throws FileNotFoundException {
         return ImageUtils.isGif(getInputStreamForResource());
     }
@@ -147,7 +154,7 @@ public abstract class ImageRequest<D extends ImageRequestDescriptor>
             return bitmap;
         }
 
-        mOrientation = ImageUtils.getOrientation(getInputStreamForResource());
+        mOrientation = readOrientation();
 
         final BitmapFactory.Options options = PoolableImageCache.getBitmapOptionsForPool(
                 false /* scaled */, 0 /* inputDensity */, 0 /* targetDensity */);
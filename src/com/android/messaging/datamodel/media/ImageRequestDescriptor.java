@@ -104,6 +104,24 @@ public abstract class ImageRequestDescriptor extends MediaRequestDescriptor<Imag
         return isStatic;
     }
 
+    /**
+     * Returns the {@link MediaDiskCache} namespace the loaded image should be persisted in, or
+     * null if it should only be cached in memory. Subclasses opt in for images that are small
+     * once loaded but expensive to produce.
+     */
+    public String getDiskCacheNamespace() {
+        return null;
+    }
+
+    /**
+     * Returns the version of the source of the image. Persisted images of another version are
+     * stale and get loaded again. Images whose source never changes for a key have an empty
+     * version; null means the version can't be determined, so the disk cache is skipped.
+     */
+    public String getDiskCacheVersion(final Context context) {
+        return "";
+    }
+
     @Override
     public abstract MediaRequest<ImageResource> buildSyncMediaRequest(Context context);
 
@@ -19,6 +19,8 @@ import android.util.LruCache;
 
 import com.android.messaging.util.LogUtil;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A modified LruCache that is able to hold RefCountedMediaResource instances. It releases
  * ref on the entries as they are evicted from the cache, and it uses the media resource
@@ -37,6 +39,9 @@ public class MediaCache<T extends RefCountedMediaResource> extends LruCache<Stri
     private final int mId;
     // Descriptive name given to the cache for debugging purposes.
     private final String mName;
+    // Size in kilobytes of the cached resources that have refs besides the cache's, kept up to
+    // date by the resources as their refs change
+    private final AtomicInteger mInUseSizeKb = new AtomicInteger();
 
     // Convenience constructor that uses the default cache size.
     public MediaCache(final int id, final String name) {
@@ -88,15 +93,29 @@ public class MediaCache<T extends RefCountedMediaResource> extends LruCache<Stri
      */
     public synchronized T addResourceToCache(final String key, final T mediaResource) {
         mediaResource.addRef();
+        mediaResource.setCacheInUseCounter(mInUseSizeKb, sizeOf(key, mediaResource));
         return put(key, mediaResource);
     }
 
+    /**
+     * @return the size in kilobytes of the cached resources that are also referenced outside of
+     * the cache, e.g. by views that are displaying them. Kept as the refs change, so this is
+     * cheap enough to call while scrolling.
+     */
+    public int getInUseSizeKb() {
+        return mInUseSizeKb.get();
+    }
+
     /**
      * Notify the removed entry that is no longer being cached
      */
     @Override
     protected synchronized void entryRemoved(final boolean evicted, final String key,
             final T oldValue, final T newValue) {
+        // The same resource may be put again under its key, and then stays in the cache
+        if (oldValue != newValue) {
+            oldValue.setCacheInUseCounter(null, 0);
+        }
         oldValue.release();
     }
 
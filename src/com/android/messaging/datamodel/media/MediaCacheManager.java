@@ -32,9 +32,15 @@ public abstract class MediaCacheManager implements MemoryCache {
 
     protected final SparseArray<MediaCache<?>> mCaches;
 
+    // Bitmaps that are no longer cached, for reuse by any of the caches
+    private final SharedBitmapPool mBitmapPool;
+
     public MediaCacheManager() {
         mCaches = new SparseArray<MediaCache<?>>();
+        mBitmapPool = new SharedBitmapPool(
+                SharedBitmapPool.getDefaultBudgetBytes(Factory.get().getApplicationContext()));
         MemoryCacheManager.get().registerMemoryCache(this);
+        MemoryCacheManager.get().registerMemoryCache(mBitmapPool);
     }
 
     @Override
@@ -65,5 +71,12 @@ public abstract class MediaCacheManager implements MemoryCache {
         return null;
     }
 
+    /**
+     * @return the pool of unused bitmaps shared by all caches, with one budget for all of them
+     */
+    public SharedBitmapPool getSharedBitmapPool() {
+        return mBitmapPool;
+    }
+
     protected abstract MediaCache<?> createMediaCacheById(final int id);
 }
\ No newline at end of file
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import android.graphics.Bitmap;
+import android.support.annotation.Nullable;
+
+import com.android.messaging.Factory;
+import com.android.messaging.datamodel.media.PoolableImageCache.ReusableImageResourcePool;
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A size-bounded LRU cache of decoded bitmaps on disk, sitting behind the in-memory
+ * {@link MediaCache}s. It holds images that are expensive to produce but small once scaled, such
+ * as cropped contact photos, rendered letter tiles and video thumbnails, so that they don't have
+ * to be produced again after the process restarts.
+ *
+ * Bitmaps are stored as raw ARGB_8888 pixels after they have been scaled and cropped, so a hit
+ * only needs to copy the pixels into a (pooled) bitmap. Entries are grouped by namespace, and
+ * each records the version of its source, e.g. the last update time of a contact for its photo,
+ * so that entries whose source changed are dropped when they're read.
+ */
+public class MediaDiskCache {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+
+    /** Avatars that only depend on their uri, i.e. letter tiles and default avatars */
+    public static final String NAMESPACE_AVATARS = "avatars";
+    /** Avatars loaded from a contact photo, which may change without the uri changing */
+    public static final String NAMESPACE_CONTACT_PHOTOS = "contact_photos";
+    public static final String NAMESPACE_VIDEO_THUMBNAILS = "video_thumbnails";
+
+    private static final String CACHE_DIR = "media_disk_cache";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int MAX_CACHE_SIZE_BYTES = 8 * 1024 * 1024;   // 8MB
+    private static final int MAX_ENTRY_SIZE_BYTES = MAX_CACHE_SIZE_BYTES / 16;
+
+    private static final int MAGIC = 0x42444332;   // "BDC2"
+
+    // Reads only move an entry's modification time, which persists the LRU order across
+    // restarts, if it's older than this, so that most hits don't write to the file system
+    private static final long TOUCH_INTERVAL_MILLIS = 60 * 60 * 1000;   // 1 hour
+
+    private static MediaDiskCache sInstance;
+
+    private final File mRootDir;
+    private final long mMaxSizeBytes;
+    // Entry files in least to most recently used order, mapped to their size. Loaded lazily
+    // from the files on disk on first access.
+    private LinkedHashMap<File, Long> mEntries;
+    private long mSizeBytes;
+    // Pixels are read into this buffer and copied into the bitmap from there. Grown to the
+    // largest entry read so far, at most MAX_ENTRY_SIZE_BYTES, and guarded by itself.
+    private final Object mPixelBufferLock = new Object();
+    private ByteBuffer mPixelBuffer;
+
+    public static synchronized MediaDiskCache get() {
+        if (sInstance == null) {
+            sInstance = new MediaDiskCache(
+                    new File(Factory.get().getApplicationContext().getCacheDir(), CACHE_DIR),
+                    MAX_CACHE_SIZE_BYTES);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    MediaDiskCache(final File rootDir, final long maxSizeBytes) {
+        mRootDir = rootDir;
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Reads a bitmap from the cache.
+     * @param version version of the source of the image, see
+     *     {@link ImageRequestDescriptor#getDiskCacheVersion}
+     * @param pool optional pool to get the bitmap from
+     * @return the cached bitmap and its orientation, or null on a miss or if the entry is of
+     *     another version
+     */
+    @DoesNotRunOnMainThread
+    @Nullable
+    public Entry get(final String namespace, final String key, final String version,
+            @Nullable final ReusableImageResourcePool pool) {
+        final File file = getFile(namespace, key);
+        synchronized (this) {
+            ensureLoaded();
+            if (mEntries.get(file) == null) {
+                return null;
+            }
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || !key.equals(in.readUTF())
+                    || !version.equals(in.readUTF())) {
+                // Corrupt entry, hash collision or stale entry
+                remove(file);
+                return null;
+            }
+            final int width = in.readInt();
+            final int height = in.readInt();
+            final int orientation = in.readInt();
+            // Check the dimensions before allocating anything for them, since a corrupt entry
+            // could otherwise overflow the size or ask for more memory than there is
+            final long pixelBytes = (long) width * height * 4;
+            if (width <= 0 || height <= 0 || pixelBytes > MAX_ENTRY_SIZE_BYTES
+                    || pixelBytes > file.length()) {
+                LogUtil.w(TAG, "MediaDiskCache: dropping entry of invalid size " + width + "x"
+                        + height);
+                remove(file);
+                return null;
+            }
+
+            final Bitmap bitmap = (pool != null) ? pool.createOrReuseBitmap(width, height) :
+                    Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            if (bitmap == null) {
+                return null;
+            }
+            synchronized (mPixelBufferLock) {
+                final ByteBuffer pixels = getPixelBuffer((int) pixelBytes);
+                in.readFully(pixels.array(), 0, (int) pixelBytes);
+                bitmap.copyPixelsFromBuffer(pixels);
+            }
+            touch(file);
+            return new Entry(bitmap, orientation);
+        } catch (final Exception e) {
+            LogUtil.w(TAG, "MediaDiskCache: failed to read entry", e);
+            remove(file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes a bitmap to the cache. Bitmaps that are not ARGB_8888 or are too large to be worth
+     * persisting are skipped.
+     * @param version version of the source the bitmap was loaded from
+     */
+    @DoesNotRunOnMainThread
+    public void put(final String namespace, final String key, final String version,
+            final Bitmap bitmap, final int orientation) {
+        if (bitmap == null || bitmap.isRecycled()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+            return;
+        }
+        final int pixelBytes = bitmap.getByteCount();
+        if (pixelBytes > MAX_ENTRY_SIZE_BYTES) {
+            return;
+        }
+
+        final File file = getFile(namespace, key);
+        final File tempFile = new File(file.getPath() + TEMP_FILE_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            final File dir = file.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                return;
+            }
+            final ByteBuffer pixels = ByteBuffer.allocate(pixelBytes);
+            bitmap.copyPixelsToBuffer(pixels);
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeUTF(key);
+            out.writeUTF(version);
+            out.writeInt(bitmap.getWidth());
+            out.writeInt(bitmap.getHeight());
+            out.writeInt(orientation);
+            out.write(pixels.array());
+            out.close();
+            out = null;
+            synchronized (this) {
+                ensureLoaded();
+                if (!tempFile.renameTo(file)) {
+                    return;
+                }
+                final Long oldSize = mEntries.put(file, file.length());
+                mSizeBytes += file.length() - (oldSize == null ? 0 : oldSize);
+                trimToSize();
+            }
+        } catch (final Exception e) {
+            LogUtil.w(TAG, "MediaDiskCache: failed to write entry", e);
+        } finally {
+            closeQuietly(out);
+            tempFile.delete();
+        }
+    }
+
+    @VisibleForTesting
+    synchronized long getSizeBytes() {
+        ensureLoaded();
+        return mSizeBytes;
+    }
+
+    /**
+     * @return the pixel buffer, grown to hold at least the given number of bytes and limited
+     *     to them. Must be called with mPixelBufferLock held.
+     */
+    private ByteBuffer getPixelBuffer(final int bytes) {
+        if (mPixelBuffer == null || mPixelBuffer.capacity() < bytes) {
+            mPixelBuffer = ByteBuffer.allocate(bytes);
+        }
+        mPixelBuffer.clear();
+        mPixelBuffer.limit(bytes);
+        return mPixelBuffer;
+    }
+
+    private synchronized void touch(final File file) {
+        // Re-insert to move to the most recently used end
+        final Long size = mEntries.remove(file);
+        if (size != null) {
+            mEntries.put(file, size);
+            // Persist the order across restarts, coarsely since it's a write
+            final long now = System.currentTimeMillis();
+            if (now - file.lastModified() > TOUCH_INTERVAL_MILLIS) {
+                file.setLastModified(now);
+            }
+        }
+    }
+
+    private synchronized void remove(final File file) {
+        ensureLoaded();
+        final Long size = mEntries.remove(file);
+        if (size != null) {
+            mSizeBytes -= size;
+        }
+        file.delete();
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<File, Long>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > mMaxSizeBytes && iterator.hasNext()) {
+            final Map.Entry<File, Long> eldest = iterator.next();
+            eldest.getKey().delete();
+            mSizeBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new LinkedHashMap<File, Long>();
+        mSizeBytes = 0;
+        final File[] namespaces = mRootDir.listFiles();
+        if (namespaces == null) {
+            return;
+        }
+        final List<File> files = new ArrayList<File>();
+        for (final File namespace : namespaces) {
+            final File[] entries = namespace.listFiles();
+            if (entries != null) {
+                files.addAll(Arrays.asList(entries));
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File lhs, final File rhs) {
+                final long lhsModified = lhs.lastModified();
+                final long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (final File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                // Left over from a write that didn't complete
+                file.delete();
+                continue;
+            }
+            final long size = file.length();
+            mEntries.put(file, size);
+            mSizeBytes += size;
+        }
+        trimToSize();
+    }
+
+    private File getFile(final String namespace, final String key) {
+        return new File(new File(mRootDir, namespace), hashKey(key));
+    }
+
+    private static String hashKey(final String key) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (final byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (final NoSuchAlgorithmException e) {
+            // SHA-1 is always available
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * A bitmap read from the cache together with the orientation it was cached with
+     */
+    public static class Entry {
+        public final Bitmap bitmap;
+        public final int orientation;
+
+        Entry(final Bitmap bitmap, final int orientation) {
+            this.bitmap = bitmap;
+            this.orientation = orientation;
+        }
+    }
+}
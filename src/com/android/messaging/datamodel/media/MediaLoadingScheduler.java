@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.datamodel.media;
+
+import android.os.SystemClock;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Schedules media loading work on a fixed set of worker threads, replacing a plain FIFO thread
+ * pool. Work is queued in one of three lanes:
+ *
+ * <ul>
+ * <li>{@link MediaResourceManager#PRIORITY_VISIBLE}: media for views that are on screen. This lane
+ *  is LIFO, since while the user is scrolling the most recently bound views are the ones most
+ *  likely to still be visible.</li>
+ * <li>{@link MediaResourceManager#PRIORITY_PREFETCH}: media that is expected to become visible
+ *  soon.</li>
+ * <li>{@link MediaResourceManager#PRIORITY_BACKGROUND}: media that nobody is looking at.</li>
+ * </ul>
+ *
+ * Workers always take visible work first, and only a few workers may run lower priority work at
+ * once so that visible work never waits for all of them. Work for a key that is already queued or
+ * running is not started again; it waits for the first request and is then queued in its own lane,
+ * at which point the resource is normally in the memory cache. Queued work for a
+ * {@link BindableMediaRequest} is dropped as soon as the request is unbound.
+ */
+class MediaLoadingScheduler {
+    private static final int LANE_COUNT = 3;
+    private static final String[] LANE_NAMES = { "visible", "prefetch", "background" };
+
+    private final int mMaxLowPriorityRunning;
+    private final Object mLock = new Object();
+    private final ArrayDeque<Task>[] mLanes;
+    // Queued or running tasks by media key, for coalescing requests for the same media
+    private final HashMap<String, Task> mInFlight = new HashMap<String, Task>();
+    private int mLowPriorityRunning;
+
+    // Stats, guarded by mLock
+    private final long[] mStarted = new long[LANE_COUNT];
+    private final long[] mTotalWaitMillis = new long[LANE_COUNT];
+    private final long[] mMaxWaitMillis = new long[LANE_COUNT];
+    private long mCancelled;
+    private long mCoalesced;
+
+    @SuppressWarnings("unchecked")
+    MediaLoadingScheduler(final int threadCount, final int maxLowPriorityRunning) {
+        mMaxLowPriorityRunning = maxLowPriorityRunning;
+        mLanes = new ArrayDeque[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new ArrayDeque<Task>();
+        }
+        for (int i = 0; i < threadCount; i++) {
+            final Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, "MediaLoading-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * @return an executor that runs the work for the given request in the given lane
+     */
+    Executor getExecutor(final MediaRequest<?> mediaRequest, final int priority) {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                submit(mediaRequest, priority, runnable);
+            }
+        };
+    }
+
+    private void submit(final MediaRequest<?> mediaRequest, final int priority,
+            final Runnable runnable) {
+        final int lane = Math.max(0, Math.min(LANE_COUNT - 1, priority));
+        final Task task = new Task(mediaRequest.getKey(), lane, runnable);
+        if (mediaRequest instanceof BindableMediaRequest<?>) {
+            // Listen before queueing the task so that an unbind in between isn't missed
+            ((BindableMediaRequest<?>) mediaRequest).setOnUnboundListener(new Runnable() {
+                @Override
+                public void run() {
+                    cancel(task);
+                }
+            });
+        }
+        synchronized (mLock) {
+            if (task.cancelled) {
+                return;
+            }
+            task.submitted = true;
+            final Task leader = task.key == null ? null : mInFlight.get(task.key);
+            if (leader != null) {
+                leader.followers.add(task);
+                task.leader = leader;
+                mCoalesced++;
+                if (leader.queued && lane < leader.lane) {
+                    // Promote the queued leader to the more urgent lane
+                    mLanes[leader.lane].remove(leader);
+                    leader.lane = lane;
+                    mLanes[lane].addLast(leader);
+                    mLock.notify();
+                }
+            } else {
+                if (task.key != null) {
+                    mInFlight.put(task.key, task);
+                }
+                task.queued = true;
+                mLanes[lane].addLast(task);
+                mLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Drops a task that has not started yet. A cancelled leader hands its place in the queue to
+     * its first follower.
+     */
+    private void cancel(final Task task) {
+        synchronized (mLock) {
+            if (!task.submitted) {
+                // Unbound while being submitted
+                task.cancelled = true;
+                mCancelled++;
+                return;
+            }
+            if (task.leader != null) {
+                if (task.leader.followers.remove(task)) {
+                    mCancelled++;
+                }
+                return;
+            }
+            if (!task.queued) {
+                return;     // Already running or done
+            }
+            mLanes[task.lane].remove(task);
+            task.queued = false;
+            mCancelled++;
+            if (task.followers.isEmpty()) {
+                removeInFlightLocked(task);
+                return;
+            }
+            final Task newLeader = task.followers.remove(0);
+            newLeader.leader = null;
+            for (final Task follower : task.followers) {
+                follower.leader = newLeader;
+                newLeader.followers.add(follower);
+                newLeader.lane = Math.min(newLeader.lane, follower.lane);
+            }
+            task.followers.clear();
+            mInFlight.put(newLeader.key, newLeader);
+            newLeader.queued = true;
+            mLanes[newLeader.lane].addLast(newLeader);
+            mLock.notify();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            final Task task;
+            try {
+                task = take();
+            } catch (final InterruptedException e) {
+                return;
+            }
+            try {
+                task.runnable.run();
+            } finally {
+                finish(task);
+            }
+        }
+    }
+
+    private Task take() throws InterruptedException {
+        synchronized (mLock) {
+            while (true) {
+                final Task task = pollLocked();
+                if (task != null) {
+                    task.queued = false;
+                    final long waitMillis = SystemClock.elapsedRealtime() - task.enqueueTimeMillis;
+                    mStarted[task.lane]++;
+                    mTotalWaitMillis[task.lane] += waitMillis;
+                    mMaxWaitMillis[task.lane] = Math.max(mMaxWaitMillis[task.lane], waitMillis);
+                    if (task.lane != MediaResourceManager.PRIORITY_VISIBLE) {
+                        mLowPriorityRunning++;
+                    }
+                    return task;
+                }
+                mLock.wait();
+            }
+        }
+    }
+
+    private Task pollLocked() {
+        final ArrayDeque<Task> visible = mLanes[MediaResourceManager.PRIORITY_VISIBLE];
+        if (!visible.isEmpty()) {
+            return visible.pollLast();
+        }
+        if (mLowPriorityRunning >= mMaxLowPriorityRunning) {
+            return null;
+        }
+        for (int lane = MediaResourceManager.PRIORITY_VISIBLE + 1; lane < LANE_COUNT; lane++) {
+            if (!mLanes[lane].isEmpty()) {
+                return mLanes[lane].pollFirst();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Frees the slot of a task that has run and queues the requests that waited for it in their
+     * own lanes, where they normally find the media in the memory cache
+     */
+    private void finish(final Task task) {
+        synchronized (mLock) {
+            if (task.lane != MediaResourceManager.PRIORITY_VISIBLE) {
+                mLowPriorityRunning--;
+            }
+            removeInFlightLocked(task);
+            for (final Task follower : task.followers) {
+                follower.leader = null;
+                follower.queued = true;
+                mLanes[follower.lane].addLast(follower);
+            }
+            task.followers.clear();
+            // A low priority slot may be free and followers may be queued
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops coalescing requests with the task, unless another task has taken its place
+     */
+    private void removeInFlightLocked(final Task task) {
+        if (task.key != null && mInFlight.get(task.key) == task) {
+            mInFlight.remove(task.key);
+        }
+    }
+
+    @VisibleForTesting
+    int getQueueDepth(final int priority) {
+        synchronized (mLock) {
+            return mLanes[priority].size();
+        }
+    }
+
+    void dump(final PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Media loading (" + mCoalesced + " coalesced, " + mCancelled
+                    + " cancelled):");
+            for (int lane = 0; lane < LANE_COUNT; lane++) {
+                final long started = mStarted[lane];
+                writer.println(String.format(Locale.US,
+                        "  %s: %d queued, %d started, avg wait %d ms, max wait %d ms",
+                        LANE_NAMES[lane], mLanes[lane].size(), started,
+                        started == 0 ? 0 : mTotalWaitMillis[lane] / started,
+                        mMaxWaitMillis[lane]));
+            }
+        }
+    }
+
+    private static class Task {
+        final String key;
+        final Runnable runnable;
+        final long enqueueTimeMillis = SystemClock.elapsedRealtime();
+        // Requests for the same key waiting for this one to finish
+        final List<Task> followers = new ArrayList<Task>();
+        int lane;
+        // Whether the task went through submit(), and whether it was cancelled before that
+        boolean submitted;
+        boolean cancelled;
+        boolean queued;
+        // The task this one is waiting for, if any
+        Task leader;
+
+        Task(final String key, final int lane, final Runnable runnable) {
+            this.key = key;
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import com.android.messaging.util.Assert.RunsOnAnyThread;
 import com.android.messaging.util.LogUtil;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -31,8 +32,9 @@ import java.util.concurrent.ThreadFactory;
 
 /**
  * <p>Loads and maintains a set of in-memory LRU caches for different types of media resources.
- * Right now we don't utilize any disk cache as all media urls are expected to be resolved to
- * local content.<p/>
+ * Images whose descriptor names a {@link MediaDiskCache} namespace (such as avatars and video
+ * thumbnails) are also persisted to disk after they are loaded, and read back from there when
+ * they miss the in-memory cache.<p/>
  *
  * <p>The MediaResourceManager takes media loading requests through one of two ways:</p>
  *
@@ -45,7 +47,8 @@ import java.util.concurrent.ThreadFactory;
  * </ol>
  *
  * <p>For each media loading task, MediaResourceManager starts an AsyncTask that runs on a
- * dedicated thread, which calls MediaRequest.loadMediaBlocking() to perform the actual media
+ * dedicated thread picked by a {@link MediaLoadingScheduler} according to the priority of the
+ * request, which calls MediaRequest.loadMediaBlocking() to perform the actual media
  * loading work. As the media resources are loaded, MediaResourceManager notifies the callers
  * (which must implement the MediaResourceLoadListener interface) via onMediaResourceLoaded()
  * callback. Meanwhile, MediaResourceManager also pushes the loaded resource onto its dedicated
@@ -95,9 +98,18 @@ public class MediaResourceManager {
         void onMediaResourceLoadError(MediaRequest<T> request, Exception exception);
     }
 
-    // We use a fixed thread pool for handling media loading tasks. Using a cached thread pool
+    /** Priority for media that is on screen */
+    public static final int PRIORITY_VISIBLE = 0;
+    /** Priority for media that is expected to be on screen soon */
+    public static final int PRIORITY_PREFETCH = 1;
+    /** Priority for media that is not going to be on screen */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    // We use a fixed number of threads for handling media loading tasks. Using a cached thread pool
     // allows for unlimited thread creation which can lead to OOMs so we limit the threads here.
-    private static final Executor MEDIA_LOADING_EXECUTOR = Executors.newFixedThreadPool(10);
+    // Prefetch and background loads may only use a few of them at once.
+    private static final MediaLoadingScheduler MEDIA_LOADING_SCHEDULER =
+            new MediaLoadingScheduler(10 /* threadCount */, 4 /* maxLowPriorityRunning */);
 
     // A dedicated single thread executor for performing background task after loading the resource
     // on the media loading executor. This includes work such as encoding loaded media to be cached.
@@ -125,7 +137,28 @@ public class MediaResourceManager {
      */
     public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
             final MediaRequest<T> mediaRequest) {
-        scheduleAsyncMediaRequest(mediaRequest, MEDIA_LOADING_EXECUTOR);
+        requestMediaResourceAsync(mediaRequest, PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Requests a media resource asynchronously with the given priority. Requests with a higher
+     * priority are started first, and a request for media that is already being loaded waits for
+     * that load instead of starting another one. If the request is a
+     * {@link BindableMediaRequest}, it is dropped as soon as it's unbound if it hasn't started yet.
+     * @param priority one of {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_PREFETCH} or
+     * {@link #PRIORITY_BACKGROUND}
+     */
+    public <T extends RefCountedMediaResource> void requestMediaResourceAsync(
+            final MediaRequest<T> mediaRequest, final int priority) {
+        scheduleAsyncMediaRequest(mediaRequest,
+                MEDIA_LOADING_SCHEDULER.getExecutor(mediaRequest, priority));
+    }
+
+    /**
+     * Dumps the queue depths and wait times of media loading
+     */
+    public void dump(final PrintWriter writer) {
+        MEDIA_LOADING_SCHEDULER.dump(writer);
     }
 
     /**
@@ -176,8 +209,12 @@ public class MediaResourceManager {
                 loadedResource = cachedResource;
             }
         } else {
-            // Actually load the media after cache miss.
-            loadedResource = loadMediaFromRequest(mediaRequest, chainedRequests);
+            loadedResource = loadMediaFromDiskCache(mediaRequest);
+            if (loadedResource == null) {
+                // Actually load the media after cache miss.
+                loadedResource = loadMediaFromRequest(mediaRequest, chainedRequests);
+                addResourceToDiskCacheAsync(mediaRequest, loadedResource);
+            }
         }
         return new MediaLoadingResult<>(loadedResource, cachedResource != null /* fromCache */,
                 chainedRequests);
@@ -199,6 +236,85 @@ public class MediaResourceManager {
         return null;
     }
 
+    /**
+     * Returns the disk cache namespace for the request, or null if it isn't disk cacheable
+     */
+    private static String getDiskCacheNamespace(final MediaRequest<?> mediaRequest) {
+        if (mediaRequest.getRequestType() != MediaRequest.REQUEST_LOAD_MEDIA
+                || mediaRequest.getKey() == null) {
+            return null;
+        }
+        final MediaRequestDescriptor<?> descriptor = mediaRequest.getDescriptor();
+        if (descriptor instanceof ImageRequestDescriptor) {
+            return ((ImageRequestDescriptor) descriptor).getDiskCacheNamespace();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the version of the source of a disk cacheable request, or null if it's unknown
+     */
+    private static String getDiskCacheVersion(final MediaRequest<?> mediaRequest) {
+        return ((ImageRequestDescriptor) mediaRequest.getDescriptor()).getDiskCacheVersion(
+                Factory.get().getApplicationContext());
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends RefCountedMediaResource> T loadMediaFromDiskCache(
+            final MediaRequest<T> mediaRequest) {
+        final String namespace = getDiskCacheNamespace(mediaRequest);
+        if (namespace == null) {
+            return null;
+        }
+        final String version = getDiskCacheVersion(mediaRequest);
+        if (version == null) {
+            return null;
+        }
+        final MediaDiskCache.Entry entry = MediaDiskCache.get().get(namespace,
+                mediaRequest.getKey(), version,
+                MediaCacheManager.get().getOrCreateBitmapPoolForCache(mediaRequest.getCacheId()));
+        if (entry == null) {
+            return null;
+        }
+        final T resource = (T) new DecodedImageResource(mediaRequest.getKey(), entry.bitmap,
+                entry.orientation);
+        // As in loadMediaFromRequest(), hold the caller's ref before adding to the cache
+        resource.addRef();
+        addResourceToMemoryCache(mediaRequest, resource);
+        return resource;
+    }
+
+    /**
+     * Persist a freshly loaded resource to the disk cache on the background executor so that
+     * the write doesn't hold up delivering the resource.
+     */
+    private <T extends RefCountedMediaResource> void addResourceToDiskCacheAsync(
+            final MediaRequest<T> mediaRequest, final T resource) {
+        final String namespace = getDiskCacheNamespace(mediaRequest);
+        if (namespace == null || !resource.isCacheable()
+                || !(resource instanceof DecodedImageResource)) {
+            return;
+        }
+        final DecodedImageResource imageResource = (DecodedImageResource) resource;
+        final String key = mediaRequest.getKey();
+        // Keep the bitmap from being recycled or reused until it's written
+        imageResource.addRef();
+        MEDIA_BACKGROUND_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final String version = getDiskCacheVersion(mediaRequest);
+                    if (version != null) {
+                        MediaDiskCache.get().put(namespace, key, version,
+                                imageResource.getBitmap(), imageResource.getOrientation());
+                    }
+                } finally {
+                    imageResource.release();
+                }
+            }
+        });
+    }
+
     private <T extends RefCountedMediaResource> T loadMediaFromRequest(
             final MediaRequest<T> mediaRequest, final List<MediaRequest<T>> chainedRequests)
                     throws Exception {
@@ -31,6 +31,11 @@ public class MessagePartVideoThumbnailRequestDescriptor extends MessagePartImage
                 ImageRequest.UNSPECIFIED_SIZE, ImageRequest.UNSPECIFIED_SIZE, false);
     }
 
+    @Override
+    public String getDiskCacheNamespace() {
+        return MediaDiskCache.NAMESPACE_VIDEO_THUMBNAILS;
+    }
+
     @Override
     public MediaRequest<ImageResource> buildSyncMediaRequest(final Context context) {
         return new VideoThumbnailRequest(context, this);
@@ -32,7 +32,8 @@ import java.util.LinkedList;
 
 /**
  * A media cache that holds image resources, which doubles as a bitmap pool that allows the
- * consumer to optionally decode image resources using unused bitmaps stored in the cache.
+ * consumer to optionally decode image resources using unused bitmaps stored in the cache, or
+ * bitmaps of evicted image resources kept in the {@link SharedBitmapPool}.
  */
 public class PoolableImageCache extends MediaCache<ImageResource> {
     private static final int MIN_TIME_IN_POOL = 5000;
@@ -40,12 +41,18 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
     /** Encapsulates bitmap pool representation of the image cache */
     private final ReusableImageResourcePool mReusablePoolAccessor = new ReusableImageResourcePool();
 
-    public PoolableImageCache(final int id, final String name) {
-        this(DEFAULT_MEDIA_RESOURCE_CACHE_SIZE_IN_KILOBYTES, id, name);
+    /** Bitmaps no longer in any cache, shared with the other caches */
+    private final SharedBitmapPool mSharedPool;
+
+    public PoolableImageCache(final int id, final String name,
+            final SharedBitmapPool sharedPool) {
+        this(DEFAULT_MEDIA_RESOURCE_CACHE_SIZE_IN_KILOBYTES, id, name, sharedPool);
     }
 
-    public PoolableImageCache(final int maxSize, final int id, final String name) {
+    public PoolableImageCache(final int maxSize, final int id, final String name,
+            final SharedBitmapPool sharedPool) {
         super(maxSize, id, name);
+        mSharedPool = sharedPool;
     }
 
     /**
@@ -250,6 +257,21 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
             }
         }
 
+        /**
+         * Try to get a reusable bitmap for the given width and height, first from the shared
+         * pool, which may return a larger bitmap, and then from the unused images of the given
+         * size in the cache. As a result of this call, the caller will assume ownership of the
+         * returned bitmap.
+         */
+        private Bitmap getReusableBitmap(final int width, final int height,
+                final Bitmap.Config config) {
+            final Bitmap sharedBitmap = mSharedPool.getReusableBitmap(width, height, config);
+            if (sharedBitmap != null) {
+                return sharedBitmap;
+            }
+            return getReusableBitmapFromPool(width, height);
+        }
+
         /**
          * Try to get a reusable bitmap from the pool with the given width and height. As a
          * result of this call, the caller will assume ownership of the returned bitmap.
@@ -356,7 +378,12 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
                 final int backgroundColor) {
             Bitmap retBitmap = null;
             try {
-                final Bitmap poolBitmap = getReusableBitmapFromPool(width, height);
+                final Bitmap poolBitmap =
+                        getReusableBitmap(width, height, Bitmap.Config.ARGB_8888);
+                if (poolBitmap != null) {
+                    // Bitmaps from the shared pool may be larger
+                    poolBitmap.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+                }
                 retBitmap = (poolBitmap != null) ? poolBitmap :
                         Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
                 retBitmap.eraseColor(backgroundColor);
@@ -372,7 +399,9 @@ public class PoolableImageCache extends MediaCache<ImageResource> {
             if (optionsTmp.inJustDecodeBounds) {
                 return;
             }
-            optionsTmp.inBitmap = getReusableBitmapFromPool(width, height);
+            optionsTmp.inBitmap = getReusableBitmap(width, height,
+                    optionsTmp.inPreferredConfig != null ?
+                            optionsTmp.inPreferredConfig : Bitmap.Config.ARGB_8888);
         }
 
         /**
@@ -22,6 +22,7 @@ import com.android.messaging.util.LogUtil;
 import com.google.common.base.Throwables;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -53,6 +54,11 @@ public abstract class RefCountedMediaResource {
     // A lock that guards access to shared members in this class (and all its subclasses).
     private final ReentrantLock mLock = new ReentrantLock();
 
+    // The in-use size of the MediaCache holding this resource, which this resource counts its
+    // size in while it has refs besides the cache's, and that size in kilobytes. Guarded by mLock.
+    private AtomicInteger mCacheInUseSizeKb;
+    private int mCacheSizeKb;
+
     public RefCountedMediaResource(final String key) {
         mKey = key;
     }
@@ -71,6 +77,9 @@ public abstract class RefCountedMediaResource {
 
             mRef++;
             mLastRefAddTimestamp = SystemClock.elapsedRealtime();
+            if (mCacheInUseSizeKb != null && mRef == 2) {
+                mCacheInUseSizeKb.addAndGet(mCacheSizeKb);
+            }
         } finally {
             releaseLock();
         }
@@ -85,6 +94,9 @@ public abstract class RefCountedMediaResource {
             }
 
             mRef--;
+            if (mCacheInUseSizeKb != null && mRef == 1) {
+                mCacheInUseSizeKb.addAndGet(-mCacheSizeKb);
+            }
             if (mRef == 0) {
                 close();
             } else if (mRef < 0) {
@@ -111,6 +123,28 @@ public abstract class RefCountedMediaResource {
         }
     }
 
+    /**
+     * Called by the MediaCache holding this resource, which holds a ref on it, to have the size
+     * of this resource counted in the cache's in-use size whenever others hold refs too. Moves
+     * the size from the counter previously set, if any.
+     * @param inUseSizeKb the cache's in-use size, or null when the resource leaves the cache
+     */
+    void setCacheInUseCounter(final AtomicInteger inUseSizeKb, final int sizeKb) {
+        acquireLock();
+        try {
+            if (mCacheInUseSizeKb != null && mRef > 1) {
+                mCacheInUseSizeKb.addAndGet(-mCacheSizeKb);
+            }
+            mCacheInUseSizeKb = inUseSizeKb;
+            mCacheSizeKb = sizeKb;
+            if (mCacheInUseSizeKb != null && mRef > 1) {
+                mCacheInUseSizeKb.addAndGet(mCacheSizeKb);
+            }
+        } finally {
+            releaseLock();
+        }
+    }
+
     public long getLastRefAddTimestamp() {
         acquireLock();
         try {
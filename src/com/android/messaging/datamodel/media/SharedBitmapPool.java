@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.util.SparseArray;
+
+import com.android.messaging.datamodel.MemoryCacheManager.DumpableMemoryCache;
+import com.android.messaging.util.Assert;
+import com.android.messaging.util.LogUtil;
+
+import java.io.PrintWriter;
+import java.util.LinkedList;
+
+/**
+ * A pool of unused mutable bitmaps shared by all media caches and by image recoding, with a
+ * single budget for the bytes it retains. Bitmaps are bucketed by config and by size class
+ * (the power of two at or above their allocation size) rather than by exact dimensions, since
+ * a bitmap can be reconfigured or decoded into (through inBitmap) whenever its allocation is
+ * large enough. When the pool is over budget, the least recently added bitmaps are recycled.
+ */
+public class SharedBitmapPool implements DumpableMemoryCache {
+    private static final String TAG = LogUtil.BUGLE_IMAGE_TAG;
+
+    // Fraction of the app's memory class that the pool may retain
+    private static final int MEMORY_CLASS_FRACTION = 16;
+    private static final int MIN_BUDGET_BYTES = 2 * 1024 * 1024;   // 2MB
+    private static final int MAX_BUDGET_BYTES = 16 * 1024 * 1024;  // 16MB
+
+    private final int mBudgetBytes;
+
+    // Bitmaps by pool key, guarded by this
+    private final SparseArray<LinkedList<Bitmap>> mBuckets = new SparseArray<LinkedList<Bitmap>>();
+    // All bitmaps in the pool, least recently added first, guarded by this
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+    private int mRetainedBytes;
+
+    // Stats, guarded by this
+    private int mHitCount;
+    private int mMissCount;
+    private int mReclaimedCount;
+    private int mDroppedCount;
+
+    /**
+     * @return the budget for a pool shared by the app's media caches, scaled with its memory class
+     */
+    public static int getDefaultBudgetBytes(final Context context) {
+        final ActivityManager am =
+                (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        final int budget = am.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_FRACTION;
+        return Math.max(MIN_BUDGET_BYTES, Math.min(MAX_BUDGET_BYTES, budget));
+    }
+
+    /**
+     * @param budgetBytes the most bytes of bitmaps to retain across all buckets
+     */
+    public SharedBitmapPool(final int budgetBytes) {
+        Assert.isTrue(budgetBytes > 0);
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Take a bitmap from the pool that can hold an image of the given size and config, either by
+     * reconfiguring it or by decoding into it with BitmapFactory.Options.inBitmap. The caller
+     * takes ownership of the bitmap, which still has the dimensions and content it had before.
+     *
+     * @return the bitmap, or null if the pool has none large enough
+     */
+    public synchronized Bitmap getReusableBitmap(final int width, final int height,
+            final Bitmap.Config config) {
+        final int byteCount = getByteCount(width, height, config);
+        if (byteCount > 0) {
+            final LinkedList<Bitmap> bucket = mBuckets.get(getPoolKey(byteCount, config));
+            if (bucket != null) {
+                for (final Bitmap bitmap : bucket) {
+                    if (bitmap.getAllocationByteCount() >= byteCount) {
+                        bucket.remove(bitmap);
+                        mBitmaps.remove(bitmap);
+                        mRetainedBytes -= bitmap.getAllocationByteCount();
+                        mHitCount++;
+                        return bitmap;
+                    }
+                }
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Reuse a bitmap from the pool as a bitmap of the given size and config, or create a new one
+     * if there's none large enough. A reused bitmap keeps the content it had before.
+     */
+    public Bitmap createOrReuseBitmap(final int width, final int height,
+            final Bitmap.Config config) {
+        final Bitmap bitmap = getReusableBitmap(width, height, config);
+        if (bitmap != null) {
+            bitmap.reconfigure(width, height, config);
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Called when a bitmap is no longer used so that it can be reused, or recycled if it can't be
+     * reused or the pool has no room for it. The caller must not use the bitmap after this.
+     */
+    public void reclaimBitmap(@NonNull final Bitmap bitmap) {
+        Assert.notNull(bitmap);
+        final Bitmap.Config config = bitmap.getConfig();
+        final int byteCount = bitmap.isRecycled() ? 0 : bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || config == null || byteCount <= 0
+                || byteCount > mBudgetBytes) {
+            synchronized (this) {
+                mDroppedCount++;
+            }
+            bitmap.recycle();
+            return;
+        }
+        final LinkedList<Bitmap> evicted = new LinkedList<Bitmap>();
+        synchronized (this) {
+            final int poolKey = getPoolKey(byteCount, config);
+            LinkedList<Bitmap> bucket = mBuckets.get(poolKey);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                mBuckets.put(poolKey, bucket);
+            }
+            bucket.addLast(bitmap);
+            mBitmaps.addLast(bitmap);
+            mRetainedBytes += byteCount;
+            mReclaimedCount++;
+            while (mRetainedBytes > mBudgetBytes) {
+                final Bitmap oldest = mBitmaps.removeFirst();
+                final int oldestByteCount = oldest.getAllocationByteCount();
+                mBuckets.get(getPoolKey(oldestByteCount, oldest.getConfig())).remove(oldest);
+                mRetainedBytes -= oldestByteCount;
+                mDroppedCount++;
+                evicted.add(oldest);
+            }
+        }
+        // Recycle outside of the lock
+        for (final Bitmap oldest : evicted) {
+            oldest.recycle();
+        }
+    }
+
+    @Override
+    public void reclaim() {
+        final LinkedList<Bitmap> bitmaps;
+        synchronized (this) {
+            bitmaps = new LinkedList<Bitmap>(mBitmaps);
+            mBitmaps.clear();
+            mBuckets.clear();
+            mRetainedBytes = 0;
+        }
+        for (final Bitmap bitmap : bitmaps) {
+            bitmap.recycle();
+        }
+    }
+
+    public int getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    public synchronized int getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized void dump(final PrintWriter writer) {
+        writer.println("SharedBitmapPool:");
+        writer.println("  hits=" + mHitCount + " misses=" + mMissCount
+                + " reclaimed=" + mReclaimedCount + " dropped=" + mDroppedCount
+                + " bitmaps=" + mBitmaps.size() + " retainedBytes=" + mRetainedBytes
+                + " budgetBytes=" + mBudgetBytes);
+    }
+
+    /**
+     * @return the pool key for bitmaps of the given config with allocations in the size class of
+     * the given byte count
+     */
+    private static int getPoolKey(final int byteCount, final Bitmap.Config config) {
+        final int sizeClass = Integer.SIZE - Integer.numberOfLeadingZeros(byteCount - 1);
+        return (config.ordinal() << 8) | sizeClass;
+    }
+
+    /**
+     * @return the bytes needed for a bitmap of the given size and config, or 0 if it's too large
+     */
+    private static int getByteCount(final int width, final int height,
+            final Bitmap.Config config) {
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        final long byteCount = (long) width * height * getBytesPerPixel(config);
+        return byteCount > Integer.MAX_VALUE ? 0 : (int) byteCount;
+    }
+
+    private static int getBytesPerPixel(final Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -17,6 +17,8 @@ package com.android.messaging.datamodel.media;
 
 import android.content.Context;
 
+import com.android.messaging.util.ImageUtils;
+
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,6 +37,12 @@ public class UriImageRequest<D extends UriImageRequestDescriptor> extends ImageR
         return mContext.getContentResolver().openInputStream(mDescriptor.uri);
     }
 
+    @Override
+    protected int readOrientation() {
+        // Goes through the orientation cache, keyed by uri
+        return ImageUtils.getOrientation(mContext, mDescriptor.uri);
+    }
+
     @Override
     protected ImageResource loadMediaInternal(List<MediaRequest<ImageResource>> chainedTasks)
             throws IOException {
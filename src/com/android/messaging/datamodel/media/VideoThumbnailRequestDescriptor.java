@@ -37,6 +37,11 @@ public class VideoThumbnailRequestDescriptor extends UriImageRequestDescriptor {
         return new VideoThumbnailRequest(context, this);
     }
 
+    @Override
+    public String getDiskCacheNamespace() {
+        return MediaDiskCache.NAMESPACE_VIDEO_THUMBNAILS;
+    }
+
     @Override
     public Long getMediaStoreId() {
         return mMediaId;
@@ -19,6 +19,7 @@ package com.android.messaging.mmslib.pdu;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.support.v4.util.SimpleArrayMap;
 import android.text.TextUtils;
 
@@ -26,6 +27,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 public class PduComposer {
@@ -114,6 +117,21 @@ public class PduComposer {
      */
     private PduHeaders mPduHeader = null;
 
+    /**
+     * The output file when composing into a file, null when composing into memory.
+     */
+    private FileChannel mOutput = null;
+
+    /**
+     * Number of bytes written to mOutput.
+     */
+    private long mOutputLength = 0;
+
+    /**
+     * Error that happened while writing to mOutput.
+     */
+    private IOException mOutputError = null;
+
     /**
      * Map of all content type
      */
@@ -151,41 +169,141 @@ public class PduComposer {
      * the PDU is invalid.
      */
     public byte[] make() {
+        if (makePdu() != PDU_COMPOSE_SUCCESS) {
+            return null;
+        }
+        return mMessage.toByteArray();
+    }
+
+    /**
+     * Make the message into a file. Part data stored as a Uri whose length is known up front is
+     * copied straight from its source into the file, so only the headers and parts held as byte
+     * arrays are buffered in memory.
+     *
+     * @param output the file to write to, at its current position
+     * @return the size of the message. Return -1 if the PDU is invalid.
+     * @throws IOException if writing to the file failed
+     */
+    public long make(final FileChannel output) throws IOException {
+        mOutput = output;
+        mOutputLength = 0;
+        mOutputError = null;
+        try {
+            final int result = makePdu();
+            if (mOutputError != null) {
+                throw mOutputError;
+            }
+            if (result != PDU_COMPOSE_SUCCESS) {
+                return -1;
+            }
+            flushToOutput();
+            return mOutputLength;
+        } finally {
+            mOutput = null;
+        }
+    }
+
+    private int makePdu() {
         // Get Message-type.
         final int type = mPdu.getMessageType();
 
         /* make the message */
         switch (type) {
             case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                if (makeSendReqPdu() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeSendReqPdu();
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
-                if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotifyResp();
             case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
-                if (makeAckInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeAckInd();
             case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
-                if (makeReadRecInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeReadRecInd();
             case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
-                if (makeNotificationInd() != PDU_COMPOSE_SUCCESS) {
-                    return null;
-                }
-                break;
+                return makeNotificationInd();
             default:
-                return null;
+                return PDU_COMPOSE_FIELD_NOT_SUPPORTED;
         }
+    }
 
-        return mMessage.toByteArray();
+    /**
+     * Write out what has been composed so far to mOutput. Only valid at the top of the stack.
+     */
+    private void flushToOutput() throws IOException {
+        if (mStack.stackSize != 0) {
+            throw new RuntimeException("BUG: Invalid flush inside a buffer");
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(mMessage.toByteArray());
+        while (buffer.hasRemaining()) {
+            mOutputLength += mOutput.write(buffer);
+        }
+        mMessage.reset();
+    }
+
+    /**
+     * Open the data of a part for copying it straight into mOutput.
+     *
+     * @return the part data, or null if it can't be copied that way because its length is
+     * unknown or it's not backed by a file
+     */
+    private AssetFileDescriptor openPartDataForOutput(final PduPart part) {
+        if (mOutput == null || part.getData() != null || part.getDataUri() == null) {
+            return null;
+        }
+        AssetFileDescriptor afd = null;
+        try {
+            afd = mResolver.openAssetFileDescriptor(part.getDataUri(), "r");
+        } catch (final FileNotFoundException e) {
+            return null;
+        } catch (final RuntimeException e) {
+            return null;
+        }
+        if (afd == null || afd.getDeclaredLength() != AssetFileDescriptor.UNKNOWN_LENGTH) {
+            return afd;
+        }
+        // Descriptors of plain files, e.g. file uris, cover the whole file without declaring
+        // its length
+        final long statSize = afd.getParcelFileDescriptor().getStatSize();
+        if (afd.getStartOffset() != 0 || statSize < 0) {
+            closeQuietly(afd);
+            return null;
+        }
+        return new AssetFileDescriptor(afd.getParcelFileDescriptor(), 0, statSize);
+    }
+
+    /**
+     * Write what has been composed so far followed by the part data to mOutput.
+     *
+     * @return false if the part data couldn't be copied completely
+     */
+    private boolean transferPartData(final AssetFileDescriptor afd) {
+        try {
+            flushToOutput();
+            final FileChannel source = afd.createInputStream().getChannel();
+            long position = afd.getStartOffset();
+            long remaining = afd.getLength();
+            while (remaining > 0) {
+                final long transferred = source.transferTo(position, remaining, mOutput);
+                if (transferred <= 0) {
+                    // The part data is shorter than its declared length
+                    return false;
+                }
+                position += transferred;
+                remaining -= transferred;
+                mOutputLength += transferred;
+            }
+            mPosition += afd.getLength();
+            return true;
+        } catch (final IOException e) {
+            mOutputError = e;
+            return false;
+        }
+    }
+
+    private static void closeQuietly(final AssetFileDescriptor afd) {
+        try {
+            afd.close();
+        } catch (final IOException e) {
+            // Nothing to do
+        }
     }
 
     /**
@@ -1045,6 +1163,22 @@ public class PduComposer {
             // content
             final int headerLength = attachment.getLength();
 
+            final AssetFileDescriptor partFile = openPartDataForOutput(part);
+            if (partFile != null) {
+                try {
+                    mStack.pop();
+                    appendUintvarInteger(headerLength);
+                    appendUintvarInteger((int) partFile.getLength());
+                    mStack.copy();
+                    if (!transferPartData(partFile)) {
+                        return PDU_COMPOSE_CONTENT_ERROR;
+                    }
+                } finally {
+                    closeQuietly(partFile);
+                }
+                continue;
+            }
+
             int dataLength = 0; // Just for safety...
             final byte[] partData = part.getData();
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a pdu from a file through a small window instead of loading the whole file.
+ *
+ * Like ByteArrayInputStream, {@link #available} returns the number of bytes left, which
+ * {@link PduParser} relies on to track its progress through the pdu.
+ */
+class PduFileInputStream extends InputStream {
+    private static final int WINDOW_SIZE = 8 * 1024;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final long mLength;
+    private final ByteBuffer mWindow = ByteBuffer.allocate(WINDOW_SIZE);
+    // File offset of the first byte in the window
+    private long mWindowStart;
+    private long mPosition;
+    private long mMark;
+
+    PduFileInputStream(final File file) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        mLength = mChannel.size();
+        mWindow.limit(0);
+    }
+
+    /**
+     * @return the file being read
+     */
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the file offset of the next byte to be read
+     */
+    long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        final int value = mWindow.get((int) (mPosition - mWindowStart)) & 0xff;
+        mPosition++;
+        return value;
+    }
+
+    @Override
+    public synchronized int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < len && fill()) {
+            final int offsetInWindow = (int) (mPosition - mWindowStart);
+            final int count = Math.min(len - read, mWindow.limit() - offsetInWindow);
+            mWindow.position(offsetInWindow);
+            mWindow.get(b, off + read, count);
+            read += count;
+            mPosition += count;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public synchronized long skip(final long n) {
+        final long skipped = Math.max(0, Math.min(n, mLength - mPosition));
+        mPosition += skipped;
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, mLength - mPosition);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(final int readAheadLimit) {
+        mMark = mPosition;
+    }
+
+    @Override
+    public synchronized void reset() {
+        mPosition = mMark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mRandomAccessFile.close();
+    }
+
+    /**
+     * Makes sure the window contains the byte at the current position
+     * @return false at the end of the file
+     */
+    private boolean fill() throws IOException {
+        if (mPosition >= mWindowStart && mPosition < mWindowStart + mWindow.limit()) {
+            return true;
+        }
+        if (mPosition >= mLength) {
+            return false;
+        }
+        mWindow.clear();
+        mWindowStart = mPosition;
+        try {
+            while (mWindow.hasRemaining()
+                    && mChannel.read(mWindow, mWindowStart + mWindow.position()) > 0) {
+                // Keep reading until the window is full or the file ends
+            }
+        } finally {
+            // Leave a valid, possibly empty, window behind even if the read failed
+            mWindow.flip();
+        }
+        return mWindow.limit() > 0;
+    }
+}
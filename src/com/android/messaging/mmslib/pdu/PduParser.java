@@ -25,8 +25,12 @@ import com.android.messaging.util.ContentType;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
+import java.util.Locale;
 
 public class PduParser {
     /**
@@ -72,10 +76,20 @@ public class PduParser {
 
     private static final int THE_LAST_PART = 1;
 
+    /**
+     * Part bodies at least this large are left in the file when parsing from a file.
+     */
+    private static final int MIN_FILE_RANGE_PART_SIZE = 16 * 1024;
+
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private InputStream mPduDataStream = null;
+
+    /**
+     * The pdu file, when parsing from a file.
+     */
+    private final File mPduFile;
 
     /**
      * Store pdu headers
@@ -110,6 +124,20 @@ public class PduParser {
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
         mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduFile = null;
+        mParseContentDisposition = parseContentDisposition;
+    }
+
+    /**
+     * Constructor for parsing a pdu stored in a file. The file is read incrementally, and large
+     * binary part bodies are not read at all; they are set as ranges of the file with
+     * {@link PduPart#setDataRange}, so the file must stay around until the parts are persisted.
+     *
+     * @param pduFile file containing the pdu to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(File pduFile, boolean parseContentDisposition) {
+        mPduFile = pduFile;
         mParseContentDisposition = parseContentDisposition;
     }
 
@@ -120,12 +148,39 @@ public class PduParser {
      * null if parsing error happened or mandatory fields are not set.
      */
     public GenericPdu parse() {
+        if (mPduFile == null) {
+            return parsePdu();
+        }
+        try {
+            mPduDataStream = new PduFileInputStream(mPduFile);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to open pdu file " + mPduFile, e);
+            return null;
+        }
+        try {
+            return parsePdu();
+        } finally {
+            try {
+                mPduDataStream.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            mPduDataStream = null;
+        }
+    }
+
+    private GenericPdu parsePdu() {
         if (mPduDataStream == null) {
             return null;
         }
 
         /* parse headers */
-        mHeaders = parseHeaders(mPduDataStream);
+        try {
+            mHeaders = parseHeaders(mPduDataStream);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read pdu headers", e);
+            return null;
+        }
         if (null == mHeaders) {
             // Parse headers failed.
             return null;
@@ -150,7 +205,12 @@ public class PduParser {
                 (PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF == messageType &&
                 retrieveStatus == PduHeaders.RETRIEVE_STATUS_OK)) {
             /* need to parse the parts */
-            mBody = parseParts(mPduDataStream);
+            try {
+                mBody = parseParts(mPduDataStream);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to read pdu parts", e);
+                return null;
+            }
             if (null == mBody) {
                 // Parse parts failed.
                 return null;
@@ -255,7 +315,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream) {
+    protected PduHeaders parseHeaders(InputStream pduDataStream) throws IOException {
         if (pduDataStream == null) {
             return null;
         }
@@ -863,7 +923,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected PduBody parseParts(InputStream pduDataStream) throws IOException {
         if (pduDataStream == null) {
             return null;
         }
@@ -927,7 +987,15 @@ public class PduParser {
             }
 
             /* get part's data */
-            if (dataLength > 0) {
+            if (dataLength > 0 && canUseFileRange(pduDataStream, part, dataLength)) {
+                // Leave the data in the file instead of copying it into memory
+                PduFileInputStream fileStream = (PduFileInputStream) pduDataStream;
+                part.setDataRange(fileStream.getFile(), fileStream.getPosition(), dataLength);
+                if (fileStream.skip(dataLength) != dataLength) {
+                    log("Part data is truncated!");
+                    return null;
+                }
+            } else if (dataLength > 0) {
                 byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
                 pduDataStream.read(partData, 0, dataLength);
@@ -972,6 +1040,28 @@ public class PduParser {
         return body;
     }
 
+    /**
+     * Check whether the data of a part can be left in the pdu file. That's the case for large
+     * binary parts; text parts are needed in memory to be stored as text, and encoded parts
+     * and nested multiparts need to be decoded.
+     */
+    private static boolean canUseFileRange(InputStream pduDataStream, PduPart part,
+            int dataLength) {
+        if (!(pduDataStream instanceof PduFileInputStream)
+                || dataLength < MIN_FILE_RANGE_PART_SIZE) {
+            return false;
+        }
+        String partContentType = new String(part.getContentType()).toLowerCase(Locale.US);
+        if (partContentType.equals(ContentType.MMS_MULTIPART_ALTERNATIVE)
+                || partContentType.startsWith("text/")
+                || partContentType.equals(ContentType.APP_SMIL)) {
+            return false;
+        }
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        return null == partDataEncoding
+                || new String(partDataEncoding).equalsIgnoreCase(PduPart.P_BINARY);
+    }
+
     /**
      * Log status.
      *
@@ -989,7 +1079,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
+    protected static int parseUnsignedInt(InputStream pduDataStream) throws IOException {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * The maximum size of a uintvar is 32 bits.
@@ -1023,7 +1113,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
+    protected static int parseValueLength(InputStream pduDataStream) throws IOException {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Value-length = Short-length | (Length-quote Length)
@@ -1053,7 +1143,7 @@ public class PduParser {
      * @return the EncodedStringValue
      */
     protected static EncodedStringValue parseEncodedStringValue(
-            ByteArrayInputStream pduDataStream) {
+            InputStream pduDataStream) throws IOException {
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
@@ -1098,8 +1188,8 @@ public class PduParser {
      * @param stringType    TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
-            int stringType) {
+    protected static byte[] parseWapString(InputStream pduDataStream,
+            int stringType) throws IOException {
         assert (null != pduDataStream);
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1222,8 +1312,8 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
-            int stringType) {
+    protected static byte[] getWapString(InputStream pduDataStream,
+            int stringType) throws IOException {
         assert (null != pduDataStream);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         int temp = pduDataStream.read();
@@ -1257,7 +1347,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(InputStream pduDataStream) throws IOException {
         assert (null != pduDataStream);
         int temp = pduDataStream.read();
         assert (-1 != temp);
@@ -1270,7 +1360,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(InputStream pduDataStream) throws IOException {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1290,7 +1380,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
+    protected static long parseLongInteger(InputStream pduDataStream) throws IOException {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Long-integer = Short-length Multi-octet-integer
@@ -1328,7 +1418,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
+    protected static long parseIntegerValue(InputStream pduDataStream) throws IOException {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Integer-Value = Short-integer | Long-integer
@@ -1352,7 +1442,7 @@ public class PduParser {
      * @param length        area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(InputStream pduDataStream, int length) throws IOException {
         assert (null != pduDataStream);
         byte[] area = new byte[length];
         int readLen = pduDataStream.read(area, 0, length);
@@ -1371,8 +1461,8 @@ public class PduParser {
      * @param map           to store parameters of Content-Type field
      * @param length        length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
-            SparseArray<Object> map, Integer length) {
+    protected static void parseContentTypeParams(InputStream pduDataStream,
+            SparseArray<Object> map, Integer length) throws IOException {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Parameter = Typed-parameter | Untyped-parameter
@@ -1554,8 +1644,8 @@ public class PduParser {
      * @param map           to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
-            SparseArray<Object> map) {
+    protected static byte[] parseContentType(InputStream pduDataStream,
+            SparseArray<Object> map) throws IOException {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Content-type-value = Constrained-media | Content-general-form
@@ -1625,8 +1715,8 @@ public class PduParser {
      * @param length        length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
-            PduPart part, int length) {
+    protected boolean parsePartHeaders(InputStream pduDataStream,
+            PduPart part, int length) throws IOException {
         assert (null != pduDataStream);
         assert (null != part);
         assert (length > 0);
@@ -20,6 +20,13 @@ package com.android.messaging.mmslib.pdu;
 import android.net.Uri;
 import android.util.SparseArray;
 
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 /**
  * The pdu part.
  */
@@ -117,6 +124,13 @@ public class PduPart {
      */
     private byte[] mPartData = null;
 
+    /**
+     * Part data stored as a range of a file.
+     */
+    private File mDataFile = null;
+    private long mDataOffset;
+    private int mDataLength;
+
     private static final String TAG = "PduPart";
 
     /**
@@ -144,6 +158,49 @@ public class PduPart {
         return mPartData;
     }
 
+    /**
+     * Set part data as a range of a file, e.g. of the downloaded pdu, so that the data doesn't
+     * have to be held in memory. The file must stay around until the part is persisted.
+     *
+     * @param file the file containing the data
+     * @param offset offset of the data in the file
+     * @param length length of the data
+     */
+    public void setDataRange(final File file, final long offset, final int length) {
+        mDataFile = file;
+        mDataOffset = offset;
+        mDataLength = length;
+    }
+
+    /**
+     * @return true if the part data is stored as a range of a file
+     * @see #openDataRange
+     */
+    public boolean hasDataRange() {
+        return mDataFile != null;
+    }
+
+    /**
+     * @return length of the data range, or 0 if the data isn't stored as a range of a file
+     */
+    public int getDataRangeLength() {
+        return mDataFile == null ? 0 : mDataLength;
+    }
+
+    /**
+     * Opens a stream over the part data stored as a range of a file. The caller must close it.
+     */
+    public InputStream openDataRange() throws IOException {
+        final FileInputStream in = new FileInputStream(mDataFile);
+        try {
+            ByteStreams.skipFully(in, mDataOffset);
+        } catch (final IOException e) {
+            in.close();
+            throw e;
+        }
+        return ByteStreams.limit(in, mDataLength);
+    }
+
     /**
      * Set data uri. The data are stored as Uri.
      *
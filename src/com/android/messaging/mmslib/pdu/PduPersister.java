@@ -916,7 +916,10 @@ public class PduPersister {
                 if (os == null) {
                     throw new MmsException("Failed to create output stream on " + uri);
                 }
-                if (data == null) {
+                if (data == null && part.hasDataRange()) {
+                    // Copy the data straight from the file it was parsed from
+                    is = part.openDataRange();
+                } else if (data == null) {
                     dataUri = part.getDataUri();
                     if ((dataUri == null) || (dataUri.equals(uri))) {
                         Log.w(TAG, "Can't find data for this part.");
@@ -933,6 +936,8 @@ public class PduPersister {
                     if (is == null) {
                         throw new MmsException("Failed to create input stream on " + dataUri);
                     }
+                }
+                if (data == null) {
                     if (LOCAL_LOGV) {
                         LogUtil.v(TAG, "Saving data to: " + uri);
                     }
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.sms;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import com.android.messaging.Factory;
+import com.android.messaging.datamodel.MemoryCacheManager;
+import com.android.messaging.datamodel.MemoryCacheManager.MemoryCache;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.ImageUtils;
+import com.android.messaging.util.ImageUtils.ImageResizer;
+import com.android.messaging.util.LogUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Resizes images attached to an MMS and keeps the results, so that the attachments of a draft
+ * can be prepared in the background while the user composes, and sending, resending or
+ * forwarding picks up the prepared image instead of resizing it again. Results are keyed by
+ * the source Uri, the size limits and the subscription, so changing any of them (for example
+ * attaching another image, which shrinks the byte budget of each) resizes anew. Concurrent
+ * requests for the same image wait for the one resize in flight.
+ */
+public class MmsAttachmentPreprocessor implements MemoryCache {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // Resized images are at most the MMS size limit, so this holds a few messages worth
+    private static final int CACHE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * An image to resize and the limits to resize it to
+     */
+    static class Request {
+        final Uri uri;
+        final String contentType;
+        final int width;
+        final int height;
+        final int orientation;
+        final int widthLimit;
+        final int heightLimit;
+        final int byteLimit;
+        final int subId;
+
+        Request(final Uri uri, final String contentType, final int width, final int height,
+                final int orientation, final int widthLimit, final int heightLimit,
+                final int byteLimit, final int subId) {
+            this.uri = uri;
+            this.contentType = contentType;
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.widthLimit = widthLimit;
+            this.heightLimit = heightLimit;
+            this.byteLimit = byteLimit;
+            this.subId = subId;
+        }
+
+        // Dimensions and orientation are properties of the image at the Uri, so they don't
+        // take part in equality
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Request)) {
+                return false;
+            }
+            final Request other = (Request) o;
+            return uri.equals(other.uri) && contentType.equals(other.contentType)
+                    && widthLimit == other.widthLimit && heightLimit == other.heightLimit
+                    && byteLimit == other.byteLimit && subId == other.subId;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uri.hashCode();
+            result = 31 * result + contentType.hashCode();
+            result = 31 * result + widthLimit;
+            result = 31 * result + heightLimit;
+            result = 31 * result + byteLimit;
+            result = 31 * result + subId;
+            return result;
+        }
+    }
+
+    /**
+     * A resized image
+     */
+    static class Result {
+        final byte[] data;
+        final String contentType;
+
+        Result(final byte[] data, final String contentType) {
+            this.data = data;
+            this.contentType = contentType;
+        }
+    }
+
+    private static MmsAttachmentPreprocessor sInstance;
+
+    private final LruCache<Request, Result> mResults;
+    // Resizes in flight, guarded by this
+    private final HashMap<Request, FutureTask<Result>> mPendingResizes =
+            new HashMap<Request, FutureTask<Result>>();
+    // Stats, guarded by this
+    private int mHits;
+    private int mWaits;
+    private int mMisses;
+
+    public static synchronized MmsAttachmentPreprocessor get() {
+        if (sInstance == null) {
+            sInstance = new MmsAttachmentPreprocessor(CACHE_BYTES);
+            MemoryCacheManager.get().registerMemoryCache(sInstance);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    MmsAttachmentPreprocessor(final int cacheBytes) {
+        mResults = new LruCache<Request, Result>(cacheBytes) {
+            @Override
+            protected int sizeOf(final Request key, final Result value) {
+                return value.data.length;
+            }
+        };
+    }
+
+    /**
+     * Get the resized image for a request, resizing it on the calling thread unless it has
+     * been resized already or is being resized
+     *
+     * @return the resized image, null if it can't be resized
+     */
+    Result getOrResize(final Request request) {
+        final FutureTask<Result> resize;
+        boolean resizeHere = false;
+        synchronized (this) {
+            final Result result = mResults.get(request);
+            if (result != null) {
+                mHits++;
+                return result;
+            }
+            FutureTask<Result> pendingResize = mPendingResizes.get(request);
+            if (pendingResize == null) {
+                mMisses++;
+                pendingResize = createResize(request);
+                mPendingResizes.put(request, pendingResize);
+                resizeHere = true;
+            } else {
+                mWaits++;
+            }
+            resize = pendingResize;
+        }
+        if (resizeHere) {
+            resize.run();
+        }
+        try {
+            return resize.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LogUtil.w(TAG, "Interrupted waiting for image resize of " + request.uri);
+        } catch (final ExecutionException e) {
+            LogUtil.e(TAG, "Image resize of " + request.uri + " failed", e.getCause());
+        }
+        return null;
+    }
+
+    @Override
+    public void reclaim() {
+        mResults.evictAll();
+    }
+
+    private FutureTask<Result> createResize(final Request request) {
+        return new FutureTask<Result>(new Callable<Result>() {
+            @Override
+            public Result call() {
+                Result result = null;
+                try {
+                    result = resize(request);
+                    return result;
+                } finally {
+                    synchronized (MmsAttachmentPreprocessor.this) {
+                        mPendingResizes.remove(request);
+                        if (result != null) {
+                            mResults.put(request, result);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    @VisibleForTesting
+    Result resize(final Request request) {
+        final Context context = Factory.get().getApplicationContext();
+        final byte[] data = ImageResizer.getResizedImageData(request.width, request.height,
+                request.orientation, request.widthLimit, request.heightLimit, request.byteLimit,
+                request.uri, context, request.contentType);
+        if (data == null) {
+            return null;
+        }
+        // Any static images will be compressed into a jpeg
+        final String contentType = ImageUtils.isGif(request.contentType, request.uri)
+                ? ContentType.IMAGE_GIF : ContentType.IMAGE_JPEG;
+        return new Result(data, contentType);
+    }
+
+    /**
+     * @return the number of requests that waited for a resize in flight instead of resizing
+     */
+    @VisibleForTesting
+    synchronized int getWaitCount() {
+        return mWaits;
+    }
+
+    public synchronized void dump(final PrintWriter writer) {
+        writer.println("MmsAttachmentPreprocessor:");
+        writer.println("  hits=" + mHits + " waits=" + mWaits + " misses=" + mMisses
+                + " cachedImages=" + mResults.snapshot().size()
+                + " cachedBytes=" + mResults.size());
+    }
+}
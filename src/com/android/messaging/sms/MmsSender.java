@@ -179,17 +179,19 @@ public class MmsSender {
             // Ensure rawmms directory exists
             tempFile.getParentFile().mkdirs();
             writer = new FileOutputStream(tempFile);
-            final byte[] pduBytes = new PduComposer(context, pdu).make();
-            if (pduBytes == null) {
+            // Compose straight into the file so attachments aren't copied through memory
+            final long pduSize = new PduComposer(context, pdu).make(writer.getChannel());
+            if (pduSize < 0) {
+                tempFile.delete();
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY, "Failed to compose PDU");
             }
-            if (pduBytes.length > MmsConfig.get(subId).getMaxMessageSize()) {
+            if (pduSize > MmsConfig.get(subId).getMaxMessageSize()) {
+                tempFile.delete();
                 throw new MmsFailureException(
                         MmsUtils.MMS_REQUEST_NO_RETRY,
                         MessageData.RAW_TELEPHONY_STATUS_MESSAGE_TOO_BIG);
             }
-            writer.write(pduBytes);
         } catch (final IOException e) {
             if (tempFile != null) {
                 tempFile.delete();
@@ -270,20 +272,37 @@ public class MmsSender {
 
     public static RetrieveConf parseRetrieveConf(byte[] data, int subId) {
         if (data != null) {
-            final GenericPdu pdu = new PduParser(
-                    data, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse();
-            if (pdu != null) {
-                if (pdu instanceof RetrieveConf) {
-                    return (RetrieveConf) pdu;
-                } else {
-                    LogUtil.e(TAG, "MmsSender: downloaded pdu not RetrieveConf: "
-                            + pdu.getClass().getName());
-                }
+            return toRetrieveConf(new PduParser(
+                    data, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse());
+        }
+        LogUtil.e(TAG, "MmsSender: downloaded pdu is empty");
+        return null;
+    }
+
+    /**
+     * Parses a downloaded pdu without reading it into memory as a whole. Large attachments are
+     * left in the file, which must not be deleted before the message is persisted.
+     */
+    public static RetrieveConf parseRetrieveConf(File file, int subId) {
+        if (file.length() > 0) {
+            return toRetrieveConf(new PduParser(
+                    file, MmsConfig.get(subId).getSupportMmsContentDisposition()).parse());
+        }
+        LogUtil.e(TAG, "MmsSender: downloaded pdu is empty");
+        return null;
+    }
+
+    private static RetrieveConf toRetrieveConf(final GenericPdu pdu) {
+        if (pdu != null) {
+            if (pdu instanceof RetrieveConf) {
+                return (RetrieveConf) pdu;
             } else {
-                LogUtil.e(TAG, "MmsSender: downloaded pdu could not be parsed (invalid)");
+                LogUtil.e(TAG, "MmsSender: downloaded pdu not RetrieveConf: "
+                        + pdu.getClass().getName());
             }
+        } else {
+            LogUtil.e(TAG, "MmsSender: downloaded pdu could not be parsed (invalid)");
         }
-        LogUtil.e(TAG, "MmsSender: downloaded pdu is empty");
         return null;
     }
 
@@ -75,7 +75,6 @@ import com.android.messaging.util.ContentType;
 import com.android.messaging.util.DebugUtils;
 import com.android.messaging.util.EmailAddress;
 import com.android.messaging.util.ImageUtils;
-import com.android.messaging.util.ImageUtils.ImageResizer;
 import com.android.messaging.util.LogUtil;
 import com.android.messaging.util.MediaMetadataRetrieverWrapper;
 import com.android.messaging.util.OsUtil;
@@ -97,6 +96,10 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utils for sending sms/mms messages.
@@ -297,34 +300,13 @@ public class MmsUtils {
             final int subId) {
         final PduBody pb = new PduBody();
 
-        // Compute data size requirements for this message: count up images and total size of
-        // non-image attachments.
-        int totalLength = 0;
-        int countImage = 0;
-        for (final MessagePartData part : message.getParts()) {
-            if (part.isAttachment()) {
-                final String contentType = part.getContentType();
-                if (ContentType.isImageType(contentType)) {
-                    countImage++;
-                } else if (ContentType.isVCardType(contentType)) {
-                    totalLength += getDataLength(context, part.getContentUri());
-                } else {
-                    totalLength += getMediaFileSize(part.getContentUri());
-                }
-            }
-        }
-        final long minSize = countImage * MIN_IMAGE_BYTE_SIZE;
-        final int byteBudget = MmsConfig.get(subId).getMaxMessageSize() - totalLength
-                - MMS_MAX_SIZE_SLOP;
-        final double budgetFactor =
-                minSize > 0 ? Math.max(1.0, byteBudget / ((double) minSize)) : 1;
-        final int bytesPerImage = (int) (budgetFactor * MIN_IMAGE_BYTE_SIZE);
+        final int bytesPerImage = getBytesPerImage(context, message.getParts(), subId);
         final int widthLimit = MmsConfig.get(subId).getMaxImageWidth();
         final int heightLimit = MmsConfig.get(subId).getMaxImageHeight();
 
         // Actually add the attachments, shrinking images appropriately.
         int index = 0;
-        totalLength = 0;
+        int totalLength = 0;
         boolean hasVisualAttachment = false;
         boolean hasNonVisualAttachment = false;
         boolean hasText = false;
@@ -343,7 +325,7 @@ public class MmsUtils {
                     srcName = String.format(isGif ? "image%06d.gif" : "image%06d.jpg", index);
                     smilBody.append(String.format(sSmilImagePart, srcName));
                     totalLength += addPicturePart(context, pb, index, part,
-                            widthLimit, heightLimit, bytesPerImage, srcName, contentType);
+                            widthLimit, heightLimit, bytesPerImage, srcName, contentType, subId);
                     hasVisualAttachment = true;
                 } else if (ContentType.isVideoType(contentType)) {
                     srcName = String.format("video%06d.mp4", index);
@@ -396,6 +378,115 @@ public class MmsUtils {
         return mmsInfo;
     }
 
+    /**
+     * Compute the byte budget of each image of a message: count up images and total size of
+     * non-image attachments, and share what's left of the message size limit among the images.
+     */
+    private static int getBytesPerImage(final Context context,
+            final Iterable<MessagePartData> parts, final int subId) {
+        int totalLength = 0;
+        int countImage = 0;
+        for (final MessagePartData part : parts) {
+            if (part.isAttachment()) {
+                final String contentType = part.getContentType();
+                if (ContentType.isImageType(contentType)) {
+                    countImage++;
+                } else if (ContentType.isVCardType(contentType)) {
+                    totalLength += getDataLength(context, part.getContentUri());
+                } else {
+                    totalLength += getMediaFileSize(part.getContentUri());
+                }
+            }
+        }
+        final long minSize = countImage * MIN_IMAGE_BYTE_SIZE;
+        final int byteBudget = MmsConfig.get(subId).getMaxMessageSize() - totalLength
+                - MMS_MAX_SIZE_SLOP;
+        final double budgetFactor =
+                minSize > 0 ? Math.max(1.0, byteBudget / ((double) minSize)) : 1;
+        return (int) (budgetFactor * MIN_IMAGE_BYTE_SIZE);
+    }
+
+    // Prepares draft attachments one draft change at a time, at low priority, so that a burst of
+    // changes doesn't resize the same images on several threads at once
+    private static final Executor PREPARE_ATTACHMENTS_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "MmsPrepareAttachments");
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    // Incremented on each draft change, preparing the attachments of an older change stops
+    private static final AtomicInteger sPrepareAttachmentsGeneration = new AtomicInteger();
+
+    /**
+     * Start resizing the images of a draft in the background, to the limits they will be sent
+     * with, so that sending picks up the resized images instead of waiting for them. Requests
+     * run one at a time and a new request supersedes the ones before it, which stop before
+     * their next image.
+     *
+     * @param attachments the attachments of the draft
+     * @param subId the subscription the draft would be sent from
+     */
+    public static void prepareAttachmentsForSending(final List<MessagePartData> attachments,
+            final int subId) {
+        if (attachments.isEmpty() || !BugleGservices.get().getBoolean(
+                BugleGservicesKeys.MMS_PREPARE_ATTACHMENTS_AHEAD,
+                BugleGservicesKeys.MMS_PREPARE_ATTACHMENTS_AHEAD_DEFAULT)) {
+            return;
+        }
+        // Copy the list since the draft keeps changing
+        final List<MessagePartData> parts = new ArrayList<MessagePartData>(attachments);
+        final int generation = sPrepareAttachmentsGeneration.incrementAndGet();
+        PREPARE_ATTACHMENTS_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prepareAttachments(parts, subId, generation);
+                } catch (final RuntimeException e) {
+                    // Best effort, the images get resized when sending
+                    LogUtil.w(TAG, "Preparing attachments for sending failed", e);
+                }
+            }
+        });
+    }
+
+    private static void prepareAttachments(final List<MessagePartData> parts, final int subId,
+            final int generation) {
+        if (generation != sPrepareAttachmentsGeneration.get()) {
+            return;
+        }
+        final Context context = Factory.get().getApplicationContext();
+        final int bytesPerImage = getBytesPerImage(context, parts, subId);
+        final int widthLimit = MmsConfig.get(subId).getMaxImageWidth();
+        final int heightLimit = MmsConfig.get(subId).getMaxImageHeight();
+        for (final MessagePartData part : parts) {
+            if (generation != sPrepareAttachmentsGeneration.get()) {
+                // Superseded by a newer change to the draft
+                return;
+            }
+            String contentType = part.getContentType();
+            if (!part.isAttachment() || !ContentType.isImageType(contentType)) {
+                continue;
+            }
+            // Same content type fix up as makePduBody, so the requests match
+            if (ImageUtils.isGif(contentType, part.getContentUri())) {
+                contentType = ContentType.IMAGE_GIF;
+            }
+            final int imageSize = getDataLength(context, part.getContentUri());
+            if (imageSize <= 0) {
+                continue;
+            }
+            final MmsAttachmentPreprocessor.Request request = getImageResizeRequest(context,
+                    part, contentType, imageSize, widthLimit, heightLimit, bytesPerImage, subId);
+            if (request != null) {
+                MmsAttachmentPreprocessor.get().getOrResize(request);
+            }
+        }
+    }
+
     private static int getMediaDurationMs(final Context context, final MessagePartData part,
             final int defaultDurationMs) {
         Assert.notNull(context);
@@ -447,8 +538,52 @@ public class MmsUtils {
     }
 
     private static int addPicturePart(final Context context, final PduBody pb, final int index,
-            final MessagePartData messagePart, int widthLimit, int heightLimit,
-            final int maxPartSize, final String srcName, final String contentType) {
+            final MessagePartData messagePart, final int widthLimit, final int heightLimit,
+            final int maxPartSize, final String srcName, final String contentType,
+            final int subId) {
+        final Uri imageUri = messagePart.getContentUri();
+        int imageSize = getDataLength(context, imageUri);
+        if (imageSize <= 0) {
+            LogUtil.e(TAG, "Can't get image", new Exception());
+            return 0;
+        }
+
+        PduPart part;
+        final MmsAttachmentPreprocessor.Request request = getImageResizeRequest(context,
+                messagePart, contentType, imageSize, widthLimit, heightLimit, maxPartSize, subId);
+        if (request == null) {
+            part = new PduPart();
+            part.setDataUri(imageUri);
+            part.setContentType(contentType.getBytes());
+        } else {
+            part = getResizedImageAsPart(request);
+            if (part == null) {
+                final OutOfMemoryError e = new OutOfMemoryError();
+                LogUtil.e(TAG, "Can't resize image: not enough memory?", e);
+                throw e;
+            }
+            imageSize = part.getData().length;
+        }
+
+        setPartContentLocationAndId(part, srcName);
+
+        pb.addPart(index, part);
+
+        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
+            LogUtil.v(TAG, "addPicturePart size: " + imageSize);
+        }
+
+        return imageSize;
+    }
+
+    /**
+     * Work out whether an image has to be resized to be sent, and to what limits
+     *
+     * @return the request to resize the image with, null if it can be sent as is
+     */
+    private static MmsAttachmentPreprocessor.Request getImageResizeRequest(final Context context,
+            final MessagePartData messagePart, final String contentType, final int imageSize,
+            int widthLimit, int heightLimit, final int maxPartSize, final int subId) {
         final Uri imageUri = messagePart.getContentUri();
         final int width = messagePart.getWidth();
         final int height = messagePart.getHeight();
@@ -462,11 +597,6 @@ public class MmsUtils {
         }
 
         final int orientation = ImageUtils.getOrientation(context, imageUri);
-        int imageSize = getDataLength(context, imageUri);
-        if (imageSize <= 0) {
-            LogUtil.e(TAG, "Can't get image", new Exception());
-            return 0;
-        }
 
         if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
             LogUtil.v(TAG, "addPicturePart size: " + imageSize + " width: "
@@ -475,7 +605,6 @@ public class MmsUtils {
                     + " heightLimit: " + heightLimit);
         }
 
-        PduPart part;
         // Check if we're already within the limits - in which case we don't need to resize.
         // The size can be zero here, even when the media has content. See the comment in
         // MediaModel.initMediaSize. Sometimes it'll compute zero and it's costly to read the
@@ -489,29 +618,11 @@ public class MmsUtils {
             if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
                 LogUtil.v(TAG, "addPicturePart - already sized");
             }
-            part = new PduPart();
-            part.setDataUri(imageUri);
-            part.setContentType(contentType.getBytes());
-        } else {
-            part = getResizedImageAsPart(widthLimit, heightLimit, maxPartSize,
-                    width, height, orientation, imageUri, context, contentType);
-            if (part == null) {
-                final OutOfMemoryError e = new OutOfMemoryError();
-                LogUtil.e(TAG, "Can't resize image: not enough memory?", e);
-                throw e;
-            }
-            imageSize = part.getData().length;
-        }
-
-        setPartContentLocationAndId(part, srcName);
-
-        pb.addPart(index, part);
-
-        if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
-            LogUtil.v(TAG, "addPicturePart size: " + imageSize);
+            return null;
         }
-
-        return imageSize;
+        return new MmsAttachmentPreprocessor.Request(imageUri, contentType, width, height,
+                orientation, widthLimit, heightLimit, maxPartSize,
+                PhoneUtils.getDefault().getEffectiveSubId(subId));
     }
 
     private static void addPartForUri(final Context context, final PduBody pb,
@@ -650,37 +761,24 @@ public class MmsUtils {
      * Get a version of this image resized to fit the given dimension and byte-size limits. Note
      * that the content type of the resulting PduPart may not be the same as the content type of
      * this UriImage; always call {@link PduPart#getContentType()} to get the new content type.
+     * The image is taken from the preprocessor if it has been resized ahead of sending.
      *
-     * @param widthLimit The width limit, in pixels
-     * @param heightLimit The height limit, in pixels
-     * @param byteLimit The binary size limit, in bytes
-     * @param width The image width, in pixels
-     * @param height The image height, in pixels
-     * @param orientation Orientation constant from ExifInterface for rotating or flipping the
-     *                    image
-     * @param imageUri Uri to the image data
-     * @param context Needed to open the image
+     * @param request The image and the limits to resize it to
      * @return A new PduPart containing the resized image data
      */
-    private static PduPart getResizedImageAsPart(final int widthLimit,
-            final int heightLimit, final int byteLimit, final int width, final int height,
-            final int orientation, final Uri imageUri, final Context context, final String contentType) {
-        final PduPart part = new PduPart();
-
-        final byte[] data = ImageResizer.getResizedImageData(width, height, orientation,
-                widthLimit, heightLimit, byteLimit, imageUri, context, contentType);
-        if (data == null) {
+    private static PduPart getResizedImageAsPart(final MmsAttachmentPreprocessor.Request request) {
+        final MmsAttachmentPreprocessor.Result result =
+                MmsAttachmentPreprocessor.get().getOrResize(request);
+        if (result == null) {
             if (LogUtil.isLoggable(TAG, LogUtil.VERBOSE)) {
                 LogUtil.v(TAG, "Resize image failed.");
             }
             return null;
         }
 
-        part.setData(data);
-        // Any static images will be compressed into a jpeg
-        final String contentTypeOfResizedImage = ImageUtils.isGif(contentType, imageUri)
-                ? ContentType.IMAGE_GIF : ContentType.IMAGE_JPEG;
-        part.setContentType(contentTypeOfResizedImage.getBytes());
+        final PduPart part = new PduPart();
+        part.setData(result.data);
+        part.setContentType(result.contentType.getBytes());
 
         return part;
     }
@@ -243,6 +243,18 @@ public abstract class CursorRecyclerAdapter<VH extends RecyclerView.ViewHolder>
      * Cursor, null is also returned.
      */
     public Cursor swapCursor(final Cursor newCursor) {
+        return swapCursor(newCursor, true /* notify */);
+    }
+
+    /**
+     * Swap in a new Cursor like {@link #swapCursor(Cursor)}, but let the caller notify the
+     * observers of what changed, so that they don't have to rebind every item.
+     *
+     * @param newCursor The new cursor to be used.
+     * @param notify Whether to notify the observers that the whole data set changed.
+     * @return Returns the previously set Cursor, as {@link #swapCursor(Cursor)} does.
+     */
+    protected Cursor swapCursor(final Cursor newCursor, final boolean notify) {
         if (newCursor == mCursor) {
             return null;
         }
@@ -273,7 +285,9 @@ public abstract class CursorRecyclerAdapter<VH extends RecyclerView.ViewHolder>
             }
 
             // notify the observers about the new cursor
-            notifyDataSetChanged();
+            if (notify) {
+                notifyDataSetChanged();
+            }
         } else {
             mRowIDColumn = -1;
             mDataValid = false;
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.messaging.ui;
+
+import android.content.Context;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.view.View;
+
+import com.android.messaging.datamodel.media.BindableMediaRequest;
+import com.android.messaging.datamodel.media.ImageRequestDescriptor;
+import com.android.messaging.datamodel.media.ImageResource;
+import com.android.messaging.datamodel.media.MediaCache;
+import com.android.messaging.datamodel.media.MediaRequest;
+import com.android.messaging.datamodel.media.MediaResourceManager;
+import com.android.messaging.datamodel.media.MediaResourceManager.MediaResourceLoadListener;
+import com.android.messaging.util.Assert.RunsOnMainThread;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Loads the images of the rows that are about to scroll into a RecyclerView while the user is
+ * scrolling, so that they are in the memory cache by the time the rows are bound. The faster the
+ * list moves, the more rows ahead are loaded.
+ *
+ * Prefetches are requested with {@link MediaResourceManager#PRIORITY_PREFETCH} so they never
+ * delay images of visible rows, and are dropped when the scroll direction changes. They are also
+ * only issued while the target memory cache has room that isn't taken by images currently in use,
+ * so that prefetching doesn't push images of visible rows out of the cache.
+ */
+public class ScrollAheadPrefetcher extends RecyclerView.OnScrollListener {
+    private static final String BINDING_ID = "ScrollAheadPrefetcher";
+
+    // Rows loaded ahead when scrolling slowly
+    private static final int MIN_ROWS_AHEAD = 3;
+    // Upper bound on rows loaded ahead during a fling
+    private static final int MAX_ROWS_AHEAD = 15;
+    // Number of frames of movement at the current speed to look ahead
+    private static final int FRAMES_AHEAD = 30;
+
+    /**
+     * Implemented by adapters to describe the images of a row
+     */
+    public interface PrefetchSource {
+        /**
+         * Adds the images that binding the row at the given adapter position would request
+         */
+        void addPrefetchRequests(int position, List<ImageRequestDescriptor> requests);
+    }
+
+    private final Context mContext;
+    private final PrefetchSource mSource;
+    private final List<ImageRequestDescriptor> mScratch = new ArrayList<ImageRequestDescriptor>();
+    // Outstanding prefetches mapped to their estimated size in kilobytes
+    private final HashMap<BindableMediaRequest<ImageResource>, Integer> mPending =
+            new HashMap<BindableMediaRequest<ImageResource>, Integer>();
+    // Keys already prefetched while scrolling in the current direction
+    private final HashSet<String> mRequestedKeys = new HashSet<String>();
+    private int mPendingSizeKb;
+    private int mDirection;
+
+    public ScrollAheadPrefetcher(final Context context, final PrefetchSource source) {
+        mContext = context;
+        mSource = source;
+    }
+
+    @Override
+    @RunsOnMainThread
+    public void onScrolled(final RecyclerView recyclerView, final int dx, final int dy) {
+        if (dy == 0 || !(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        final LinearLayoutManager manager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        // Direction in adapter positions
+        final int direction = (dy > 0) != manager.getReverseLayout() ? 1 : -1;
+        if (direction != mDirection) {
+            cancel();
+            mDirection = direction;
+        }
+
+        final View child = recyclerView.getChildAt(0);
+        final int rowHeight = child == null ? 0 : child.getHeight();
+        int rowsAhead = MIN_ROWS_AHEAD;
+        if (rowHeight > 0) {
+            rowsAhead += Math.abs(dy) * FRAMES_AHEAD / rowHeight;
+        }
+        rowsAhead = Math.min(rowsAhead, MAX_ROWS_AHEAD);
+
+        final int itemCount = recyclerView.getAdapter().getItemCount();
+        final int edge = direction > 0 ? manager.findLastVisibleItemPosition() :
+                manager.findFirstVisibleItemPosition();
+        if (edge == RecyclerView.NO_POSITION) {
+            return;
+        }
+        for (int i = 1; i <= rowsAhead; i++) {
+            final int position = edge + direction * i;
+            if (position < 0 || position >= itemCount) {
+                break;
+            }
+            mScratch.clear();
+            mSource.addPrefetchRequests(position, mScratch);
+            for (final ImageRequestDescriptor descriptor : mScratch) {
+                if (!prefetch(descriptor)) {
+                    // Out of budget
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all prefetches that haven't started yet
+     */
+    @RunsOnMainThread
+    public void cancel() {
+        for (final BindableMediaRequest<ImageResource> request :
+                new ArrayList<BindableMediaRequest<ImageResource>>(mPending.keySet())) {
+            request.unbind(BINDING_ID);
+        }
+        mPending.clear();
+        mPendingSizeKb = 0;
+        mRequestedKeys.clear();
+    }
+
+    /**
+     * @return false if the request is over budget
+     */
+    private boolean prefetch(final ImageRequestDescriptor descriptor) {
+        final String key = descriptor.getKey();
+        if (key == null || mRequestedKeys.contains(key)) {
+            return true;
+        }
+        final BindableMediaRequest<ImageResource> request =
+                descriptor.buildAsyncMediaRequest(mContext, mListener);
+        final MediaCache<ImageResource> cache = request.getMediaCache();
+        if (cache == null) {
+            return true;
+        }
+        final int sizeKb = estimateSizeKb(descriptor);
+        if (cache.maxSize() - cache.getInUseSizeKb() - mPendingSizeKb < sizeKb) {
+            return false;
+        }
+        mRequestedKeys.add(key);
+        mPending.put(request, sizeKb);
+        mPendingSizeKb += sizeKb;
+        request.bind(BINDING_ID);
+        MediaResourceManager.get().requestMediaResourceAsync(request,
+                MediaResourceManager.PRIORITY_PREFETCH);
+        return true;
+    }
+
+    private void onPrefetchDone(final MediaRequest<ImageResource> request) {
+        final Integer sizeKb = mPending.remove(request);
+        if (sizeKb != null) {
+            mPendingSizeKb -= sizeKb;
+            ((BindableMediaRequest<ImageResource>) request).unbind(BINDING_ID);
+        }
+    }
+
+    private static int estimateSizeKb(final ImageRequestDescriptor descriptor) {
+        int width = descriptor.desiredWidth;
+        int height = descriptor.desiredHeight;
+        final int sourceWidth = descriptor.sourceWidth;
+        final int sourceHeight = descriptor.sourceHeight;
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            // Images are only ever scaled down
+            if (width <= 0 || width > sourceWidth) {
+                width = sourceWidth;
+            }
+            if (height <= 0) {
+                height = (int) ((long) sourceHeight * width / sourceWidth);
+            }
+            height = Math.min(height, sourceHeight);
+        } else if (height <= 0) {
+            // Images with an unconstrained height are assumed to be square
+            height = width;
+        }
+        return Math.max(1, (int) ((long) width * height * 4 / 1024));
+    }
+
+    private final MediaResourceLoadListener<ImageResource> mListener =
+            new MediaResourceLoadListener<ImageResource>() {
+        @Override
+        public void onMediaResourceLoaded(final MediaRequest<ImageResource> request,
+                final ImageResource resource, final boolean cached) {
+            onPrefetchDone(request);
+        }
+
+        @Override
+        public void onMediaResourceLoadError(final MediaRequest<ImageResource> request,
+                final Exception exception) {
+            onPrefetchDone(request);
+        }
+    };
+}
@@ -85,6 +85,7 @@ import com.android.messaging.datamodel.data.SubscriptionListData.SubscriptionLis
 import com.android.messaging.ui.AttachmentPreview;
 import com.android.messaging.ui.BugleActionBarActivity;
 import com.android.messaging.ui.ConversationDrawables;
+import com.android.messaging.ui.ScrollAheadPrefetcher;
 import com.android.messaging.ui.SnackBar;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.ui.animation.PopupTransitionAnimation;
@@ -145,6 +146,8 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
     public static final String FRAGMENT_TAG = "conversation";
 
     static final int REQUEST_CHOOSE_ATTACHMENTS = 2;
+    // Older messages are paged in when the first visible message is closer than this to the top
+    private static final int LOAD_OLDER_MESSAGES_THRESHOLD = 10;
     private static final int JUMP_SCROLL_THRESHOLD = 15;
     // We animate the message from draft to message list, if we the message doesn't show up in the
     // list within this time limit, then we just do a fade in animation instead
@@ -153,6 +156,7 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
     private ComposeMessageView mComposeMessageView;
     private RecyclerView mRecyclerView;
     private ConversationMessageAdapter mAdapter;
+    private ScrollAheadPrefetcher mPrefetcher;
     private ConversationFastScroller mFastScroller;
 
     private View mConversationComposeDivider;
@@ -280,6 +284,17 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
                     mConversationComposeDivider.animate().alpha(isScrolledToBottom() ? 0 : 1);
                     mWasScrolledToBottom = isScrolledToBottom();
                 }
+                if (dy < 0 && mBinding.isBound()) {
+                    // Page in older messages before the user reaches the oldest loaded one
+                    final LinearLayoutManager layoutManager =
+                            (LinearLayoutManager) mRecyclerView.getLayoutManager();
+                    final int firstVisiblePosition =
+                            layoutManager.findFirstVisibleItemPosition();
+                    if (firstVisiblePosition != RecyclerView.NO_POSITION &&
+                            firstVisiblePosition < LOAD_OLDER_MESSAGES_THRESHOLD) {
+                        mBinding.getData().loadOlderMessages();
+                    }
+                }
             }
     };
 
@@ -478,6 +493,10 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
         // Delay showing the message list until the participant list is loaded.
         mRecyclerView.setVisibility(View.INVISIBLE);
         mBinding.ensureBound();
+        if (getScrollToMessagePosition() >= 0) {
+            // The position to scroll to counts all of the conversation's messages
+            mBinding.getData().disableMessageWindow();
+        }
         mBinding.getData().init(getLoaderManager(), mBinding);
 
         // Build the input manager with all its required dependencies and pass it along to the
@@ -634,6 +653,8 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
         mConversationComposeDivider = view.findViewById(R.id.conversation_compose_divider);
         mScrollToDismissThreshold = ViewConfiguration.get(getActivity()).getScaledTouchSlop();
         mRecyclerView.addOnScrollListener(mListScrollListener);
+        mPrefetcher = new ScrollAheadPrefetcher(getActivity(), mAdapter);
+        mRecyclerView.addOnScrollListener(mPrefetcher);
         mFastScroller = ConversationFastScroller.addTo(mRecyclerView,
                 UiUtils.isRtlMode() ? ConversationFastScroller.POSITION_LEFT_SIDE :
                     ConversationFastScroller.POSITION_RIGHT_SIDE);
@@ -1007,7 +1028,7 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
 
         // Ensure that the action bar is updated with the current data.
         invalidateOptionsMenu();
-        final Cursor oldCursor = mAdapter.swapCursor(cursor);
+        final Cursor oldCursor = mAdapter.swapCursor(cursor, data.getMessagesDelta());
 
         if (cursor != null && oldCursor == null) {
             if (mListState != null) {
@@ -1117,6 +1138,9 @@ public class ConversationFragment extends Fragment implements ConversationDataLi
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
         // Unbind all the views that we bound to data
         if (mComposeMessageView != null) {
             mComposeMessageView.unbind();
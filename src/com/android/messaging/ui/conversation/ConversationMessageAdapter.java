@@ -17,14 +17,19 @@ package com.android.messaging.ui.conversation;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
 import com.android.messaging.R;
+import com.android.messaging.datamodel.data.ConversationData.MessagesDelta;
+import com.android.messaging.datamodel.data.ConversationMessageData;
+import com.android.messaging.datamodel.media.ImageRequestDescriptor;
 import com.android.messaging.ui.AsyncImageView;
 import com.android.messaging.ui.CursorRecyclerAdapter;
+import com.android.messaging.ui.ScrollAheadPrefetcher;
 import com.android.messaging.ui.AsyncImageView.AsyncImageViewDelayLoader;
 import com.android.messaging.ui.conversation.ConversationMessageView.ConversationMessageViewHost;
 import com.android.messaging.util.Assert;
@@ -37,7 +42,8 @@ import java.util.List;
  * RecyclerView.
  */
 public class ConversationMessageAdapter extends
-    CursorRecyclerAdapter<ConversationMessageAdapter.ConversationMessageViewHolder> {
+    CursorRecyclerAdapter<ConversationMessageAdapter.ConversationMessageViewHolder>
+    implements ScrollAheadPrefetcher.PrefetchSource {
 
     private final ConversationMessageViewHost mHost;
     private final AsyncImageViewDelayLoader mImageViewDelayLoader;
@@ -45,6 +51,8 @@ public class ConversationMessageAdapter extends
     private final View.OnLongClickListener mViewLongClickListener;
     private boolean mOneOnOne;
     private String mSelectedMessageId;
+    // Scratch data for reading rows to prefetch
+    private final ConversationMessageData mPrefetchData = new ConversationMessageData();
 
     public ConversationMessageAdapter(final Context context, final Cursor cursor,
         final ConversationMessageViewHost host,
@@ -68,6 +76,16 @@ public class ConversationMessageAdapter extends
         conversationMessageView.bind(cursor, mOneOnOne, mSelectedMessageId);
     }
 
+    @Override
+    public void addPrefetchRequests(final int position,
+            final List<ImageRequestDescriptor> requests) {
+        if (!mDataValid || mCursor == null || !mCursor.moveToPosition(position)) {
+            return;
+        }
+        mPrefetchData.bind(mCursor);
+        ConversationMessageView.addPrefetchRequests(mContext, mPrefetchData, requests);
+    }
+
     @Override
     public ConversationMessageViewHolder createViewHolder(final Context context,
             final ViewGroup parent, final int viewType) {
@@ -80,6 +98,43 @@ public class ConversationMessageAdapter extends
                             mViewClickListener, mViewLongClickListener);
     }
 
+    /**
+     * Swaps in a new cursor of messages, notifying only the rows in the delta from the current
+     * one when it's known.
+     * @return the previous cursor, which is not closed
+     */
+    public Cursor swapCursor(final Cursor newCursor, @Nullable final MessagesDelta delta) {
+        if (delta == null || newCursor == null || mCursor == null || !mDataValid
+                || mCursor.getCount() != delta.getOldCount()) {
+            return swapCursor(newCursor);
+        }
+        final Cursor oldCursor = swapCursor(newCursor, false /* notify */);
+        if (delta.isEmpty()) {
+            return oldCursor;
+        }
+        final int start = delta.getStart();
+        final int changedCount = Math.min(delta.getRemovedCount(), delta.getInsertedCount());
+        if (changedCount > 0) {
+            notifyItemRangeChanged(start, changedCount);
+        }
+        if (delta.getInsertedCount() > changedCount) {
+            notifyItemRangeInserted(start + changedCount,
+                    delta.getInsertedCount() - changedCount);
+        } else if (delta.getRemovedCount() > changedCount) {
+            notifyItemRangeRemoved(start + changedCount, delta.getRemovedCount() - changedCount);
+        }
+        // Messages are clustered with their neighbors, so the rows around the delta may look
+        // different too
+        if (start > 0) {
+            notifyItemChanged(start - 1);
+        }
+        final int next = start + delta.getInsertedCount();
+        if (next < newCursor.getCount()) {
+            notifyItemChanged(next);
+        }
+        return oldCursor;
+    }
+
     public void setSelectedMessage(final String messageId) {
         mSelectedMessageId = messageId;
         notifyDataSetChanged();
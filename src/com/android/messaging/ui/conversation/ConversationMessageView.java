@@ -47,6 +47,7 @@ import com.android.messaging.datamodel.data.ConversationMessageData;
 import com.android.messaging.datamodel.data.MessageData;
 import com.android.messaging.datamodel.data.MessagePartData;
 import com.android.messaging.datamodel.data.SubscriptionListData.SubscriptionListEntry;
+import com.android.messaging.datamodel.media.AvatarRequestDescriptor;
 import com.android.messaging.datamodel.media.ImageRequestDescriptor;
 import com.android.messaging.datamodel.media.MessagePartImageRequestDescriptor;
 import com.android.messaging.datamodel.media.UriImageRequestDescriptor;
@@ -497,6 +498,46 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
         mMessageBubble.bind(mData);
     }
 
+    /**
+     * Gets a hint for how large to pull the data of a single image attachment into, based on
+     * the display metrics
+     */
+    private static int getImageDesiredWidth(final Context context) {
+        final WindowManager windowManager = (WindowManager) context.
+                getSystemService(Context.WINDOW_SERVICE);
+        final DisplayMetrics displayMetrics = new DisplayMetrics();
+        windowManager.getDefaultDisplay().getMetrics(displayMetrics);
+
+        final int iconSize = context.getResources()
+                .getDimensionPixelSize(R.dimen.conversation_message_contact_icon_size);
+        return displayMetrics.widthPixels - iconSize - iconSize;
+    }
+
+    /**
+     * Adds the sender avatar and the single image attachment that binding a view to the message
+     * would request, so they can be loaded ahead of time. Messages with several image attachments
+     * load them when bound.
+     */
+    static void addPrefetchRequests(final Context context, final ConversationMessageData data,
+            final List<ImageRequestDescriptor> requests) {
+        if (!data.getIsOutgoing()) {
+            final Uri avatarUri = AvatarUriUtil.createAvatarUri(
+                    data.getSenderProfilePhotoUri(),
+                    data.getSenderFullName(),
+                    data.getSenderNormalizedDestination(),
+                    data.getSenderContactLookupKey());
+            // Same size as the normal ContactIconView in conversation_message_view
+            final int iconSize = (int) context.getResources().getDimension(
+                    R.dimen.contact_icon_view_normal_size);
+            requests.add(new AvatarRequestDescriptor(avatarUri, iconSize, iconSize));
+        }
+        final List<MessagePartData> imageParts = data.getAttachments(sImageFilter);
+        if (imageParts.size() == 1) {
+            requests.add(new MessagePartImageRequestDescriptor(imageParts.get(0),
+                    getImageDesiredWidth(context), MessagePartData.UNSPECIFIED_SIZE, false));
+        }
+    }
+
     private void updateMessageAttachments() {
         // Bind video, audio, and VCard attachments. If there are multiple, they stack vertically.
         bindAttachmentsOfSameType(sVideoFilter,
@@ -548,15 +589,7 @@ public class ConversationMessageView extends FrameLayout implements View.OnClick
 
         // We will show the message image view if there is one attachment or one youtube link
         if (imageParts.size() == 1 || mMessageHasYouTubeLink) {
-            // Get the display metrics for a hint for how large to pull the image data into
-            final WindowManager windowManager = (WindowManager) getContext().
-                    getSystemService(Context.WINDOW_SERVICE);
-            final DisplayMetrics displayMetrics = new DisplayMetrics();
-            windowManager.getDefaultDisplay().getMetrics(displayMetrics);
-
-            final int iconSize = getResources()
-                    .getDimensionPixelSize(R.dimen.conversation_message_contact_icon_size);
-            final int desiredWidth = displayMetrics.widthPixels - iconSize - iconSize;
+            final int desiredWidth = getImageDesiredWidth(getContext());
 
             if (imageParts.size() == 1) {
                 final MessagePartData imagePart = imageParts.get(0);
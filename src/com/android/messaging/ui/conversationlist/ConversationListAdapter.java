@@ -18,6 +18,7 @@ package com.android.messaging.ui.conversationlist;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.net.Uri;
 import android.support.v7.widget.RecyclerView;
 import android.util.SparseArray;
 import android.view.LayoutInflater;
@@ -30,12 +31,18 @@ import android.widget.TextView;
 import com.android.messaging.Factory;
 import com.android.messaging.R;
 import com.android.messaging.datamodel.DatabaseHelper;
+import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.FavoritesData;
+import com.android.messaging.datamodel.media.AvatarRequestDescriptor;
+import com.android.messaging.datamodel.media.ImageRequestDescriptor;
 import com.android.messaging.ui.CursorRecyclerAdapter;
+import com.android.messaging.ui.ScrollAheadPrefetcher;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.Dates;
 import com.rgk.messaging.util.PrefsUtils;
 
+import java.util.List;
+
 import static android.view.View.GONE;
 import static android.view.View.VISIBLE;
 import static android.widget.AdapterView.INVALID_POSITION;
@@ -45,7 +52,8 @@ import static android.widget.AdapterView.INVALID_POSITION;
  */
 public class ConversationListAdapter
         extends CursorRecyclerAdapter<ConversationListAdapter.ConversationListViewHolder>
-        implements CursorRecyclerAdapter.SectionsSetupListener{
+        implements CursorRecyclerAdapter.SectionsSetupListener,
+        ScrollAheadPrefetcher.PrefetchSource {
     private SparseArray<Section> mSections = new SparseArray<>();
 
     private final ConversationListItemView.HostInterface mClivHostInterface;
@@ -55,6 +63,8 @@ public class ConversationListAdapter
     private int mTopChatLastIndex;
     private OnSearchViewClickListener mSearchViewClickListener;
     private boolean mSearchViewVisible = true;
+    // Scratch data for reading rows to prefetch
+    private final ConversationListItemData mPrefetchData = new ConversationListItemData();
 
     public interface OnSearchViewClickListener {
         boolean onClick();
@@ -161,6 +171,27 @@ public class ConversationListAdapter
         }
     }
 
+    /**
+     * Adds the avatar {@link ConversationListItemView} would request for the row
+     */
+    @Override
+    public void addPrefetchRequests(final int position,
+            final List<ImageRequestDescriptor> requests) {
+        if (!mDataValid || mCursor == null || !PrefsUtils.isShowContactIconEnabled()
+                || getItemViewType(position) != ConversationItemType.TYPE_CONVERSATION
+                || !mCursor.moveToPosition(sectionedPositionToPosition(position))) {
+            return;
+        }
+        mPrefetchData.bind(mCursor);
+        if (mPrefetchData.getIcon() != null) {
+            // Same size as the large ContactIconView in conversation_list_item_view
+            final int iconSize = (int) mContext.getResources().getDimension(
+                    R.dimen.contact_icon_view_large_size);
+            requests.add(new AvatarRequestDescriptor(Uri.parse(mPrefetchData.getIcon()),
+                    iconSize, iconSize));
+        }
+    }
+
     /**
      * @see com.android.messaging.ui.CursorRecyclerAdapter#bindViewHolder(
      * android.support.v7.widget.RecyclerView.ViewHolder, android.content.Context,
@@ -54,6 +54,7 @@ import com.android.messaging.datamodel.data.ConversationListItemData;
 import com.android.messaging.datamodel.data.FavoritesData;
 import com.android.messaging.ui.BugleAnimationTags;
 import com.android.messaging.ui.ListEmptyView;
+import com.android.messaging.ui.ScrollAheadPrefetcher;
 import com.android.messaging.ui.SnackBarInteraction;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.util.AccessibilityUtil;
@@ -75,6 +76,9 @@ public class ConversationListFragment extends Fragment implements ConversationLi
     private static final String BUNDLE_FORWARD_MESSAGE_MODE = "forward_message_mode";
     private static final boolean VERBOSE = false;
 
+    // Request the next page of search results when this close to the end of the list
+    private static final int SEARCH_LOAD_MORE_THRESHOLD = 10;
+
     private MenuItem mShowBlockedMenuItem;
     //private MenuItem mMarkAsRead;
     private boolean mArchiveMode;
@@ -99,6 +103,7 @@ public class ConversationListFragment extends Fragment implements ConversationLi
     private ImageView mStartNewConversationButton;
     private ListEmptyView mEmptyListMessageView;
     private ConversationListAdapter mAdapter;
+    private ScrollAheadPrefetcher mPrefetcher;
 
     // Saved Instance State Data - only for temporal data which is nice to maintain but not
     // critical for correctness.
@@ -204,6 +209,9 @@ public class ConversationListFragment extends Fragment implements ConversationLi
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
         mListBinding.unbind();
         mHost = null;
     }
@@ -249,6 +257,16 @@ public class ConversationListFragment extends Fragment implements ConversationLi
                 } else {
                     mListBinding.getData().setScrolledToNewestConversation(false);
                 }
+
+                if (Factory.get().getInSearchMode() == Factory.INSEARCH_MODE && dy > 0) {
+                    final int lastItemPosition = ((LinearLayoutManager) mRecyclerView
+                            .getLayoutManager()).findLastVisibleItemPosition();
+                    final Cursor cursor = mAdapter.getCursor();
+                    if (cursor != null && lastItemPosition
+                            >= mAdapter.getItemCount() - SEARCH_LOAD_MORE_THRESHOLD) {
+                        mListBinding.getData().loadMoreSearchResults(cursor.getCount());
+                    }
+                }
             }
 
             @Override
@@ -256,6 +274,8 @@ public class ConversationListFragment extends Fragment implements ConversationLi
                 mCurrentState = newState;
             }
         });
+        mPrefetcher = new ScrollAheadPrefetcher(activity, mAdapter);
+        mRecyclerView.addOnScrollListener(mPrefetcher);
         mRecyclerView.addOnItemTouchListener(new ConversationListSwipeHelper(mRecyclerView));
 
         if (savedInstanceState != null) {
@@ -100,6 +100,26 @@ public final class BugleGservicesKeys {
     public static final int SMS_SYNC_BATCH_MAX_MESSAGES_TO_SCAN_DEFAULT =
             SMS_SYNC_BATCH_SIZE_MAX_DEFAULT * 4;
 
+    /**
+     * Number of threads resolving MMS parts and senders during sync, and the number of chunks
+     * of MMS messages that may wait for them before the scan resolves chunks itself.
+     */
+    public static final String SMS_SYNC_MMS_RESOLVER_THREADS =
+            "bugle_sms_sync_mms_resolver_threads";
+    public static final int SMS_SYNC_MMS_RESOLVER_THREADS_DEFAULT = 3;
+    public static final String SMS_SYNC_MMS_RESOLVER_QUEUE_SIZE =
+            "bugle_sms_sync_mms_resolver_queue_size";
+    public static final int SMS_SYNC_MMS_RESOLVER_QUEUE_SIZE_DEFAULT = 4;
+
+    /**
+     * Smallest time bucket in ms that sync narrows a mismatch down to before re-scanning it. Older
+     * messages are compared bucket by bucket using a count and id checksum, so that a change deep
+     * in the history only re-scans its bucket instead of forcing a full sync.
+     */
+    public static final String SMS_SYNC_BUCKET_MILLIS =
+            "bugle_sms_sync_bucket_millis";
+    public static final long SMS_SYNC_BUCKET_MILLIS_DEFAULT = 24 * 60 * 60 * 1000L;
+
     /**
      * Time in ms for sync to backoff from "now" to the latest message that will be sync'd.
      *
@@ -202,6 +222,16 @@ public final class BugleGservicesKeys {
             = "bugle_notification_time_between_rings_seconds";
     public static final int NOTIFICATION_TIME_BETWEEN_RINGS_SECONDS_DEFAULT = 10;
 
+    /**
+     * Time in ms to wait before rebuilding message notifications after an update is requested.
+     * Updates requested within this window are merged into a single rebuild, so that a burst of
+     * incoming messages doesn't rebuild the notifications once per message. 0 rebuilds right
+     * away.
+     */
+    public static final String NOTIFICATION_UPDATE_DELAY_MS =
+            "bugle_notification_update_delay_ms";
+    public static final long NOTIFICATION_UPDATE_DELAY_MS_DEFAULT = 300;
+
     /**
      * The max number of messages to show in a single conversation notification, when a wearable
      * device (i.e. smartwatch) is paired with the phone. Watches have a different UX model and
@@ -295,4 +325,48 @@ public final class BugleGservicesKeys {
      */
     public static final String ENABLE_GIF_TRANSCODING = "bugle_gif_transcoding";
     public static final boolean ENABLE_GIF_TRANSCODING_DEFAULT = true;
+
+    /**
+     * Whether to shrink GIFs with the Java re-encoder when the native transcoder is disabled,
+     * can't handle a GIF, or doesn't make it small enough to send.
+     */
+    public static final String ENABLE_GIF_REENCODING = "bugle_gif_reencoding";
+    public static final boolean ENABLE_GIF_REENCODING_DEFAULT = true;
+
+    /**
+     * Whether to shrink GIFs with the Java re-encoder instead of the native transcoder, for
+     * devices where the re-encoder benchmarks faster.
+     */
+    public static final String PREFER_GIF_REENCODING = "bugle_prefer_gif_reencoding";
+    public static final boolean PREFER_GIF_REENCODING_DEFAULT = false;
+
+    /**
+     * Number of messages a conversation loads at first and each time the user scrolls to the
+     * oldest loaded message. 0 loads all of the messages at once.
+     */
+    public static final String CONVERSATION_MESSAGES_WINDOW_SIZE =
+            "bugle_conversation_messages_window_size";
+    public static final int CONVERSATION_MESSAGES_WINDOW_SIZE_DEFAULT = 100;
+
+    /**
+     * Whether the MMS library keeps HTTP connections to the MMSC open across queued sends and
+     * downloads, streaming PDUs through files. Only used when the platform MMS API is not.
+     */
+    public static final String MMS_PERSISTENT_CONNECTIONS = "bugle_mms_persistent_connections";
+    public static final boolean MMS_PERSISTENT_CONNECTIONS_DEFAULT = true;
+
+    /**
+     * Whether to pick the JPEG quality and scale of images resized for MMS by predicting the
+     * encoded size, instead of stepping them down until the image fits.
+     */
+    public static final String PREDICTIVE_IMAGE_RECODE = "bugle_predictive_image_recode";
+    public static final boolean PREDICTIVE_IMAGE_RECODE_DEFAULT = true;
+
+    /**
+     * Whether to resize the images of a draft MMS in the background as they are attached, so
+     * that sending doesn't wait for resizing them.
+     */
+    public static final String MMS_PREPARE_ATTACHMENTS_AHEAD =
+            "bugle_mms_prepare_attachments_ahead";
+    public static final boolean MMS_PREPARE_ATTACHMENTS_AHEAD_DEFAULT = true;
 }
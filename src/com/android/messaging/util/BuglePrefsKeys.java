@@ -48,6 +48,16 @@ public final class BuglePrefsKeys {
     public static final long LAST_FULL_SYNC_TIME_DEFAULT
             = -1;
 
+    /**
+     * Highest telephony SMS and MMS row ids seen by the last completed sync
+     */
+    public static final String SYNC_SMS_ID_HIGH_WATER_MARK
+            = "sync_sms_id_high_water_mark";
+    public static final String SYNC_MMS_ID_HIGH_WATER_MARK
+            = "sync_mms_id_high_water_mark";
+    public static final long SYNC_ID_HIGH_WATER_MARK_DEFAULT
+            = -1;
+
     /**
      * Timestamp of the message for which we last did a message notification.
      */
@@ -68,4 +78,12 @@ public final class BuglePrefsKeys {
     public static final String PROCESS_PENDING_MESSAGES_RETRY_COUNT
             = "process_pending_retry";
 
+    /**
+     * Whether the message full-text search index still has to be populated from existing parts
+     */
+    public static final String SEARCH_INDEX_REBUILD_PENDING
+            = "search_index_rebuild_pending";
+    public static final boolean SEARCH_INDEX_REBUILD_PENDING_DEFAULT
+            = false;
+
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.util.LruCache;
+
+import com.android.messaging.datamodel.MemoryCacheManager.MemoryCache;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of canonicalized phone numbers. Each country gets its own LRU cache, and each of those
+ * is split into stripes by phone number so that threads canonicalizing different numbers rarely
+ * contend on the same lock. Registered with the MemoryCacheManager, which drops every country's
+ * cache under memory pressure.
+ */
+public class CanonicalPhoneNumberCache implements MemoryCache {
+    // Must be a power of two
+    private static final int STRIPE_COUNT = 8;
+
+    private final int mStripeSize;
+    // Maps from ISO country code to the stripes of the country's cache. Each stripe maps from
+    // original phone number to canonicalized phone number
+    private final ConcurrentHashMap<String, LruCache<String, String>[]> mCountryCaches =
+            new ConcurrentHashMap<String, LruCache<String, String>[]>();
+
+    /**
+     * @param maxEntriesPerCountry the number of numbers kept per country
+     */
+    public CanonicalPhoneNumberCache(final int maxEntriesPerCountry) {
+        mStripeSize = Math.max(1, maxEntriesPerCountry / STRIPE_COUNT);
+    }
+
+    /**
+     * @return the canonical number of phoneText in the given country, or null if not cached
+     */
+    public String get(final String country, final String phoneText) {
+        return getStripe(country, phoneText).get(phoneText);
+    }
+
+    public void put(final String country, final String phoneText, final String canonical) {
+        getStripe(country, phoneText).put(phoneText, canonical);
+    }
+
+    /**
+     * Adds a number only if it isn't cached already and there is room for it, so that
+     * pre-warming doesn't push out numbers that are in use
+     */
+    public void putIfAbsent(final String country, final String phoneText,
+            final String canonical) {
+        final LruCache<String, String> stripe = getStripe(country, phoneText);
+        // LruCache locks on itself, so the check and the put are atomic under its lock
+        synchronized (stripe) {
+            if (stripe.size() < stripe.maxSize() && stripe.get(phoneText) == null) {
+                stripe.put(phoneText, canonical);
+            }
+        }
+    }
+
+    @Override
+    public void reclaim() {
+        mCountryCaches.clear();
+    }
+
+    private LruCache<String, String> getStripe(String country, final String phoneText) {
+        if (country == null) {
+            country = "";
+        }
+        LruCache<String, String>[] stripes = mCountryCaches.get(country);
+        if (stripes == null) {
+            @SuppressWarnings("unchecked")
+            final LruCache<String, String>[] newStripes = new LruCache[STRIPE_COUNT];
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                newStripes[i] = new LruCache<String, String>(mStripeSize);
+            }
+            stripes = mCountryCaches.putIfAbsent(country, newStripes);
+            if (stripes == null) {
+                stripes = newStripes;
+            }
+        }
+        // Spread the bits of the hash code since strings of digits differ mostly at the end
+        int hash = phoneText.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Dumps the size and hit rate of each country's cache
+     */
+    public void dump(final PrintWriter writer) {
+        writer.println("CanonicalPhoneNumberCache:");
+        for (final Map.Entry<String, LruCache<String, String>[]> entry :
+                mCountryCaches.entrySet()) {
+            int size = 0;
+            int hits = 0;
+            int misses = 0;
+            int evictions = 0;
+            for (final LruCache<String, String> stripe : entry.getValue()) {
+                size += stripe.size();
+                hits += stripe.hitCount();
+                misses += stripe.missCount();
+                evictions += stripe.evictionCount();
+            }
+            final int requests = hits + misses;
+            writer.println("  country=" + entry.getKey() + " size=" + size + "/"
+                    + (mStripeSize * STRIPE_COUNT) + " hits=" + hits + " misses=" + misses
+                    + " hitRate=" + (requests == 0 ? 0 : hits * 100 / requests) + "%"
+                    + " evictions=" + evictions);
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.messaging.util;
 
 import android.Manifest;
+import android.content.ContentUris;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
@@ -43,6 +44,7 @@ import com.android.messaging.sms.MmsSmsUtils;
 import com.android.messaging.ui.contact.AddContactsConfirmationDialog;
 import com.google.common.annotations.VisibleForTesting;
 
+import java.util.List;
 import java.util.Locale;
 import android.util.Log;
 
@@ -465,6 +467,49 @@ public class ContactUtil {
         return firstName;
     }
 
+    /**
+     * Returns a version of a contact photo that changes whenever the photo may have changed,
+     * which is the last update time of the contact for photos served by contact id. Photos
+     * served by photo file id never change, so their version is empty.
+     * @return the version, or null if it can't be determined
+     */
+    public static String getPhotoVersion(final Context context, final Uri photoUri) {
+        final List<String> segments = photoUri.getPathSegments();
+        if (!ContactsContract.AUTHORITY.equals(photoUri.getAuthority()) || segments.size() < 2) {
+            return null;
+        } else if ("display_photo".equals(segments.get(0))) {
+            return "";
+        } else if (!"contacts".equals(segments.get(0))) {
+            return null;
+        }
+        final long contactId;
+        try {
+            contactId = Long.parseLong(segments.get(1));
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+        if (!ContactUtil.hasReadContactsPermission()) {
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(
+                    ContentUris.withAppendedId(Contacts.CONTENT_URI, contactId),
+                    new String[] { Contacts.CONTACT_LAST_UPDATED_TIMESTAMP }, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                return String.valueOf(cursor.getLong(0));
+            }
+        } catch (final Exception e) {
+            // The contacts provider may throw, e.g. when the contact is being deleted
+            LogUtil.w(TAG, "Couldn't query the photo version of " + photoUri, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
     /**
      * Creates a RecipientEntry from the provided data fields (from the contacts cursor).
      * @param firstLevel whether this item is the first entry of this contact in the list.
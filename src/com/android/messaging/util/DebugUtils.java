@@ -32,6 +32,7 @@ import com.android.messaging.R;
 import com.android.messaging.datamodel.SyncManager;
 import com.android.messaging.datamodel.action.DumpDatabaseAction;
 import com.android.messaging.datamodel.action.LogTelephonyDatabaseAction;
+import com.android.messaging.datamodel.action.RebuildSearchIndexAction;
 import com.android.messaging.sms.MmsUtils;
 import com.android.messaging.ui.UIIntents;
 import com.android.messaging.ui.debug.DebugSmsMmsFromDumpFileDialogFragment;
@@ -125,6 +126,13 @@ public class DebugUtils {
             }
         });
 
+        arrayAdapter.add(new DebugAction("Rebuild Search Index") {
+            @Override
+            public void run() {
+                RebuildSearchIndexAction.rebuildSearchIndex();
+            }
+        });
+
         arrayAdapter.add(new DebugAction("Toggle Noise") {
             @Override
             public void run() {
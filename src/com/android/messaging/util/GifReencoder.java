@@ -0,0 +1,950 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.content.Context;
+import android.text.format.Formatter;
+
+import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Stopwatch;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks a GIF toward a byte limit in Java, for when the native {@link GifTranscoder} is
+ * disabled, can't handle a GIF, or doesn't make it small enough.
+ * <p>
+ * The GIF is streamed: frames are decoded one at a time onto a canvas the size of the logical
+ * screen, so memory is bounded by the screen size rather than the number of frames. Each frame
+ * that is kept is box-filtered down by an integer scale, mapped to a uniform palette and written
+ * as a full frame. Frames are decimated by keeping one in every frameStep and giving it the
+ * delays of the frames it stands in for; identical consecutive frames are merged the same way.
+ * Like the native transcoder, DISPOSE_PREVIOUS is treated as DISPOSE_BACKGROUND.
+ */
+public class GifReencoder {
+    private static final String TAG = LogUtil.BUGLE_TAG;
+
+    // Largest logical screen we decode, which bounds a re-encode to about 4 bytes per pixel
+    private static final int MAX_SCREEN_PIXELS = 2 * 1024 * 1024;
+    // Smallest width or height we scale a GIF down to
+    @VisibleForTesting
+    static final int MIN_OUTPUT_DIMENSION = 50;
+    // Fraction of the byte limit to aim for, leaving room for prediction error
+    private static final float TARGET_FILL_RATIO = 0.9f;
+    // How much denser detail gets when scaling down: size ~ scale ^ (exponent - 2). This
+    // matches the ~35% the native transcoder gets out of halving a GIF.
+    private static final double SCALE_DETAIL_EXPONENT = 0.5;
+    // Number of times we re-encode a GIF whose prediction turned out too small
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private static final int MIN_COLOR_BITS = 5;
+    private static final int MAX_COLOR_BITS = 8;
+    // Levels of red, green and blue in the uniform palette for each number of color bits,
+    // leaving index 0 of the palette for transparency
+    private static final int[][] PALETTE_LEVELS = {
+            { 3, 3, 3 },    // 5 bits: 27 colors
+            { 4, 4, 3 },    // 6 bits: 48 colors
+            { 5, 5, 4 },    // 7 bits: 100 colors
+            { 6, 7, 6 } };  // 8 bits: 252 colors
+
+    private static final int EXTENSION_INTRODUCER = 0x21;
+    private static final int IMAGE_SEPARATOR = 0x2c;
+    private static final int TRAILER = 0x3b;
+    private static final int GRAPHIC_CONTROL_LABEL = 0xf9;
+    private static final int APPLICATION_LABEL = 0xff;
+    private static final int DISPOSE_BACKGROUND = 2;
+    private static final int DISPOSE_PREVIOUS = 3;
+    private static final int MAX_DELAY = 0xffff;
+    private static final int MAX_CODES = 4096;
+    private static final int MAX_CODE_SIZE = 12;
+    private static final byte[] GIF89_HEADER = { 'G', 'I', 'F', '8', '9', 'a' };
+    private static final byte[] NETSCAPE_ID =
+            { 'N', 'E', 'T', 'S', 'C', 'A', 'P', 'E', '2', '.', '0' };
+
+    /**
+     * How much to shrink a GIF
+     */
+    public static class Options {
+        /** Factor by which to shrink each dimension */
+        public final int scale;
+        /** Keep one in this many frames */
+        public final int frameStep;
+        /** Bits per pixel of the palette, 5 to 8 */
+        public final int colorBits;
+
+        public Options(final int scale, final int frameStep, final int colorBits) {
+            Assert.isTrue(scale >= 1 && frameStep >= 1);
+            Assert.isTrue(colorBits >= MIN_COLOR_BITS && colorBits <= MAX_COLOR_BITS);
+            this.scale = scale;
+            this.frameStep = frameStep;
+            this.colorBits = colorBits;
+        }
+
+        @Override
+        public String toString() {
+            return "scale=" + scale + " frameStep=" + frameStep + " colorBits=" + colorBits;
+        }
+    }
+
+    // Options in the order we try them, each shrinking a GIF more at a further cost in quality
+    @VisibleForTesting
+    static final Options[] LEVELS = {
+            new Options(1, 1, 6),
+            new Options(2, 1, 8),
+            new Options(2, 1, 6),
+            new Options(2, 2, 6),
+            new Options(3, 2, 6),
+            new Options(3, 2, 5),
+            new Options(4, 3, 5) };
+
+    /**
+     * Shrinks a GIF file toward a byte limit, re-encoding it with stronger options while the
+     * result doesn't fit, up to a few times
+     *
+     * @return the GIF, which may still exceed the limit if it can't be shrunk enough, or null
+     *     if it couldn't be read
+     */
+    @DoesNotRunOnMainThread
+    public static byte[] reencode(final Context context, final String filePath,
+            final int byteLimit) {
+        Assert.isNotMainThread();
+        final File file = new File(filePath);
+        final long inputSize = file.length();
+        try {
+            if (inputSize <= byteLimit) {
+                return Files.toByteArray(file);
+            }
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            final Decoder header = openDecoder(file);
+            header.close();
+            final int width = header.getWidth();
+            final int height = header.getHeight();
+            double expectedSize = inputSize;
+            int level = chooseLevel(width, height, expectedSize, byteLimit, 0);
+            byte[] result = null;
+            int attempts = 0;
+            while (attempts < MAX_ATTEMPTS) {
+                result = reencode(file, LEVELS[level], (int) Math.min(inputSize, byteLimit));
+                attempts++;
+                if (result.length <= byteLimit) {
+                    break;
+                }
+                // Correct the prediction by how far off it was for this GIF
+                expectedSize = result.length / getSizeRatio(LEVELS[level]);
+                final int nextLevel = chooseLevel(width, height, expectedSize, byteLimit,
+                        level + 1);
+                if (nextLevel == level) {
+                    break;
+                }
+                level = nextLevel;
+            }
+            stopwatch.stop();
+            LogUtil.i(TAG, String.format(Locale.US,
+                    "Re-encoded GIF (%s) in %d ms with %d attempts (%s), %s => %s, limit %s",
+                    LogUtil.sanitizePII(filePath),
+                    stopwatch.elapsed(TimeUnit.MILLISECONDS),
+                    attempts,
+                    LEVELS[level],
+                    Formatter.formatShortFileSize(context, inputSize),
+                    Formatter.formatShortFileSize(context, result.length),
+                    Formatter.formatShortFileSize(context, byteLimit)));
+            return result;
+        } catch (final IOException e) {
+            LogUtil.e(TAG, "Could not re-encode GIF " + LogUtil.sanitizePII(filePath), e);
+            return null;
+        }
+    }
+
+    /**
+     * Re-encodes a GIF with the given options, decoding it one frame at a time
+     *
+     * @return the number of frames written
+     */
+    public static int reencode(final InputStream input, final OutputStream output,
+            final Options options) throws IOException {
+        final Decoder decoder = new Decoder(input);
+        final int width = decoder.getWidth();
+        final int height = decoder.getHeight();
+        final int outputWidth = Math.max(1, width / options.scale);
+        final int outputHeight = Math.max(1, height / options.scale);
+        final Palette palette = new Palette(options.colorBits);
+        final Writer writer = new Writer(output, outputWidth, outputHeight, palette);
+        final int[] canvas = new int[width * height];
+        byte[] frame = new byte[outputWidth * outputHeight];
+        byte[] pendingFrame = new byte[outputWidth * outputHeight];
+        boolean hasPendingFrame = false;
+        int pendingDelay = 0;
+        int frameIndex = 0;
+        int delay;
+        while ((delay = decoder.readFrame(canvas)) >= 0) {
+            if (frameIndex % options.frameStep == 0) {
+                downscale(canvas, width, height, options.scale, palette, frame, outputWidth,
+                        outputHeight);
+                if (hasPendingFrame && Arrays.equals(frame, pendingFrame)) {
+                    pendingDelay += delay;
+                } else {
+                    // The pending frame is complete now that we know how long it shows for
+                    if (hasPendingFrame) {
+                        writer.writeFrame(pendingFrame, pendingDelay, decoder.getLoopCount());
+                    }
+                    final byte[] swap = pendingFrame;
+                    pendingFrame = frame;
+                    frame = swap;
+                    pendingDelay = delay;
+                    hasPendingFrame = true;
+                }
+            } else {
+                pendingDelay += delay;
+            }
+            frameIndex++;
+        }
+        if (!hasPendingFrame) {
+            throw new IOException("GIF has no frames");
+        }
+        writer.writeFrame(pendingFrame, pendingDelay, decoder.getLoopCount());
+        writer.finish();
+        return writer.getFrameCount();
+    }
+
+    /**
+     * Estimates the size of a GIF re-encoded with the strongest options its dimensions allow,
+     * from a GIF with the specified size.
+     */
+    public static long estimateMinimumFileSize(final int width, final int height,
+            final long fileSize) {
+        int level = 0;
+        while (level + 1 < LEVELS.length && isFeasible(width, height, LEVELS[level + 1])) {
+            level++;
+        }
+        return estimateFileSizeAfterReencode(fileSize, LEVELS[level]);
+    }
+
+    /**
+     * Estimates the size of a GIF re-encoded with the given options, from a GIF with the
+     * specified size.
+     */
+    @VisibleForTesting
+    static long estimateFileSizeAfterReencode(final long fileSize, final Options options) {
+        return (long) (fileSize * getSizeRatio(options));
+    }
+
+    private static double getSizeRatio(final Options options) {
+        // LZW codes get shorter with the palette, and there are fewer frames and pixels to code
+        final double paletteRatio = (options.colorBits + 1) / (double) (MAX_COLOR_BITS + 1);
+        final double scaleRatio = Math.pow(options.scale, SCALE_DETAIL_EXPONENT - 2);
+        return paletteRatio * scaleRatio / options.frameStep;
+    }
+
+    /**
+     * @param expectedSize size the GIF is expected to have re-encoded without shrinking
+     * @return the first level from firstLevel on that is predicted to fit the byte limit, or
+     *     else the strongest level the dimensions of the GIF allow; firstLevel - 1 if the
+     *     dimensions allow none
+     */
+    @VisibleForTesting
+    static int chooseLevel(final int width, final int height, final double expectedSize,
+            final int byteLimit, final int firstLevel) {
+        int level = firstLevel - 1;
+        for (int i = firstLevel; i < LEVELS.length && isFeasible(width, height, LEVELS[i]); i++) {
+            level = i;
+            if (expectedSize * getSizeRatio(LEVELS[i]) <= byteLimit * TARGET_FILL_RATIO) {
+                break;
+            }
+        }
+        return level;
+    }
+
+    private static boolean isFeasible(final int width, final int height, final Options options) {
+        return options.scale == 1 || (width / options.scale >= MIN_OUTPUT_DIMENSION
+                && height / options.scale >= MIN_OUTPUT_DIMENSION);
+    }
+
+    public static boolean isEnabled() {
+        return BugleGservices.get().getBoolean(
+                BugleGservicesKeys.ENABLE_GIF_REENCODING,
+                BugleGservicesKeys.ENABLE_GIF_REENCODING_DEFAULT);
+    }
+
+    /**
+     * @return whether to shrink GIFs with the re-encoder rather than the native transcoder
+     */
+    public static boolean isPreferred() {
+        return isEnabled() && BugleGservices.get().getBoolean(
+                BugleGservicesKeys.PREFER_GIF_REENCODING,
+                BugleGservicesKeys.PREFER_GIF_REENCODING_DEFAULT);
+    }
+
+    private static Decoder openDecoder(final File file) throws IOException {
+        final InputStream input =
+                new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+        try {
+            return new Decoder(input);
+        } catch (final IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    private static byte[] reencode(final File file, final Options options,
+            final int expectedSize) throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(expectedSize);
+        final InputStream input =
+                new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE);
+        try {
+            reencode(input, output, options);
+        } finally {
+            input.close();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Box-filters the canvas down by the scale and maps it to the palette. Boxes that are
+     * mostly transparent become transparent.
+     */
+    private static void downscale(final int[] canvas, final int width, final int height,
+            final int scale, final Palette palette, final byte[] frame, final int outputWidth,
+            final int outputHeight) {
+        int index = 0;
+        for (int outputY = 0; outputY < outputHeight; outputY++) {
+            final int top = outputY * scale;
+            final int bottom = Math.min(top + scale, height);
+            for (int outputX = 0; outputX < outputWidth; outputX++) {
+                final int left = outputX * scale;
+                final int right = Math.min(left + scale, width);
+                int opaque = 0;
+                int red = 0;
+                int green = 0;
+                int blue = 0;
+                for (int y = top; y < bottom; y++) {
+                    final int row = y * width;
+                    for (int x = left; x < right; x++) {
+                        final int color = canvas[row + x];
+                        if ((color >>> 24) != 0) {
+                            opaque++;
+                            red += (color >> 16) & 0xff;
+                            green += (color >> 8) & 0xff;
+                            blue += color & 0xff;
+                        }
+                    }
+                }
+                if (opaque * 2 < (bottom - top) * (right - left)) {
+                    frame[index++] = 0;
+                } else {
+                    frame[index++] = (byte) palette.getIndex(red / opaque, green / opaque,
+                            blue / opaque);
+                }
+            }
+        }
+    }
+
+    /**
+     * Uniform palette frames are mapped to, with index 0 left for transparency
+     */
+    private static class Palette {
+        private final int mColorBits;
+        private final int[] mColors;
+        private final int[] mRedIndices = new int[256];
+        private final int[] mGreenIndices = new int[256];
+        private final int[] mBlueIndices = new int[256];
+
+        Palette(final int colorBits) {
+            mColorBits = colorBits;
+            mColors = new int[1 << colorBits];
+            final int[] levels = PALETTE_LEVELS[colorBits - MIN_COLOR_BITS];
+            fillIndices(mRedIndices, levels[0], levels[1] * levels[2]);
+            fillIndices(mGreenIndices, levels[1], levels[2]);
+            fillIndices(mBlueIndices, levels[2], 1);
+            int index = 1;
+            for (int red = 0; red < levels[0]; red++) {
+                for (int green = 0; green < levels[1]; green++) {
+                    for (int blue = 0; blue < levels[2]; blue++) {
+                        mColors[index++] = 0xff000000
+                                | (getLevelValue(red, levels[0]) << 16)
+                                | (getLevelValue(green, levels[1]) << 8)
+                                | getLevelValue(blue, levels[2]);
+                    }
+                }
+            }
+        }
+
+        private static void fillIndices(final int[] indices, final int levels,
+                final int stride) {
+            for (int value = 0; value < indices.length; value++) {
+                indices[value] = (value * (levels - 1) + 127) / 255 * stride;
+            }
+        }
+
+        private static int getLevelValue(final int level, final int levels) {
+            return level * 255 / (levels - 1);
+        }
+
+        int getIndex(final int red, final int green, final int blue) {
+            return 1 + mRedIndices[red] + mGreenIndices[green] + mBlueIndices[blue];
+        }
+
+        int getColorBits() {
+            return mColorBits;
+        }
+
+        int[] getColors() {
+            return mColors;
+        }
+    }
+
+    /**
+     * Reads a GIF one frame at a time, rendering each frame onto a canvas the size of the
+     * logical screen
+     */
+    @VisibleForTesting
+    static class Decoder {
+        private static final int[] INTERLACE_STARTS = { 0, 4, 2, 1 };
+        private static final int[] INTERLACE_STEPS = { 8, 8, 4, 2 };
+
+        private final InputStream mInput;
+        private final int mWidth;
+        private final int mHeight;
+        private final int[] mGlobalColors;
+        private int mLoopCount = -1;
+
+        // Graphic control of the next frame
+        private int mDelay;
+        private int mDisposal;
+        private int mTransparentIndex = -1;
+
+        // Area and disposal of the previous frame
+        private int mPreviousDisposal;
+        private int mPreviousLeft;
+        private int mPreviousTop;
+        private int mPreviousWidth;
+        private int mPreviousHeight;
+
+        // Frame being decoded and the position of the next pixel
+        private int[] mColors;
+        private int mFrameLeft;
+        private int mFrameTop;
+        private int mFrameWidth;
+        private int mFrameHeight;
+        private int mVisibleWidth;
+        private boolean mInterlaced;
+        private int mPass;
+        private int mX;
+        private int mY;
+        private int mRowOffset;
+        private boolean mRowVisible;
+
+        // LZW tables
+        private final byte[] mBlock = new byte[255];
+        private final short[] mPrefix = new short[MAX_CODES];
+        private final byte[] mSuffix = new byte[MAX_CODES];
+        private final byte[] mPixelStack = new byte[MAX_CODES + 1];
+
+        Decoder(final InputStream input) throws IOException {
+            mInput = input;
+            readFully(mBlock, 6);
+            if (mBlock[0] != 'G' || mBlock[1] != 'I' || mBlock[2] != 'F' || mBlock[3] != '8'
+                    || (mBlock[4] != '7' && mBlock[4] != '9') || mBlock[5] != 'a') {
+                throw new IOException("Not a GIF");
+            }
+            mWidth = readShort();
+            mHeight = readShort();
+            if (mWidth == 0 || mHeight == 0 || (long) mWidth * mHeight > MAX_SCREEN_PIXELS) {
+                throw new IOException("Unsupported GIF size " + mWidth + "x" + mHeight);
+            }
+            final int flags = readByte();
+            readByte(); // Background color, we clear to transparent instead
+            readByte(); // Pixel aspect ratio
+            mGlobalColors = (flags & 0x80) != 0 ? readColorTable(flags & 0x07) : null;
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return the number of times the GIF loops, 0 for forever, -1 if it doesn't say. This
+         *     is known once the first frame has been read.
+         */
+        int getLoopCount() {
+            return mLoopCount;
+        }
+
+        void close() throws IOException {
+            mInput.close();
+        }
+
+        /**
+         * Renders the next frame onto the canvas, which must hold the previous frame
+         *
+         * @return the delay of the frame in hundredths of a second, -1 at the end of the GIF
+         */
+        int readFrame(final int[] canvas) throws IOException {
+            while (true) {
+                final int block = mInput.read();
+                switch (block) {
+                    case IMAGE_SEPARATOR:
+                        readImage(canvas);
+                        final int delay = mDelay;
+                        mDelay = 0;
+                        mDisposal = 0;
+                        mTransparentIndex = -1;
+                        return delay;
+                    case EXTENSION_INTRODUCER:
+                        readExtension();
+                        break;
+                    case TRAILER:
+                    case -1:
+                        // Tolerate a missing trailer, as browsers do
+                        return -1;
+                    case 0:
+                        // Padding some encoders leave between blocks
+                        break;
+                    default:
+                        throw new IOException("Unknown GIF block " + block);
+                }
+            }
+        }
+
+        private void readExtension() throws IOException {
+            final int label = readByte();
+            if (label == GRAPHIC_CONTROL_LABEL) {
+                final int size = readByte();
+                readFully(mBlock, size);
+                if (size >= 4) {
+                    final int flags = mBlock[0] & 0xff;
+                    mDisposal = (flags >> 2) & 0x07;
+                    mDelay = (mBlock[1] & 0xff) | ((mBlock[2] & 0xff) << 8);
+                    mTransparentIndex = (flags & 0x01) != 0 ? mBlock[3] & 0xff : -1;
+                }
+                skipBlocks();
+            } else if (label == APPLICATION_LABEL) {
+                int size = readByte();
+                readFully(mBlock, size);
+                final boolean netscape = size == NETSCAPE_ID.length
+                        && Arrays.equals(Arrays.copyOf(mBlock, size), NETSCAPE_ID);
+                while ((size = readByte()) > 0) {
+                    readFully(mBlock, size);
+                    if (netscape && size >= 3 && mBlock[0] == 1) {
+                        mLoopCount = (mBlock[1] & 0xff) | ((mBlock[2] & 0xff) << 8);
+                    }
+                }
+            } else {
+                skipBlocks();
+            }
+        }
+
+        private void readImage(final int[] canvas) throws IOException {
+            mFrameLeft = readShort();
+            mFrameTop = readShort();
+            mFrameWidth = readShort();
+            mFrameHeight = readShort();
+            final int flags = readByte();
+            mColors = (flags & 0x80) != 0 ? readColorTable(flags & 0x07) : mGlobalColors;
+            if (mColors == null) {
+                throw new IOException("GIF frame has no color table");
+            }
+            mInterlaced = (flags & 0x40) != 0;
+            disposePreviousFrame(canvas);
+
+            // Frames that extend beyond the logical screen are clipped to it
+            mVisibleWidth = Math.max(0, Math.min(mFrameWidth, mWidth - mFrameLeft));
+            mPass = 0;
+            mX = 0;
+            mY = 0;
+            startRow();
+            decodePixels(canvas);
+
+            mPreviousDisposal = mDisposal;
+            mPreviousLeft = mFrameLeft;
+            mPreviousTop = mFrameTop;
+            mPreviousWidth = mFrameWidth;
+            mPreviousHeight = mFrameHeight;
+        }
+
+        private void disposePreviousFrame(final int[] canvas) {
+            if (mPreviousDisposal != DISPOSE_BACKGROUND && mPreviousDisposal != DISPOSE_PREVIOUS) {
+                return;
+            }
+            final int right = Math.min(mPreviousLeft + mPreviousWidth, mWidth);
+            final int bottom = Math.min(mPreviousTop + mPreviousHeight, mHeight);
+            for (int y = mPreviousTop; y < bottom && mPreviousLeft < right; y++) {
+                Arrays.fill(canvas, y * mWidth + mPreviousLeft, y * mWidth + right, 0);
+            }
+        }
+
+        private void decodePixels(final int[] canvas) throws IOException {
+            final int minCodeSize = readByte();
+            if (minCodeSize < 1 || minCodeSize > 8) {
+                throw new IOException("Invalid LZW code size " + minCodeSize);
+            }
+            final int clearCode = 1 << minCodeSize;
+            final int endCode = clearCode + 1;
+            for (int code = 0; code < clearCode; code++) {
+                mPrefix[code] = 0;
+                mSuffix[code] = (byte) code;
+            }
+            int codeSize = minCodeSize + 1;
+            int codeMask = (1 << codeSize) - 1;
+            int available = clearCode + 2;
+            int oldCode = -1;
+            int first = 0;
+            int bits = 0;
+            int bitCount = 0;
+            int blockSize = 0;
+            int blockPosition = 0;
+            while (true) {
+                while (bitCount < codeSize) {
+                    if (blockPosition == blockSize) {
+                        blockSize = readByte();
+                        if (blockSize == 0) {
+                            // The data ended without an end code
+                            return;
+                        }
+                        readFully(mBlock, blockSize);
+                        blockPosition = 0;
+                    }
+                    bits |= (mBlock[blockPosition++] & 0xff) << bitCount;
+                    bitCount += 8;
+                }
+                int code = bits & codeMask;
+                bits >>>= codeSize;
+                bitCount -= codeSize;
+
+                if (code == clearCode) {
+                    codeSize = minCodeSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clearCode + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (code == endCode) {
+                    break;
+                }
+                if (oldCode == -1) {
+                    if (code >= clearCode) {
+                        // Corrupt data, keep what was decoded so far as browsers do
+                        break;
+                    }
+                    emitPixel(canvas, code);
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+                final int inCode = code;
+                int top = 0;
+                if (code >= available) {
+                    if (code > available) {
+                        break;
+                    }
+                    mPixelStack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code >= clearCode) {
+                    mPixelStack[top++] = mSuffix[code];
+                    code = mPrefix[code];
+                }
+                first = code;
+                mPixelStack[top++] = (byte) first;
+                if (available < MAX_CODES) {
+                    mPrefix[available] = (short) oldCode;
+                    mSuffix[available] = (byte) first;
+                    available++;
+                    if ((available & codeMask) == 0 && available < MAX_CODES) {
+                        codeSize++;
+                        codeMask = (1 << codeSize) - 1;
+                    }
+                }
+                oldCode = inCode;
+                while (top > 0) {
+                    emitPixel(canvas, mPixelStack[--top] & 0xff);
+                }
+            }
+            skipBlocks();
+        }
+
+        private void emitPixel(final int[] canvas, final int index) {
+            if (mRowVisible && mX < mVisibleWidth && index != mTransparentIndex
+                    && index < mColors.length) {
+                canvas[mRowOffset + mX] = mColors[index];
+            }
+            if (++mX == mFrameWidth) {
+                mX = 0;
+                if (mInterlaced) {
+                    mY += INTERLACE_STEPS[mPass];
+                    while (mY >= mFrameHeight && mPass < INTERLACE_STARTS.length - 1) {
+                        mPass++;
+                        mY = INTERLACE_STARTS[mPass];
+                    }
+                } else {
+                    mY++;
+                }
+                startRow();
+            }
+        }
+
+        private void startRow() {
+            final int screenY = mFrameTop + mY;
+            mRowVisible = mY < mFrameHeight && screenY < mHeight;
+            mRowOffset = screenY * mWidth + mFrameLeft;
+        }
+
+        private int[] readColorTable(final int sizeBits) throws IOException {
+            final int[] colors = new int[2 << sizeBits];
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = 0xff000000 | (readByte() << 16) | (readByte() << 8) | readByte();
+            }
+            return colors;
+        }
+
+        private void skipBlocks() throws IOException {
+            int size;
+            while ((size = readByte()) > 0) {
+                readFully(mBlock, size);
+            }
+        }
+
+        private int readShort() throws IOException {
+            return readByte() | (readByte() << 8);
+        }
+
+        private int readByte() throws IOException {
+            final int value = mInput.read();
+            if (value < 0) {
+                throw new EOFException("Truncated GIF");
+            }
+            return value;
+        }
+
+        private void readFully(final byte[] buffer, final int count) throws IOException {
+            int offset = 0;
+            while (offset < count) {
+                final int read = mInput.read(buffer, offset, count - offset);
+                if (read < 0) {
+                    throw new EOFException("Truncated GIF");
+                }
+                offset += read;
+            }
+        }
+    }
+
+    /**
+     * Writes full-screen frames of palette indices as a GIF
+     */
+    @VisibleForTesting
+    static class Writer {
+        // Prime larger than MAX_CODES, to keep the string table sparse
+        private static final int HASH_SIZE = 8191;
+
+        private final OutputStream mOutput;
+        private final int mWidth;
+        private final int mHeight;
+        private final Palette mPalette;
+        private int mFrameCount;
+
+        // String table of the LZW encoder, keyed by (pixel << 12) | prefix code
+        private final int[] mHashKeys = new int[HASH_SIZE];
+        private final short[] mHashCodes = new short[HASH_SIZE];
+        private final byte[] mBlock = new byte[255];
+        private int mBlockSize;
+        private int mBits;
+        private int mBitCount;
+
+        Writer(final OutputStream output, final int width, final int height,
+                final int colorBits) {
+            this(output, width, height, new Palette(colorBits));
+        }
+
+        private Writer(final OutputStream output, final int width, final int height,
+                final Palette palette) {
+            mOutput = output;
+            mWidth = width;
+            mHeight = height;
+            mPalette = palette;
+        }
+
+        int getFrameCount() {
+            return mFrameCount;
+        }
+
+        /**
+         * @param pixels palette indices of the whole screen, 0 for transparent
+         * @param delay how long the frame shows for, in hundredths of a second
+         * @param loopCount loop count for the header written with the first frame, -1 for none
+         */
+        void writeFrame(final byte[] pixels, final int delay, final int loopCount)
+                throws IOException {
+            if (mFrameCount == 0) {
+                writeHeader(loopCount);
+            }
+            // Frames cover the screen and clear it before the next, so transparency shows
+            final int clampedDelay = Math.min(delay, MAX_DELAY);
+            mOutput.write(EXTENSION_INTRODUCER);
+            mOutput.write(GRAPHIC_CONTROL_LABEL);
+            mOutput.write(4);
+            mOutput.write((DISPOSE_BACKGROUND << 2) | 0x01);
+            writeShort(clampedDelay);
+            mOutput.write(0); // Transparent index
+            mOutput.write(0);
+
+            mOutput.write(IMAGE_SEPARATOR);
+            writeShort(0);
+            writeShort(0);
+            writeShort(mWidth);
+            writeShort(mHeight);
+            mOutput.write(0); // No local color table, not interlaced
+            writePixels(pixels);
+            mFrameCount++;
+        }
+
+        void finish() throws IOException {
+            mOutput.write(TRAILER);
+            mOutput.flush();
+        }
+
+        private void writeHeader(final int loopCount) throws IOException {
+            final int colorBits = mPalette.getColorBits();
+            mOutput.write(GIF89_HEADER);
+            writeShort(mWidth);
+            writeShort(mHeight);
+            mOutput.write(0x80 | ((colorBits - 1) << 4) | (colorBits - 1));
+            mOutput.write(0); // Background color
+            mOutput.write(0); // Pixel aspect ratio
+            for (final int color : mPalette.getColors()) {
+                mOutput.write((color >> 16) & 0xff);
+                mOutput.write((color >> 8) & 0xff);
+                mOutput.write(color & 0xff);
+            }
+            if (loopCount >= 0) {
+                mOutput.write(EXTENSION_INTRODUCER);
+                mOutput.write(APPLICATION_LABEL);
+                mOutput.write(NETSCAPE_ID.length);
+                mOutput.write(NETSCAPE_ID);
+                mOutput.write(3);
+                mOutput.write(1);
+                writeShort(loopCount);
+                mOutput.write(0);
+            }
+        }
+
+        private void writePixels(final byte[] pixels) throws IOException {
+            final int minCodeSize = Math.max(2, mPalette.getColorBits());
+            final int clearCode = 1 << minCodeSize;
+            final int endCode = clearCode + 1;
+            int codeSize = minCodeSize + 1;
+            int nextCode = clearCode + 2;
+            Arrays.fill(mHashKeys, -1);
+            mOutput.write(minCodeSize);
+            writeCode(clearCode, codeSize);
+            int prefix = pixels[0] & 0xff;
+            for (int i = 1; i < pixels.length; i++) {
+                final int pixel = pixels[i] & 0xff;
+                final int key = (pixel << MAX_CODE_SIZE) | prefix;
+                final int slot = findSlot(key);
+                if (mHashKeys[slot] == key) {
+                    prefix = mHashCodes[slot];
+                    continue;
+                }
+                writeCode(prefix, codeSize);
+                if (nextCode < MAX_CODES) {
+                    mHashKeys[slot] = key;
+                    mHashCodes[slot] = (short) nextCode;
+                    nextCode++;
+                    // The decoder adds this code only after reading the next one
+                    if (nextCode > (1 << codeSize) && codeSize < MAX_CODE_SIZE) {
+                        codeSize++;
+                    }
+                } else {
+                    writeCode(clearCode, codeSize);
+                    Arrays.fill(mHashKeys, -1);
+                    codeSize = minCodeSize + 1;
+                    nextCode = clearCode + 2;
+                }
+                prefix = pixel;
+            }
+            writeCode(prefix, codeSize);
+            // The decoder adds a code for the last prefix before reading the end code
+            if (nextCode == (1 << codeSize) && codeSize < MAX_CODE_SIZE) {
+                codeSize++;
+            }
+            writeCode(endCode, codeSize);
+            if (mBitCount > 0) {
+                writeBlockByte(mBits & 0xff);
+            }
+            mBits = 0;
+            mBitCount = 0;
+            flushBlock();
+            mOutput.write(0);
+        }
+
+        private int findSlot(final int key) {
+            int slot = key % HASH_SIZE;
+            while (mHashKeys[slot] != -1 && mHashKeys[slot] != key) {
+                if (++slot == HASH_SIZE) {
+                    slot = 0;
+                }
+            }
+            return slot;
+        }
+
+        private void writeCode(final int code, final int codeSize) throws IOException {
+            mBits |= code << mBitCount;
+            mBitCount += codeSize;
+            while (mBitCount >= 8) {
+                writeBlockByte(mBits & 0xff);
+                mBits >>>= 8;
+                mBitCount -= 8;
+            }
+        }
+
+        private void writeBlockByte(final int value) throws IOException {
+            mBlock[mBlockSize++] = (byte) value;
+            if (mBlockSize == mBlock.length) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (mBlockSize > 0) {
+                mOutput.write(mBlockSize);
+                mOutput.write(mBlock, 0, mBlockSize);
+                mBlockSize = 0;
+            }
+        }
+
+        private void writeShort(final int value) throws IOException {
+            mOutput.write(value & 0xff);
+            mOutput.write((value >> 8) & 0xff);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
@@ -31,17 +32,26 @@ import android.graphics.RectF;
 import android.graphics.Shader.TileMode;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 import android.support.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.text.TextUtils;
+import android.util.LruCache;
 import android.view.View;
 
 import com.android.messaging.Factory;
 import com.android.messaging.datamodel.MediaScratchFileProvider;
 import com.android.messaging.datamodel.MessagingContentProvider;
 import com.android.messaging.datamodel.media.ImageRequest;
+import com.android.messaging.datamodel.media.MediaCacheManager;
+import com.android.messaging.datamodel.media.SharedBitmapPool;
 import com.android.messaging.util.Assert.DoesNotRunOnMainThread;
 import com.android.messaging.util.exif.ExifInterface;
+import com.android.messaging.util.exif.ExifProbe;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.Files;
 
@@ -59,6 +69,31 @@ public class ImageUtils {
     private static final byte[] GIF87_HEADER = "GIF87a".getBytes(Charset.forName("US-ASCII"));
     private static final byte[] GIF89_HEADER = "GIF89a".getBytes(Charset.forName("US-ASCII"));
 
+    // Number of images whose orientation we remember
+    private static final int ORIENTATION_CACHE_SIZE = 256;
+
+    /**
+     * Orientation of an image, with the modification time and size of the file it was read from
+     */
+    private static class CachedOrientation {
+        final long lastModified;
+        final long size;
+        final int orientation;
+
+        CachedOrientation(final StructStat stat, final int orientation) {
+            this.lastModified = stat.st_mtime;
+            this.size = stat.st_size;
+            this.orientation = orientation;
+        }
+
+        boolean matches(final StructStat stat) {
+            return lastModified == stat.st_mtime && size == stat.st_size;
+        }
+    }
+
+    private static final LruCache<Uri, CachedOrientation> sOrientationCache =
+            new LruCache<Uri, CachedOrientation>(ORIENTATION_CACHE_SIZE);
+
     // Used for drawBitmapWithCircleOnCanvas.
     // Default color is transparent for both circle background and stroke.
     public static final int DEFAULT_CIRCLE_BACKGROUND_COLOR = 0;
@@ -250,9 +285,43 @@ public class ImageUtils {
     /**
      * @param context Android context
      * @param uri Uri to the image data
-     * @return The exif orientation value for the image in the specified uri
+     * @return The exif orientation value for the image in the specified uri. Orientations are
+     *     cached by uri and by the modification time and size of the image.
      */
     public static int getOrientation(final Context context, final Uri uri) {
+        ParcelFileDescriptor descriptor = null;
+        try {
+            descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (descriptor != null) {
+                final StructStat stat = Os.fstat(descriptor.getFileDescriptor());
+                final CachedOrientation cached = sOrientationCache.get(uri);
+                if (cached != null && cached.matches(stat)) {
+                    return cached.orientation;
+                }
+                // The stream takes over closing the descriptor
+                final InputStream inputStream =
+                        new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+                descriptor = null;
+                final int orientation = getOrientation(inputStream);
+                // Without a modification time we couldn't tell when the image changes
+                if (stat.st_mtime > 0) {
+                    sOrientationCache.put(uri, new CachedOrientation(stat, orientation));
+                }
+                return orientation;
+            }
+        } catch (FileNotFoundException e) {
+            // Uris that aren't backed by a whole file, such as resources, are read uncached
+        } catch (ErrnoException e) {
+            LogUtil.w(TAG, "getOrientation couldn't stat: " + uri, e);
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
         try {
             return getOrientation(context.getContentResolver().openInputStream(uri));
         } catch (FileNotFoundException e) {
@@ -269,13 +338,7 @@ public class ImageUtils {
         int orientation = android.media.ExifInterface.ORIENTATION_UNDEFINED;
         if (inputStream != null) {
             try {
-                final ExifInterface exifInterface = new ExifInterface();
-                exifInterface.readExif(inputStream);
-                final Integer orientationValue =
-                        exifInterface.getTagIntValue(ExifInterface.TAG_ORIENTATION);
-                if (orientationValue != null) {
-                    orientation = orientationValue.intValue();
-                }
+                orientation = ExifProbe.probe(inputStream).orientation;
             } catch (IOException e) {
                 // If the image if GIF, PNG, or missing exif header, just use the defaults
             } finally {
@@ -365,6 +428,12 @@ public class ImageUtils {
          */
         private static final int NUMBER_OF_RESIZE_ATTEMPTS = 6;
 
+        /**
+         * Maximum passes through the resize loop guided by the size predictor, before falling
+         * back to stepping down quality and scale
+         */
+        private static final int NUMBER_OF_PREDICTED_ATTEMPTS = 3;
+
         /**
          * Amount to scale down the picture when it doesn't fit
          */
@@ -410,6 +479,13 @@ public class ImageUtils {
 
         private final int mMemoryClass;
 
+        // Whether to choose quality and scale with JpegSizePredictor
+        private final boolean mPredictive;
+        // Pool the scaled bitmaps are taken from when it has one large enough
+        private final SharedBitmapPool mBitmapPool;
+        // Number of JPEG encodes done so far
+        private int mEncodeCount;
+
         /**
          * Return resized (compressed) image (else null)
          *
@@ -463,6 +539,10 @@ public class ImageUtils {
                     (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
             mMemoryClass = Math.max(16, am.getMemoryClass());
             mContentType = contentType;
+            mPredictive = BugleGservices.get().getBoolean(
+                    BugleGservicesKeys.PREDICTIVE_IMAGE_RECODE,
+                    BugleGservicesKeys.PREDICTIVE_IMAGE_RECODE_DEFAULT);
+            mBitmapPool = MediaCacheManager.get().getSharedBitmapPool();
         }
 
         /**
@@ -486,29 +566,28 @@ public class ImageUtils {
                 inputFilePath = mUri.getPath();
             }
 
-            if (GifTranscoder.canBeTranscoded(mWidth, mHeight)) {
-                // Needed to perform the transcoding so that the gif can continue to play in the
-                // conversation while the sending is taking place
-                final Uri tmpUri = MediaScratchFileProvider.buildMediaScratchSpaceUri("gif");
-                final File outputFile = MediaScratchFileProvider.getFileFromUri(tmpUri);
-                final String outputFilePath = outputFile.getAbsolutePath();
-
-                final boolean success =
-                        GifTranscoder.transcode(mContext, inputFilePath, outputFilePath);
-                if (success) {
-                    try {
-                        bytesToReturn = Files.toByteArray(outputFile);
-                    } catch (IOException e) {
-                        LogUtil.e(TAG, "Could not create FileInputStream with path of "
-                                + outputFilePath, e);
+            final boolean canBeTranscoded = GifTranscoder.canBeTranscoded(mWidth, mHeight);
+            final boolean canBeReencoded = GifReencoder.isEnabled();
+            final boolean preferReencoding = GifReencoder.isPreferred();
+            if (preferReencoding || (canBeReencoded && !canBeTranscoded)) {
+                bytesToReturn = GifReencoder.reencode(mContext, inputFilePath, mByteLimit);
+            }
+            if (bytesToReturn == null && canBeTranscoded) {
+                bytesToReturn = transcodeGif(inputFilePath);
+                // The native transcoder only halves the GIF, which may not be enough
+                if (canBeReencoded && !preferReencoding
+                        && (bytesToReturn == null || bytesToReturn.length > mByteLimit)) {
+                    final byte[] reencoded =
+                            GifReencoder.reencode(mContext, inputFilePath, mByteLimit);
+                    if (reencoded != null && (bytesToReturn == null
+                            || reencoded.length < bytesToReturn.length)) {
+                        bytesToReturn = reencoded;
                     }
                 }
-
-                // Need to clean up the new file created to compress the gif
-                mContext.getContentResolver().delete(tmpUri, null, null);
-            } else {
+            }
+            if (bytesToReturn == null && !canBeTranscoded) {
                 // We don't want to transcode the gif because its image dimensions would be too
-                // small so just return the bytes of the original gif
+                // small (and it couldn't be re-encoded) so just return the bytes of the original
                 try {
                     bytesToReturn = Files.toByteArray(new File(inputFilePath));
                 } catch (IOException e) {
@@ -520,6 +599,30 @@ public class ImageUtils {
             return bytesToReturn;
         }
 
+        private byte[] transcodeGif(final String inputFilePath) {
+            byte[] bytesToReturn = null;
+            // Needed to perform the transcoding so that the gif can continue to play in the
+            // conversation while the sending is taking place
+            final Uri tmpUri = MediaScratchFileProvider.buildMediaScratchSpaceUri("gif");
+            final File outputFile = MediaScratchFileProvider.getFileFromUri(tmpUri);
+            final String outputFilePath = outputFile.getAbsolutePath();
+
+            final boolean success =
+                    GifTranscoder.transcode(mContext, inputFilePath, outputFilePath);
+            if (success) {
+                try {
+                    bytesToReturn = Files.toByteArray(outputFile);
+                } catch (IOException e) {
+                    LogUtil.e(TAG, "Could not create FileInputStream with path of "
+                            + outputFilePath, e);
+                }
+            }
+
+            // Need to clean up the new file created to compress the gif
+            mContext.getContentResolver().delete(tmpUri, null, null);
+            return bytesToReturn;
+        }
+
         private byte[] resizeStaticImage() {
             if (!ensureImageSizeSet()) {
                 // Cannot read image size
@@ -530,6 +633,11 @@ public class ImageUtils {
                 return null;
             }
 
+            final long startMillis = SystemClock.elapsedRealtime();
+            if (mPredictive) {
+                predictInitialParameters();
+            }
+            byte[] resized = null;
             //  Decode image - if out of memory - reclaim memory and retry
             try {
                 for (int attempts = 0; attempts < NUMBER_OF_RESIZE_ATTEMPTS; attempts++) {
@@ -537,24 +645,68 @@ public class ImageUtils {
 
                     // Only return data within the limit
                     if (encoded != null && encoded.length <= mByteLimit) {
-                        return encoded;
+                        if (mPredictive) {
+                            JpegSizePredictor.get().recordEncode(
+                                    mScaled.getWidth() * mScaled.getHeight(), mQuality,
+                                    encoded.length);
+                        }
+                        resized = encoded;
+                        break;
                     } else {
                         final int currentSize = (encoded == null ? 0 : encoded.length);
-                        updateRecodeParameters(currentSize);
+                        if (!mPredictive || attempts >= NUMBER_OF_PREDICTED_ATTEMPTS - 1 ||
+                                !updatePredictedParameters(currentSize)) {
+                            updateRecodeParameters(currentSize);
+                        }
                     }
                 }
             } catch (final FileNotFoundException e) {
                 LogUtil.e(TAG, "File disappeared during resizing");
             } finally {
                 // Release all bitmaps
-                if (mScaled != null && mScaled != mDecoded) {
-                    mScaled.recycle();
-                }
+                releaseScaledBitmap();
                 if (mDecoded != null) {
                     mDecoded.recycle();
                 }
             }
-            return null;
+            final long millis = SystemClock.elapsedRealtime() - startMillis;
+            JpegSizePredictor.get().recordResize(mEncodeCount, millis, resized != null);
+            LogUtil.i(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: "
+                    + (resized != null ? "resized to " + resized.length + " bytes" : "failed")
+                    + " after " + mEncodeCount + " encodes in " + millis + "ms");
+            return resized;
+        }
+
+        /**
+         * Choose the quality and scale of the first encode from the size predictor
+         */
+        private void predictInitialParameters() {
+            final int decodedWidth = (mWidth + mSampleSize - 1) / mSampleSize;
+            final int decodedHeight = (mHeight + mSampleSize - 1) / mSampleSize;
+            final float minScaleFactor = getMinScaleFactor(decodedWidth, decodedHeight);
+            final int pixels = (int) (decodedWidth * decodedHeight
+                    / (minScaleFactor * minScaleFactor));
+            final JpegSizePredictor.Prediction prediction =
+                    JpegSizePredictor.get().predict(pixels, mByteLimit);
+            mQuality = prediction.quality;
+            mScaleFactor = minScaleFactor * prediction.scale;
+            if (LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: predicted "
+                        + prediction + " for " + pixels + " pixels");
+            }
+        }
+
+        /**
+         * @return the factor the decoded image has to be scaled down by to fit the dimension
+         * limits, 1 if it fits already
+         */
+        private float getMinScaleFactor(final int decodedWidth, final int decodedHeight) {
+            if (decodedWidth > mWidthLimit || decodedHeight > mHeightLimit) {
+                return Math.max(
+                        mWidthLimit == 0 ? 1.0f : (float) decodedWidth / (float) mWidthLimit,
+                        mHeightLimit == 0 ? 1.0f : (float) decodedHeight / (float) mHeightLimit);
+            }
+            return 1.0f;
         }
 
         /**
@@ -699,30 +851,16 @@ public class ImageUtils {
                     // Make sure to scale the decoded image if dimension is not within limit
                     final int decodedWidth = mDecoded.getWidth();
                     final int decodedHeight = mDecoded.getHeight();
-                    if (decodedWidth > mWidthLimit || decodedHeight > mHeightLimit) {
-                        final float minScaleFactor = Math.max(
-                                mWidthLimit == 0 ? 1.0f :
-                                    (float) decodedWidth / (float) mWidthLimit,
-                                    mHeightLimit == 0 ? 1.0f :
-                                        (float) decodedHeight / (float) mHeightLimit);
-                        if (mScaleFactor < minScaleFactor) {
-                            mScaleFactor = minScaleFactor;
-                        }
+                    final float minScaleFactor = getMinScaleFactor(decodedWidth, decodedHeight);
+                    if (mScaleFactor < minScaleFactor) {
+                        mScaleFactor = minScaleFactor;
                     }
                     if (mScaleFactor > 1.0 || mOrientationParams.rotation != 0) {
                         mMatrix.reset();
                         mMatrix.postRotate(mOrientationParams.rotation);
                         mMatrix.postScale(mOrientationParams.scaleX / mScaleFactor,
                                 mOrientationParams.scaleY / mScaleFactor);
-                        mScaled = Bitmap.createBitmap(mDecoded, 0, 0, decodedWidth, decodedHeight,
-                                mMatrix, false /* filter */);
-                        if (mScaled == null) {
-                            if (logv) {
-                                LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
-                                        "getResizedImageData: got empty scaled bitmap");
-                            }
-                            return null;
-                        }
+                        mScaled = createScaledBitmap(decodedWidth, decodedHeight);
                         if (logv) {
                             LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: scaled w,h="
                                     + mScaled.getWidth() + "," + mScaled.getHeight());
@@ -732,6 +870,7 @@ public class ImageUtils {
                     }
                 }
                 // Now encode it at current quality
+                mEncodeCount++;
                 encoded = ImageUtils.bitmapToBytes(mScaled, mQuality);
                 if (encoded != null && logv) {
                     LogUtil.v(LogUtil.BUGLE_IMAGE_TAG,
@@ -748,6 +887,64 @@ public class ImageUtils {
             return encoded;
         }
 
+        /**
+         * Draw the decoded image through mMatrix into a bitmap from the pool
+         */
+        private Bitmap createScaledBitmap(final int decodedWidth, final int decodedHeight) {
+            final RectF bounds = new RectF(0, 0, decodedWidth, decodedHeight);
+            mMatrix.mapRect(bounds);
+            final Bitmap scaled = mBitmapPool.createOrReuseBitmap(
+                    Math.max(1, Math.round(bounds.width())),
+                    Math.max(1, Math.round(bounds.height())), Bitmap.Config.ARGB_8888);
+            // Clear what a reused bitmap held, as a new one would be
+            scaled.eraseColor(Color.TRANSPARENT);
+            final Canvas canvas = new Canvas(scaled);
+            canvas.translate(-bounds.left, -bounds.top);
+            canvas.concat(mMatrix);
+            canvas.drawBitmap(mDecoded, 0, 0, null);
+            return scaled;
+        }
+
+        /**
+         * Recycle the scaled bitmap. It's sized for sending, so returning it to the shared pool
+         * would push out the many small bitmaps the media caches reuse.
+         */
+        private void releaseScaledBitmap() {
+            if (mScaled != null && mScaled != mDecoded) {
+                mScaled.recycle();
+            }
+            mScaled = null;
+        }
+
+        /**
+         * When an encode doesn't fit, predict the quality and scale of the next attempt from it
+         * @param currentSize encoded image size (will be 0 if OOM)
+         * @return whether the parameters were updated, else the caller should step them down
+         */
+        private boolean updatePredictedParameters(final int currentSize) {
+            if (currentSize <= 0 || mScaled == null) {
+                return false;
+            }
+            final JpegSizePredictor.Prediction prediction =
+                    JpegSizePredictor.get().predictFromEncode(
+                            mScaled.getWidth() * mScaled.getHeight(), mQuality, currentSize,
+                            mByteLimit);
+            if (prediction.scale > 1.0f) {
+                mScaleFactor = Math.max(1.0f, mScaleFactor) * prediction.scale;
+                // Release scaled bitmap to trigger rescaling
+                releaseScaledBitmap();
+            } else if (prediction.quality >= mQuality) {
+                // The prediction was off, no progress to be made from it
+                return false;
+            }
+            mQuality = prediction.quality;
+            if (LogUtil.isLoggable(LogUtil.BUGLE_IMAGE_TAG, LogUtil.VERBOSE)) {
+                LogUtil.v(LogUtil.BUGLE_IMAGE_TAG, "getResizedImageData: Retrying at predicted "
+                        + prediction + " from " + currentSize + " bytes");
+            }
+            return true;
+        }
+
         /**
          * When image recode fails this method updates compression parameters for the next attempt
          * @param currentSize encoded image size (will be 0 if OOM)
@@ -780,10 +977,7 @@ public class ImageUtils {
                             "getResizedImageData: Retrying at scale " + mScaleFactor);
                 }
                 // Release scaled bitmap to trigger rescaling
-                if (mScaled != null && mScaled != mDecoded) {
-                    mScaled.recycle();
-                }
-                mScaled = null;
+                releaseScaledBitmap();
             } else if (currentSize <= 0 && !mHasReclaimedMemory) {
                 // Then before we subsample try cleaning up our cached memory
                 Factory.get().reclaimMemory();
@@ -802,10 +996,7 @@ public class ImageUtils {
                             "getResizedImageData: Retrying at sampleSize " + mSampleSize);
                 }
                 // Release all bitmaps to trigger subsampling
-                if (mScaled != null && mScaled != mDecoded) {
-                    mScaled.recycle();
-                }
-                mScaled = null;
+                releaseScaledBitmap();
                 if (mDecoded != null) {
                     mDecoded.recycle();
                     mDecoded = null;
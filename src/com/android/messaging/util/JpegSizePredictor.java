@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Predicts the JPEG quality and scale that make an image fit a byte limit, so that resizing
+ * an image for MMS takes one or two encodes instead of a search over quality and scale.
+ *
+ * The encoded size is modeled as pixels * bytesPerPixel(quality). The bytes per pixel at the
+ * reference quality comes from the history of past encodes until the image has been encoded
+ * once, and from that calibration encode afterwards. The relative size at other qualities is a
+ * fixed curve typical of the platform encoder, interpolated between the sampled qualities.
+ * Downscaling is assumed to raise the bytes per pixel somewhat, as detail gets denser.
+ */
+public class JpegSizePredictor {
+    /** Quality the size curve is relative to */
+    @VisibleForTesting
+    static final int REFERENCE_QUALITY = 95;
+    /** Lowest quality the predictor picks */
+    @VisibleForTesting
+    static final int MINIMUM_QUALITY = 50;
+    /**
+     * Quality used when the image has to be scaled down, since dropping resolution looks
+     * better than very low qualities
+     */
+    @VisibleForTesting
+    static final int SCALED_QUALITY = 80;
+
+    // Size relative to REFERENCE_QUALITY, at qualities MINIMUM_QUALITY..REFERENCE_QUALITY in
+    // steps of QUALITY_STEP
+    private static final int QUALITY_STEP = 5;
+    private static final float[] RELATIVE_SIZES = {
+            0.27f, 0.29f, 0.31f, 0.34f, 0.37f, 0.41f, 0.46f, 0.54f, 0.68f, 1.0f };
+
+    // How much denser detail gets when scaling down: bytes per pixel ~ scale ^ exponent
+    private static final double SCALE_DETAIL_EXPONENT = 0.5;
+    // Fraction of the byte limit to aim for, leaving room for prediction error
+    private static final float TARGET_FILL_RATIO = 0.9f;
+    // Typical bytes per pixel of photos at REFERENCE_QUALITY, before there is any history
+    private static final float DEFAULT_REFERENCE_BYTES_PER_PIXEL = 0.6f;
+    // Weight of the latest image in the history
+    private static final float HISTORY_WEIGHT = 0.25f;
+
+    /**
+     * Quality and additional downscale to encode an image with
+     */
+    public static class Prediction {
+        public final int quality;
+        /** Factor by which to shrink each dimension of the image, at least 1 */
+        public final float scale;
+
+        Prediction(final int quality, final float scale) {
+            this.quality = quality;
+            this.scale = scale;
+        }
+
+        @Override
+        public String toString() {
+            return "quality=" + quality + " scale=" + scale;
+        }
+    }
+
+    private static final JpegSizePredictor sInstance = new JpegSizePredictor();
+
+    // Guarded by this
+    private float mReferenceBytesPerPixel = DEFAULT_REFERENCE_BYTES_PER_PIXEL;
+    private int mResizeCount;
+    private int mFailedResizeCount;
+    private long mEncodeCount;
+    private int mMaxEncodes;
+    private long mTotalResizeMillis;
+    private long mMaxResizeMillis;
+
+    public static JpegSizePredictor get() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    JpegSizePredictor() {
+    }
+
+    /**
+     * Predict how to encode an image that hasn't been encoded yet, from the history
+     *
+     * @param pixels number of pixels of the image as it would be encoded without scaling
+     * @param byteLimit the size the encoded image has to fit
+     */
+    public Prediction predict(final int pixels, final int byteLimit) {
+        final float referenceBytesPerPixel;
+        synchronized (this) {
+            referenceBytesPerPixel = mReferenceBytesPerPixel;
+        }
+        return predictForReferenceSize(pixels * (double) referenceBytesPerPixel, byteLimit);
+    }
+
+    /**
+     * Predict how to encode an image from an encode of it that didn't fit, and add that
+     * encode to the history
+     *
+     * @param pixels number of pixels of the encoded image
+     * @param quality quality the image was encoded at
+     * @param encodedBytes size of the encoded image
+     * @param byteLimit the size the encoded image has to fit
+     * @return the prediction, with the scale relative to the encoded image
+     */
+    public Prediction predictFromEncode(final int pixels, final int quality,
+            final int encodedBytes, final int byteLimit) {
+        recordEncode(pixels, quality, encodedBytes);
+        return predictForReferenceSize(encodedBytes / getRelativeSize(quality), byteLimit);
+    }
+
+    /**
+     * Add an encode to the bytes per pixel history
+     */
+    public synchronized void recordEncode(final int pixels, final int quality,
+            final int encodedBytes) {
+        if (pixels <= 0 || encodedBytes <= 0) {
+            return;
+        }
+        final float referenceBytesPerPixel = encodedBytes / getRelativeSize(quality) / pixels;
+        mReferenceBytesPerPixel = mReferenceBytesPerPixel * (1 - HISTORY_WEIGHT)
+                + referenceBytesPerPixel * HISTORY_WEIGHT;
+    }
+
+    /**
+     * Record the outcome of resizing an image, for the stats
+     *
+     * @param encodes number of JPEG encodes the resize took
+     * @param millis time the resize took
+     * @param success whether the image was made to fit
+     */
+    public synchronized void recordResize(final int encodes, final long millis,
+            final boolean success) {
+        mResizeCount++;
+        if (!success) {
+            mFailedResizeCount++;
+        }
+        mEncodeCount += encodes;
+        mMaxEncodes = Math.max(mMaxEncodes, encodes);
+        mTotalResizeMillis += millis;
+        mMaxResizeMillis = Math.max(mMaxResizeMillis, millis);
+    }
+
+    public synchronized void dump(final PrintWriter writer) {
+        writer.println("JpegSizePredictor:");
+        writer.println("  resizes=" + mResizeCount
+                + " failed=" + mFailedResizeCount
+                + " avgEncodes=" + (mResizeCount == 0 ? 0 :
+                        String.format(Locale.US, "%.2f", (double) mEncodeCount / mResizeCount))
+                + " maxEncodes=" + mMaxEncodes
+                + " avgMs=" + (mResizeCount == 0 ? 0 : mTotalResizeMillis / mResizeCount)
+                + " maxMs=" + mMaxResizeMillis
+                + " referenceBytesPerPixel=" + mReferenceBytesPerPixel);
+    }
+
+    /**
+     * @param referenceBytes predicted size of the image at REFERENCE_QUALITY without scaling
+     */
+    private static Prediction predictForReferenceSize(final double referenceBytes,
+            final int byteLimit) {
+        final double targetBytes = byteLimit * TARGET_FILL_RATIO;
+        final double relativeSize = targetBytes / referenceBytes;
+        if (relativeSize >= 1) {
+            return new Prediction(REFERENCE_QUALITY, 1.0f);
+        }
+        if (relativeSize >= RELATIVE_SIZES[0]) {
+            return new Prediction(getQualityForRelativeSize(relativeSize), 1.0f);
+        }
+        // bytes ~ scale ^ (exponent - 2), solved for the scale that makes the target
+        final double scaledBytes = referenceBytes * getRelativeSize(SCALED_QUALITY);
+        final double scale = Math.pow(scaledBytes / targetBytes,
+                1 / (2 - SCALE_DETAIL_EXPONENT));
+        return new Prediction(SCALED_QUALITY, (float) Math.max(1.0, scale));
+    }
+
+    /**
+     * @return size of an image at the given quality relative to REFERENCE_QUALITY
+     */
+    @VisibleForTesting
+    static float getRelativeSize(final int quality) {
+        final int clamped = Math.max(MINIMUM_QUALITY, Math.min(REFERENCE_QUALITY, quality));
+        final int index = (clamped - MINIMUM_QUALITY) / QUALITY_STEP;
+        if (index == RELATIVE_SIZES.length - 1) {
+            return RELATIVE_SIZES[index];
+        }
+        final float fraction = (clamped - MINIMUM_QUALITY - index * QUALITY_STEP)
+                / (float) QUALITY_STEP;
+        return RELATIVE_SIZES[index]
+                + fraction * (RELATIVE_SIZES[index + 1] - RELATIVE_SIZES[index]);
+    }
+
+    /**
+     * @return highest quality whose relative size is no more than the given one
+     */
+    private static int getQualityForRelativeSize(final double relativeSize) {
+        for (int index = RELATIVE_SIZES.length - 1; index > 0; index--) {
+            if (RELATIVE_SIZES[index - 1] <= relativeSize) {
+                final double fraction = (relativeSize - RELATIVE_SIZES[index - 1])
+                        / (RELATIVE_SIZES[index] - RELATIVE_SIZES[index - 1]);
+                return MINIMUM_QUALITY + (index - 1) * QUALITY_STEP
+                        + (int) (fraction * QUALITY_STEP);
+            }
+        }
+        return MINIMUM_QUALITY;
+    }
+}
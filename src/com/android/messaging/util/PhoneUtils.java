@@ -26,7 +26,6 @@ import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.provider.Settings;
 import android.provider.Telephony;
-import android.support.v4.util.ArrayMap;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
@@ -36,6 +35,7 @@ import android.text.TextUtils;
 
 import com.android.messaging.Factory;
 import com.android.messaging.R;
+import com.android.messaging.datamodel.MemoryCacheManager;
 import com.android.messaging.datamodel.data.ParticipantData;
 import com.android.messaging.sms.MmsSmsUtils;
 import com.google.i18n.phonenumbers.NumberParseException;
@@ -43,8 +43,10 @@ import com.google.i18n.phonenumbers.Phonenumber.PhoneNumber;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat;
 
+import java.io.PrintWriter;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -67,11 +69,11 @@ public abstract class PhoneUtils {
 
     private static final List<SubscriptionInfo> EMPTY_SUBSCRIPTION_LIST = new ArrayList<>();
 
-    // The canonical phone number cache
-    // Each country gets its own cache. The following maps from ISO country code to
-    // the country's cache. Each cache maps from original phone number to canonicalized phone
-    private static final ArrayMap<String, ArrayMap<String, String>> sCanonicalPhoneNumberCache =
-            new ArrayMap<>();
+    // Numbers kept in the canonical phone number cache per country
+    private static final int CANONICAL_PHONE_NUMBER_CACHE_SIZE = 2048;
+
+    // The canonical phone number cache, created and registered on first use
+    private static volatile CanonicalPhoneNumberCache sCanonicalPhoneNumberCache;
 
     protected final Context mContext;
     protected final TelephonyManager mTelephonyManager;
@@ -717,34 +719,64 @@ public abstract class PhoneUtils {
         return country;
     }
 
-    // Get or set the cache of canonicalized phone numbers for a specific country
-    private static ArrayMap<String, String> getOrAddCountryMapInCacheLocked(String country) {
-        if (country == null) {
-            country = "";
-        }
-        ArrayMap<String, String> countryMap = sCanonicalPhoneNumberCache.get(country);
-        if (countryMap == null) {
-            countryMap = new ArrayMap<>();
-            sCanonicalPhoneNumberCache.put(country, countryMap);
+    private static CanonicalPhoneNumberCache getCanonicalCache() {
+        CanonicalPhoneNumberCache cache = sCanonicalPhoneNumberCache;
+        if (cache == null) {
+            synchronized (PhoneUtils.class) {
+                cache = sCanonicalPhoneNumberCache;
+                if (cache == null) {
+                    cache = new CanonicalPhoneNumberCache(CANONICAL_PHONE_NUMBER_CACHE_SIZE);
+                    MemoryCacheManager.get().registerMemoryCache(cache);
+                    sCanonicalPhoneNumberCache = cache;
+                }
+            }
         }
-        return countryMap;
+        return cache;
     }
 
     // Get canonicalized phone number from cache
-    private static String getCanonicalFromCache(final String phoneText, String country) {
-        synchronized (sCanonicalPhoneNumberCache) {
-            final ArrayMap<String, String> countryMap = getOrAddCountryMapInCacheLocked(country);
-            return countryMap.get(phoneText);
-        }
+    private static String getCanonicalFromCache(final String phoneText, final String country) {
+        return getCanonicalCache().get(country, phoneText);
     }
 
     // Put canonicalized phone number into cache
-    private static void putCanonicalToCache(final String phoneText, String country,
+    private static void putCanonicalToCache(final String phoneText, final String country,
             final String canonical) {
-        synchronized (sCanonicalPhoneNumberCache) {
-            final ArrayMap<String, String> countryMap = getOrAddCountryMapInCacheLocked(country);
-            countryMap.put(phoneText, canonical);
+        getCanonicalCache().put(country, phoneText, canonical);
+    }
+
+    /**
+     * Pre-warms the canonical phone number cache with numbers that are likely to be looked up,
+     * such as the normalized destinations of participants. Meant to run on a background thread
+     * since it does the parsing that later lookups then skip.
+     */
+    public void prewarmCanonicalCache(final Collection<String> phoneTexts) {
+        final String simCountry = getSimOrDefaultLocaleCountry();
+        final String localeCountry = getLocaleCountry();
+        for (final String phoneText : phoneTexts) {
+            if (TextUtils.isEmpty(phoneText) || MmsSmsUtils.isEmailAddress(phoneText)) {
+                continue;
+            }
+            prewarmCanonicalCache(phoneText, simCountry);
+            if (!TextUtils.equals(simCountry, localeCountry)) {
+                prewarmCanonicalCache(phoneText, localeCountry);
+            }
+        }
+    }
+
+    private static void prewarmCanonicalCache(final String phoneText, final String country) {
+        String canonicalNumber = getValidE164Number(phoneText, country);
+        if (canonicalNumber == null) {
+            canonicalNumber = phoneText;
         }
+        getCanonicalCache().putIfAbsent(country, phoneText, canonicalNumber);
+    }
+
+    /**
+     * Dumps the state of the canonical phone number cache
+     */
+    public static void dumpCanonicalCache(final PrintWriter writer) {
+        getCanonicalCache().dump(writer);
     }
 
     /**
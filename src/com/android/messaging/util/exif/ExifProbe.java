@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util.exif;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the orientation and dimensions of a JPEG from its EXIF data without building an
+ * {@link ExifInterface}, for paths that need nothing else, such as loading gallery tiles and
+ * attachment previews. It walks the JPEG markers to the EXIF APP1 segment and reads the
+ * entries of IFD0, and of the EXIF IFD when it comes later in the stream, through one small
+ * buffer. Everything else is skipped and no tags are allocated.
+ */
+public class ExifProbe {
+    /** Orientation of images without one, same as android.media.ExifInterface */
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int SIZE_UNDEFINED = -1;
+
+    private static final int MARKER_PREFIX = 0xff;
+    private static final int APP1_MARKER = JpegHeader.APP1 & 0xff;
+    private static final int EOI_MARKER = JpegHeader.EOI & 0xff;
+    private static final int TIFF_HEADER_SIZE = 8;
+    private static final int TYPE_UNSIGNED_SHORT = 3;
+    private static final int TYPE_UNSIGNED_LONG = 4;
+
+    // Keys of the tags we read, see the matching ExifInterface.TAG_* constants
+    private static final int TAG_IMAGE_WIDTH = 0x0100;
+    private static final int TAG_IMAGE_LENGTH = 0x0101;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_PIXEL_X_DIMENSION = 0xa002;
+    private static final int TAG_PIXEL_Y_DIMENSION = 0xa003;
+
+    /**
+     * What was found in the EXIF data
+     */
+    public static class Result {
+        public final int orientation;
+        /** Width from the EXIF data, or SIZE_UNDEFINED */
+        public final int width;
+        /** Height from the EXIF data, or SIZE_UNDEFINED */
+        public final int height;
+
+        Result(final int orientation, final int width, final int height) {
+            this.orientation = orientation;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static final Result UNDEFINED =
+            new Result(ORIENTATION_UNDEFINED, SIZE_UNDEFINED, SIZE_UNDEFINED);
+
+    private final InputStream mInput;
+    // Large enough for an IFD entry
+    private final byte[] mBuffer = new byte[12];
+    // Position in the TIFF data of the EXIF segment
+    private int mPosition;
+    private int mTiffLength;
+    private boolean mLittleEndian;
+
+    private int mOrientation = ORIENTATION_UNDEFINED;
+    private int mWidth = SIZE_UNDEFINED;
+    private int mHeight = SIZE_UNDEFINED;
+    private int mPixelXDimension = SIZE_UNDEFINED;
+    private int mPixelYDimension = SIZE_UNDEFINED;
+    private int mExifIfdOffset;
+
+    /**
+     * Reads the orientation and dimensions from the EXIF data of a JPEG. The stream is left
+     * open, somewhere after the EXIF data.
+     *
+     * @return what was found, with undefined values for the rest, including for streams that
+     *     aren't JPEGs or have no EXIF data
+     */
+    public static Result probe(final InputStream input) throws IOException {
+        return new ExifProbe(input).probe();
+    }
+
+    private ExifProbe(final InputStream input) {
+        mInput = input;
+    }
+
+    private Result probe() throws IOException {
+        readFully(2);
+        if (readUnsignedShort(0, false) != (JpegHeader.SOI & 0xffff)) {
+            return UNDEFINED;
+        }
+        // Like ExifParser, only look at the segments before the frame
+        while (true) {
+            readFully(4);
+            final int prefix = mBuffer[0] & 0xff;
+            final int marker = mBuffer[1] & 0xff;
+            if (prefix != MARKER_PREFIX || marker == EOI_MARKER
+                    || JpegHeader.isSofMarker((short) (0xff00 | marker))) {
+                return UNDEFINED;
+            }
+            final int length = readUnsignedShort(2, false);
+            if (length < 2) {
+                return UNDEFINED;
+            }
+            if (marker == APP1_MARKER && length >= 8) {
+                readFully(6);
+                if (mBuffer[0] == 'E' && mBuffer[1] == 'x' && mBuffer[2] == 'i'
+                        && mBuffer[3] == 'f' && mBuffer[4] == 0 && mBuffer[5] == 0) {
+                    return readTiff(length - 8);
+                }
+                skip(length - 8);
+            } else {
+                skip(length - 2);
+            }
+        }
+    }
+
+    private Result readTiff(final int tiffLength) throws IOException {
+        mTiffLength = tiffLength;
+        if (tiffLength < TIFF_HEADER_SIZE) {
+            return UNDEFINED;
+        }
+        readFully(TIFF_HEADER_SIZE);
+        mPosition = TIFF_HEADER_SIZE;
+        if (mBuffer[0] == 'I' && mBuffer[1] == 'I') {
+            mLittleEndian = true;
+        } else if (mBuffer[0] != 'M' || mBuffer[1] != 'M') {
+            return UNDEFINED;
+        }
+        if (readUnsignedShort(2, mLittleEndian) != 0x002a) {
+            return UNDEFINED;
+        }
+        readIfd(readInt(4, mLittleEndian), true /* ifd0 */);
+        // The EXIF IFD usually follows IFD0. We can't go back for it if it doesn't.
+        if (mExifIfdOffset >= mPosition) {
+            readIfd(mExifIfdOffset, false /* ifd0 */);
+        }
+        final boolean hasPixelDimensions =
+                mPixelXDimension != SIZE_UNDEFINED && mPixelYDimension != SIZE_UNDEFINED;
+        return new Result(mOrientation, hasPixelDimensions ? mPixelXDimension : mWidth,
+                hasPixelDimensions ? mPixelYDimension : mHeight);
+    }
+
+    private void readIfd(final int offset, final boolean ifd0) throws IOException {
+        if (offset < mPosition || offset > mTiffLength - 2) {
+            return;
+        }
+        skip(offset - mPosition);
+        readFully(2);
+        final int count = readUnsignedShort(0, mLittleEndian);
+        for (int i = 0; i < count && mPosition + mBuffer.length <= mTiffLength; i++) {
+            readFully(mBuffer.length);
+            final int tag = readUnsignedShort(0, mLittleEndian);
+            final int type = readUnsignedShort(2, mLittleEndian);
+            if (ifd0) {
+                if (tag == TAG_ORIENTATION) {
+                    mOrientation = readValue(type, ORIENTATION_UNDEFINED);
+                } else if (tag == TAG_IMAGE_WIDTH) {
+                    mWidth = readValue(type, SIZE_UNDEFINED);
+                } else if (tag == TAG_IMAGE_LENGTH) {
+                    mHeight = readValue(type, SIZE_UNDEFINED);
+                } else if (tag == TAG_EXIF_IFD) {
+                    mExifIfdOffset = readValue(type, 0);
+                }
+            } else if (tag == TAG_PIXEL_X_DIMENSION) {
+                mPixelXDimension = readValue(type, SIZE_UNDEFINED);
+            } else if (tag == TAG_PIXEL_Y_DIMENSION) {
+                mPixelYDimension = readValue(type, SIZE_UNDEFINED);
+            }
+        }
+    }
+
+    /**
+     * @return the value of the entry in the buffer, which is inline for single shorts and longs
+     */
+    private int readValue(final int type, final int defaultValue) {
+        if (readInt(4, mLittleEndian) < 1) {
+            return defaultValue;
+        }
+        if (type == TYPE_UNSIGNED_SHORT) {
+            return readUnsignedShort(8, mLittleEndian);
+        } else if (type == TYPE_UNSIGNED_LONG) {
+            final int value = readInt(8, mLittleEndian);
+            return value < 0 ? defaultValue : value;
+        }
+        return defaultValue;
+    }
+
+    private int readUnsignedShort(final int index, final boolean littleEndian) {
+        final int first = mBuffer[index] & 0xff;
+        final int second = mBuffer[index + 1] & 0xff;
+        return littleEndian ? (second << 8) | first : (first << 8) | second;
+    }
+
+    private int readInt(final int index, final boolean littleEndian) {
+        final int first = readUnsignedShort(index, littleEndian);
+        final int second = readUnsignedShort(index + 2, littleEndian);
+        return littleEndian ? (second << 16) | first : (first << 16) | second;
+    }
+
+    private void readFully(final int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            final int read = mInput.read(mBuffer, offset, count - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        mPosition += count;
+    }
+
+    private void skip(final int count) throws IOException {
+        int remaining = count;
+        while (remaining > 0) {
+            final long skipped = mInput.skip(remaining);
+            if (skipped > 0) {
+                remaining -= skipped;
+            } else if (mInput.read() < 0) {
+                throw new EOFException();
+            } else {
+                remaining--;
+            }
+        }
+        mPosition += count;
+    }
+}
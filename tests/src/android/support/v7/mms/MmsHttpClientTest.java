@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v7.mms;
+
+import android.os.Bundle;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class MmsHttpClientTest extends BugleTestCase {
+    private static final byte[] SEND_CONF = new byte[] { (byte) 0x8c, (byte) 0x81 };
+
+    private FakeMmsc mMmsc;
+    private MmsHttpClient mClient;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMmsc = new FakeMmsc();
+        mClient = new MmsHttpClient(getTestContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mMmsc.close();
+        super.tearDown();
+    }
+
+    public void testPersistentConnectionIsReused() throws Exception {
+        final byte[] pdu = new byte[10000];
+        Arrays.fill(pdu, (byte) 7);
+        final File pduFile = writeFile(pdu);
+        try {
+            for (int i = 0; i < 3; i++) {
+                final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                final long size = mClient.execute(mMmsc.getUrl(), pduFile,
+                        MmsHttpClient.METHOD_POST, false, null, 0, new Bundle(), "test", null,
+                        response);
+                assertEquals(SEND_CONF.length, size);
+                assertTrue(Arrays.equals(SEND_CONF, response.toByteArray()));
+            }
+        } finally {
+            pduFile.delete();
+        }
+        assertEquals(3, mMmsc.getRequestBodies().size());
+        assertTrue(Arrays.equals(pdu, mMmsc.getRequestBodies().get(2)));
+        assertEquals(1, mMmsc.getConnectionCount());
+    }
+
+    public void testResponseIsStreamedToFile() throws Exception {
+        final byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        mMmsc.setResponseBody(body);
+        final File responseFile = File.createTempFile("response", null,
+                getTestContext().getCacheDir());
+        try {
+            final OutputStream out = new FileOutputStream(responseFile);
+            final long size = mClient.execute(mMmsc.getUrl(), null, MmsHttpClient.METHOD_GET,
+                    false, null, 0, new Bundle(), "test", null, out);
+            out.close();
+            assertEquals(body.length, size);
+            assertTrue(Arrays.equals(body, readFile(responseFile)));
+        } finally {
+            responseFile.delete();
+        }
+    }
+
+    public void testNonPersistentConnectionIsClosed() throws Exception {
+        mClient.execute(mMmsc.getUrl(), new byte[] { 1 }, MmsHttpClient.METHOD_POST, false,
+                null, 0, new Bundle(), "test", null);
+        mClient.execute(mMmsc.getUrl(), new byte[] { 1 }, MmsHttpClient.METHOD_POST, false,
+                null, 0, new Bundle(), "test", null);
+        assertEquals(2, mMmsc.getConnectionCount());
+    }
+
+    private File writeFile(final byte[] data) throws IOException {
+        final File file = File.createTempFile("pdu", null, getTestContext().getCacheDir());
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[4096];
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                out.write(buf, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Stand-in MMSC serving HTTP/1.1 on a local port. Every request is answered with the same
+     * response body, and connections are kept open until the client closes them.
+     */
+    private static class FakeMmsc implements Runnable {
+        private final ServerSocket mServerSocket;
+        private final AtomicInteger mConnectionCount = new AtomicInteger();
+        private final List<byte[]> mRequestBodies = new ArrayList<byte[]>();
+        private volatile byte[] mResponseBody = SEND_CONF;
+
+        FakeMmsc() throws IOException {
+            mServerSocket = new ServerSocket(0, 0, InetAddress.getByName("127.0.0.1"));
+            final Thread thread = new Thread(this, "FakeMmsc");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/mms";
+        }
+
+        void setResponseBody(final byte[] responseBody) {
+            mResponseBody = responseBody;
+        }
+
+        int getConnectionCount() {
+            return mConnectionCount.get();
+        }
+
+        List<byte[]> getRequestBodies() {
+            synchronized (mRequestBodies) {
+                return new ArrayList<byte[]>(mRequestBodies);
+            }
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    mConnectionCount.incrementAndGet();
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "FakeMmscConnection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private void serve(final Socket socket) {
+            try {
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                final OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while ((requestLine = readLine(in)) != null) {
+                    int contentLength = 0;
+                    String line;
+                    while ((line = readLine(in)) != null && line.length() > 0) {
+                        final String header = line.toLowerCase(Locale.US);
+                        if (header.startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(header.substring(15).trim());
+                        }
+                    }
+                    final byte[] body = new byte[contentLength];
+                    int read = 0;
+                    while (read < contentLength) {
+                        final int count = in.read(body, read, contentLength - read);
+                        if (count < 0) {
+                            return;
+                        }
+                        read += count;
+                    }
+                    if (requestLine.startsWith(MmsHttpClient.METHOD_POST)) {
+                        synchronized (mRequestBodies) {
+                            mRequestBodies.add(body);
+                        }
+                    }
+                    final byte[] response = mResponseBody;
+                    out.write(("HTTP/1.1 200 OK\r\n"
+                            + "Content-Type: application/vnd.wap.mms-message\r\n"
+                            + "Content-Length: " + response.length + "\r\n\r\n")
+                            .getBytes("US-ASCII"));
+                    out.write(response);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Connection closed by the client
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        private static String readLine(final InputStream in) throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    final int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+}
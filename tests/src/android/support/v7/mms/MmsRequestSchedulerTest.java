@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.v7.mms;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class MmsRequestSchedulerTest extends BugleTestCase {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private MmsNetworkManager mNetworkManager;
+    private MmsRequestScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mNetworkManager = Mockito.mock(MmsNetworkManager.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testNetworkIsAcquiredOncePerGroup() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(3);
+        final AtomicInteger withNetwork = new AtomicInteger();
+        mScheduler = new MmsRequestScheduler(mNetworkManager, 1,
+                new MmsRequestScheduler.RequestRunner() {
+                    @Override
+                    public void run(final MmsRequest request, final boolean networkAcquired) {
+                        if (networkAcquired) {
+                            withNetwork.incrementAndGet();
+                        }
+                        finished.countDown();
+                    }
+                });
+        final CountDownLatch blockAcquire = new CountDownLatch(1);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(final InvocationOnMock invocation) throws Throwable {
+                blockAcquire.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(mNetworkManager).acquireNetwork();
+
+        // All requests queue up while the network is being acquired
+        mScheduler.schedule(new SendRequest(1, null, null, null));
+        mScheduler.schedule(new DownloadRequest(1, null, null, null));
+        mScheduler.schedule(new SendRequest(1, null, null, null));
+        blockAcquire.countDown();
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(3, withNetwork.get());
+        Mockito.verify(mNetworkManager, Mockito.timeout(TIMEOUT_SECONDS * 1000)).releaseNetwork();
+        Mockito.verify(mNetworkManager, Mockito.times(1)).acquireNetwork();
+    }
+
+    public void testSubscriptionsDontBlockEachOther() throws Exception {
+        final CountDownLatch releaseSub1 = new CountDownLatch(1);
+        final CountDownLatch sub2Finished = new CountDownLatch(1);
+        mScheduler = new MmsRequestScheduler(mNetworkManager, 1,
+                new MmsRequestScheduler.RequestRunner() {
+                    @Override
+                    public void run(final MmsRequest request, final boolean networkAcquired) {
+                        try {
+                            if (request.getSubId() == 1) {
+                                releaseSub1.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                            } else {
+                                sub2Finished.countDown();
+                            }
+                        } catch (InterruptedException e) {
+                            // Ignore
+                        }
+                    }
+                });
+
+        mScheduler.schedule(new SendRequest(1, null, null, null));
+        mScheduler.schedule(new SendRequest(1, null, null, null));
+        mScheduler.schedule(new SendRequest(2, null, null, null));
+
+        assertTrue(sub2Finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        releaseSub1.countDown();
+    }
+
+    public void testConcurrencyIsLimited() throws Exception {
+        final int requests = 6;
+        final CountDownLatch finished = new CountDownLatch(requests);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        mScheduler = new MmsRequestScheduler(mNetworkManager, 2,
+                new MmsRequestScheduler.RequestRunner() {
+                    @Override
+                    public void run(final MmsRequest request, final boolean networkAcquired) {
+                        final int now = running.incrementAndGet();
+                        synchronized (maxRunning) {
+                            maxRunning.set(Math.max(maxRunning.get(), now));
+                        }
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            // Ignore
+                        }
+                        running.decrementAndGet();
+                        finished.countDown();
+                    }
+                });
+
+        for (int i = 0; i < requests; i++) {
+            mScheduler.schedule(new DownloadRequest(1, null, null, null));
+        }
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    public void testFailedAcquisitionFallsBackToRequests() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger withNetwork = new AtomicInteger();
+        Mockito.doThrow(new MmsNetworkException("Mobile data is disabled"))
+                .when(mNetworkManager).acquireNetwork();
+        mScheduler = new MmsRequestScheduler(mNetworkManager, 1,
+                new MmsRequestScheduler.RequestRunner() {
+                    @Override
+                    public void run(final MmsRequest request, final boolean networkAcquired) {
+                        if (networkAcquired) {
+                            withNetwork.incrementAndGet();
+                        }
+                        finished.countDown();
+                    }
+                });
+
+        mScheduler.schedule(new SendRequest(1, null, null, null));
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(0, withNetwork.get());
+        Mockito.verify(mNetworkManager, Mockito.never()).releaseNetwork();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.benchmark;
+
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Minimal micro-benchmark harness for the codec benchmarks. Each benchmark runs warm-up rounds
+ * and then measured rounds of a fixed number of operations, and reports throughput, latency
+ * percentiles of the per-operation time of the rounds, and bytes allocated per operation.
+ *
+ * Results of a run are written to benchmark_results.properties in the external files dir of
+ * the app under test. To fail later runs on regression, pull that file and push it back as
+ * benchmark_baseline.properties in the same dir: each benchmark then fails if its median time
+ * or allocation exceeds the baseline by more than the tolerance (20% unless the baseline sets
+ * a "tolerance" fraction).
+ */
+final class Benchmark {
+    private static final String TAG = "MessagingBenchmark";
+
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int MEASURED_ROUNDS = 50;
+    private static final double DEFAULT_TOLERANCE = 0.2;
+    // Allocation differences below this are noise from the harness itself
+    private static final long ALLOCATION_SLACK_BYTES = 64;
+
+    private static final String RESULTS_FILE = "benchmark_results.properties";
+    private static final String BASELINE_FILE = "benchmark_baseline.properties";
+    private static final String KEY_TOLERANCE = "tolerance";
+    private static final String SUFFIX_MEDIAN_NANOS = ".medianNanos";
+    private static final String SUFFIX_ALLOC_BYTES = ".allocBytesPerOp";
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    static class Result {
+        final String name;
+        final long medianNanos;
+        final long p90Nanos;
+        final long p99Nanos;
+        final long allocBytesPerOp;
+        final double opsPerSecond;
+
+        Result(final String name, final long[] roundNanosPerOp, final long allocBytesPerOp) {
+            this.name = name;
+            Arrays.sort(roundNanosPerOp);
+            medianNanos = percentile(roundNanosPerOp, 50);
+            p90Nanos = percentile(roundNanosPerOp, 90);
+            p99Nanos = percentile(roundNanosPerOp, 99);
+            this.allocBytesPerOp = allocBytesPerOp;
+            opsPerSecond = medianNanos == 0 ? 0 : 1e9 / medianNanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + String.format("%.1f", opsPerSecond) + " ops/s"
+                    + " median=" + medianNanos / 1000 + "us"
+                    + " p90=" + p90Nanos / 1000 + "us"
+                    + " p99=" + p99Nanos / 1000 + "us"
+                    + " alloc=" + allocBytesPerOp + "B/op";
+        }
+    }
+
+    private final Context mContext;
+    private final Properties mResults = new Properties();
+    private final Properties mBaseline;
+
+    Benchmark(final Context context) {
+        mContext = context;
+        mBaseline = load(new File(getOutputDir(), BASELINE_FILE));
+    }
+
+    /**
+     * Measure an operation and check it against the baseline, if there is one
+     *
+     * @param name name of the benchmark, unique within the suite
+     * @param opsPerRound number of operations timed together
+     * @param operation the operation to measure
+     */
+    Result measure(final String name, final int opsPerRound, final Operation operation)
+            throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRound(opsPerRound, operation);
+        }
+        final long[] roundNanosPerOp = new long[MEASURED_ROUNDS];
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            roundNanosPerOp[i] = runRound(opsPerRound, operation) / opsPerRound;
+        }
+        final long allocBytesPerOp = measureAllocation(opsPerRound, operation) / opsPerRound;
+
+        final Result result = new Result(name, roundNanosPerOp, allocBytesPerOp);
+        Log.i(TAG, result.toString());
+        mResults.setProperty(name + SUFFIX_MEDIAN_NANOS, String.valueOf(result.medianNanos));
+        mResults.setProperty(name + SUFFIX_ALLOC_BYTES, String.valueOf(result.allocBytesPerOp));
+        checkBaseline(result);
+        return result;
+    }
+
+    /**
+     * Add the results measured so far to the results file
+     */
+    void writeResults() throws IOException {
+        final File file = new File(getOutputDir(), RESULTS_FILE);
+        final Properties allResults = load(file);
+        allResults.putAll(mResults);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            allResults.store(out, "Messaging codec benchmark results");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void checkBaseline(final Result result) {
+        final double tolerance = Double.parseDouble(mBaseline.getProperty(KEY_TOLERANCE,
+                String.valueOf(DEFAULT_TOLERANCE)));
+        final String baselineNanos = mBaseline.getProperty(result.name + SUFFIX_MEDIAN_NANOS);
+        if (baselineNanos != null) {
+            final long limit = (long) (Long.parseLong(baselineNanos) * (1 + tolerance));
+            Assert.assertTrue(result.name + " regressed: median " + result.medianNanos
+                    + "ns, baseline " + baselineNanos + "ns", result.medianNanos <= limit);
+        }
+        final String baselineAlloc = mBaseline.getProperty(result.name + SUFFIX_ALLOC_BYTES);
+        if (baselineAlloc != null) {
+            final long limit = (long) (Long.parseLong(baselineAlloc) * (1 + tolerance))
+                    + ALLOCATION_SLACK_BYTES;
+            Assert.assertTrue(result.name + " allocation regressed: " + result.allocBytesPerOp
+                    + "B/op, baseline " + baselineAlloc + "B/op",
+                    result.allocBytesPerOp <= limit);
+        }
+    }
+
+    private static long runRound(final int ops, final Operation operation) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < ops; i++) {
+            operation.run();
+        }
+        return System.nanoTime() - start;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long measureAllocation(final int ops, final Operation operation)
+            throws Exception {
+        Debug.startAllocCounting();
+        try {
+            Debug.resetThreadAllocSize();
+            for (int i = 0; i < ops; i++) {
+                operation.run();
+            }
+            return Debug.getThreadAllocSize();
+        } finally {
+            Debug.stopAllocCounting();
+        }
+    }
+
+    private static long percentile(final long[] sorted, final int percentile) {
+        final int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+        return sorted[index];
+    }
+
+    private File getOutputDir() {
+        final File dir = mContext.getExternalFilesDir(null);
+        return dir != null ? dir : mContext.getFilesDir();
+    }
+
+    private static Properties load(final File file) {
+        final Properties properties = new Properties();
+        if (file.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                properties.load(in);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read " + file, e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+        return properties;
+    }
+}
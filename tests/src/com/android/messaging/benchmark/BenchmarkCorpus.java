@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.benchmark;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+
+import com.android.messaging.mmslib.pdu.CharacterSets;
+import com.android.messaging.mmslib.pdu.EncodedStringValue;
+import com.android.messaging.mmslib.pdu.PduBody;
+import com.android.messaging.mmslib.pdu.PduPart;
+import com.android.messaging.mmslib.pdu.SendReq;
+import com.android.messaging.util.ContentType;
+import com.android.messaging.util.GifReencoder;
+import com.android.messaging.util.exif.ExifInterface;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Synthetic inputs for the codec benchmarks, shaped after typical MMS traffic: a short text
+ * message to a few recipients, a photo message with a SMIL part, a JPEG and a caption, and an
+ * animated GIF.
+ * Everything is generated, so no user content is checked in.
+ */
+final class BenchmarkCorpus {
+    private static final String[] RECIPIENTS = {
+            "+16505550100", "+16505550101", "+442079460000", "+4915550123456" };
+    private static final String TEXT = "Running late, see you at the station in 20 minutes. "
+            + "\u00c7a va? \u00dcn\u00efc\u00f6d\u00e9 and emoji \ud83d\ude00 are common in "
+            + "captions too.";
+    private static final String SMIL = "<smil><head><layout><root-layout/>"
+            + "<region id=\"Image\" fit=\"meet\" top=\"0\" left=\"0\" height=\"80%\" "
+            + "width=\"100%\"/>"
+            + "<region id=\"Text\" top=\"80%\" left=\"0\" height=\"20%\" width=\"100%\"/>"
+            + "</layout></head><body><par dur=\"5000ms\">"
+            + "<img src=\"image000000.jpg\" region=\"Image\"/>"
+            + "<text src=\"text000001.txt\" region=\"Text\"/>"
+            + "</par></body></smil>";
+
+    private BenchmarkCorpus() {
+    }
+
+    static SendReq createTextSendReq() {
+        final SendReq sendReq = createSendReq("Dinner");
+        final PduBody body = new PduBody();
+        body.addPart(createTextPart("text000000.txt", TEXT));
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    static SendReq createPhotoSendReq(final byte[] jpeg) {
+        final SendReq sendReq = createSendReq("Photos from the weekend");
+        final PduBody body = new PduBody();
+        final PduPart smil = new PduPart();
+        smil.setContentId("<smil>".getBytes());
+        smil.setContentLocation("smil.xml".getBytes());
+        smil.setContentType(ContentType.APP_SMIL.getBytes());
+        smil.setData(SMIL.getBytes());
+        body.addPart(smil);
+        final PduPart image = new PduPart();
+        image.setContentId("<image000000>".getBytes());
+        image.setContentLocation("image000000.jpg".getBytes());
+        image.setContentType(ContentType.IMAGE_JPEG.getBytes());
+        image.setData(jpeg);
+        body.addPart(image);
+        body.addPart(createTextPart("text000001.txt", TEXT));
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    /**
+     * @return a JPEG of a gradient with EXIF camera and orientation tags
+     */
+    static byte[] createJpegWithExif(final int width, final int height) throws IOException {
+        return createJpegWithExif(width, height, 90);
+    }
+
+    /**
+     * @return a JPEG of a gradient with EXIF camera, dimension and orientation tags
+     */
+    static byte[] createJpegWithExif(final int width, final int height, final int rotation)
+            throws IOException {
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(bitmap);
+        final Paint paint = new Paint();
+        for (int y = 0; y < height; y++) {
+            paint.setColor(Color.rgb(y * 255 / height, 128, 255 - y * 255 / height));
+            canvas.drawLine(0, y, width, y, paint);
+        }
+        final ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Benchmark"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_MODEL, "Synthetic Camera"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_DATE_TIME, "2015:06:01 12:00:00"));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, width));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, height));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(rotation)));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(bitmap, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * @return an animated GIF of a moving gradient, shaped after GIFs converted from video
+     */
+    static byte[] createAnimatedGif(final int width, final int height, final int frameCount)
+            throws IOException {
+        final ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        uncompressed.write("GIF89a".getBytes());
+        writeShort(uncompressed, width);
+        writeShort(uncompressed, height);
+        uncompressed.write(0xf7); // 256 entry global color table
+        uncompressed.write(0);
+        uncompressed.write(0);
+        for (int i = 0; i < 256; i++) {
+            uncompressed.write(i);
+            uncompressed.write(128);
+            uncompressed.write(255 - i);
+        }
+        for (int frame = 0; frame < frameCount; frame++) {
+            // Graphic control with a 40 ms delay, then a full screen image descriptor
+            uncompressed.write(new byte[] { 0x21, (byte) 0xf9, 4, 0, 4, 0, 0, 0 });
+            uncompressed.write(0x2c);
+            writeShort(uncompressed, 0);
+            writeShort(uncompressed, 0);
+            writeShort(uncompressed, width);
+            writeShort(uncompressed, height);
+            uncompressed.write(0);
+            uncompressed.write(8);
+            final LiteralCodeWriter codes = new LiteralCodeWriter(uncompressed);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    codes.write((x + y + frame * 8) % 256);
+                }
+            }
+            codes.finish();
+        }
+        uncompressed.write(0x3b);
+        // LZW-compress it, as GIFs are in practice
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GifReencoder.reencode(new ByteArrayInputStream(uncompressed.toByteArray()), out,
+                new GifReencoder.Options(1, 1, 8));
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes GIF image data made of literal 9 bit codes only, with a clear code before the
+     * code size would grow
+     */
+    private static class LiteralCodeWriter {
+        private static final int CLEAR_CODE = 256;
+        private static final int END_CODE = 257;
+        private static final int CODES_PER_CLEAR = 250;
+
+        private final ByteArrayOutputStream mOutput;
+        private final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        private int mCount;
+        private int mBits;
+        private int mBitCount;
+
+        LiteralCodeWriter(final ByteArrayOutputStream output) {
+            mOutput = output;
+        }
+
+        void write(final int pixel) {
+            if (mCount++ % CODES_PER_CLEAR == 0) {
+                writeCode(CLEAR_CODE);
+            }
+            writeCode(pixel);
+        }
+
+        void finish() {
+            writeCode(END_CODE);
+            if (mBitCount > 0) {
+                mData.write(mBits & 0xff);
+            }
+            final byte[] data = mData.toByteArray();
+            for (int offset = 0; offset < data.length; offset += 255) {
+                final int size = Math.min(255, data.length - offset);
+                mOutput.write(size);
+                mOutput.write(data, offset, size);
+            }
+            mOutput.write(0);
+        }
+
+        private void writeCode(final int code) {
+            mBits |= code << mBitCount;
+            mBitCount += 9;
+            while (mBitCount >= 8) {
+                mData.write(mBits & 0xff);
+                mBits >>>= 8;
+                mBitCount -= 8;
+            }
+        }
+    }
+
+    private static SendReq createSendReq(final String subject) {
+        final SendReq sendReq = new SendReq();
+        for (final String recipient : RECIPIENTS) {
+            sendReq.addTo(new EncodedStringValue(recipient));
+        }
+        sendReq.setSubject(new EncodedStringValue(subject));
+        sendReq.setDate(1433160000L);
+        sendReq.setMessageClass("personal".getBytes());
+        return sendReq;
+    }
+
+    private static PduPart createTextPart(final String location, final String text) {
+        final PduPart part = new PduPart();
+        part.setCharset(CharacterSets.UTF_8);
+        part.setContentId(("<" + location + ">").getBytes());
+        part.setContentLocation(location.getBytes());
+        part.setContentType(ContentType.TEXT_PLAIN.getBytes());
+        part.setData(text.getBytes());
+        return part;
+    }
+
+    private static void writeShort(final ByteArrayOutputStream out, final int value) {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+    }
+}
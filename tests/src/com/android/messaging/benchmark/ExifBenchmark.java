@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.benchmark;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.exif.ExifInterface;
+import com.android.messaging.util.exif.ExifProbe;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Throughput, latency and allocation of reading and writing EXIF data, and of reading the
+ * orientation of a corpus of JPEGs with {@link ExifProbe} compared with the full parser. See
+ * {@link Benchmark} for how results are reported and compared against a baseline.
+ */
+@LargeTest
+public class ExifBenchmark extends BugleTestCase {
+    private static final int[][] CORPUS_SIZES = { { 640, 480 }, { 1280, 960 }, { 2048, 1536 } };
+    private static final int[] CORPUS_ROTATIONS = { 0, 90, 180, 270 };
+
+    private Benchmark mBenchmark;
+    private byte[] mJpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBenchmark = new Benchmark(getTestContext());
+        mJpeg = BenchmarkCorpus.createJpegWithExif(1280, 960);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBenchmark.writeResults();
+        super.tearDown();
+    }
+
+    public void testReadOrientation() throws Exception {
+        final ExifInterface exif = new ExifInterface();
+        exif.readExif(mJpeg);
+        assertEquals(ExifInterface.Orientation.RIGHT_TOP,
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION).intValue());
+        mBenchmark.measure("exif.readOrientation", 100, new Benchmark.Operation() {
+            @Override
+            public void run() throws IOException {
+                final ExifInterface exif = new ExifInterface();
+                exif.readExif(mJpeg);
+                exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+            }
+        });
+    }
+
+    public void testReadOrientationCorpus() throws Exception {
+        final byte[][] corpus = createCorpus();
+        mBenchmark.measure("exif.readOrientationCorpus", corpus.length,
+                new Benchmark.Operation() {
+            @Override
+            public void run() throws IOException {
+                for (final byte[] jpeg : corpus) {
+                    final ExifInterface exif = new ExifInterface();
+                    exif.readExif(new ByteArrayInputStream(jpeg));
+                    exif.getTagIntValue(ExifInterface.TAG_ORIENTATION);
+                }
+            }
+        });
+    }
+
+    public void testProbeOrientationCorpus() throws Exception {
+        final byte[][] corpus = createCorpus();
+        for (final byte[] jpeg : corpus) {
+            final ExifInterface exif = new ExifInterface();
+            exif.readExif(jpeg);
+            assertEquals(exif.getTagIntValue(ExifInterface.TAG_ORIENTATION).intValue(),
+                    ExifProbe.probe(new ByteArrayInputStream(jpeg)).orientation);
+        }
+        mBenchmark.measure("exif.probeOrientationCorpus", corpus.length,
+                new Benchmark.Operation() {
+            @Override
+            public void run() throws IOException {
+                for (final byte[] jpeg : corpus) {
+                    ExifProbe.probe(new ByteArrayInputStream(jpeg));
+                }
+            }
+        });
+    }
+
+    public void testReadAllTags() throws Exception {
+        mBenchmark.measure("exif.readAllTags", 100, new Benchmark.Operation() {
+            @Override
+            public void run() throws IOException {
+                final ExifInterface exif = new ExifInterface();
+                exif.readExif(mJpeg);
+                exif.getAllTags();
+            }
+        });
+    }
+
+    public void testWriteExif() throws Exception {
+        final ExifInterface exif = new ExifInterface();
+        exif.readExif(mJpeg);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(mJpeg.length + 1024);
+        mBenchmark.measure("exif.write", 20, new Benchmark.Operation() {
+            @Override
+            public void run() throws IOException {
+                out.reset();
+                exif.writeExif(mJpeg, out);
+            }
+        });
+    }
+
+    private static byte[][] createCorpus() throws IOException {
+        final byte[][] corpus = new byte[CORPUS_SIZES.length * CORPUS_ROTATIONS.length][];
+        int index = 0;
+        for (final int[] size : CORPUS_SIZES) {
+            for (final int rotation : CORPUS_ROTATIONS) {
+                corpus[index++] = BenchmarkCorpus.createJpegWithExif(size[0], size[1], rotation);
+            }
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.benchmark;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.GifReencoder;
+import com.android.messaging.util.GifTranscoder;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Latency and allocation of shrinking a GIF with the Java re-encoder and with the native
+ * transcoder, to decide per device whether to prefer the re-encoder
+ * (bugle_prefer_gif_reencoding). Both halve the GIF; allocation only counts the Java heap, so
+ * it's not comparable for the native transcoder. See {@link Benchmark} for how results are
+ * reported and compared against a baseline.
+ */
+@LargeTest
+public class GifBenchmark extends BugleTestCase {
+    private static final String TAG = "MessagingBenchmark";
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_COUNT = 20;
+
+    private Benchmark mBenchmark;
+    private byte[] mGif;
+    private File mInputFile;
+    private File mOutputFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBenchmark = new Benchmark(getTestContext());
+        mGif = BenchmarkCorpus.createAnimatedGif(WIDTH, HEIGHT, FRAME_COUNT);
+        mInputFile = new File(getTestContext().getCacheDir(), "benchmark_input.gif");
+        mOutputFile = new File(getTestContext().getCacheDir(), "benchmark_output.gif");
+        Files.write(mGif, mInputFile);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBenchmark.writeResults();
+        mInputFile.delete();
+        mOutputFile.delete();
+        super.tearDown();
+    }
+
+    public void testReencodeHalf() throws Exception {
+        final GifReencoder.Options options = new GifReencoder.Options(2, 1, 8);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(mGif.length);
+        mBenchmark.measure("gif.reencodeHalf", 1, new Benchmark.Operation() {
+            @Override
+            public void run() throws IOException {
+                output.reset();
+                GifReencoder.reencode(new ByteArrayInputStream(mGif), output, options);
+            }
+        });
+        Log.i(TAG, "gif.reencodeHalf " + mGif.length + " => " + output.size() + " bytes");
+    }
+
+    public void testTranscodeHalfNative() throws Exception {
+        if (!GifTranscoder.canBeTranscoded(WIDTH, HEIGHT)) {
+            return;
+        }
+        final String inputPath = mInputFile.getAbsolutePath();
+        final String outputPath = mOutputFile.getAbsolutePath();
+        mBenchmark.measure("gif.transcodeHalfNative", 1, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                assertTrue(GifTranscoder.transcode(getTestContext(), inputPath, outputPath));
+            }
+        });
+        Log.i(TAG, "gif.transcodeHalfNative " + mGif.length + " => " + mOutputFile.length()
+                + " bytes");
+    }
+
+    public void testReencodeToLimit() throws Exception {
+        final String inputPath = mInputFile.getAbsolutePath();
+        final int byteLimit = mGif.length / 8;
+        mBenchmark.measure("gif.reencodeToLimit", 1, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                assertNotNull(GifReencoder.reencode(getTestContext(), inputPath, byteLimit));
+            }
+        });
+    }
+}
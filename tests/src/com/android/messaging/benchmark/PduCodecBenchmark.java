@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.benchmark;
+
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.mmslib.pdu.Base64;
+import com.android.messaging.mmslib.pdu.CharacterSets;
+import com.android.messaging.mmslib.pdu.EncodedStringValue;
+import com.android.messaging.mmslib.pdu.PduComposer;
+import com.android.messaging.mmslib.pdu.PduParser;
+import com.android.messaging.mmslib.pdu.QuotedPrintable;
+import com.android.messaging.mmslib.pdu.SendReq;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Throughput, latency and allocation of the MMS PDU and charset codecs. See {@link Benchmark}
+ * for how results are reported and compared against a baseline.
+ */
+@LargeTest
+public class PduCodecBenchmark extends BugleTestCase {
+    private static final int JPEG_WIDTH = 640;
+    private static final int JPEG_HEIGHT = 480;
+
+    private Benchmark mBenchmark;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBenchmark = new Benchmark(getTestContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBenchmark.writeResults();
+        super.tearDown();
+    }
+
+    public void testComposeTextSendReq() throws Exception {
+        final SendReq sendReq = BenchmarkCorpus.createTextSendReq();
+        mBenchmark.measure("pdu.composeText", 100, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                new PduComposer(getTestContext(), sendReq).make();
+            }
+        });
+    }
+
+    public void testComposePhotoSendReq() throws Exception {
+        final SendReq sendReq = BenchmarkCorpus.createPhotoSendReq(
+                BenchmarkCorpus.createJpegWithExif(JPEG_WIDTH, JPEG_HEIGHT));
+        mBenchmark.measure("pdu.composePhoto", 10, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                new PduComposer(getTestContext(), sendReq).make();
+            }
+        });
+    }
+
+    public void testParseTextSendReq() throws Exception {
+        final byte[] pdu = new PduComposer(getTestContext(),
+                BenchmarkCorpus.createTextSendReq()).make();
+        assertNotNull(new PduParser(pdu, true).parse());
+        mBenchmark.measure("pdu.parseText", 100, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                new PduParser(pdu, true).parse();
+            }
+        });
+    }
+
+    public void testParsePhotoSendReq() throws Exception {
+        final byte[] pdu = new PduComposer(getTestContext(), BenchmarkCorpus.createPhotoSendReq(
+                BenchmarkCorpus.createJpegWithExif(JPEG_WIDTH, JPEG_HEIGHT))).make();
+        assertNotNull(new PduParser(pdu, true).parse());
+        mBenchmark.measure("pdu.parsePhoto", 10, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                new PduParser(pdu, true).parse();
+            }
+        });
+    }
+
+    public void testEncodedStringValue() throws Exception {
+        final byte[] utf8 = "Photos from the weekend \u00c7a va? \u00dcn\u00efc\u00f6d\u00e9"
+                .getBytes("UTF-8");
+        mBenchmark.measure("charset.encodedStringValue", 1000, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                new EncodedStringValue(CharacterSets.UTF_8, utf8).getString();
+            }
+        });
+    }
+
+    public void testCharsetLookup() throws Exception {
+        final int[] charsets = { CharacterSets.UTF_8, CharacterSets.US_ASCII,
+                CharacterSets.ISO_8859_1, CharacterSets.SHIFT_JIS, CharacterSets.BIG5 };
+        mBenchmark.measure("charset.lookup", 1000, new Benchmark.Operation() {
+            @Override
+            public void run() throws UnsupportedEncodingException {
+                for (final int charset : charsets) {
+                    CharacterSets.getMibEnumValue(CharacterSets.getMimeName(charset));
+                }
+            }
+        });
+    }
+
+    public void testQuotedPrintableDecode() throws Exception {
+        final StringBuilder encoded = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            encoded.append("Caf=C3=A9 au lait, cr=C3=A8me br=C3=BBl=C3=A9e =3D dessert=\r\n");
+        }
+        final byte[] data = encoded.toString().getBytes("US-ASCII");
+        mBenchmark.measure("charset.quotedPrintable", 100, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                QuotedPrintable.decodeQuotedPrintable(data);
+            }
+        });
+    }
+
+    public void testBase64Decode() throws Exception {
+        final byte[] data = android.util.Base64.encode(
+                BenchmarkCorpus.createJpegWithExif(JPEG_WIDTH, JPEG_HEIGHT),
+                android.util.Base64.NO_WRAP);
+        mBenchmark.measure("charset.base64", 10, new Benchmark.Operation() {
+            @Override
+            public void run() {
+                Base64.decodeBase64(data);
+            }
+        });
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class BugleNotificationsTest extends BugleTestCase {
+
+    public void testMergeKeepsSameConversationId() {
+        assertEquals("1", BugleNotifications.mergeConversationIds("1", "1"));
+    }
+
+    public void testMergeDropsDifferentConversationIds() {
+        assertNull(BugleNotifications.mergeConversationIds("1", "2"));
+    }
+
+    public void testMergeDropsConversationIdMergedWithNone() {
+        assertNull(BugleNotifications.mergeConversationIds("1", null));
+        assertNull(BugleNotifications.mergeConversationIds(null, "1"));
+        assertNull(BugleNotifications.mergeConversationIds(null, null));
+    }
+
+    public void testMergeOfManyUpdates() {
+        String pending = "1";
+        pending = BugleNotifications.mergeConversationIds(pending, "1");
+        assertEquals("1", pending);
+        pending = BugleNotifications.mergeConversationIds(pending, "2");
+        assertNull(pending);
+        // Once dropped, the id isn't picked up by a later update
+        pending = BugleNotifications.mergeConversationIds(pending, "2");
+        assertNull(pending);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.CommonDataKinds.StructuredName;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.Data;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeContentProvider;
+import com.android.messaging.FakeContext;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.ContactBulkResolver.ContactMatch;
+
+import java.util.Arrays;
+
+@SmallTest
+public class ContactBulkResolverTest extends BugleTestCase {
+    private static final String[] PHONE_COLUMNS = new String[] {
+        Phone.CONTACT_ID,
+        Phone.DISPLAY_NAME_PRIMARY,
+        Phone.PHOTO_THUMBNAIL_URI,
+        Phone.NUMBER,
+        Phone.TYPE,
+        Phone.LABEL,
+        Phone.LOOKUP_KEY,
+        Phone._ID,
+        Phone.SORT_KEY_PRIMARY,
+        Phone.NORMALIZED_NUMBER
+    };
+
+    private FakeContext mContext;
+    private FakeContentProvider mContacts;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new FakeContext(getTestContext());
+        FakeFactory.registerWithFakeContext(getTestContext(), mContext);
+        mContacts = new FakeContentProvider(mContext, Phone.CONTENT_URI, false);
+        mContext.addContentProvider(Phone.CONTENT_URI.getAuthority(), mContacts);
+        mContacts.addOverrideData(Phone.CONTENT_URI, Phone.NORMALIZED_NUMBER + " IS NULL", null,
+                PHONE_COLUMNS, new Object[][] {});
+    }
+
+    private void addFirstNames(final String contactIds, final Object[][] names) {
+        final int count = contactIds.split(";").length;
+        final StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            placeholders.append(i == 0 ? "?" : ",?");
+        }
+        mContacts.addOverrideData(Data.CONTENT_URI, Data.MIMETYPE + "=? AND "
+                + Contacts.DISPLAY_NAME_PRIMARY + "=" + StructuredName.DISPLAY_NAME + " AND "
+                + Data.CONTACT_ID + " IN (" + placeholders + ")",
+                StructuredName.CONTENT_ITEM_TYPE + ";" + contactIds,
+                new String[] { Data.CONTACT_ID, StructuredName.GIVEN_NAME }, names);
+    }
+
+    public void testResolvesPhonesInOneQuery() {
+        mContacts.addOverrideData(Phone.CONTENT_URI, Phone.NORMALIZED_NUMBER + " IN (?,?)",
+                "+16501231233;+16501231234", PHONE_COLUMNS, new Object[][] {
+                    { 1L, "John Smith", "content://photo/john", "650-123-1233", null, null,
+                            "john", 10L, null, "+16501231233" },
+                });
+        addFirstNames("1", new Object[][] { { 1L, "John" } });
+
+        final ContactBulkResolver resolver = new ContactBulkResolver(mContext.getContentResolver());
+        resolver.resolve(Arrays.asList("+16501231233", "+16501231234", "+16501231233"));
+
+        final ContactMatch match = resolver.findMatch("+16501231233", -1);
+        assertNotNull(match);
+        assertEquals(1L, match.contactId);
+        assertEquals("John Smith", match.displayName);
+        assertEquals("John", match.firstName);
+        assertEquals("650-123-1233", match.destination);
+        assertNull(resolver.findMatch("+16501231234", -1));
+        // Phones, unnormalized phones and first names
+        assertEquals(3, resolver.getQueryCount());
+    }
+
+    public void testPrefersCurrentContact() {
+        mContacts.addOverrideData(Phone.CONTENT_URI, Phone.NORMALIZED_NUMBER + " IN (?)",
+                "+16501231233", PHONE_COLUMNS, new Object[][] {
+                    { 1L, "John", null, "650-123-1233", null, null, "john", 10L, null,
+                            "+16501231233" },
+                    { 2L, "Joe", null, "650-123-1233", null, null, "joe", 11L, null,
+                            "+16501231233" },
+                });
+        addFirstNames("1;2", new Object[][] {});
+
+        final ContactBulkResolver resolver = new ContactBulkResolver(mContext.getContentResolver());
+        resolver.resolve(Arrays.asList("+16501231233"));
+
+        assertEquals(1L, resolver.findMatch("+16501231233", -1).contactId);
+        assertEquals(2L, resolver.findMatch("+16501231233", 2L).contactId);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DataChangeBus.DataChangeListener;
+import com.android.messaging.datamodel.DataChangeBus.DataChanges;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class DataChangeBusTest extends BugleTestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private SQLiteDatabase mDatabase;
+    private DatabaseWrapper mDbWrapper;
+    private DataChangeBus mBus;
+    private final List<DataChanges> mBatches =
+            Collections.synchronizedList(new ArrayList<DataChanges>());
+    private CountDownLatch mDispatched;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mDatabase = SQLiteDatabase.create(null);
+        mDbWrapper = new DatabaseWrapper(getTestContext(), mDatabase);
+        mDispatched = new CountDownLatch(1);
+        mBus = new DataChangeBus();
+        mBus.addListener(new DataChangeListener() {
+            @Override
+            public void onDataChanged(final DataChanges changes) {
+                mBatches.add(changes);
+                mDispatched.countDown();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBus.getFlushHandler().getLooper().quitSafely();
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testChangesAreMergedIntoOneBatch() throws InterruptedException {
+        // Published on the flush thread, so the flush can't run in between
+        runOnFlushThread(new Runnable() {
+            @Override
+            public void run() {
+                mBus.messageInserted(mDbWrapper, "1", "10");
+                mBus.messageUpdated(mDbWrapper, "1", "11");
+                mBus.messageDeleted(mDbWrapper, "2", "12");
+                mBus.participantChanged(mDbWrapper, "20");
+            }
+        });
+        assertTrue(mDispatched.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, mBatches.size());
+        final DataChanges changes = mBatches.get(0);
+        assertEquals(4, changes.getChangeCount());
+        assertEquals(Collections.singleton("10"), changes.getInsertedMessageIds());
+        assertEquals(Collections.singleton("11"), changes.getUpdatedMessageIds());
+        assertEquals(Collections.singleton("12"), changes.getDeletedMessageIds());
+        assertEquals(Collections.singleton("20"), changes.getChangedParticipantIds());
+        assertTrue(changes.isMessagesChanged("1"));
+        assertTrue(changes.isMessagesChanged("2"));
+        assertFalse(changes.isMessagesChanged("3"));
+        assertTrue(changes.isConversationListChanged());
+        assertFalse(changes.isAllMessagesChanged());
+    }
+
+    public void testRepeatedChangesAreDeduplicated() throws InterruptedException {
+        runOnFlushThread(new Runnable() {
+            @Override
+            public void run() {
+                mBus.messageUpdated(mDbWrapper, "1", "10");
+                mBus.messageUpdated(mDbWrapper, "1", "10");
+                mBus.messageUpdated(mDbWrapper, null, "11");
+                mBus.conversationChanged(mDbWrapper, "1");
+                mBus.conversationChanged(mDbWrapper, "1");
+            }
+        });
+        assertTrue(mDispatched.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, mBatches.size());
+        final DataChanges changes = mBatches.get(0);
+        assertEquals(5, changes.getChangeCount());
+        assertEquals(new HashSet<String>(Arrays.asList("10", "11")),
+                changes.getUpdatedMessageIds());
+        assertEquals(Collections.singleton("1"), changes.getMetadataChangedConversationIds());
+    }
+
+    public void testTransactionChangesAreFlushedWhenItCommits() throws InterruptedException {
+        mDatabase.beginTransaction();
+        try {
+            mBus.messageInserted(mDbWrapper, "1", "10");
+            mBus.conversationChanged(mDbWrapper, "1");
+            // Held until the transaction ends
+            mBus.flush();
+            assertTrue(mBatches.isEmpty());
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        // DatabaseWrapper reports the end of its outermost transaction to the bus
+        mBus.onTransactionEnded(true /* committed */);
+        assertTrue(mDispatched.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(1, mBatches.size());
+        final DataChanges changes = mBatches.get(0);
+        assertEquals(2, changes.getChangeCount());
+        assertEquals(Collections.singleton("10"), changes.getInsertedMessageIds());
+        assertEquals(Collections.singleton("1"), changes.getMetadataChangedConversationIds());
+    }
+
+    public void testTransactionChangesAreDroppedWhenItRollsBack() {
+        mDatabase.beginTransaction();
+        try {
+            mBus.messageInserted(mDbWrapper, "1", "10");
+        } finally {
+            mDatabase.endTransaction();
+        }
+        mBus.onTransactionEnded(false /* committed */);
+        mBus.flush();
+        assertTrue(mBatches.isEmpty());
+    }
+
+    public void testListenersAreCalledOnMainThread() throws InterruptedException {
+        final boolean[] onMainThread = new boolean[1];
+        mBus.addListener(new DataChangeListener() {
+            @Override
+            public void onDataChanged(final DataChanges changes) {
+                onMainThread[0] = Looper.myLooper() == Looper.getMainLooper();
+            }
+        });
+        mBus.conversationChanged(mDbWrapper, "1");
+        assertTrue(mDispatched.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Listeners are called in the order they were added, so the second one has run too
+        runOnMainThreadAndWait();
+        assertTrue(onMainThread[0]);
+    }
+
+    private void runOnFlushThread(final Runnable runnable) {
+        mBus.getFlushHandler().post(runnable);
+    }
+
+    private static void runOnMainThreadAndWait() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ConversationParticipantsColumns;
+import com.android.messaging.datamodel.DatabaseHelper.MessageColumns;
+import com.android.messaging.datamodel.DatabaseHelper.ParticipantColumns;
+import com.android.messaging.datamodel.data.ConversationListItemData;
+import com.android.messaging.datamodel.data.ParticipantData;
+import com.android.messaging.datamodel.data.TestDataFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@SmallTest
+public class DatabaseUpgradeHelperTest extends BugleTestCase {
+    private static final String CONVERSATION_LIST_TABLE = "conversation_list";
+
+    // The query of conversation_list_view, which the conversation list was read from up to
+    // database version 2
+    private static final String OLD_CONVERSATION_LIST_QUERY = "SELECT "
+            + "conversations._id as _id, conversations.name as name, "
+            + "conversations.current_self_id as current_self_id, "
+            + "conversations.archive_status as archive_status, messages.read as read, "
+            + "conversations.icon as icon, "
+            + "conversations.participant_contact_id as participant_contact_id, "
+            + "conversations.participant_lookup_key as participant_lookup_key, "
+            + "conversations.participant_normalized_destination"
+            + " as participant_normalized_destination, "
+            + "conversations.sort_timestamp as sort_timestamp, "
+            + "conversations.show_draft as show_draft, "
+            + "conversations.draft_snippet_text as draft_snippet_text, "
+            + "conversations.draft_preview_uri as draft_preview_uri, "
+            + "conversations.draft_subject_text as draft_subject_text, "
+            + "conversations.draft_preview_content_type as draft_preview_content_type, "
+            + "conversations.preview_uri as preview_uri, "
+            + "conversations.preview_content_type as preview_content_type, "
+            + "conversations.participant_count as participant_count, "
+            + "conversations.notification_enabled as notification_enabled, "
+            + "conversations.notification_sound_uri as notification_sound_uri, "
+            + "conversations.notification_vibration as notification_vibration, "
+            + "conversations.include_email_addr as include_email_addr, "
+            + "messages.message_status as message_status, "
+            + "messages.raw_status as raw_status, messages._id as message_id, "
+            + "participants.first_name as snippet_sender_first_name, "
+            + "participants.display_destination as snippet_sender_display_destination,"
+            + "conversations.top_chat as top_chat, "
+            + "conversations.unread_count as unread_count, "
+            + "conversations.snippet_text as snippet_text, "
+            + "conversations.subject_text as subject_text "
+            + " FROM conversations"
+            + " LEFT JOIN messages ON (conversations.latest_message_id=messages._id) "
+            + " LEFT JOIN (select MIN(conversation_participants._id) as pc_id,"
+            + "conversation_participants.conversation_id,"
+            + "conversation_participants.participant_id"
+            + " FROM conversation_participants"
+            + " group by conversation_participants.conversation_id)"
+            + " as cp ON (conversations._id=cp.conversation_id)"
+            + " LEFT JOIN participants ON (cp.participant_id=participants._id) "
+            + "ORDER BY conversations.sort_timestamp DESC";
+
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext())
+                .withDataModel(new FakeDataModel(getTestContext()));
+        mDatabase = SQLiteDatabase.create(null);
+        // Creates the current schema and fills it with TestDataFactory's conversations, in a
+        // transaction like SQLiteOpenHelper.onCreate
+        mDatabase.beginTransaction();
+        try {
+            DatabaseHelper.rebuildTables(mDatabase);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testUpgradeToVersion3KeepsConversationList() {
+        revertToVersion2();
+        addParticipants();
+        // Changes made while only the view existed
+        markLatestMessageRead(2);
+        renameParticipant("Alice", "Alicia");
+        final Map<String, Map<String, String>> expected = query(OLD_CONVERSATION_LIST_QUERY);
+        assertEquals(TestDataFactory.NUM_TEST_CONVERSATIONS, expected.size());
+
+        new DatabaseUpgradeHelper().doOnUpgrade(mDatabase, 2, 3);
+
+        assertEquals(expected, query("SELECT * FROM " + CONVERSATION_LIST_TABLE));
+        // The old view is gone
+        assertEquals(0, countSchemaEntries("view", "conversation_list_view"));
+        assertEquals(1, countSchemaEntries("table", CONVERSATION_LIST_TABLE));
+    }
+
+    public void testMessageInsertUpdatesConversationList() {
+        addParticipants();
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.CONVERSATION_ID, 1);
+        values.put(MessageColumns.RECEIVED_TIMESTAMP, System.currentTimeMillis());
+        values.put(MessageColumns.STATUS, 4);
+        final long messageId = mDatabase.insert(DatabaseHelper.MESSAGES_TABLE, null, values);
+        // Like BugleDatabaseOperations.refreshConversationMetadataInTransaction
+        values.clear();
+        values.put(ConversationColumns.LATEST_MESSAGE_ID, messageId);
+        values.put(ConversationColumns.SNIPPET_TEXT, "new message");
+        values.put(ConversationColumns.SORT_TIMESTAMP, System.currentTimeMillis());
+        mDatabase.update(DatabaseHelper.CONVERSATIONS_TABLE, values, "_id=1", null);
+        assertMatchesOldQuery();
+        assertEquals(String.valueOf(messageId), query("SELECT * FROM " + CONVERSATION_LIST_TABLE)
+                .get("1").get("message_id"));
+    }
+
+    public void testMessageDeleteUpdatesConversationList() {
+        addParticipants();
+        mDatabase.execSQL("DELETE FROM " + DatabaseHelper.MESSAGES_TABLE + " WHERE _id="
+                + "(SELECT latest_message_id FROM conversations WHERE _id=1)");
+        assertMatchesOldQuery();
+        assertNull(query("SELECT * FROM " + CONVERSATION_LIST_TABLE).get("1").get("message_id"));
+    }
+
+    public void testMessageReadUpdatesConversationList() {
+        addParticipants();
+        markLatestMessageRead(1);
+        assertMatchesOldQuery();
+        assertEquals("1", query("SELECT * FROM " + CONVERSATION_LIST_TABLE).get("1").get("read"));
+    }
+
+    public void testParticipantRenameUpdatesConversationList() {
+        addParticipants();
+        renameParticipant("Alice", "Alicia");
+        assertMatchesOldQuery();
+        assertEquals("Alicia", query("SELECT * FROM " + CONVERSATION_LIST_TABLE).get("1")
+                .get("snippet_sender_first_name"));
+    }
+
+    public void testConversationDeleteUpdatesConversationList() {
+        addParticipants();
+        mDatabase.delete(DatabaseHelper.CONVERSATIONS_TABLE, "_id=1", null);
+        assertMatchesOldQuery();
+        assertEquals(TestDataFactory.NUM_TEST_CONVERSATIONS - 1,
+                query("SELECT * FROM " + CONVERSATION_LIST_TABLE).size());
+    }
+
+    public void testSearchReadsConversationList() {
+        addParticipants();
+        final ContentValues values = new ContentValues();
+        values.put(ConversationColumns.SORT_TIMESTAMP, 1);
+        mDatabase.update(DatabaseHelper.CONVERSATIONS_TABLE, values, "_id=1", null);
+        renameParticipant("Alice", "Alicia");
+
+        // Only the half of the search matching conversation names returns rows
+        final Cursor cursor = mDatabase.rawQuery(ConversationListItemData.getSearchQuerySql(),
+                new String[] { "nomatch", "Conversation 1", "nomatch" });
+        try {
+            assertEquals(25, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertEquals("1", cursor.getString(cursor.getColumnIndexOrThrow("_id")));
+                assertEquals("Conversation 1",
+                        cursor.getString(cursor.getColumnIndexOrThrow("name")));
+                assertEquals("Alicia", cursor.getString(
+                        cursor.getColumnIndexOrThrow("snippet_sender_first_name")));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Puts the conversation list back the way database version 2 had it: a view, no table and
+     * no triggers
+     */
+    private void revertToVersion2() {
+        final Cursor cursor = mDatabase.rawQuery("SELECT name FROM sqlite_master WHERE"
+                + " type='trigger' AND name LIKE '" + CONVERSATION_LIST_TABLE + "_%'", null);
+        final List<String> triggers = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                triggers.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (final String trigger : triggers) {
+            mDatabase.execSQL("DROP TRIGGER " + trigger);
+        }
+        mDatabase.execSQL("DROP TABLE " + CONVERSATION_LIST_TABLE);
+        mDatabase.execSQL("CREATE VIEW conversation_list_view AS " + OLD_CONVERSATION_LIST_QUERY);
+    }
+
+    /**
+     * Adds Alice and Bob to the first conversation, Alice first, and Bob to the second one
+     */
+    private void addParticipants() {
+        final long alice = insertParticipant("Alice", "+15550001");
+        final long bob = insertParticipant("Bob", "+15550002");
+        insertConversationParticipant(1, alice);
+        insertConversationParticipant(1, bob);
+        insertConversationParticipant(2, bob);
+    }
+
+    private long insertParticipant(final String firstName, final String destination) {
+        final ContentValues values = new ContentValues();
+        values.put(ParticipantColumns.SUB_ID, ParticipantData.OTHER_THAN_SELF_SUB_ID);
+        values.put(ParticipantColumns.FIRST_NAME, firstName);
+        values.put(ParticipantColumns.FULL_NAME, firstName);
+        values.put(ParticipantColumns.NORMALIZED_DESTINATION, destination);
+        values.put(ParticipantColumns.DISPLAY_DESTINATION, destination);
+        return mDatabase.insert(DatabaseHelper.PARTICIPANTS_TABLE, null, values);
+    }
+
+    private void insertConversationParticipant(final long conversationId,
+            final long participantId) {
+        final ContentValues values = new ContentValues();
+        values.put(ConversationParticipantsColumns.CONVERSATION_ID, conversationId);
+        values.put(ConversationParticipantsColumns.PARTICIPANT_ID, participantId);
+        mDatabase.insert(DatabaseHelper.CONVERSATION_PARTICIPANTS_TABLE, null, values);
+    }
+
+    private void markLatestMessageRead(final long conversationId) {
+        mDatabase.execSQL("UPDATE " + DatabaseHelper.MESSAGES_TABLE + " SET read=1 WHERE _id="
+                + "(SELECT latest_message_id FROM conversations WHERE _id=" + conversationId
+                + ")");
+    }
+
+    private void renameParticipant(final String oldName, final String newName) {
+        final ContentValues values = new ContentValues();
+        values.put(ParticipantColumns.FIRST_NAME, newName);
+        mDatabase.update(DatabaseHelper.PARTICIPANTS_TABLE, values,
+                ParticipantColumns.FIRST_NAME + "=?", new String[] { oldName });
+    }
+
+    private void assertMatchesOldQuery() {
+        assertEquals(query(OLD_CONVERSATION_LIST_QUERY),
+                query("SELECT * FROM " + CONVERSATION_LIST_TABLE));
+    }
+
+    /**
+     * @return the rows of the query by conversation id, each as its values by column name
+     */
+    private Map<String, Map<String, String>> query(final String sql) {
+        final Map<String, Map<String, String>> rows = new HashMap<String, Map<String, String>>();
+        final Cursor cursor = mDatabase.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                final Map<String, String> row = new HashMap<String, String>();
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    row.put(cursor.getColumnName(column), cursor.getString(column));
+                }
+                rows.put(row.get("_id"), row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private int countSchemaEntries(final String type, final String name) {
+        final Cursor cursor = mDatabase.rawQuery(
+                "SELECT COUNT(*) FROM sqlite_master WHERE type=? AND name=?",
+                new String[] { type, name });
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.FakeFactory;
+
+@SmallTest
+public class DatabaseWrapperTest extends BugleTestCase {
+    private SQLiteDatabase mDatabase;
+    private DatabaseWrapper mDbWrapper;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        FakeFactory.register(getTestContext());
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL("CREATE TABLE test (_id INTEGER PRIMARY KEY, name TEXT, count INT)");
+        mDbWrapper = new DatabaseWrapper(getTestContext(), mDatabase);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testCachedStatementIsReusedInTransaction() {
+        mDbWrapper.beginTransaction();
+        try {
+            final SQLiteStatement first =
+                    mDbWrapper.getCachedStatementInTransaction("DELETE FROM test");
+            final SQLiteStatement second =
+                    mDbWrapper.getCachedStatementInTransaction("DELETE FROM test");
+            assertSame(first, second);
+            mDbWrapper.setTransactionSuccessful();
+        } finally {
+            mDbWrapper.endTransaction();
+        }
+    }
+
+    public void testExecuteInsertAndUpdate() {
+        final ContentValues values = new ContentValues();
+        values.put("name", "a");
+        values.put("count", 1);
+        mDbWrapper.beginTransaction();
+        try {
+            final long rowId = mDbWrapper.executeInsert("test", values);
+            assertTrue(rowId > 0);
+            assertEquals(1, mDbWrapper.executeUpdateDelete(
+                    "UPDATE test SET count=? WHERE _id=?", new Object[] { 2, rowId }));
+            assertEquals(2, mDbWrapper.simpleQueryForLong(
+                    "SELECT count FROM test WHERE _id=?", new Object[] { rowId }));
+            assertEquals("a", mDbWrapper.simpleQueryForString(
+                    "SELECT name FROM test WHERE _id=?", new Object[] { rowId }));
+            mDbWrapper.setTransactionSuccessful();
+        } finally {
+            mDbWrapper.endTransaction();
+        }
+
+        // Outside of a transaction the statements are compiled for one use
+        assertNull(mDbWrapper.simpleQueryForString("SELECT name FROM test WHERE _id=?",
+                new Object[] { -1 }));
+        assertEquals(1, mDbWrapper.simpleQueryForLong("SELECT COUNT(*) FROM test", null));
+    }
+
+    public void testEvictedStatementsStayUsableUntilTransactionEnds() {
+        mDbWrapper.beginTransaction();
+        try {
+            final SQLiteStatement statement =
+                    mDbWrapper.getCachedStatementInTransaction("SELECT COUNT(*) FROM test");
+            // Push the statement out of the cache from a nested transaction
+            mDbWrapper.beginTransaction();
+            try {
+                for (int i = 0; i < 100; i++) {
+                    mDbWrapper.getCachedStatementInTransaction("SELECT " + i + " FROM test");
+                }
+                mDbWrapper.setTransactionSuccessful();
+            } finally {
+                mDbWrapper.endTransaction();
+            }
+            assertEquals(0, statement.simpleQueryForLong());
+            mDbWrapper.setTransactionSuccessful();
+        } finally {
+            mDbWrapper.endTransaction();
+        }
+    }
+}
@@ -19,10 +19,14 @@ package com.android.messaging.datamodel;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 
+import com.android.messaging.datamodel.MemoryCacheManager.DumpableMemoryCache;
 import com.android.messaging.datamodel.MemoryCacheManager.MemoryCache;
 
 import org.mockito.Mockito;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
 @SmallTest
 public class MemoryCacheManagerTest extends AndroidTestCase {
 
@@ -40,4 +44,18 @@ public class MemoryCacheManagerTest extends AndroidTestCase {
         Mockito.verify(mockMemoryCache, Mockito.times(2)).reclaim();
         Mockito.verify(otherMockMemoryCache, Mockito.times(1)).reclaim();
     }
+
+    public void testDumpableCachesGetDumped() {
+        final MemoryCache mockMemoryCache = Mockito.mock(MemoryCache.class);
+        final DumpableMemoryCache mockDumpableCache = Mockito.mock(DumpableMemoryCache.class);
+        final MemoryCacheManager memoryCacheManager = new MemoryCacheManager();
+        final PrintWriter writer = new PrintWriter(new StringWriter());
+
+        memoryCacheManager.registerMemoryCache(mockMemoryCache);
+        memoryCacheManager.registerMemoryCache(mockDumpableCache);
+        memoryCacheManager.dump(writer);
+
+        Mockito.verify(mockDumpableCache, Mockito.times(1)).dump(writer);
+        Mockito.verifyZeroInteractions(mockMemoryCache);
+    }
 }
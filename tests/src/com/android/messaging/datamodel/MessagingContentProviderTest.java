@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+/*
+ * Class for testing the search query handling in MessagingContentProvider.
+ */
+@SmallTest
+public class MessagingContentProviderTest extends BugleTestCase {
+    public void testBuildFullTextMatchQuery() {
+        assertEquals("\"hello*\"", MessagingContentProvider.buildFullTextMatchQuery("hello"));
+        assertEquals("\"see*\" \"you*\"",
+                MessagingContentProvider.buildFullTextMatchQuery("  see   you "));
+
+        // Quotes would break the phrase syntax so they are dropped
+        assertEquals("\"say*\"", MessagingContentProvider.buildFullTextMatchQuery("\"say\""));
+
+        // Punctuation only words are dropped
+        assertEquals("\"ok*\"", MessagingContentProvider.buildFullTextMatchQuery("ok !"));
+    }
+
+    public void testBuildFullTextMatchQueryFallsBack() {
+        // Nothing to match against
+        assertNull(MessagingContentProvider.buildFullTextMatchQuery(null));
+        assertNull(MessagingContentProvider.buildFullTextMatchQuery(""));
+        assertNull(MessagingContentProvider.buildFullTextMatchQuery("   "));
+        assertNull(MessagingContentProvider.buildFullTextMatchQuery("\"\""));
+        assertNull(MessagingContentProvider.buildFullTextMatchQuery("?!"));
+
+        // Scripts without word separators need substring matching
+        assertNull(MessagingContentProvider.buildFullTextMatchQuery("短信"));
+        assertNull(MessagingContentProvider.buildFullTextMatchQuery("hi こんに"));
+    }
+}
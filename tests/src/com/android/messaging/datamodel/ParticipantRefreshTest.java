@@ -277,4 +277,32 @@ public class ParticipantRefreshTest extends BugleTestCase {
         verifyParticipant("650-123-1233", ParticipantData.PARTICIPANT_CONTACT_ID_NOT_FOUND,
                 null, null);
     }
+
+    /**
+     * Verify that a full refresh of enough participants to resolve contacts in bulk keeps the
+     * contacts that only PhoneLookup matches, such as numbers not stored in E.164 form.
+     */
+    public void testFullRefreshInBulkKeepsLooseMatches() {
+        // One provider serves PhoneLookup and the bulk queries on the phone table, which it
+        // doesn't answer, like a contacts provider without normalized numbers
+        final FakeContentProvider contacts = new FakeContentProvider(mContext,
+                ContactUtil.lookupPhone(mContext, "650-123-1200").getUri(), false);
+        final int count = 25;
+        for (int i = 0; i < count; i++) {
+            final String phone = "650-123-12" + (10 + i);
+            addParticipant(phone, 100 + i, "Joh" + i, null);
+            final Uri uri = ContactUtil.lookupPhone(mContext, phone).getUri();
+            contacts.addOverrideData(uri, null, null, ContactUtil.PhoneLookupQuery.PROJECTION,
+                    new Object[][] {
+                            { 100L + i, "John" + i, null, phone, null, null, null }
+                    });
+        }
+        mFakeFactory.withProvider(ContactUtil.lookupPhone(mContext, "650-123-1200").getUri(),
+                contacts);
+
+        ParticipantRefresh.refreshParticipants(ParticipantRefresh.REFRESH_MODE_FULL);
+        for (int i = 0; i < count; i++) {
+            verifyParticipant("650-123-12" + (10 + i), 100 + i, "John" + i, null);
+        }
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class ActionExecutorTest extends BugleTestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+    private class RecordingTask extends ActionExecutor.Task {
+        private final String mName;
+        private final CountDownLatch mRelease;
+        private final CountDownLatch mDone;
+
+        RecordingTask(final String key, final String name, final CountDownLatch release,
+                final CountDownLatch done) {
+            super(key);
+            mName = name;
+            mRelease = release;
+            mDone = done;
+        }
+
+        @Override
+        void run() {
+            mEvents.add("start " + mName);
+            if (mRelease != null) {
+                try {
+                    mRelease.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            mEvents.add("end " + mName);
+        }
+
+        @Override
+        void onFinished(final boolean idle) {
+            mDone.countDown();
+        }
+    }
+
+    public void testDifferentKeysRunConcurrently() throws InterruptedException {
+        final ActionExecutor executor = new ActionExecutor(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        // The first task blocks until the second one has run
+        executor.submit(new RecordingTask("a", "a1", release, done));
+        executor.submit(new ActionExecutor.Task("b") {
+            @Override
+            void run() {
+                mEvents.add("start b1");
+                release.countDown();
+            }
+
+            @Override
+            void onFinished(final boolean idle) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mEvents.indexOf("start b1") < mEvents.indexOf("end a1"));
+    }
+
+    public void testSameKeyRunsInOrder() throws InterruptedException {
+        final ActionExecutor executor = new ActionExecutor(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        executor.submit(new RecordingTask("a", "a1", release, done));
+        executor.submit(new RecordingTask("a", "a2", null, done));
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("end a1", mEvents.get(1));
+        assertEquals("start a2", mEvents.get(2));
+    }
+
+    public void testGlobalTaskIsBarrier() throws InterruptedException {
+        final ActionExecutor executor = new ActionExecutor(3);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(3);
+        executor.submit(new RecordingTask("a", "a1", release, done));
+        executor.submit(new RecordingTask(null, "global", null, done));
+        executor.submit(new RecordingTask("b", "b1", null, done));
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final int globalStart = mEvents.indexOf("start global");
+        final int globalEnd = mEvents.indexOf("end global");
+        assertTrue(mEvents.indexOf("end a1") < globalStart);
+        assertTrue(globalEnd < mEvents.indexOf("start b1"));
+    }
+
+    public void testIsIdleOnceAllWorkIsDone() throws InterruptedException {
+        final ActionExecutor executor = new ActionExecutor(2);
+        assertTrue(executor.isIdle());
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        executor.submit(new RecordingTask("a", "a1", release, done));
+        executor.submit(new RecordingTask("a", "a2", null, done));
+        assertFalse(executor.isIdle());
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(executor.isIdle());
+    }
+}
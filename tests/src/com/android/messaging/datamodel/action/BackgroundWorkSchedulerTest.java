@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class BackgroundWorkSchedulerTest extends BugleTestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private BackgroundWorkScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new BackgroundWorkScheduler();
+    }
+
+    public void testDefaultLaneRunsInOrder() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            final int index = i;
+            mScheduler.submit(null, new BackgroundWorkScheduler.Work() {
+                @Override
+                public void run() {
+                    order.add(index);
+                }
+
+                @Override
+                void onFinished(final boolean idle) {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    public void testSmsSendLaneRunsInOrder() throws InterruptedException {
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            final int index = i;
+            mScheduler.submit(BackgroundWorkScheduler.getSmsSendLane(1),
+                    new BackgroundWorkScheduler.Work() {
+                @Override
+                public void run() {
+                    final int count = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                    }
+                    order.add(index);
+                    running.decrementAndGet();
+                }
+
+                @Override
+                void onFinished(final boolean idle) {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, maxRunning.get());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    public void testLaneConcurrencyIsBounded() throws InterruptedException {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            mScheduler.submit(BackgroundWorkScheduler.getMmsLane(1),
+                    new BackgroundWorkScheduler.Work() {
+                @Override
+                public void run() {
+                    final int count = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        maxRunning.set(Math.max(maxRunning.get(), count));
+                    }
+                    try {
+                        Thread.sleep(2);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                }
+
+                @Override
+                void onFinished(final boolean idle) {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, maxRunning.get());
+    }
+
+    public void testLanesRunIndependently() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(2);
+        // Blocks the mms lane of subscription 1 until the sms send on subscription 2 has run
+        mScheduler.submit(BackgroundWorkScheduler.getMmsLane(1),
+                new BackgroundWorkScheduler.Work() {
+            @Override
+            public void run() {
+                try {
+                    release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            void onFinished(final boolean idle) {
+                done.countDown();
+            }
+        });
+        mScheduler.submit(BackgroundWorkScheduler.getSmsSendLane(2),
+                new BackgroundWorkScheduler.Work() {
+            @Override
+            public void run() {
+                release.countDown();
+            }
+
+            @Override
+            void onFinished(final boolean idle) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(0, release.getCount());
+    }
+
+    public void testWorkQueuedFromRunningWorkKeepsSchedulerBusy() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch dispatched = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] idleWhenDispatched = new boolean[1];
+        assertTrue(mScheduler.isIdle());
+        // Like the service's dispatch work, which queues the actions it unparcels
+        mScheduler.submit(BackgroundWorkScheduler.LANE_DISPATCH,
+                new BackgroundWorkScheduler.Work() {
+            @Override
+            public void run() {
+                mScheduler.submit(null, new BackgroundWorkScheduler.Work() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+
+                    @Override
+                    void onFinished(final boolean idle) {
+                        done.countDown();
+                    }
+                });
+            }
+
+            @Override
+            void onFinished(final boolean idle) {
+                idleWhenDispatched[0] = idle;
+                dispatched.countDown();
+            }
+        });
+        assertTrue(dispatched.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(idleWhenDispatched[0]);
+        assertFalse(mScheduler.isIdle());
+
+        release.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(mScheduler.isIdle());
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.action;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.action.SyncCursorPair.Fingerprint;
+import com.android.messaging.datamodel.action.SyncCursorPair.FingerprintSource;
+
+@SmallTest
+public class SyncCursorPairTest extends BugleTestCase {
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long START = 1400000000000L / DAY_MILLIS * DAY_MILLIS;
+    private static final long NOW = START + 30 * DAY_MILLIS;
+
+    public void testMessagesInSync() {
+        final MatrixCursor local = createMessages();
+        final MatrixCursor remote = createMessages();
+        assertNull(SyncCursorPair.findNewestChangedWindow(
+                new FakeFingerprintSource(local, remote), NOW, DAY_MILLIS));
+    }
+
+    public void testInsertFoundInItsBucket() {
+        final MatrixCursor local = createMessages();
+        final MatrixCursor remote = createMessages();
+        final long inserted = START + 12 * DAY_MILLIS + 5000;
+        remote.addRow(new Object[] { 100L, inserted });
+        assertWindowContains(inserted, SyncCursorPair.findNewestChangedWindow(
+                new FakeFingerprintSource(local, remote), NOW, DAY_MILLIS));
+    }
+
+    public void testDeleteFoundInItsBucket() {
+        final MatrixCursor local = createMessages();
+        final MatrixCursor remote = createMessages();
+        final long deleted = START + 3 * DAY_MILLIS + 5000;
+        local.addRow(new Object[] { 100L, deleted });
+        assertWindowContains(deleted, SyncCursorPair.findNewestChangedWindow(
+                new FakeFingerprintSource(local, remote), NOW, DAY_MILLIS));
+    }
+
+    public void testReplaceWithSameIdFoundInItsBucket() {
+        // Message 100 was deleted and its id reused for a new message later the same day, which
+        // leaves the count and the sum of ids unchanged
+        final MatrixCursor local = createMessages();
+        final MatrixCursor remote = createMessages();
+        final long deleted = START + 20 * DAY_MILLIS + 5000;
+        final long inserted = deleted + 60 * 60 * 1000L;
+        local.addRow(new Object[] { 100L, deleted });
+        remote.addRow(new Object[] { 100L, inserted });
+        assertWindowContains(inserted, SyncCursorPair.findNewestChangedWindow(
+                new FakeFingerprintSource(local, remote), NOW, DAY_MILLIS));
+    }
+
+    public void testNewestChangedBucketFound() {
+        final MatrixCursor local = createMessages();
+        final MatrixCursor remote = createMessages();
+        final long older = START + 4 * DAY_MILLIS + 5000;
+        final long newer = START + 25 * DAY_MILLIS + 5000;
+        remote.addRow(new Object[] { 100L, older });
+        remote.addRow(new Object[] { 101L, newer });
+        assertWindowContains(newer, SyncCursorPair.findNewestChangedWindow(
+                new FakeFingerprintSource(local, remote), NOW, DAY_MILLIS));
+    }
+
+    public void testFingerprintFromCursor() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "count", "ids", "dates" });
+        cursor.addRow(new Object[] { 2L, 21L, 3000L });
+        final Fingerprint fingerprint = SyncCursorPair.getFingerprintFromCursor(cursor);
+        assertTrue(fingerprint.matches(new Fingerprint(2, 21, 3000)));
+        assertFalse(fingerprint.matches(new Fingerprint(2, 21, 3001)));
+        assertTrue(fingerprint.minus(new Fingerprint(1, 1, 1000))
+                .matches(new Fingerprint(1, 20, 2000)));
+
+        // The sums of an empty window are null
+        final MatrixCursor empty = new MatrixCursor(new String[] { "count", "ids", "dates" });
+        empty.addRow(new Object[] { 0L, null, null });
+        assertTrue(SyncCursorPair.getFingerprintFromCursor(empty)
+                .matches(new Fingerprint(0, 0, 0)));
+    }
+
+    private static void assertWindowContains(final long timestamp, final long[] window) {
+        assertNotNull(window);
+        assertTrue(window[0] <= timestamp && timestamp < window[1]);
+        assertTrue(window[1] - window[0] <= DAY_MILLIS);
+    }
+
+    /**
+     * @return one message a day for the 30 days before NOW, as rows of { id, timestamp }
+     */
+    private static MatrixCursor createMessages() {
+        final MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "date" });
+        for (int day = 0; day < 30; day++) {
+            cursor.addRow(new Object[] { (long) day + 1, START + day * DAY_MILLIS + 1000 });
+        }
+        return cursor;
+    }
+
+    /**
+     * Computes fingerprints from local and telephony cursors of { id, timestamp } rows, with the
+     * window bounds of the real queries
+     */
+    private static class FakeFingerprintSource implements FingerprintSource {
+        private final Cursor mLocal;
+        private final Cursor mRemote;
+
+        FakeFingerprintSource(final Cursor local, final Cursor remote) {
+            mLocal = local;
+            mRemote = remote;
+        }
+
+        @Override
+        public Fingerprint getLocalFingerprint(final long lowerBound, final long upperBound) {
+            return getFingerprint(mLocal, lowerBound, upperBound);
+        }
+
+        @Override
+        public Fingerprint getRemoteFingerprint(final long lowerBound, final long upperBound) {
+            return getFingerprint(mRemote, lowerBound, upperBound);
+        }
+
+        @Override
+        public long getOldestTimestamp() {
+            final long oldest = Math.min(getOldest(mLocal), getOldest(mRemote));
+            return (oldest / 1000) * 1000 - 1000;
+        }
+
+        private static Fingerprint getFingerprint(final Cursor cursor, final long lowerBound,
+                final long upperBound) {
+            long count = 0;
+            long idSum = 0;
+            long timestampSum = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                final long timestamp = cursor.getLong(1);
+                if ((lowerBound <= 0 || timestamp >= lowerBound)
+                        && (upperBound <= 0 || timestamp < upperBound)) {
+                    count++;
+                    idSum += cursor.getLong(0);
+                    timestampSum += timestamp;
+                }
+            }
+            return new Fingerprint(count, idSum, timestampSum);
+        }
+
+        private static long getOldest(final Cursor cursor) {
+            long oldest = Long.MAX_VALUE;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                oldest = Math.min(oldest, cursor.getLong(1));
+            }
+            return oldest;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.datamodel.data.ConversationMessageData.ConversationMessageViewColumns;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@SmallTest
+public class ConversationMessagesWindowTest extends BugleTestCase {
+    private static final int PAGE_SIZE = 3;
+
+    public void testPagesAreMergedOldestFirst() {
+        final ConversationMessagesWindow window = new ConversationMessagesWindow();
+        // Messages 1 to 8, the head holds the newest three
+        window.setHeadWindowStart(ConversationMessageData.makeMessageKey(6, "6"));
+        assertTrue(window.setHead(
+                createSignedCursor(8, 6, MessageData.BUGLE_STATUS_INCOMING_COMPLETE)));
+        assertTrue(window.hasOlderMessages());
+        assertEquals(ConversationMessageData.makeMessageKey(6, "6"), window.getOldestLoadedKey());
+
+        window.addOlderPage(
+                createSignedCursor(5, 3, MessageData.BUGLE_STATUS_INCOMING_COMPLETE), PAGE_SIZE);
+        assertTrue(window.hasOlderMessages());
+        assertEquals(ConversationMessageData.makeMessageKey(3, "3"), window.getOldestLoadedKey());
+
+        // A short page is the last one
+        window.addOlderPage(
+                createSignedCursor(2, 1, MessageData.BUGLE_STATUS_INCOMING_COMPLETE), PAGE_SIZE);
+        assertFalse(window.hasOlderMessages());
+        assertEquals(ConversationMessageData.makeMessageKey(1, "1"), window.getOldestLoadedKey());
+
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5", "6", "7", "8"),
+                getMessageIds(window.buildMessagesCursor()));
+    }
+
+    public void testEmptyPageEndsPaging() {
+        final ConversationMessagesWindow window = new ConversationMessagesWindow();
+        window.setHeadWindowStart(ConversationMessageData.makeMessageKey(1, "1"));
+        window.setHead(createSignedCursor(3, 1, MessageData.BUGLE_STATUS_INCOMING_COMPLETE));
+        final ConversationMessagesWindow.SignedCursor empty =
+                createSignedCursor(0, 1, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        window.addOlderPage(empty, PAGE_SIZE);
+        assertFalse(window.hasOlderMessages());
+        assertFalse(window.hasOlderPages());
+        assertTrue(empty.isClosed());
+        assertEquals(Arrays.asList("1", "2", "3"), getMessageIds(window.buildMessagesCursor()));
+    }
+
+    public void testHeadRefreshDetectsChanges() {
+        final ConversationMessagesWindow window = new ConversationMessagesWindow();
+        assertTrue(window.setHead(
+                createSignedCursor(3, 1, MessageData.BUGLE_STATUS_OUTGOING_SENDING)));
+        // Same contents
+        assertFalse(window.setHead(
+                createSignedCursor(3, 1, MessageData.BUGLE_STATUS_OUTGOING_SENDING)));
+        // A message changed its status
+        assertTrue(window.setHead(
+                createSignedCursor(3, 1, MessageData.BUGLE_STATUS_OUTGOING_COMPLETE)));
+        // A new message
+        assertTrue(window.setHead(
+                createSignedCursor(4, 1, MessageData.BUGLE_STATUS_OUTGOING_COMPLETE)));
+    }
+
+    public void testReplaceOlderPages() {
+        final ConversationMessagesWindow window = new ConversationMessagesWindow();
+        window.setHeadWindowStart(ConversationMessageData.makeMessageKey(7, "7"));
+        window.setHead(createSignedCursor(9, 7, MessageData.BUGLE_STATUS_INCOMING_COMPLETE));
+        final ConversationMessagesWindow.SignedCursor first =
+                createSignedCursor(6, 4, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        final ConversationMessagesWindow.SignedCursor second =
+                createSignedCursor(3, 1, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        window.addOlderPage(first, PAGE_SIZE);
+        window.addOlderPage(second, PAGE_SIZE);
+        assertTrue(window.olderPagesContain(Collections.singleton("2")));
+        assertFalse(window.olderPagesContain(Collections.singleton("8")));
+
+        // Message 2 was deleted
+        final MatrixCursor refreshed = new MatrixCursor(ConversationMessageData.getProjection());
+        for (final int id : new int[] { 6, 5, 4, 3, 1 }) {
+            addRow(refreshed, id, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        }
+        final List<Cursor> retired =
+                window.replaceOlderPages(new ConversationMessagesWindow.SignedCursor(refreshed));
+        assertEquals(Arrays.<Cursor>asList(first, second), retired);
+        assertFalse(first.isClosed());
+        assertEquals(ConversationMessageData.makeMessageKey(1, "1"), window.getOldestLoadedKey());
+        assertEquals(Arrays.asList("1", "3", "4", "5", "6", "7", "8", "9"),
+                getMessageIds(window.buildMessagesCursor()));
+
+        window.closeOlderPages();
+        assertTrue(refreshed.isClosed());
+        assertTrue(window.hasOlderMessages());
+        assertEquals(ConversationMessageData.makeMessageKey(7, "7"), window.getOldestLoadedKey());
+    }
+
+    public void testRowSignaturesFollowMergedCursor() {
+        final ConversationMessagesWindow window = new ConversationMessagesWindow();
+        window.setHeadWindowStart(ConversationMessageData.makeMessageKey(4, "4"));
+        window.setHead(createSignedCursor(6, 4, MessageData.BUGLE_STATUS_INCOMING_COMPLETE));
+        window.addOlderPage(
+                createSignedCursor(3, 1, MessageData.BUGLE_STATUS_INCOMING_COMPLETE), PAGE_SIZE);
+
+        final int[] expected = ConversationMessagesWindow.getRowSignatures(
+                window.buildMessagesCursor());
+        assertTrue(Arrays.equals(expected, window.getRowSignatures()));
+    }
+
+    public void testDeltaOfOlderPage() {
+        final int[] before = getRowSignatures(6, 4);
+        final int[] after = getRowSignatures(6, 1);
+        assertDelta(3, 0, 0, 3, ConversationData.MessagesDelta.compute(before, after));
+    }
+
+    public void testDeltaOfNewMessages() {
+        final int[] before = getRowSignatures(6, 1);
+        final int[] after = getRowSignatures(8, 1);
+        assertDelta(6, 6, 0, 2, ConversationData.MessagesDelta.compute(before, after));
+    }
+
+    public void testDeltaOfChangedMessage() {
+        final int[] before = getRowSignatures(6, 1);
+        final MatrixCursor cursor = new MatrixCursor(ConversationMessageData.getProjection());
+        for (int id = 1; id <= 6; id++) {
+            addRow(cursor, id, id == 4 ? MessageData.BUGLE_STATUS_INCOMING_DOWNLOAD_FAILED
+                    : MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        }
+        final int[] after = ConversationMessagesWindow.getRowSignatures(cursor);
+        assertDelta(6, 3, 1, 1, ConversationData.MessagesDelta.compute(before, after));
+    }
+
+    public void testDeltaOfDeletedMessage() {
+        final int[] before = getRowSignatures(6, 1);
+        final MatrixCursor cursor = new MatrixCursor(ConversationMessageData.getProjection());
+        for (final int id : new int[] { 1, 2, 4, 5, 6 }) {
+            addRow(cursor, id, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        }
+        final int[] after = ConversationMessagesWindow.getRowSignatures(cursor);
+        assertDelta(6, 2, 1, 0, ConversationData.MessagesDelta.compute(before, after));
+    }
+
+    public void testDeltaOfSameMessages() {
+        final ConversationData.MessagesDelta delta = ConversationData.MessagesDelta.compute(
+                getRowSignatures(6, 1), getRowSignatures(6, 1));
+        assertTrue(delta.isEmpty());
+        assertEquals(6, delta.getOldCount());
+    }
+
+    private static void assertDelta(final int oldCount, final int start, final int removedCount,
+            final int insertedCount, final ConversationData.MessagesDelta delta) {
+        assertEquals(oldCount, delta.getOldCount());
+        assertEquals(start, delta.getStart());
+        assertEquals(removedCount, delta.getRemovedCount());
+        assertEquals(insertedCount, delta.getInsertedCount());
+    }
+
+    /**
+     * @return the row signatures of the messages from oldest to newest, as the UI shows them
+     */
+    private static int[] getRowSignatures(final int newest, final int oldest) {
+        final MatrixCursor cursor = new MatrixCursor(ConversationMessageData.getProjection());
+        for (int id = oldest; id <= newest; id++) {
+            addRow(cursor, id, MessageData.BUGLE_STATUS_INCOMING_COMPLETE);
+        }
+        return ConversationMessagesWindow.getRowSignatures(cursor);
+    }
+
+    /**
+     * @return a cursor of the messages from newest to oldest, sorted DESC like the provider's
+     */
+    private static Cursor createCursor(final int newest, final int oldest, final int status) {
+        final MatrixCursor cursor = new MatrixCursor(ConversationMessageData.getProjection());
+        for (int id = newest; id >= oldest; id--) {
+            addRow(cursor, id, status);
+        }
+        return cursor;
+    }
+
+    private static ConversationMessagesWindow.SignedCursor createSignedCursor(final int newest,
+            final int oldest, final int status) {
+        return new ConversationMessagesWindow.SignedCursor(createCursor(newest, oldest, status));
+    }
+
+    /**
+     * Adds a message whose id and received timestamp are both the given id
+     */
+    private static void addRow(final MatrixCursor cursor, final int id, final int status) {
+        final List<String> columns = Arrays.asList(ConversationMessageData.getProjection());
+        final Object[] row = new Object[columns.size()];
+        row[columns.indexOf(ConversationMessageViewColumns._ID)] = String.valueOf(id);
+        row[columns.indexOf(ConversationMessageViewColumns.RECEIVED_TIMESTAMP)] = (long) id;
+        row[columns.indexOf(ConversationMessageViewColumns.STATUS)] = status;
+        cursor.addRow(row);
+    }
+
+    private static List<String> getMessageIds(final Cursor cursor) {
+        final String[] ids = new String[cursor.getCount()];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            ids[cursor.getPosition()] = ConversationMessageData.getMessageId(cursor);
+        }
+        return Arrays.asList(ids);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class MediaCacheTest extends BugleTestCase {
+    private static final int SIZE_KB = 10;
+
+    public void testInUseSizeFollowsRefs() {
+        final MediaCache<FakeImageResource> cache =
+                new MediaCache<FakeImageResource>(1024, 0, "test");
+        // Held by the loader until it hands the resource over
+        final FakeImageResource resource = new FakeImageResource(SIZE_KB * 1024, "1");
+        resource.addRef();
+        cache.addResourceToCache("1", resource);
+        assertEquals(SIZE_KB, cache.getInUseSizeKb());
+
+        resource.release();
+        assertEquals(0, cache.getInUseSizeKb());
+
+        final FakeImageResource fetched = cache.fetchResourceFromCache("1");
+        assertSame(resource, fetched);
+        assertEquals(SIZE_KB, cache.getInUseSizeKb());
+        fetched.release();
+        assertEquals(0, cache.getInUseSizeKb());
+    }
+
+    public void testEvictedResourceLeavesInUseSize() {
+        final MediaCache<FakeImageResource> cache =
+                new MediaCache<FakeImageResource>(1024, 0, "test");
+        final FakeImageResource resource = new FakeImageResource(SIZE_KB * 1024, "1");
+        resource.addRef();
+        cache.addResourceToCache("1", resource);
+        assertEquals(SIZE_KB, cache.getInUseSizeKb());
+
+        cache.evictAll();
+        assertEquals(0, cache.getInUseSizeKb());
+        // Refs taken after the eviction aren't counted
+        resource.addRef();
+        assertEquals(0, cache.getInUseSizeKb());
+        resource.release();
+        resource.release();
+        assertTrue(resource.isClosed());
+    }
+
+    public void testResourcePutAgainStaysCounted() {
+        final MediaCache<FakeImageResource> cache =
+                new MediaCache<FakeImageResource>(1024, 0, "test");
+        final FakeImageResource resource = new FakeImageResource(SIZE_KB * 1024, "1");
+        cache.addResourceToCache("1", resource);
+        assertEquals(0, cache.getInUseSizeKb());
+        cache.addResourceToCache("1", resource);
+        assertEquals(0, cache.getInUseSizeKb());
+
+        resource.addRef();
+        assertEquals(SIZE_KB, cache.getInUseSizeKb());
+        resource.release();
+        assertEquals(0, cache.getInUseSizeKb());
+    }
+}
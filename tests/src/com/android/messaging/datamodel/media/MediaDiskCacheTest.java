@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+@SmallTest
+public class MediaDiskCacheTest extends BugleTestCase {
+    private static final String NAMESPACE = "test";
+    private static final String VERSION = "1";
+    private static final int SIZE = 16;
+    // Room for two 16x16 ARGB_8888 entries plus their headers
+    private static final long MAX_SIZE_BYTES = 2 * (SIZE * SIZE * 4 + 128);
+
+    private File mRootDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRootDir = new File(getTestContext().getCacheDir(), "media_disk_cache_test");
+        deleteRecursively(mRootDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteRecursively(mRootDir);
+        super.tearDown();
+    }
+
+    public void testRoundTrip() {
+        final MediaDiskCache cache = new MediaDiskCache(mRootDir, MAX_SIZE_BYTES);
+        assertNull(cache.get(NAMESPACE, "key1", VERSION, null));
+
+        cache.put(NAMESPACE, "key1", VERSION, createBitmap(Color.RED), 6 /* orientation */);
+        final MediaDiskCache.Entry entry = cache.get(NAMESPACE, "key1", VERSION, null);
+        assertNotNull(entry);
+        assertEquals(6, entry.orientation);
+        assertEquals(SIZE, entry.bitmap.getWidth());
+        assertEquals(Color.RED, entry.bitmap.getPixel(SIZE / 2, SIZE / 2));
+
+        // A new instance picks the entry up from disk
+        final MediaDiskCache reopened = new MediaDiskCache(mRootDir, MAX_SIZE_BYTES);
+        assertNotNull(reopened.get(NAMESPACE, "key1", VERSION, null));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final MediaDiskCache cache = new MediaDiskCache(mRootDir, MAX_SIZE_BYTES);
+        cache.put(NAMESPACE, "key1", VERSION, createBitmap(Color.RED), 0);
+        cache.put(NAMESPACE, "key2", VERSION, createBitmap(Color.GREEN), 0);
+        // Use key1 so that key2 is the eldest
+        assertNotNull(cache.get(NAMESPACE, "key1", VERSION, null));
+        cache.put(NAMESPACE, "key3", VERSION, createBitmap(Color.BLUE), 0);
+
+        assertNotNull(cache.get(NAMESPACE, "key1", VERSION, null));
+        assertNull(cache.get(NAMESPACE, "key2", VERSION, null));
+        assertNotNull(cache.get(NAMESPACE, "key3", VERSION, null));
+        assertTrue(cache.getSizeBytes() <= MAX_SIZE_BYTES);
+    }
+
+    public void testDropsEntryOfOtherVersion() {
+        final MediaDiskCache cache = new MediaDiskCache(mRootDir, MAX_SIZE_BYTES);
+        cache.put(NAMESPACE, "key1", VERSION, createBitmap(Color.RED), 0);
+        cache.put(NAMESPACE, "key2", VERSION, createBitmap(Color.GREEN), 0);
+
+        assertNull(cache.get(NAMESPACE, "key1", "2", null));
+        // The stale entry is gone, even for its own version
+        assertNull(cache.get(NAMESPACE, "key1", VERSION, null));
+        assertNotNull(cache.get(NAMESPACE, "key2", VERSION, null));
+    }
+
+    public void testDropsEntryOfInvalidSize() throws IOException {
+        final MediaDiskCache cache = new MediaDiskCache(mRootDir, MAX_SIZE_BYTES);
+        cache.put(NAMESPACE, "key1", VERSION, createBitmap(Color.RED), 0);
+        final File[] files = new File(mRootDir, NAMESPACE).listFiles();
+        assertEquals(1, files.length);
+
+        // Overwrite the width, which follows the magic number, key and version
+        final RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        try {
+            file.seek(4 + (2 + "key1".length()) + (2 + VERSION.length()));
+            file.writeInt(100000);
+        } finally {
+            file.close();
+        }
+
+        assertNull(cache.get(NAMESPACE, "key1", VERSION, null));
+        assertFalse(files[0].exists());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    private static Bitmap createBitmap(final int color) {
+        final Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(color);
+        return bitmap;
+    }
+
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class MediaLoadingSchedulerTest extends BugleTestCase {
+    private static final long TIMEOUT_MS = 5000;
+
+    private MediaLoadingScheduler mScheduler;
+    private final List<String> mOrder = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch mBlockerStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleaseBlocker = new CountDownLatch(1);
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // One worker, so that the order in which queued work starts is deterministic
+        mScheduler = new MediaLoadingScheduler(1 /* threadCount */,
+                1 /* maxLowPriorityRunning */);
+    }
+
+    public void testVisibleWorkFirstNewestFirst() throws InterruptedException {
+        startBlocker("blocker");
+        submit("background", MediaResourceManager.PRIORITY_BACKGROUND, null);
+        submit("prefetch", MediaResourceManager.PRIORITY_PREFETCH, null);
+        submit("visible1", MediaResourceManager.PRIORITY_VISIBLE, null);
+        submit("visible2", MediaResourceManager.PRIORITY_VISIBLE, null);
+        assertEquals(2, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_VISIBLE));
+        assertEquals(1, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_PREFETCH));
+        assertEquals(1, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_BACKGROUND));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        submit("last", MediaResourceManager.PRIORITY_BACKGROUND, done);
+        mReleaseBlocker.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("blocker", "visible2", "visible1", "prefetch", "background",
+                "last"), mOrder);
+    }
+
+    public void testCoalescedRequestRunsInItsLaneAfterLeader() throws InterruptedException {
+        startBlocker("key");
+        final CountDownLatch done = new CountDownLatch(1);
+        // Waits for the running request for the same key instead of being queued
+        submit("key", MediaResourceManager.PRIORITY_BACKGROUND, done);
+        assertEquals(0, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_BACKGROUND));
+        submit("visible", MediaResourceManager.PRIORITY_VISIBLE, null);
+
+        mReleaseBlocker.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // The follower is queued in the background lane, behind the visible work
+        assertEquals(Arrays.asList("blocker", "visible", "key"), mOrder);
+    }
+
+    public void testUnboundRequestIsDropped() throws InterruptedException {
+        startBlocker("blocker");
+        final BindableMediaRequest<ImageResource> request = createBoundRequest("dropped");
+        submit(request, "dropped", MediaResourceManager.PRIORITY_VISIBLE, null);
+        assertEquals(1, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_VISIBLE));
+        request.unbind("binding");
+        assertEquals(0, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_VISIBLE));
+
+        final CountDownLatch done = new CountDownLatch(1);
+        submit("last", MediaResourceManager.PRIORITY_VISIBLE, done);
+        mReleaseBlocker.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("blocker", "last"), mOrder);
+    }
+
+    public void testUnboundLeaderHandsOverToFollower() throws InterruptedException {
+        startBlocker("blocker");
+        final BindableMediaRequest<ImageResource> leader = createBoundRequest("key");
+        submit(leader, "leader", MediaResourceManager.PRIORITY_BACKGROUND, null);
+        final CountDownLatch done = new CountDownLatch(1);
+        submit("key", MediaResourceManager.PRIORITY_VISIBLE, done);
+        // The leader is promoted to the lane of its most urgent follower
+        assertEquals(1, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_VISIBLE));
+        assertEquals(0, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_BACKGROUND));
+
+        leader.unbind("binding");
+        assertEquals(1, mScheduler.getQueueDepth(MediaResourceManager.PRIORITY_VISIBLE));
+        mReleaseBlocker.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(Arrays.asList("blocker", "key"), mOrder);
+    }
+
+    /**
+     * Starts work for the given key that runs until mReleaseBlocker is released
+     */
+    private void startBlocker(final String key) throws InterruptedException {
+        mScheduler.getExecutor(createRequest(key), MediaResourceManager.PRIORITY_VISIBLE)
+                .execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mOrder.add(key);
+                        mBlockerStarted.countDown();
+                        try {
+                            mReleaseBlocker.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+        assertTrue(mBlockerStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void submit(final String key, final int priority, final CountDownLatch done) {
+        submit(createRequest(key), key, priority, done);
+    }
+
+    /**
+     * Submits work that records its name and then counts down done, if set
+     */
+    private void submit(final MediaRequest<?> request, final String name, final int priority,
+            final CountDownLatch done) {
+        mScheduler.getExecutor(request, priority).execute(new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add(name);
+                if (done != null) {
+                    done.countDown();
+                }
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MediaRequest<ImageResource> createRequest(final String key) {
+        final MediaRequest<ImageResource> request = Mockito.mock(MediaRequest.class);
+        Mockito.when(request.getKey()).thenReturn(key);
+        return request;
+    }
+
+    private static BindableMediaRequest<ImageResource> createBoundRequest(final String key) {
+        final BindableMediaRequest<ImageResource> request =
+                AsyncMediaRequestWrapper.createWith(createRequest(key), null);
+        request.bind("binding");
+        return request;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.datamodel.media;
+
+import android.graphics.Bitmap;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+@SmallTest
+public class SharedBitmapPoolTest extends BugleTestCase {
+    private static final int DIM = 100;
+    private static final int BYTES = DIM * DIM * 4;
+
+    public void testReusesBitmapOfOtherDimensions() {
+        final SharedBitmapPool pool = new SharedBitmapPool(BYTES * 4);
+        final Bitmap bitmap = Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888);
+        pool.reclaimBitmap(bitmap);
+        assertEquals(BYTES, pool.getRetainedBytes());
+
+        final Bitmap reused = pool.createOrReuseBitmap(DIM * 2, DIM / 2, Bitmap.Config.ARGB_8888);
+        assertSame(bitmap, reused);
+        assertEquals(DIM * 2, reused.getWidth());
+        assertEquals(DIM / 2, reused.getHeight());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testDoesNotReuseSmallerBitmap() {
+        final SharedBitmapPool pool = new SharedBitmapPool(BYTES * 4);
+        pool.reclaimBitmap(Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888));
+        assertNull(pool.getReusableBitmap(DIM, DIM + 1, Bitmap.Config.ARGB_8888));
+        assertEquals(1, pool.getMissCount());
+        assertEquals(BYTES, pool.getRetainedBytes());
+    }
+
+    public void testDoesNotReuseAcrossConfigs() {
+        final SharedBitmapPool pool = new SharedBitmapPool(BYTES * 4);
+        pool.reclaimBitmap(Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888));
+        assertNull(pool.getReusableBitmap(DIM, DIM * 2, Bitmap.Config.RGB_565));
+    }
+
+    public void testRecyclesOldestBitmapsOverBudget() {
+        final SharedBitmapPool pool = new SharedBitmapPool(BYTES * 2);
+        final Bitmap first = Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888);
+        final Bitmap second = Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888);
+        final Bitmap third = Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888);
+        pool.reclaimBitmap(first);
+        pool.reclaimBitmap(second);
+        pool.reclaimBitmap(third);
+        assertTrue(first.isRecycled());
+        assertFalse(second.isRecycled());
+        assertFalse(third.isRecycled());
+        assertEquals(BYTES * 2, pool.getRetainedBytes());
+    }
+
+    public void testRecyclesBitmapsItCannotReuse() {
+        final SharedBitmapPool pool = new SharedBitmapPool(BYTES);
+        final Bitmap immutable = Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888)
+                .copy(Bitmap.Config.ARGB_8888, false /* isMutable */);
+        final Bitmap tooLarge = Bitmap.createBitmap(DIM * 2, DIM, Bitmap.Config.ARGB_8888);
+        pool.reclaimBitmap(immutable);
+        pool.reclaimBitmap(tooLarge);
+        assertTrue(immutable.isRecycled());
+        assertTrue(tooLarge.isRecycled());
+        assertEquals(0, pool.getRetainedBytes());
+    }
+
+    public void testReclaimRecyclesAll() {
+        final SharedBitmapPool pool = new SharedBitmapPool(BYTES * 4);
+        final Bitmap bitmap = Bitmap.createBitmap(DIM, DIM, Bitmap.Config.ARGB_8888);
+        pool.reclaimBitmap(bitmap);
+        pool.reclaim();
+        assertTrue(bitmap.isRecycled());
+        assertEquals(0, pool.getRetainedBytes());
+        assertNull(pool.getReusableBitmap(DIM, DIM, Bitmap.Config.ARGB_8888));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.net.Uri;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContentType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+@SmallTest
+public class PduComposerTest extends BugleTestCase {
+    private static final String TEXT = "See you at the station";
+
+    private File mPartFile;
+    private File mPduFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPartFile = new File(getTestContext().getCacheDir(), "PduComposerTest.part");
+        mPduFile = new File(getTestContext().getCacheDir(), "PduComposerTest.pdu");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPartFile.delete();
+        mPduFile.delete();
+        super.tearDown();
+    }
+
+    public void testMakeIntoFileCopiesPartBackedByFileUri() throws IOException {
+        final byte[] partData = new byte[10000];
+        for (int i = 0; i < partData.length; i++) {
+            partData[i] = (byte) i;
+        }
+        writeFile(mPartFile, partData);
+        final SendReq sendReq = createSendReq(Uri.fromFile(mPartFile));
+
+        final long length;
+        final FileOutputStream out = new FileOutputStream(mPduFile);
+        try {
+            length = new PduComposer(getTestContext(), sendReq).make(out.getChannel());
+        } finally {
+            out.close();
+        }
+        final byte[] pdu = readFile(mPduFile);
+        assertEquals(pdu.length, length);
+
+        // The part is copied from the file as it is read into memory by make()
+        final byte[] expected = new PduComposer(getTestContext(), sendReq).make();
+        assertNotNull(expected);
+        assertTrue(Arrays.equals(expected, pdu));
+
+        final SendReq parsed = (SendReq) new PduParser(pdu, true).parse();
+        assertNotNull(parsed);
+        final PduBody body = parsed.getBody();
+        assertEquals(2, body.getPartsNum());
+        assertEquals(TEXT, new String(body.getPart(0).getData()));
+        assertTrue(Arrays.equals(partData, body.getPart(1).getData()));
+    }
+
+    private static SendReq createSendReq(final Uri partUri) {
+        final SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("+16505550100"));
+        sendReq.setDate(1433160000L);
+        final PduBody body = new PduBody();
+        final PduPart text = new PduPart();
+        text.setCharset(CharacterSets.UTF_8);
+        text.setContentId("<text000000>".getBytes());
+        text.setContentLocation("text000000.txt".getBytes());
+        text.setContentType(ContentType.TEXT_PLAIN.getBytes());
+        text.setData(TEXT.getBytes());
+        body.addPart(text);
+        final PduPart image = new PduPart();
+        image.setContentId("<image000000>".getBytes());
+        image.setContentLocation("image000000.jpg".getBytes());
+        image.setContentType(ContentType.IMAGE_JPEG.getBytes());
+        image.setDataUri(partUri);
+        body.addPart(image);
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    private static void writeFile(final File file, final byte[] data) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                final int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
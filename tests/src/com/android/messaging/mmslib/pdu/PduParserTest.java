@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.mmslib.pdu;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContentType;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+@SmallTest
+public class PduParserTest extends BugleTestCase {
+    private static final String TEXT = "See you at the station";
+
+    private File mPduFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPduFile = new File(getTestContext().getCacheDir(), "PduParserTest.pdu");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPduFile.delete();
+        super.tearDown();
+    }
+
+    public void testParsingFileMatchesParsingBytes() throws IOException {
+        // The small image spans a boundary of the window the file is read through, the large
+        // one is left in the file
+        final byte[] pdu = new PduComposer(getTestContext(), createSendReq(
+                createData(10000), createData(100000))).make();
+        assertNotNull(pdu);
+        final FileOutputStream out = new FileOutputStream(mPduFile);
+        try {
+            out.write(pdu);
+        } finally {
+            out.close();
+        }
+
+        final SendReq fromBytes = (SendReq) new PduParser(pdu, true).parse();
+        final SendReq fromFile = (SendReq) new PduParser(mPduFile, true).parse();
+        assertNotNull(fromBytes);
+        assertNotNull(fromFile);
+        assertEquals(fromBytes.getMessageType(), fromFile.getMessageType());
+        assertEquals(fromBytes.getTo()[0].getString(), fromFile.getTo()[0].getString());
+        assertEquals(fromBytes.getDate(), fromFile.getDate());
+
+        final PduBody bytesBody = fromBytes.getBody();
+        final PduBody fileBody = fromFile.getBody();
+        assertEquals(3, bytesBody.getPartsNum());
+        assertEquals(bytesBody.getPartsNum(), fileBody.getPartsNum());
+        for (int i = 0; i < bytesBody.getPartsNum(); i++) {
+            final PduPart bytesPart = bytesBody.getPart(i);
+            final PduPart filePart = fileBody.getPart(i);
+            assertTrue(Arrays.equals(bytesPart.getContentType(), filePart.getContentType()));
+            assertTrue(Arrays.equals(bytesPart.getContentId(), filePart.getContentId()));
+            assertTrue(Arrays.equals(bytesPart.getContentLocation(),
+                    filePart.getContentLocation()));
+            assertEquals(bytesPart.getCharset(), filePart.getCharset());
+            assertTrue(Arrays.equals(bytesPart.getData(), getData(filePart)));
+        }
+        assertEquals(TEXT, new String(fileBody.getPart(0).getData()));
+        assertFalse(fileBody.getPart(1).hasDataRange());
+        assertTrue(fileBody.getPart(2).hasDataRange());
+        assertFalse(bytesBody.getPart(2).hasDataRange());
+    }
+
+    public void testParsingTruncatedFileFails() throws IOException {
+        final byte[] pdu = new PduComposer(getTestContext(), createSendReq(
+                createData(10000), createData(100000))).make();
+        final FileOutputStream out = new FileOutputStream(mPduFile);
+        try {
+            out.write(pdu, 0, pdu.length - 1000);
+        } finally {
+            out.close();
+        }
+        assertNull(new PduParser(mPduFile, true).parse());
+    }
+
+    /**
+     * @return the data of a part, whether it's in memory or left in the pdu file
+     */
+    private static byte[] getData(final PduPart part) throws IOException {
+        if (!part.hasDataRange()) {
+            return part.getData();
+        }
+        final InputStream in = part.openDataRange();
+        try {
+            final byte[] data = ByteStreams.toByteArray(in);
+            assertEquals(part.getDataRangeLength(), data.length);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] createData(final int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static SendReq createSendReq(final byte[] smallImage, final byte[] largeImage) {
+        final SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("+16505550100"));
+        sendReq.setDate(1433160000L);
+        final PduBody body = new PduBody();
+        final PduPart text = new PduPart();
+        text.setCharset(CharacterSets.UTF_8);
+        text.setContentId("<text000000>".getBytes());
+        text.setContentLocation("text000000.txt".getBytes());
+        text.setContentType(ContentType.TEXT_PLAIN.getBytes());
+        text.setData(TEXT.getBytes());
+        body.addPart(text);
+        body.addPart(createImagePart("image000000", smallImage));
+        body.addPart(createImagePart("image000001", largeImage));
+        sendReq.setBody(body);
+        return sendReq;
+    }
+
+    private static PduPart createImagePart(final String name, final byte[] data) {
+        final PduPart image = new PduPart();
+        image.setContentId(("<" + name + ">").getBytes());
+        image.setContentLocation((name + ".jpg").getBytes());
+        image.setContentType(ContentType.IMAGE_JPEG.getBytes());
+        image.setData(data);
+        return image;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.sms;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+import com.android.messaging.util.ContentType;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@SmallTest
+public class MmsAttachmentPreprocessorTest extends BugleTestCase {
+    private static final Uri IMAGE_URI = Uri.parse("content://test/image/1");
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final AtomicInteger mResizeCount = new AtomicInteger();
+
+    private class FakePreprocessor extends MmsAttachmentPreprocessor {
+        private final CountDownLatch mResizeStarted = new CountDownLatch(1);
+        private final CountDownLatch mFinishResize;
+
+        FakePreprocessor(final CountDownLatch finishResize) {
+            super(1024 * 1024);
+            mFinishResize = finishResize;
+        }
+
+        @Override
+        Result resize(final Request request) {
+            mResizeCount.incrementAndGet();
+            mResizeStarted.countDown();
+            try {
+                mFinishResize.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            return new Result(new byte[request.byteLimit / 2], ContentType.IMAGE_JPEG);
+        }
+    }
+
+    private static MmsAttachmentPreprocessor.Request createRequest(final int byteLimit,
+            final int subId) {
+        return new MmsAttachmentPreprocessor.Request(IMAGE_URI, ContentType.IMAGE_JPEG,
+                4000, 3000, 0, 1280, 960, byteLimit, subId);
+    }
+
+    /**
+     * Starts getOrResize for the same request on a new thread
+     */
+    private static FutureTask<MmsAttachmentPreprocessor.Result> startGetOrResize(
+            final MmsAttachmentPreprocessor preprocessor) {
+        final FutureTask<MmsAttachmentPreprocessor.Result> task =
+                new FutureTask<MmsAttachmentPreprocessor.Result>(
+                        new Callable<MmsAttachmentPreprocessor.Result>() {
+                            @Override
+                            public MmsAttachmentPreprocessor.Result call() {
+                                return preprocessor.getOrResize(createRequest(100000, 1));
+                            }
+                        });
+        new Thread(task).start();
+        return task;
+    }
+
+    public void testResultIsReused() {
+        final MmsAttachmentPreprocessor preprocessor =
+                new FakePreprocessor(new CountDownLatch(0));
+        final MmsAttachmentPreprocessor.Result first =
+                preprocessor.getOrResize(createRequest(100000, 1));
+        final MmsAttachmentPreprocessor.Result second =
+                preprocessor.getOrResize(createRequest(100000, 1));
+        assertSame(first, second);
+        assertEquals(1, mResizeCount.get());
+    }
+
+    public void testLimitsAndSubscriptionAreKeys() {
+        final MmsAttachmentPreprocessor preprocessor =
+                new FakePreprocessor(new CountDownLatch(0));
+        preprocessor.getOrResize(createRequest(100000, 1));
+        preprocessor.getOrResize(createRequest(50000, 1));
+        preprocessor.getOrResize(createRequest(100000, 2));
+        assertEquals(3, mResizeCount.get());
+    }
+
+    public void testConcurrentRequestWaitsForResizeInFlight() throws Exception {
+        final CountDownLatch finishResize = new CountDownLatch(1);
+        final FakePreprocessor preprocessor = new FakePreprocessor(finishResize);
+        final FutureTask<MmsAttachmentPreprocessor.Result> background =
+                startGetOrResize(preprocessor);
+        assertTrue(preprocessor.mResizeStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        final FutureTask<MmsAttachmentPreprocessor.Result> sender =
+                startGetOrResize(preprocessor);
+        // Only let the resize finish once the sender is waiting for it
+        final long deadline = SystemClock.elapsedRealtime() + TIMEOUT_SECONDS * 1000;
+        while (preprocessor.getWaitCount() == 0 && SystemClock.elapsedRealtime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, preprocessor.getWaitCount());
+        finishResize.countDown();
+
+        final MmsAttachmentPreprocessor.Result result =
+                background.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertSame(result, sender.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, mResizeCount.get());
+    }
+
+    public void testReclaimDropsResults() {
+        final MmsAttachmentPreprocessor preprocessor =
+                new FakePreprocessor(new CountDownLatch(0));
+        preprocessor.getOrResize(createRequest(100000, 1));
+        preprocessor.reclaim();
+        preprocessor.getOrResize(createRequest(100000, 1));
+        assertEquals(2, mResizeCount.get());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class CanonicalPhoneNumberCacheTest extends BugleTestCase {
+    public void testCountriesAreSeparate() {
+        final CanonicalPhoneNumberCache cache = new CanonicalPhoneNumberCache(64);
+        cache.put("US", "6501231233", "+16501231233");
+        assertEquals("+16501231233", cache.get("US", "6501231233"));
+        assertNull(cache.get("GB", "6501231233"));
+        cache.put(null, "123", "123");
+        assertEquals("123", cache.get(null, "123"));
+    }
+
+    public void testSizeIsBounded() {
+        final CanonicalPhoneNumberCache cache = new CanonicalPhoneNumberCache(64);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("US", String.valueOf(i), "+1" + i);
+        }
+        int cached = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (cache.get("US", String.valueOf(i)) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached <= 64);
+        // The most recently added number is always kept
+        assertEquals("+1999", cache.get("US", "999"));
+    }
+
+    public void testPutIfAbsentKeepsExistingValue() {
+        final CanonicalPhoneNumberCache cache = new CanonicalPhoneNumberCache(64);
+        cache.put("US", "6501231233", "+16501231233");
+        cache.putIfAbsent("US", "6501231233", "other");
+        cache.putIfAbsent("US", "6501231234", "+16501231234");
+        assertEquals("+16501231233", cache.get("US", "6501231233"));
+        assertEquals("+16501231234", cache.get("US", "6501231234"));
+    }
+
+    public void testDumpReportsHits() {
+        final CanonicalPhoneNumberCache cache = new CanonicalPhoneNumberCache(64);
+        cache.put("US", "6501231233", "+16501231233");
+        cache.get("US", "6501231233");
+        cache.get("US", "6501231234");
+        final StringWriter output = new StringWriter();
+        cache.dump(new PrintWriter(output));
+        assertTrue(output.toString().contains("hits=1 misses=1"));
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+public class GifReencoderTest extends BugleTestCase {
+    private static final int RED = 0xffff0000;
+    private static final int BLUE = 0xff0000ff;
+    private static final int WHITE = 0xffffffff;
+    private static final int TRANSPARENT = 0;
+    private static final int WIDTH = 120;
+    private static final int HEIGHT = 80;
+    private static final int DELAY = 10;
+    private static final int BYTE_LIMIT = 300 * 1024;
+
+    public void testDecodesFrames() throws IOException {
+        final int[][] frames = { createStripes(RED, BLUE), createStripes(WHITE, RED) };
+        final List<int[]> decoded = new ArrayList<int[]>();
+        final List<Integer> delays = new ArrayList<Integer>();
+        decode(createGif(frames, 0), decoded, delays);
+        assertEquals(2, decoded.size());
+        assertTrue(Arrays.equals(frames[0], decoded.get(0)));
+        assertTrue(Arrays.equals(frames[1], decoded.get(1)));
+        assertEquals(Arrays.asList(DELAY, DELAY), delays);
+    }
+
+    public void testScaleShrinksDimensions() throws IOException {
+        final byte[] gif = reencode(createGif(new int[][] { createStripes(RED, BLUE) }, 0),
+                new GifReencoder.Options(2, 1, 8));
+        final GifReencoder.Decoder decoder =
+                new GifReencoder.Decoder(new ByteArrayInputStream(gif));
+        assertEquals(WIDTH / 2, decoder.getWidth());
+        assertEquals(HEIGHT / 2, decoder.getHeight());
+        final int[] canvas = new int[decoder.getWidth() * decoder.getHeight()];
+        decoder.readFrame(canvas);
+        // Stripes are 4 pixels wide, so each 2x2 box is a single color
+        assertEquals(RED, canvas[0]);
+        assertEquals(BLUE, canvas[2]);
+    }
+
+    public void testFrameStepMergesDelays() throws IOException {
+        final int[][] frames = new int[6][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = i % 2 == 0 ? createStripes(RED, BLUE) : createStripes(BLUE, RED);
+        }
+        final List<int[]> decoded = new ArrayList<int[]>();
+        final List<Integer> delays = new ArrayList<Integer>();
+        decode(reencode(createGif(frames, 0), new GifReencoder.Options(1, 3, 8)), decoded,
+                delays);
+        assertEquals(2, decoded.size());
+        assertTrue(Arrays.equals(frames[0], decoded.get(0)));
+        assertTrue(Arrays.equals(frames[3], decoded.get(1)));
+        assertEquals(Arrays.asList(DELAY * 3, DELAY * 3), delays);
+    }
+
+    public void testIdenticalFramesAreMerged() throws IOException {
+        final int[] frame = createStripes(RED, WHITE);
+        final List<int[]> decoded = new ArrayList<int[]>();
+        final List<Integer> delays = new ArrayList<Integer>();
+        decode(reencode(createGif(new int[][] { frame, frame, frame }, 0),
+                new GifReencoder.Options(1, 1, 6)), decoded, delays);
+        assertEquals(1, decoded.size());
+        assertEquals(Arrays.asList(DELAY * 3), delays);
+    }
+
+    public void testTransparencyAndLoopCountAreKept() throws IOException {
+        final int[] frame = createStripes(RED, TRANSPARENT);
+        final byte[] gif = reencode(createGif(new int[][] { frame }, 0),
+                new GifReencoder.Options(1, 1, 5));
+        final GifReencoder.Decoder decoder =
+                new GifReencoder.Decoder(new ByteArrayInputStream(gif));
+        final int[] canvas = new int[WIDTH * HEIGHT];
+        decoder.readFrame(canvas);
+        assertTrue(Arrays.equals(frame, canvas));
+        assertEquals(0, decoder.getLoopCount());
+    }
+
+    public void testChooseLevelShrinksMoreForLargerOvershoots() {
+        assertEquals(0, GifReencoder.chooseLevel(1000, 1000, BYTE_LIMIT * 0.5, BYTE_LIMIT, 0));
+        final int level = GifReencoder.chooseLevel(1000, 1000, BYTE_LIMIT * 4, BYTE_LIMIT, 0);
+        assertTrue(level > 0);
+        assertTrue(GifReencoder.estimateFileSizeAfterReencode(BYTE_LIMIT * 4,
+                GifReencoder.LEVELS[level]) <= BYTE_LIMIT);
+        assertTrue(GifReencoder.chooseLevel(1000, 1000, BYTE_LIMIT * 4, BYTE_LIMIT, level + 1)
+                > level);
+    }
+
+    public void testChooseLevelKeepsMinimumDimensions() {
+        final int level = GifReencoder.chooseLevel(WIDTH, HEIGHT, BYTE_LIMIT * 100, BYTE_LIMIT, 0);
+        final GifReencoder.Options options = GifReencoder.LEVELS[level];
+        assertTrue(options.scale == 1
+                || HEIGHT / options.scale >= GifReencoder.MIN_OUTPUT_DIMENSION);
+        assertTrue(GifReencoder.estimateMinimumFileSize(1000, 1000, BYTE_LIMIT)
+                < GifReencoder.estimateMinimumFileSize(WIDTH, HEIGHT, BYTE_LIMIT));
+    }
+
+    private static int[] createStripes(final int color, final int otherColor) {
+        final int[] pixels = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i % WIDTH) / 4 % 2 == 0 ? color : otherColor;
+        }
+        return pixels;
+    }
+
+    private static byte[] reencode(final byte[] gif, final GifReencoder.Options options)
+            throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GifReencoder.reencode(new ByteArrayInputStream(gif), output, options);
+        return output.toByteArray();
+    }
+
+    private static void decode(final byte[] gif, final List<int[]> frames,
+            final List<Integer> delays) throws IOException {
+        final GifReencoder.Decoder decoder =
+                new GifReencoder.Decoder(new ByteArrayInputStream(gif));
+        final int[] canvas = new int[decoder.getWidth() * decoder.getHeight()];
+        int delay;
+        while ((delay = decoder.readFrame(canvas)) >= 0) {
+            frames.add(canvas.clone());
+            delays.add(delay);
+        }
+    }
+
+    /**
+     * Writes frames as a GIF with uncompressed LZW data (only literal codes, with a clear code
+     * before the code size would grow), so that decoding doesn't depend on our own encoder
+     */
+    private static byte[] createGif(final int[][] frames, final int loopCount) {
+        final List<Integer> colors = new ArrayList<Integer>();
+        colors.add(TRANSPARENT);
+        for (final int[] frame : frames) {
+            for (final int color : frame) {
+                if (!colors.contains(color)) {
+                    colors.add(color);
+                }
+            }
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('G');
+        out.write('I');
+        out.write('F');
+        out.write('8');
+        out.write('9');
+        out.write('a');
+        writeShort(out, WIDTH);
+        writeShort(out, HEIGHT);
+        out.write(0xf7); // 256 entry global color table
+        out.write(0);
+        out.write(0);
+        for (int i = 0; i < 256; i++) {
+            final int color = i < colors.size() ? colors.get(i) : 0;
+            out.write((color >> 16) & 0xff);
+            out.write((color >> 8) & 0xff);
+            out.write(color & 0xff);
+        }
+        out.write(0x21);
+        out.write(0xff);
+        out.write(11);
+        out.write("NETSCAPE2.0".getBytes(), 0, 11);
+        out.write(3);
+        out.write(1);
+        writeShort(out, loopCount);
+        out.write(0);
+        for (final int[] frame : frames) {
+            out.write(0x21);
+            out.write(0xf9);
+            out.write(4);
+            out.write((2 << 2) | 0x01); // Restore background, transparent index 0
+            writeShort(out, DELAY);
+            out.write(0);
+            out.write(0);
+            out.write(0x2c);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, WIDTH);
+            writeShort(out, HEIGHT);
+            out.write(0);
+            out.write(8);
+            final CodeWriter data = new CodeWriter();
+            for (int i = 0; i < frame.length; i++) {
+                if (i % 250 == 0) {
+                    data.write(256); // Clear
+                }
+                data.write(colors.indexOf(frame[i]));
+            }
+            data.write(257); // End
+            final byte[] bytes = data.toByteArray();
+            for (int offset = 0; offset < bytes.length; offset += 255) {
+                final int size = Math.min(255, bytes.length - offset);
+                out.write(size);
+                out.write(bytes, offset, size);
+            }
+            out.write(0);
+        }
+        out.write(0x3b);
+        return out.toByteArray();
+    }
+
+    /**
+     * Packs 9 bit codes into bytes
+     */
+    private static class CodeWriter {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private int mBits;
+        private int mBitCount;
+
+        void write(final int code) {
+            mBits |= code << mBitCount;
+            mBitCount += 9;
+            while (mBitCount >= 8) {
+                mBytes.write(mBits & 0xff);
+                mBits >>>= 8;
+                mBitCount -= 8;
+            }
+        }
+
+        byte[] toByteArray() {
+            if (mBitCount > 0) {
+                mBytes.write(mBits & 0xff);
+                mBitCount = 0;
+            }
+            return mBytes.toByteArray();
+        }
+    }
+
+    private static void writeShort(final ByteArrayOutputStream out, final int value) {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+@SmallTest
+public class JpegSizePredictorTest extends BugleTestCase {
+    private static final int BYTE_LIMIT = 300 * 1024;
+
+    public void testRelativeSizeIsInterpolated() {
+        assertEquals(1.0f, JpegSizePredictor.getRelativeSize(JpegSizePredictor.REFERENCE_QUALITY));
+        assertEquals(1.0f, JpegSizePredictor.getRelativeSize(100));
+        final float at90 = JpegSizePredictor.getRelativeSize(90);
+        final float at92 = JpegSizePredictor.getRelativeSize(92);
+        assertTrue(at90 < at92 && at92 < 1.0f);
+        assertEquals(JpegSizePredictor.getRelativeSize(JpegSizePredictor.MINIMUM_QUALITY),
+                JpegSizePredictor.getRelativeSize(10));
+    }
+
+    public void testSmallEncodeKeepsReferenceQuality() {
+        final JpegSizePredictor predictor = new JpegSizePredictor();
+        final JpegSizePredictor.Prediction prediction =
+                predictor.predictFromEncode(640 * 480, 95, BYTE_LIMIT / 2, BYTE_LIMIT);
+        assertEquals(JpegSizePredictor.REFERENCE_QUALITY, prediction.quality);
+        assertEquals(1.0f, prediction.scale);
+    }
+
+    public void testModerateOvershootLowersQuality() {
+        final JpegSizePredictor predictor = new JpegSizePredictor();
+        final JpegSizePredictor.Prediction prediction =
+                predictor.predictFromEncode(1280 * 960, 95, BYTE_LIMIT * 2, BYTE_LIMIT);
+        assertEquals(1.0f, prediction.scale);
+        assertTrue(prediction.quality < JpegSizePredictor.REFERENCE_QUALITY);
+        assertTrue(prediction.quality >= JpegSizePredictor.MINIMUM_QUALITY);
+        // The predicted size fits the limit
+        assertTrue(BYTE_LIMIT * 2 * JpegSizePredictor.getRelativeSize(prediction.quality)
+                <= BYTE_LIMIT);
+    }
+
+    public void testLargeOvershootScalesDown() {
+        final JpegSizePredictor predictor = new JpegSizePredictor();
+        final JpegSizePredictor.Prediction prediction =
+                predictor.predictFromEncode(1280 * 960, 95, BYTE_LIMIT * 10, BYTE_LIMIT);
+        assertEquals(JpegSizePredictor.SCALED_QUALITY, prediction.quality);
+        assertTrue(prediction.scale > 1.0f);
+        // Scaling alone must shrink at least as much as the area would
+        final float sizeAfterScaling = BYTE_LIMIT * 10
+                * JpegSizePredictor.getRelativeSize(JpegSizePredictor.SCALED_QUALITY)
+                / (prediction.scale * prediction.scale);
+        assertTrue(sizeAfterScaling < BYTE_LIMIT * 1.5f);
+    }
+
+    public void testPredictionFollowsHistory() {
+        final JpegSizePredictor predictor = new JpegSizePredictor();
+        final int pixels = 1280 * 960;
+        final int initialQuality = predictor.predict(pixels, BYTE_LIMIT).quality;
+        // Images keep coming out bigger than predicted
+        for (int i = 0; i < 10; i++) {
+            predictor.recordEncode(pixels, 95, BYTE_LIMIT * 3);
+        }
+        final JpegSizePredictor.Prediction prediction = predictor.predict(pixels, BYTE_LIMIT);
+        assertTrue(prediction.scale > 1.0f || prediction.quality < initialQuality);
+    }
+
+    public void testDumpReportsEncodes() {
+        final JpegSizePredictor predictor = new JpegSizePredictor();
+        predictor.recordResize(1, 100, true);
+        predictor.recordResize(3, 300, false);
+        final StringWriter output = new StringWriter();
+        predictor.dump(new PrintWriter(output));
+        assertTrue(output.toString().contains("resizes=2 failed=1 avgEncodes=2.00 maxEncodes=3"));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.messaging.util.exif;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.messaging.BugleTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@SmallTest
+public class ExifProbeTest extends BugleTestCase {
+    // Start of a JPEG with a 16x16 frame, which is as far as EXIF parsers read
+    private static final byte[] JPEG_WITHOUT_EXIF = {
+            (byte) 0xff, (byte) 0xd8,
+            (byte) 0xff, (byte) 0xc0, 0, 11, 8, 0, 16, 0, 16, 1, 1, 0x11, 0,
+            (byte) 0xff, (byte) 0xd9 };
+
+    public void testOrientationMatchesFullParser() throws IOException {
+        for (final int rotation : new int[] { 0, 90, 180, 270 }) {
+            final ExifInterface exif = new ExifInterface();
+            exif.setTag(exif.buildTag(ExifInterface.TAG_MAKE, "Test"));
+            exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.getOrientationValueForRotation(rotation)));
+            final byte[] jpeg = writeExif(exif);
+
+            final ExifInterface parsed = new ExifInterface();
+            parsed.readExif(jpeg);
+            final ExifProbe.Result result = ExifProbe.probe(new ByteArrayInputStream(jpeg));
+            assertEquals(parsed.getTagIntValue(ExifInterface.TAG_ORIENTATION).intValue(),
+                    result.orientation);
+            assertEquals(ExifProbe.SIZE_UNDEFINED, result.width);
+            assertEquals(ExifProbe.SIZE_UNDEFINED, result.height);
+        }
+    }
+
+    public void testPixelDimensionsTakePriority() throws IOException {
+        final ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_WIDTH, 320));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_IMAGE_LENGTH, 240));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_X_DIMENSION, 4000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_PIXEL_Y_DIMENSION, 3000));
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.Orientation.BOTTOM_LEFT));
+        final ExifProbe.Result result =
+                ExifProbe.probe(new ByteArrayInputStream(writeExif(exif)));
+        assertEquals(ExifInterface.Orientation.BOTTOM_LEFT, result.orientation);
+        assertEquals(4000, result.width);
+        assertEquals(3000, result.height);
+    }
+
+    public void testLittleEndian() throws IOException {
+        // IFD0 with an orientation of 6 and a width of 640 as a long
+        final byte[] tiff = {
+                'I', 'I', 0x2a, 0, 8, 0, 0, 0,
+                2, 0,
+                0x12, 0x01, 3, 0, 1, 0, 0, 0, 6, 0, 0, 0,
+                0x00, 0x01, 4, 0, 1, 0, 0, 0, (byte) 0x80, 2, 0, 0,
+                0, 0, 0, 0 };
+        final ExifProbe.Result result =
+                ExifProbe.probe(new ByteArrayInputStream(createJpegWithTiff(tiff)));
+        assertEquals(ExifInterface.Orientation.RIGHT_TOP, result.orientation);
+        assertEquals(640, result.width);
+        assertEquals(ExifProbe.SIZE_UNDEFINED, result.height);
+    }
+
+    public void testJpegWithoutExif() throws IOException {
+        final ExifProbe.Result result =
+                ExifProbe.probe(new ByteArrayInputStream(JPEG_WITHOUT_EXIF));
+        assertEquals(ExifProbe.ORIENTATION_UNDEFINED, result.orientation);
+        assertEquals(ExifProbe.SIZE_UNDEFINED, result.width);
+    }
+
+    public void testNotJpeg() throws IOException {
+        final ExifProbe.Result result =
+                ExifProbe.probe(new ByteArrayInputStream("GIF89a....".getBytes()));
+        assertEquals(ExifProbe.ORIENTATION_UNDEFINED, result.orientation);
+    }
+
+    private static byte[] writeExif(final ExifInterface exif) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(JPEG_WITHOUT_EXIF, out);
+        return out.toByteArray();
+    }
+
+    private static byte[] createJpegWithTiff(final byte[] tiff) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        out.write(0xff);
+        out.write(0xe1);
+        final int length = tiff.length + 8;
+        out.write(length >> 8);
+        out.write(length & 0xff);
+        out.write("Exif".getBytes(), 0, 4);
+        out.write(0);
+        out.write(0);
+        out.write(tiff, 0, tiff.length);
+        out.write(JPEG_WITHOUT_EXIF, 2, JPEG_WITHOUT_EXIF.length - 2);
+        return out.toByteArray();
+    }
+}